@@ -0,0 +1,156 @@
+package org.phenopackets.omopexporter;
+
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+import io.zonky.test.db.postgres.embedded.EmbeddedPostgres;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.jdbc.datasource.AbstractDataSource;
+
+import javax.sql.DataSource;
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares serving a burst of concurrent single-phenopacket requests on platform threads, as with the default Tomcat
+ * pool and the pool-sized query executor, with serving them on virtual threads behind the
+ * {@link ConnectionLimitingDataSource}. Each request fans its five section queries out through {@link ParallelQueries}
+ * and each query holds one of the ten connections for the query latency, so the database is the bottleneck and the
+ * modes differ in how they queue for it. The virtual mode needs JDK 21.
+ * <p>
+ * The SIMULATED database only sleeps while holding a connection, while POSTGRES runs {@code pg_sleep} through Hikari
+ * against an embedded Postgres, so that the virtual mode also measures whether the driver pins its carrier threads
+ * while it waits on the socket.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ExecutionModeBenchmark {
+
+    private static final int POOL_SIZE = 10;
+    private static final int TOMCAT_THREADS = 200;
+    private static final int SECTIONS = 5;
+
+    @Param({"PLATFORM", "VIRTUAL"})
+    public String mode;
+
+    @Param({"SIMULATED", "POSTGRES"})
+    public String database;
+
+    @Param({"1000"})
+    public int concurrentRequests;
+
+    @Param({"2"})
+    public int queryMillis;
+
+    private ExecutorService requestExecutor;
+    private ExecutorService queryExecutor;
+    private DataSource dataSource;
+    private EmbeddedPostgres postgres;
+    private HikariDataSource hikari;
+    private String query;
+
+    @Setup
+    public void setUp() throws IOException {
+        DataSource pool;
+        if (database.equals("POSTGRES")) {
+            postgres = EmbeddedPostgres.start();
+            HikariConfig config = new HikariConfig();
+            config.setDataSource(postgres.getPostgresDatabase());
+            config.setMaximumPoolSize(POOL_SIZE);
+            hikari = new HikariDataSource(config);
+            pool = hikari;
+            query = "SELECT pg_sleep(" + queryMillis / 1000.0 + ")";
+        } else {
+            pool = new SimulatedPool(POOL_SIZE);
+        }
+        if (mode.equals("VIRTUAL")) {
+            requestExecutor = VirtualThreads.newVirtualThreadPerTaskExecutor();
+            queryExecutor = VirtualThreads.newVirtualThreadPerTaskExecutor();
+            dataSource = new ConnectionLimitingDataSource(pool, POOL_SIZE, Duration.ofSeconds(30));
+        } else {
+            requestExecutor = Executors.newFixedThreadPool(TOMCAT_THREADS);
+            queryExecutor = Executors.newFixedThreadPool(POOL_SIZE);
+            dataSource = pool;
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        requestExecutor.shutdownNow();
+        queryExecutor.shutdownNow();
+        if (hikari != null) {
+            hikari.close();
+            postgres.close();
+        }
+    }
+
+    @Benchmark
+    public void serveRequests() throws Exception {
+        List<Future<?>> requests = new ArrayList<>(concurrentRequests);
+        for (int i = 0; i < concurrentRequests; i++) {
+            requests.add(requestExecutor.submit(() -> {
+                ParallelQueries queries = new ParallelQueries(queryExecutor, Duration.ofMinutes(1));
+                for (int section = 0; section < SECTIONS; section++) {
+                    queries.submit(() -> {
+                        try (Connection connection = dataSource.getConnection()) {
+                            if (query == null) {
+                                Thread.sleep(queryMillis);
+                            } else {
+                                try (PreparedStatement statement = connection.prepareStatement(query)) {
+                                    statement.execute();
+                                }
+                            }
+                        }
+                        return null;
+                    });
+                }
+                queries.await();
+            }));
+        }
+        for (Future<?> request : requests) {
+            request.get();
+        }
+    }
+
+    /**
+     * A connection pool whose connections do nothing but are limited in number, standing in for Hikari.
+     */
+    private static class SimulatedPool extends AbstractDataSource {
+
+        private final Semaphore connections;
+
+        SimulatedPool(int size) {
+            this.connections = new Semaphore(size);
+        }
+
+        @Override
+        public Connection getConnection() throws SQLException {
+            connections.acquireUninterruptibly();
+            return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[]{Connection.class}, (proxy, method, args) -> {
+                if (method.getName().equals("close")) {
+                    connections.release();
+                }
+                return null;
+            });
+        }
+
+        @Override
+        public Connection getConnection(String username, String password) throws SQLException {
+            return getConnection();
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package org.phenopackets.omopexporter;
+
+import org.openjdk.jmh.annotations.*;
+import org.phenopackets.omopexporter.dao.Fixtures;
+import org.phenopackets.schema.v2.Phenopacket;
+import org.phenopackets.schema.v2.core.Individual;
+import org.phenopackets.schema.v2.core.MetaData;
+import org.phenopackets.schema.v2.core.Sex;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Assembles a whole phenopacket from synthetic result sets, i.e. everything after the queries have returned, for
+ * persons with few, typical and very many measurements.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PhenopacketAssemblyBenchmark {
+
+    @Param({"10", "1000", "100000"})
+    public int measurementCount;
+
+    private Fixtures fixtures;
+    private ResultSet measurements;
+    private ResultSet procedures;
+    private ResultSet diseases;
+    private Individual individual;
+    private MetaData metaData;
+
+    @Setup
+    public void setUp() {
+        fixtures = new Fixtures();
+        measurements = fixtures.measurements(measurementCount);
+        procedures = fixtures.procedures(20);
+        diseases = fixtures.diseases(fixtures.diseaseFixtureSize());
+        individual = Individual.newBuilder().setId("1").setSex(Sex.FEMALE).build();
+        metaData = MetaData.newBuilder().setCreatedBy("OMOPackager").build();
+    }
+
+    @Benchmark
+    public Phenopacket assemble() throws SQLException {
+        return PhenopacketAssembler.buildPhenopacket(individual, metaData,
+                fixtures.mapMeasurements(measurements),
+                fixtures.toMedicalActions(List.of(), fixtures.mapProcedures(procedures)),
+                fixtures.mapDiseases(diseases));
+    }
+}
@@ -0,0 +1,70 @@
+package org.phenopackets.omopexporter;
+
+import com.google.protobuf.util.JsonFormat;
+import org.openjdk.jmh.annotations.*;
+import org.phenopackets.schema.v2.Phenopacket;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the ways a phenopacket can be written to a response: pretty and compact JSON as written by the controller
+ * and the message converter, and the binary and length-delimited protobuf forms.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SerializationBenchmark {
+
+    private static final JsonFormat.Printer PRINTER = JsonFormat.printer();
+    private static final JsonFormat.Printer COMPACT_PRINTER = JsonFormat.printer().omittingInsignificantWhitespace();
+
+    @Param({"individual1.json", "individual1068.json"})
+    public String fixture;
+
+    private Phenopacket phenopacket;
+    private OutputStream outputStream;
+
+    @Setup
+    public void setUp() throws IOException {
+        Phenopacket.Builder builder = Phenopacket.newBuilder();
+        try (Reader reader = new InputStreamReader(SerializationBenchmark.class.getResourceAsStream("/" + fixture), StandardCharsets.UTF_8)) {
+            JsonFormat.parser().ignoringUnknownFields().merge(reader, builder);
+        }
+        phenopacket = builder.build();
+        outputStream = OutputStream.nullOutputStream();
+    }
+
+    @Benchmark
+    public void printJson() throws IOException {
+        Writer writer = new OutputStreamWriter(outputStream, StandardCharsets.UTF_8);
+        PRINTER.appendTo(phenopacket, writer);
+        writer.flush();
+    }
+
+    @Benchmark
+    public void printCompactJson() throws IOException {
+        Writer writer = new OutputStreamWriter(outputStream, StandardCharsets.UTF_8);
+        COMPACT_PRINTER.appendTo(phenopacket, writer);
+        writer.flush();
+    }
+
+    @Benchmark
+    public void writeBinary() throws IOException {
+        phenopacket.writeTo(outputStream);
+    }
+
+    @Benchmark
+    public void writeDelimited() throws IOException {
+        phenopacket.writeDelimitedTo(outputStream);
+    }
+}
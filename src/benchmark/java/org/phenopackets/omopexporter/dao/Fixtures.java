@@ -0,0 +1,365 @@
+package org.phenopackets.omopexporter.dao;
+
+import com.google.protobuf.Timestamp;
+import com.google.protobuf.util.JsonFormat;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.phenopackets.schema.v2.Phenopacket;
+import org.phenopackets.schema.v2.core.Disease;
+import org.phenopackets.schema.v2.core.DoseInterval;
+import org.phenopackets.schema.v2.core.Individual;
+import org.phenopackets.schema.v2.core.Measurement;
+import org.phenopackets.schema.v2.core.MedicalAction;
+import org.phenopackets.schema.v2.core.OntologyClass;
+import org.phenopackets.schema.v2.core.Procedure;
+import org.phenopackets.schema.v2.core.Treatment;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Synthetic result sets for the DAO row mappers, built from the {@code *_example.csv} fixtures, and for the
+ * individuals and treatments from the subjects and treatments of the {@code individual*.json} phenopackets. The
+ * fixtures were exported from the original queries, which joined the concept table, so their CURIEs and labels are
+ * loaded into a {@link ConceptCache} under made-up concept ids and the rows are reshaped into the columns of the current
+ * queries. Nothing here touches a database.
+ */
+public final class Fixtures {
+
+    private static final LocalDateTime PROCEDURE_EPOCH = LocalDateTime.of(1920, 1, 1, 0, 0);
+
+    private final Map<String, Integer> conceptIds = new HashMap<>();
+    private final ConceptCache conceptCache = new ConceptCache(null, Routing.none(), 200_000, List.of());
+    private final MessageInterner messageInterner = new MessageInterner(4096);
+    private final QueryMetrics queryMetrics = new QueryMetrics(new SimpleMeterRegistry());
+    private final StagingTables stagingTables = new StagingTables(null, false, 100_000);
+    private final MeasurementDao measurementDao = new MeasurementDao(null, conceptCache, messageInterner, queryMetrics, stagingTables, 1000, Duration.ofSeconds(30));
+    private final MedicalActionDao medicalActionDao = new MedicalActionDao(null, conceptCache, messageInterner, queryMetrics, stagingTables);
+    private final DiseaseDao diseaseDao = new DiseaseDao(null, conceptCache, messageInterner, queryMetrics, stagingTables);
+    private final IndividualDao individualDao = new IndividualDao(null, conceptCache, messageInterner, queryMetrics, Routing.none());
+    private final List<Object[]> measurementRows = new ArrayList<>();
+    private final List<Object[]> procedureRows = new ArrayList<>();
+    private final List<Object[]> diseaseRows = new ArrayList<>();
+    private final List<Object[]> individualRows = new ArrayList<>();
+    private final List<Object[]> treatmentRows = new ArrayList<>();
+
+    public Fixtures() {
+        // concept_id 0 is the OMOP "No matching concept"
+        conceptIds.put("None:No matching concept", 0);
+        conceptCache.put(0, ConceptCache.NO_MATCHING_CONCEPT);
+        for (List<String> row : readCsv("measurement_example.csv")) {
+            int assayId = Integer.parseInt(row.get(1));
+            conceptCache.put(assayId, ontologyClass(row.get(2), row.get(3)));
+            Integer unitId = row.get(12) == null ? null : Integer.valueOf(row.get(12));
+            if (unitId != null) {
+                conceptCache.put(unitId, ontologyClass(row.get(8), row.get(9)));
+            }
+            measurementRows.add(new Object[]{
+                    Integer.valueOf(row.get(0)), assayId, parseDouble(row.get(4)), conceptId(row.get(5), row.get(6)), row.get(6),
+                    LocalDateTime.parse(row.get(7).replace(' ', 'T')), unitId, parseDouble(row.get(10)), parseDouble(row.get(11)),
+                    row.get(13), Integer.valueOf(row.get(14)), Long.valueOf(row.get(15))});
+        }
+        for (List<String> row : readCsv("procedure_example.csv")) {
+            String bodySite = row.get(2);
+            Integer bodySiteId = null;
+            if (bodySite != null) {
+                // exported as CURIE:label
+                int labelStart = bodySite.indexOf(':', bodySite.indexOf(':') + 1);
+                bodySiteId = conceptId(bodySite.substring(0, labelStart), bodySite.substring(labelStart + 1));
+            }
+            int age = Integer.parseInt(row.get(3));
+            procedureRows.add(new Object[]{
+                    Integer.valueOf(row.get(0)), conceptId(row.get(1), row.get(1)), bodySiteId, (double) age, PROCEDURE_EPOCH.plusYears(age)});
+        }
+        for (List<String> row : readCsv("disease_example.csv")) {
+            diseaseRows.add(new Object[]{
+                    Integer.valueOf(row.get(0)), conceptId(row.get(1), row.get(2)), row.get(3), Boolean.valueOf(row.get(4)),
+                    LocalDate.parse(row.get(5)), row.get(6) == null ? null : LocalDate.parse(row.get(6))});
+        }
+        for (String resource : List.of("individual1.json", "individual1068.json")) {
+            Phenopacket phenopacket = readPhenopacket(resource);
+            Individual subject = phenopacket.getSubject();
+            LocalDateTime dateOfBirth = localDateTime(subject.getDateOfBirth());
+            // each subject is read both living and dead, so that both branches of the mapper are measured
+            Integer causeOfDeathId = (Integer) diseaseRows.get(0)[1];
+            for (boolean dead : new boolean[]{false, true}) {
+                individualRows.add(new Object[]{
+                        subject.getId(), null, dateOfBirth, null, dead ? 2 : 0, dead ? dateOfBirth.plusYears(70) : null, dead ? causeOfDeathId : null,
+                        subject.getSexValue(), null, null, "NCBITaxon:9606", "human"});
+            }
+            int personId = Integer.parseInt(subject.getId());
+            for (MedicalAction medicalAction : phenopacket.getMedicalActionsList()) {
+                if (medicalAction.hasTreatment()) {
+                    Treatment treatment = medicalAction.getTreatment();
+                    DoseInterval doseInterval = treatment.getDoseIntervals(0);
+                    OntologyClass unit = doseInterval.getQuantity().getUnit();
+                    // the unit is ":" where the drug had no strength
+                    Integer unitId = unit.getId().equals(":") ? null : conceptId(unit.getId(), unit.getLabel());
+                    treatmentRows.add(new Object[]{
+                            personId, conceptId(treatment.getAgent().getId(), treatment.getAgent().getLabel()),
+                            conceptId(treatment.getRouteOfAdministration().getId(), treatment.getRouteOfAdministration().getLabel()),
+                            unitId, unitId == null ? null : doseInterval.getQuantity().getValue(),
+                            localDateTime(doseInterval.getInterval().getStart()).toLocalDate(),
+                            localDateTime(doseInterval.getInterval().getEnd()).toLocalDate()});
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns a result set shaped like that of {@link MeasurementDao#SELECT_PERSON_MEASUREMENTS}, with rowCount rows
+     * taken from the fixture, repeating it as often as needed.
+     */
+    public ResultSet measurements(int rowCount) {
+        return resultSet(List.of("person_id", "measurement_concept_id", "value_as_number", "value_as_concept_id", "value_label",
+                "measurement_datetime", "unit_concept_id", "range_low", "range_high", "unit_source_value", "visit_occurrence_id",
+                "row_number"), cycle(measurementRows, rowCount));
+    }
+
+    public ResultSet procedures(int rowCount) {
+        return resultSet(List.of("id", "procedure_concept_id", "body_site_concept_id", "performed_age", "performed_datetime"),
+                cycle(procedureRows, rowCount));
+    }
+
+    public ResultSet diseases(int rowCount) {
+        return resultSet(List.of("person_id", "term_concept_id", "condition_source_value", "excluded", "onset_timestamp",
+                "resolution"), cycle(diseaseRows, rowCount));
+    }
+
+    /**
+     * Returns a result set shaped like that of {@link IndividualDao#SELECT_BATCH_INDIVIDUALS}.
+     */
+    public ResultSet individuals(int rowCount) {
+        return resultSet(List.of("id", "alternate_ids", "date_of_birth", "time_at_last_encounter", "vital_status", "time_of_death",
+                "cause_of_death_concept_id", "sex", "karyotypic_sex", "gender", "taxonomy_id", "taxonomy_label"), cycle(individualRows, rowCount));
+    }
+
+    public ResultSet treatments(int rowCount) {
+        return resultSet(List.of("person_id", "agent_concept_id", "route_concept_id", "quantity_unit_concept_id", "quantity_value",
+                "interval_start", "interval_end"), cycle(treatmentRows, rowCount));
+    }
+
+    public int measurementFixtureSize() {
+        return measurementRows.size();
+    }
+
+    public int procedureFixtureSize() {
+        return procedureRows.size();
+    }
+
+    public int diseaseFixtureSize() {
+        return diseaseRows.size();
+    }
+
+    public int individualFixtureSize() {
+        return individualRows.size();
+    }
+
+    public int treatmentFixtureSize() {
+        return treatmentRows.size();
+    }
+
+    /*
+     * The mappers below rewind the result set first, so that the same result set can be mapped on every invocation.
+     */
+
+    public List<Measurement> mapMeasurements(ResultSet resultSet) throws SQLException {
+        resultSet.beforeFirst();
+        return measurementDao.mapMeasurements(resultSet, false);
+    }
+
+    public List<Procedure> mapProcedures(ResultSet resultSet) throws SQLException {
+        resultSet.beforeFirst();
+        return medicalActionDao.mapProcedures(resultSet, false);
+    }
+
+    public List<Disease> mapDiseases(ResultSet resultSet) throws SQLException {
+        resultSet.beforeFirst();
+        return diseaseDao.mapDiseases(resultSet, false);
+    }
+
+    public List<Individual> mapIndividuals(ResultSet resultSet) throws SQLException {
+        resultSet.beforeFirst();
+        return individualDao.mapIndividuals(resultSet);
+    }
+
+    public List<Treatment> mapTreatments(ResultSet resultSet) throws SQLException {
+        resultSet.beforeFirst();
+        return medicalActionDao.mapTreatments(resultSet, false);
+    }
+
+    public List<MedicalAction> toMedicalActions(List<Treatment> treatments, List<Procedure> procedures) {
+        return medicalActionDao.toMedicalActions(treatments, procedures, false);
+    }
+
+    private Integer conceptId(String curie, String label) {
+        if (curie == null) {
+            return null;
+        }
+        return conceptIds.computeIfAbsent(curie, key -> {
+            int conceptId = conceptIds.size();
+            conceptCache.put(conceptId, ontologyClass(curie, label == null ? "" : label));
+            return conceptId;
+        });
+    }
+
+    private static OntologyClass ontologyClass(String id, String label) {
+        return OntologyClass.newBuilder().setId(id).setLabel(label).build();
+    }
+
+    private static LocalDateTime localDateTime(Timestamp timestamp) {
+        return LocalDateTime.ofEpochSecond(timestamp.getSeconds(), timestamp.getNanos(), ZoneOffset.UTC);
+    }
+
+    private static Double parseDouble(String value) {
+        return value == null ? null : Double.valueOf(value);
+    }
+
+    private static List<Object[]> cycle(List<Object[]> rows, int rowCount) {
+        List<Object[]> cycled = new ArrayList<>(rowCount);
+        for (int i = 0; i < rowCount; i++) {
+            cycled.add(rows.get(i % rows.size()));
+        }
+        return cycled;
+    }
+
+    private static Phenopacket readPhenopacket(String resource) {
+        InputStream inputStream = Fixtures.class.getResourceAsStream("/" + resource);
+        if (inputStream == null) {
+            throw new IllegalStateException("Missing fixture " + resource);
+        }
+        Phenopacket.Builder builder = Phenopacket.newBuilder();
+        try (Reader reader = new InputStreamReader(inputStream, StandardCharsets.UTF_8)) {
+            JsonFormat.parser().merge(reader, builder);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return builder.build();
+    }
+
+    /**
+     * Reads the fixture, returning the fields of each row after the header with NULL read as null.
+     */
+    private static List<List<String>> readCsv(String resource) {
+        InputStream inputStream = Fixtures.class.getResourceAsStream("/" + resource);
+        if (inputStream == null) {
+            throw new IllegalStateException("Missing fixture " + resource);
+        }
+        List<List<String>> rows = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream, StandardCharsets.UTF_8))) {
+            reader.readLine();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.isBlank()) {
+                    rows.add(parseCsvLine(line));
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return rows;
+    }
+
+    private static List<String> parseCsvLine(String line) {
+        List<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        boolean wasQuoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == '"') {
+                quoted = !quoted;
+                wasQuoted = true;
+            } else if (c == ',' && !quoted) {
+                fields.add(field(field, wasQuoted));
+                field.setLength(0);
+                wasQuoted = false;
+            } else {
+                field.append(c);
+            }
+        }
+        fields.add(field(field, wasQuoted));
+        return fields;
+    }
+
+    private static String field(StringBuilder field, boolean wasQuoted) {
+        String value = field.toString();
+        return !wasQuoted && value.equals("NULL") ? null : value;
+    }
+
+    /**
+     * A scrollable, read-only result set over the rows, implementing only the methods the DAOs use. It is a dynamic
+     * proxy, so every call costs a reflective dispatch, but that cost is the same for every version of the mappers.
+     */
+    private static ResultSet resultSet(List<String> columns, List<Object[]> rows) {
+        Map<String, Integer> columnIndexes = new HashMap<>();
+        for (int i = 0; i < columns.size(); i++) {
+            columnIndexes.put(columns.get(i), i + 1);
+        }
+        int[] cursor = {-1};
+        boolean[] wasNull = {false};
+        return (ResultSet) Proxy.newProxyInstance(Fixtures.class.getClassLoader(), new Class<?>[]{ResultSet.class}, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "next":
+                    return ++cursor[0] < rows.size();
+                case "beforeFirst":
+                    cursor[0] = -1;
+                    return null;
+                case "findColumn":
+                    Integer index = columnIndexes.get((String) args[0]);
+                    if (index == null) {
+                        throw new SQLException("No column " + args[0]);
+                    }
+                    return index;
+                case "wasNull":
+                    return wasNull[0];
+                case "close":
+                    return null;
+                case "isClosed":
+                    return false;
+                case "getStatement":
+                    // as for a result set not produced by a statement, so the concepts must all be cached
+                    return null;
+                default:
+                    break;
+            }
+            if (!method.getName().startsWith("get") || args == null || args.length == 0) {
+                throw new UnsupportedOperationException(method.getName());
+            }
+            int columnIndex = args[0] instanceof String ? columnIndexes.get((String) args[0]) : (Integer) args[0];
+            Object value = rows.get(cursor[0])[columnIndex - 1];
+            wasNull[0] = value == null;
+            switch (method.getName()) {
+                case "getInt":
+                    return value == null ? 0 : ((Number) value).intValue();
+                case "getLong":
+                    return value == null ? 0L : ((Number) value).longValue();
+                case "getDouble":
+                    return value == null ? 0.0 : ((Number) value).doubleValue();
+                case "getBoolean":
+                    return value != null && (Boolean) value;
+                case "getString":
+                    return value == null ? null : value.toString();
+                case "getObject":
+                    return value;
+                default:
+                    throw new UnsupportedOperationException(method.getName());
+            }
+        });
+    }
+}
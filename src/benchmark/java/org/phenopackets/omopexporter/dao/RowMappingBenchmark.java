@@ -0,0 +1,68 @@
+package org.phenopackets.omopexporter.dao;
+
+import org.openjdk.jmh.annotations.*;
+import org.phenopackets.schema.v2.core.Disease;
+import org.phenopackets.schema.v2.core.Individual;
+import org.phenopackets.schema.v2.core.Measurement;
+import org.phenopackets.schema.v2.core.Procedure;
+import org.phenopackets.schema.v2.core.Treatment;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Maps each of the example fixtures once per invocation with the DAO row mappers, including the check for uncached concepts.
+ * The concepts are all cached, so this measures the mapping alone.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@org.openjdk.jmh.annotations.Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RowMappingBenchmark {
+
+    private Fixtures fixtures;
+    private ResultSet individuals;
+    private ResultSet measurements;
+    private ResultSet treatments;
+    private ResultSet procedures;
+    private ResultSet diseases;
+
+    @Setup
+    public void setUp() {
+        fixtures = new Fixtures();
+        individuals = fixtures.individuals(fixtures.individualFixtureSize());
+        measurements = fixtures.measurements(fixtures.measurementFixtureSize());
+        treatments = fixtures.treatments(fixtures.treatmentFixtureSize());
+        procedures = fixtures.procedures(fixtures.procedureFixtureSize());
+        diseases = fixtures.diseases(fixtures.diseaseFixtureSize());
+    }
+
+    @Benchmark
+    public List<Individual> mapIndividuals() throws SQLException {
+        return fixtures.mapIndividuals(individuals);
+    }
+
+    @Benchmark
+    public List<Measurement> mapMeasurements() throws SQLException {
+        return fixtures.mapMeasurements(measurements);
+    }
+
+    @Benchmark
+    public List<Treatment> mapTreatments() throws SQLException {
+        return fixtures.mapTreatments(treatments);
+    }
+
+    @Benchmark
+    public List<Procedure> mapProcedures() throws SQLException {
+        return fixtures.mapProcedures(procedures);
+    }
+
+    @Benchmark
+    public List<Disease> mapDiseases() throws SQLException {
+        return fixtures.mapDiseases(diseases);
+    }
+}
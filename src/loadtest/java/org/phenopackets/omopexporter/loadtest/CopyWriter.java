@@ -0,0 +1,74 @@
+package org.phenopackets.omopexporter.loadtest;
+
+import org.postgresql.PGConnection;
+import org.postgresql.copy.PGCopyOutputStream;
+
+import javax.sql.DataSource;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+
+/**
+ * Loads rows into a table with {@code COPY ... FROM STDIN}, which is an order of magnitude faster than batched inserts.
+ * Each writer holds its own connection, as a connection can only run one {@code COPY} at a time, so that the rows of
+ * several tables can be generated together.
+ */
+final class CopyWriter implements Closeable {
+
+    private static final DateTimeFormatter TIMESTAMP = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+
+    private final Connection connection;
+    private final Writer writer;
+
+    CopyWriter(DataSource dataSource, String table, String... columns) throws SQLException {
+        this.connection = dataSource.getConnection();
+        String copy = "COPY " + table + " (" + String.join(", ", columns) + ") FROM STDIN (FORMAT csv)";
+        this.writer = new BufferedWriter(new OutputStreamWriter(
+                new PGCopyOutputStream(connection.unwrap(PGConnection.class), copy, 1 << 16), StandardCharsets.UTF_8), 1 << 16);
+    }
+
+    /**
+     * Writes a row of values in the order of the columns, where null is written as NULL.
+     */
+    void row(Object... values) throws IOException {
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) {
+                writer.write(',');
+            }
+            Object value = values[i];
+            if (value instanceof String) {
+                writer.write('"');
+                writer.write(((String) value).replace("\"", "\"\""));
+                writer.write('"');
+            } else if (value instanceof LocalDateTime) {
+                writer.write(TIMESTAMP.format((LocalDateTime) value));
+            } else if (value != null) {
+                writer.write(value.toString());
+            }
+        }
+        writer.write('\n');
+    }
+
+    /**
+     * Completes the {@code COPY} and closes the connection.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            writer.close();
+        } finally {
+            try {
+                connection.close();
+            } catch (SQLException e) {
+                throw new IOException(e);
+            }
+        }
+    }
+}
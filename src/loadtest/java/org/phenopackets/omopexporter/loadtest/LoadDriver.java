@@ -0,0 +1,256 @@
+package org.phenopackets.omopexporter.loadtest;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Drives load against a running exporter and reports the throughput and latency percentiles of each endpoint, for a
+ * database filled by the {@link SyntheticOmopGenerator}.
+ * <pre>
+ * ./mvnw -P loadtest test-compile exec:exec -Dloadtest.args="--persons=100000 --concurrency=32 --duration=PT2M"
+ * </pre>
+ * Options:
+ * <ul>
+ *     <li>{@code --base-url} of the exporter (default {@code http://localhost:8080}) and the number of {@code --persons}
+ *     in its database, whose person_ids are 1 to persons as generated.</li>
+ *     <li>{@code --concurrency}, the number of requests in flight (default 16), for {@code --duration} (default
+ *     {@code PT60S}) after a {@code --warmup} whose latencies are discarded (default {@code PT10S}).</li>
+ *     <li>{@code --rate} of requests per second across all connections. Without it, each connection sends its next
+ *     request as soon as the last completes, which understates the latency under overload; with it, requests are
+ *     sent on a fixed schedule and their latency measured from when they should have been sent.</li>
+ *     <li>{@code --mix} of endpoints, by weight (default {@code json:70,protobuf:20,stream:5,cohort:5}). The cohort
+ *     requests are of {@code --cohort-size} consecutive persons (default 100). The {@code count} endpoint needs the
+ *     concept index to be enabled.</li>
+ *     <li>{@code --person-skew}, the Zipf exponent of the persons requested, so that some are requested far more often
+ *     than others as with a cache in front of the exporter (default 0, for every person equally).</li>
+ * </ul>
+ */
+public final class LoadDriver {
+
+    enum Endpoint {
+        JSON, PROTOBUF, STREAM, COHORT, COUNT
+    }
+
+    private final HttpClient httpClient;
+    private final URI baseUri;
+    private final int persons;
+    private final int cohortSize;
+    private final Endpoint[] mix;
+    private final SyntheticOmopGenerator.ZipfSampler personSampler;
+    private final Map<Endpoint, Recorder> latencies = new EnumMap<>(Endpoint.class);
+    private final Map<Endpoint, AtomicLong> errors = new EnumMap<>(Endpoint.class);
+    private final Map<Endpoint, AtomicLong> bytes = new EnumMap<>(Endpoint.class);
+    private volatile boolean recording;
+    private volatile boolean stopped;
+
+    LoadDriver(Options options) {
+        this.baseUri = URI.create(options.get("base-url", "http://localhost:8080") + "/");
+        this.persons = options.getInt("persons", 10_000);
+        this.cohortSize = options.getInt("cohort-size", 100);
+        this.mix = parseMix(options.get("mix", "json:70,protobuf:20,stream:5,cohort:5"));
+        double personSkew = options.getDouble("person-skew", 0);
+        this.personSampler = personSkew > 0 ? new SyntheticOmopGenerator.ZipfSampler(persons, personSkew) : null;
+        this.httpClient = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .connectTimeout(Duration.ofSeconds(10))
+                .build();
+        for (Endpoint endpoint : Endpoint.values()) {
+            // latencies of up to an hour, to three significant digits
+            latencies.put(endpoint, new Recorder(TimeUnit.HOURS.toMicros(1), 3));
+            errors.put(endpoint, new AtomicLong());
+            bytes.put(endpoint, new AtomicLong());
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        Options options = new Options(args);
+        new LoadDriver(options).run(options.getInt("concurrency", 16), options.getDouble("rate", 0),
+                options.getDuration("warmup", Duration.ofSeconds(10)), options.getDuration("duration", Duration.ofSeconds(60)),
+                options.getLong("seed", 42));
+    }
+
+    void run(int concurrency, double rate, Duration warmup, Duration duration, long seed) throws InterruptedException {
+        ExecutorService workers = Executors.newFixedThreadPool(concurrency);
+        SplittableRandom seeds = new SplittableRandom(seed);
+        long intervalNanos = rate > 0 ? (long) (1e9 * concurrency / rate) : 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < concurrency; i++) {
+            SplittableRandom random = seeds.split();
+            // spread the first requests of the connections over one interval
+            long firstSend = start + intervalNanos * i / concurrency;
+            workers.submit(() -> drive(random, firstSend, intervalNanos));
+        }
+        System.out.printf("Warming up for %s with %d connections%n", warmup, concurrency);
+        Thread.sleep(warmup.toMillis());
+        recording = true;
+        latencies.values().forEach(Recorder::reset);
+        errors.values().forEach(count -> count.set(0));
+        bytes.values().forEach(count -> count.set(0));
+        long measureStart = System.nanoTime();
+        Thread.sleep(duration.toMillis());
+        stopped = true;
+        double seconds = (System.nanoTime() - measureStart) / 1e9;
+        workers.shutdown();
+        workers.awaitTermination(1, TimeUnit.MINUTES);
+        report(seconds);
+    }
+
+    private void drive(SplittableRandom random, long firstSend, long intervalNanos) {
+        long intendedSend = firstSend;
+        while (!stopped) {
+            if (intervalNanos > 0) {
+                long wait = intendedSend - System.nanoTime();
+                if (wait > 0) {
+                    try {
+                        TimeUnit.NANOSECONDS.sleep(wait);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+            Endpoint endpoint = mix[random.nextInt(mix.length)];
+            long sent = intervalNanos > 0 ? intendedSend : System.nanoTime();
+            boolean ok;
+            long received = 0;
+            try {
+                HttpResponse<InputStream> response = httpClient.send(request(endpoint, random), HttpResponse.BodyHandlers.ofInputStream());
+                try (InputStream body = response.body()) {
+                    received = drain(body);
+                }
+                ok = response.statusCode() == 200;
+            } catch (IOException e) {
+                ok = false;
+            } catch (InterruptedException e) {
+                return;
+            }
+            long latencyNanos = System.nanoTime() - sent;
+            if (recording && !stopped) {
+                latencies.get(endpoint).recordValue(Math.max(1, TimeUnit.NANOSECONDS.toMicros(latencyNanos)));
+                bytes.get(endpoint).addAndGet(received);
+                if (!ok) {
+                    errors.get(endpoint).incrementAndGet();
+                }
+            }
+            intendedSend += intervalNanos;
+        }
+    }
+
+    private HttpRequest request(Endpoint endpoint, SplittableRandom random) {
+        int personId = personId(random);
+        switch (endpoint) {
+            case JSON:
+                return get("phenopacket/" + personId, "application/json");
+            case PROTOBUF:
+                return get("phenopacket/" + personId, "application/x-protobuf");
+            case STREAM:
+                return get("phenopacket/" + personId + "/stream", "application/json");
+            case COHORT:
+                int from = 1 + random.nextInt(Math.max(1, persons - cohortSize + 1));
+                return post("phenopackets", "application/x-protobuf-delimited",
+                        "{\"fromPersonId\": " + from + ", \"toPersonId\": " + (from + cohortSize - 1) + "}");
+            case COUNT:
+                // a group of conditions, less the persons with one of the commonest measurements
+                int parent = SyntheticOmopGenerator.CONDITION_CONCEPTS + SyntheticOmopGenerator.CONDITION_FAN_OUT * random.nextInt(10);
+                int measurement = SyntheticOmopGenerator.MEASUREMENT_CONCEPTS + random.nextInt(10);
+                return post("cohorts/count", "application/json", "{\"query\": {\"and\": [{\"concept\": " + parent + ", \"descendants\": true}, " +
+                        "{\"not\": {\"concept\": " + measurement + "}}]}}");
+            default:
+                throw new IllegalArgumentException("Unknown endpoint " + endpoint);
+        }
+    }
+
+    private int personId(SplittableRandom random) {
+        return 1 + (personSampler == null ? random.nextInt(persons) : personSampler.sample(random));
+    }
+
+    private HttpRequest get(String path, String accept) {
+        return HttpRequest.newBuilder(baseUri.resolve(path)).header("Accept", accept).GET().build();
+    }
+
+    private HttpRequest post(String path, String accept, String json) {
+        return HttpRequest.newBuilder(baseUri.resolve(path))
+                .header("Accept", accept)
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString(json))
+                .build();
+    }
+
+    private void report(double seconds) {
+        System.out.printf("%-9s %9s %7s %9s %8s %9s %9s %9s %9s %9s%n",
+                "endpoint", "requests", "errors", "req/s", "MB/s", "p50 ms", "p95 ms", "p99 ms", "p99.9 ms", "max ms");
+        Histogram total = null;
+        for (Endpoint endpoint : Endpoint.values()) {
+            Histogram histogram = latencies.get(endpoint).getIntervalHistogram();
+            if (histogram.getTotalCount() == 0) {
+                continue;
+            }
+            print(endpoint.name().toLowerCase(), histogram, errors.get(endpoint).get(), bytes.get(endpoint).get(), seconds);
+            if (total == null) {
+                total = histogram.copy();
+            } else {
+                total.add(histogram);
+            }
+        }
+        if (total != null) {
+            long allErrors = errors.values().stream().mapToLong(AtomicLong::get).sum();
+            long allBytes = bytes.values().stream().mapToLong(AtomicLong::get).sum();
+            print("all", total, allErrors, allBytes, seconds);
+        }
+    }
+
+    private static void print(String name, Histogram histogram, long errors, long bytes, double seconds) {
+        System.out.printf("%-9s %9d %7d %9.1f %8.2f %9.2f %9.2f %9.2f %9.2f %9.2f%n", name, histogram.getTotalCount(), errors,
+                histogram.getTotalCount() / seconds, bytes / seconds / 1e6, millis(histogram, 50), millis(histogram, 95),
+                millis(histogram, 99), millis(histogram, 99.9), histogram.getMaxValue() / 1000.0);
+    }
+
+    private static double millis(Histogram histogram, double percentile) {
+        return histogram.getValueAtPercentile(percentile) / 1000.0;
+    }
+
+    private static long drain(InputStream body) throws IOException {
+        byte[] buffer = new byte[64 * 1024];
+        long total = 0;
+        int read;
+        while ((read = body.read(buffer)) >= 0) {
+            total += read;
+        }
+        return total;
+    }
+
+    /**
+     * Expands {@code name:weight} pairs to an array in which each endpoint appears weight times, to pick from uniformly.
+     */
+    private static Endpoint[] parseMix(String mix) {
+        List<Endpoint> endpoints = new ArrayList<>();
+        for (String entry : mix.split(",")) {
+            String[] nameAndWeight = entry.trim().split(":");
+            Endpoint endpoint = Endpoint.valueOf(nameAndWeight[0].trim().toUpperCase());
+            int weight = nameAndWeight.length > 1 ? Integer.parseInt(nameAndWeight[1].trim()) : 1;
+            for (int i = 0; i < weight; i++) {
+                endpoints.add(endpoint);
+            }
+        }
+        if (endpoints.isEmpty()) {
+            throw new IllegalArgumentException("The mix has no endpoints");
+        }
+        return endpoints.toArray(new Endpoint[0]);
+    }
+}
@@ -0,0 +1,218 @@
+package org.phenopackets.omopexporter.loadtest;
+
+import io.zonky.test.db.postgres.embedded.EmbeddedPostgres;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.jdbc.datasource.init.ResourceDatabasePopulator;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how long the exporter takes from launching its JVM to the first successful {@code /phenopacket} response,
+ * for each way of starting it, to see what the {@code fast-start} profile gains when pods are scaled up. The runs of
+ * the modes are interleaved, so that a slower machine or a colder database affects each mode alike.
+ * <pre>
+ * ./mvnw -P fast-start package
+ * ./mvnw -P loadtest test-compile exec:exec -Dloadtest.main=StartupBenchmark -Dloadtest.args="--runs=10"
+ * </pre>
+ * The modes are:
+ * <ul>
+ *     <li>{@code jar}, the Spring Boot jar as usually run.</li>
+ *     <li>{@code classpath}, the {@code fast-start} jar, which loads its dependencies from {@code lib} on the class
+ *     path rather than from inside the Spring Boot jar.</li>
+ *     <li>{@code lazy}, the same with the {@code fast-start} Spring profile, which initializes beans when first used.</li>
+ *     <li>{@code cds}, the same again with the class data sharing archive of the {@code fast-start} build, which needs
+ *     Java 13 or later.</li>
+ * </ul>
+ * Options:
+ * <ul>
+ *     <li>{@code --modes} to run, comma-separated (default all four) and the number of {@code --runs} of each
+ *     (default 5).</li>
+ *     <li>{@code --jdbc-url}, {@code --user}, {@code --password} and {@code --schema} (default {@code public}) of the
+ *     OMOP database the exporter reads, with the {@code --person-id} to request (default 1). Without a URL, an embedded Postgres is started with the example
+ *     rows of the tests.</li>
+ *     <li>{@code --target} directory of the build (default {@code target}) and the {@code --timeout} of each start
+ *     (default {@code PT2M}). The output of each run is written to {@code startup-benchmark} in the target directory.</li>
+ * </ul>
+ */
+public final class StartupBenchmark {
+
+    enum Mode {
+        JAR, CLASSPATH, LAZY, CDS
+    }
+
+    private static final Duration POLL_INTERVAL = Duration.ofMillis(5);
+
+    private final Path target;
+    private final Duration timeout;
+    private final int personId;
+    private final List<String> datasourceArgs;
+    private final HttpClient httpClient = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_1_1)
+            .connectTimeout(Duration.ofSeconds(1))
+            .build();
+
+    StartupBenchmark(Options options, List<String> datasourceArgs) {
+        this.target = Paths.get(options.get("target", "target"));
+        this.timeout = options.getDuration("timeout", Duration.ofMinutes(2));
+        this.personId = options.getInt("person-id", 1);
+        this.datasourceArgs = datasourceArgs;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = new Options(args);
+        List<Mode> modes = new ArrayList<>();
+        for (String mode : options.get("modes", "jar,classpath,lazy,cds").split(",")) {
+            modes.add(Mode.valueOf(mode.trim().toUpperCase()));
+        }
+        int runs = options.getInt("runs", 5);
+        String jdbcUrl = options.get("jdbc-url", null);
+        EmbeddedPostgres postgres = null;
+        if (jdbcUrl == null) {
+            postgres = EmbeddedPostgres.start();
+            new ResourceDatabasePopulator(new ClassPathResource("omop/cdm_tables.sql"), new ClassPathResource("omop/example_rows.sql"))
+                    .execute(postgres.getPostgresDatabase());
+            jdbcUrl = postgres.getJdbcUrl("postgres", "postgres");
+        }
+        List<String> datasourceArgs = List.of("--spring.datasource.url=" + jdbcUrl,
+                "--spring.datasource.username=" + options.get("user", "postgres"),
+                "--spring.datasource.password=" + options.get("password", ""),
+                "--spring.datasource.hikari.schema=" + options.get("schema", "public"));
+        try {
+            new StartupBenchmark(options, datasourceArgs).run(modes, runs);
+        } finally {
+            if (postgres != null) {
+                postgres.close();
+            }
+        }
+    }
+
+    void run(List<Mode> modes, int runs) throws IOException, InterruptedException {
+        Path logs = Files.createDirectories(target.resolve("startup-benchmark"));
+        Map<Mode, List<Long>> millis = new LinkedHashMap<>();
+        for (Mode mode : modes) {
+            // fail before any run rather than part way through
+            command(mode, 0);
+            millis.put(mode, new ArrayList<>());
+        }
+        for (int run = 1; run <= runs; run++) {
+            for (Mode mode : modes) {
+                long startupMillis = timeToFirstResponse(mode, logs.resolve(mode.name().toLowerCase() + "-" + run + ".log"));
+                System.out.printf("%-9s run %d: %d ms%n", mode.name().toLowerCase(), run, startupMillis);
+                millis.get(mode).add(startupMillis);
+            }
+        }
+        System.out.printf("%nTime to the first successful /phenopacket/%d response, in ms%n", personId);
+        System.out.printf("%-9s %5s %7s %7s %7s%n", "mode", "runs", "min", "median", "max");
+        millis.forEach((mode, times) -> {
+            Collections.sort(times);
+            System.out.printf("%-9s %5d %7d %7d %7d%n", mode.name().toLowerCase(), times.size(), times.get(0), times.get(times.size() / 2),
+                    times.get(times.size() - 1));
+        });
+    }
+
+    private long timeToFirstResponse(Mode mode, Path log) throws IOException, InterruptedException {
+        int port = freePort();
+        ProcessBuilder processBuilder = new ProcessBuilder(command(mode, port))
+                // the class path of the archive is checked as given when it was written, relative to the fast-start directory
+                .directory(mode == Mode.JAR ? null : target.resolve("fast-start").toFile())
+                .redirectErrorStream(true)
+                .redirectOutput(log.toFile());
+        HttpRequest request = HttpRequest.newBuilder(URI.create("http://localhost:" + port + "/phenopacket/" + personId))
+                .header("Accept", "application/json")
+                .timeout(timeout)
+                .build();
+        long start = System.nanoTime();
+        Process process = processBuilder.start();
+        try {
+            while (System.nanoTime() - start < timeout.toNanos()) {
+                if (!process.isAlive()) {
+                    throw new IllegalStateException("The exporter exited with " + process.exitValue() + " before responding, see " + log);
+                }
+                try {
+                    HttpResponse<byte[]> response = httpClient.send(request, HttpResponse.BodyHandlers.ofByteArray());
+                    if (response.statusCode() == 200 && response.body().length > 0) {
+                        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                    }
+                    if (response.statusCode() != 503) {
+                        throw new IllegalStateException("The exporter responded with " + response.statusCode() + ", see " + log);
+                    }
+                } catch (IOException e) {
+                    // not listening yet
+                }
+                Thread.sleep(POLL_INTERVAL.toMillis());
+            }
+            throw new IllegalStateException("The exporter did not respond within " + timeout + ", see " + log);
+        } finally {
+            process.destroy();
+            if (!process.waitFor(30, TimeUnit.SECONDS)) {
+                process.destroyForcibly();
+            }
+        }
+    }
+
+    private List<String> command(Mode mode, int port) {
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        if (mode == Mode.JAR) {
+            command.add("-jar");
+            command.add(jar(target, ".jar").toAbsolutePath().toString());
+        } else {
+            Path fastStart = target.resolve("fast-start");
+            if (mode == Mode.CDS) {
+                if (Runtime.version().feature() < 13) {
+                    throw new IllegalStateException("The cds mode needs Java 13 or later, but this is " + Runtime.version());
+                }
+                command.add("-XX:SharedArchiveFile=" + existing(fastStart.resolve("omop-exporter.jsa")).getFileName());
+                // fail rather than quietly run without the archive, if it does not match this JVM and class path
+                command.add("-Xshare:on");
+            }
+            command.add("-jar");
+            command.add(jar(fastStart, "-fast-start.jar").getFileName().toString());
+            if (mode != Mode.CLASSPATH) {
+                command.add("--spring.profiles.active=fast-start");
+            }
+        }
+        command.add("--server.port=" + port);
+        command.addAll(datasourceArgs);
+        return command;
+    }
+
+    private static Path jar(Path directory, String suffix) {
+        File[] jars = directory.toFile().listFiles((parent, name) -> name.startsWith("omop-exporter-") && name.endsWith(suffix));
+        if (jars == null || jars.length == 0) {
+            return existing(directory.resolve("omop-exporter-<version>" + suffix));
+        }
+        Arrays.sort(jars);
+        return jars[jars.length - 1].toPath();
+    }
+
+    private static Path existing(Path path) {
+        if (!Files.exists(path)) {
+            throw new IllegalStateException(path + " does not exist, build it with ./mvnw -P fast-start package");
+        }
+        return path;
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
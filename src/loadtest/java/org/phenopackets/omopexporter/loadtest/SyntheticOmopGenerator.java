@@ -0,0 +1,311 @@
+package org.phenopackets.omopexporter.loadtest;
+
+import io.zonky.test.db.postgres.embedded.EmbeddedPostgres;
+import org.flywaydb.core.Flyway;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import org.springframework.jdbc.datasource.init.ResourceDatabasePopulator;
+
+import javax.sql.DataSource;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+/**
+ * Fills a Postgres database with a synthetic OMOP CDM, of as many persons as needed for capacity planning, using the
+ * tables of {@code omop/cdm_tables.sql}. The number of rows each person has is drawn from a Pareto distribution, so a
+ * few persons have orders of magnitude more rows than the median as in a real OMOP database, and the concepts of the
+ * rows are drawn from a Zipf distribution, so a few concepts are very common. The vocabulary is generated to match,
+ * with procedure sites, condition morphologies, drug strengths and a two-level condition hierarchy in
+ * {@code concept_ancestor}.
+ * <pre>
+ * ./mvnw -P loadtest test-compile exec:exec -Dloadtest.main=SyntheticOmopGenerator -Dloadtest.args="--persons=100000 --migrate"
+ * </pre>
+ * Options:
+ * <ul>
+ *     <li>{@code --jdbc-url}, {@code --user} and {@code --password} of an empty database to fill. Without a URL, an
+ *     embedded Postgres is started on {@code --port} (default 5433) and kept running until the generator is stopped.</li>
+ *     <li>{@code --persons} to generate (default 10000) and the {@code --seed} of the random numbers (default 42).</li>
+ *     <li>{@code --measurements}, {@code --drug-exposures}, {@code --procedures} and {@code --conditions}, the mean
+ *     number of each per person (default 40, 8, 3 and 5).</li>
+ *     <li>{@code --skew}, the Pareto shape of the rows per person, which must be greater than 1; the closer it is to 1
+ *     the heavier the tail (default 1.5). The rows of a person are capped at {@code --max-rows-per-person} (default
+ *     100000) of each kind.</li>
+ *     <li>{@code --concepts} in each clinical domain (default 2000) and their Zipf {@code --concept-skew} (default 1).</li>
+ *     <li>{@code --migrate} to apply the {@code db/performance} migrations once the rows are loaded, which is faster
+ *     than loading indexed tables.</li>
+ * </ul>
+ */
+public final class SyntheticOmopGenerator {
+
+    static final int MEASUREMENT_CONCEPTS = 10_000_000;
+    static final int UNIT_CONCEPTS = 11_000_000;
+    static final int VALUE_CONCEPTS = 12_000_000;
+    static final int DRUG_CONCEPTS = 13_000_000;
+    static final int ROUTE_CONCEPTS = 14_000_000;
+    static final int PROCEDURE_CONCEPTS = 15_000_000;
+    static final int SITE_CONCEPTS = 16_000_000;
+    static final int CONDITION_CONCEPTS = 17_000_000;
+    static final int MORPHOLOGY_CONCEPTS = 18_000_000;
+
+    /**
+     * One condition concept in this many is the parent of those which follow it, up to the next parent.
+     */
+    static final int CONDITION_FAN_OUT = 20;
+
+    /**
+     * The number of units, measurement values, routes, sites and morphologies.
+     */
+    private static final int SMALL_DOMAIN_CONCEPTS = 50;
+    private static final int MILLIGRAM = 8576;
+    private static final int UNMAPPED_UNIT = 99999;
+    private static final int[] GENDERS = {8507, 8532};
+
+    private static final LocalDate FIRST_DATE = LocalDate.of(2000, 1, 1);
+    private static final int DATE_SPAN_DAYS = (int) ChronoUnit.DAYS.between(FIRST_DATE, LocalDate.of(2023, 1, 1));
+
+    private final int persons;
+    private final double measurements;
+    private final double drugExposures;
+    private final double procedures;
+    private final double conditions;
+    private final double skew;
+    private final int maxRowsPerPerson;
+    private final int concepts;
+    private final SplittableRandom random;
+    private final ZipfSampler conceptSampler;
+    private final ZipfSampler smallDomainSampler;
+
+    private int nextVisitId = 1;
+    private int nextMeasurementId = 1;
+    private int nextDrugExposureId = 1;
+    private int nextProcedureId = 1;
+    private int nextConditionId = 1;
+
+    SyntheticOmopGenerator(Options options) {
+        this.persons = options.getInt("persons", 10_000);
+        this.measurements = options.getDouble("measurements", 40);
+        this.drugExposures = options.getDouble("drug-exposures", 8);
+        this.procedures = options.getDouble("procedures", 3);
+        this.conditions = options.getDouble("conditions", 5);
+        this.skew = options.getDouble("skew", 1.5);
+        this.maxRowsPerPerson = options.getInt("max-rows-per-person", 100_000);
+        this.concepts = options.getInt("concepts", 2000);
+        if (skew <= 1) {
+            throw new IllegalArgumentException("The skew must be greater than 1 for the rows per person to have a mean, but was " + skew);
+        }
+        this.random = new SplittableRandom(options.getLong("seed", 42));
+        this.conceptSampler = new ZipfSampler(concepts, options.getDouble("concept-skew", 1));
+        this.smallDomainSampler = new ZipfSampler(SMALL_DOMAIN_CONCEPTS, 1);
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = new Options(args);
+        String jdbcUrl = options.get("jdbc-url", null);
+        if (jdbcUrl != null) {
+            new SyntheticOmopGenerator(options).generate(new DriverManagerDataSource(jdbcUrl, options.get("user", "postgres"), options.get("password", "")),
+                    options.has("migrate"));
+            return;
+        }
+        EmbeddedPostgres postgres = EmbeddedPostgres.builder().setPort(options.getInt("port", 5433)).start();
+        new SyntheticOmopGenerator(options).generate(postgres.getPostgresDatabase(), options.has("migrate"));
+        System.out.printf("Embedded Postgres is running until this process is stopped, start the exporter with%n" +
+                "  --spring.datasource.url=%s --spring.datasource.username=postgres%n", postgres.getJdbcUrl("postgres", "postgres"));
+        Thread.currentThread().join();
+    }
+
+    void generate(DataSource dataSource, boolean migrate) throws SQLException, IOException {
+        long start = System.nanoTime();
+        JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
+        if (jdbcTemplate.queryForObject("SELECT to_regclass('person') IS NULL", Boolean.class)) {
+            new ResourceDatabasePopulator(new ClassPathResource("omop/cdm_tables.sql")).execute(dataSource);
+        } else if (jdbcTemplate.queryForObject("SELECT count(*) FROM person", Long.class) > 0) {
+            throw new IllegalStateException("The database already has persons, generate into an empty one");
+        }
+
+        generateVocabulary(dataSource);
+        int[] rowsPerPerson = new int[persons];
+        try (CopyWriter person = new CopyWriter(dataSource, "person", "person_id", "gender_concept_id", "birth_datetime");
+             CopyWriter death = new CopyWriter(dataSource, "death", "person_id", "death_datetime", "cause_concept_id");
+             CopyWriter visit = new CopyWriter(dataSource, "visit_occurrence", "visit_occurrence_id", "person_id", "visit_start_date");
+             CopyWriter measurement = new CopyWriter(dataSource, "measurement", "measurement_id", "person_id", "measurement_concept_id",
+                     "measurement_date", "measurement_datetime", "value_as_number", "value_as_concept_id", "unit_concept_id", "range_low", "range_high",
+                     "visit_occurrence_id", "unit_source_value", "value_source_value");
+             CopyWriter drugExposure = new CopyWriter(dataSource, "drug_exposure", "drug_exposure_id", "person_id", "drug_concept_id",
+                     "drug_exposure_start_date", "days_supply", "route_concept_id");
+             CopyWriter procedure = new CopyWriter(dataSource, "procedure_occurrence", "procedure_occurrence_id", "person_id",
+                     "procedure_concept_id", "procedure_datetime");
+             CopyWriter condition = new CopyWriter(dataSource, "condition_occurrence", "condition_occurrence_id", "person_id",
+                     "condition_concept_id", "condition_start_date", "condition_end_date", "condition_source_value")) {
+            for (int personId = 1; personId <= persons; personId++) {
+                person.row(personId, GENDERS[random.nextInt(GENDERS.length)], LocalDate.of(1930 + random.nextInt(70), 1, 1)
+                        .plusDays(random.nextInt(365)).atStartOfDay());
+                if (random.nextInt(100) < 3) {
+                    death.row(personId, randomDateTime(), CONDITION_CONCEPTS + conceptSampler.sample(random));
+                }
+                // a person's activity scales all of their rows, so that persons with many measurements also have many
+                // of everything else, as in a real OMOP database
+                double activity = Math.pow(1 - random.nextDouble(), -1 / skew) * (skew - 1) / skew;
+                int measurementRows = rows(measurements, activity);
+                int firstVisitId = nextVisitId;
+                int visits = 1 + measurementRows / 20;
+                for (int i = 0; i < visits; i++) {
+                    visit.row(nextId(nextVisitId++), personId, randomDate());
+                }
+                for (int i = 0; i < measurementRows; i++) {
+                    writeMeasurement(measurement, personId, firstVisitId + random.nextInt(visits));
+                }
+                int drugRows = rows(drugExposures, activity);
+                for (int i = 0; i < drugRows; i++) {
+                    drugExposure.row(nextId(nextDrugExposureId++), personId, DRUG_CONCEPTS + conceptSampler.sample(random), randomDate(),
+                            1 + random.nextInt(90), random.nextInt(10) < 7 ? ROUTE_CONCEPTS + smallDomainSampler.sample(random) : null);
+                }
+                int procedureRows = rows(procedures, activity);
+                for (int i = 0; i < procedureRows; i++) {
+                    procedure.row(nextId(nextProcedureId++), personId, PROCEDURE_CONCEPTS + conceptSampler.sample(random), randomDateTime());
+                }
+                int conditionRows = rows(conditions, activity);
+                for (int i = 0; i < conditionRows; i++) {
+                    int concept = conceptSampler.sample(random);
+                    LocalDate startDate = randomDate();
+                    condition.row(nextId(nextConditionId++), personId, CONDITION_CONCEPTS + concept, startDate,
+                            random.nextBoolean() ? null : startDate.plusDays(1 + random.nextInt(365)), "SYN-C" + concept);
+                }
+                rowsPerPerson[personId - 1] = measurementRows + drugRows + procedureRows + conditionRows;
+            }
+        }
+        jdbcTemplate.execute("ANALYZE");
+        if (migrate) {
+            // as configured by the spring.flyway properties
+            Flyway.configure()
+                    .dataSource(dataSource)
+                    .locations("classpath:db/performance")
+                    .table("omop_exporter_schema_history")
+                    .baselineOnMigrate(true)
+                    .baselineVersion("0")
+                    .load()
+                    .migrate();
+        }
+
+        Arrays.sort(rowsPerPerson);
+        System.out.printf("Generated %d persons with %d visits, %d measurements, %d drug exposures, %d procedures and %d conditions in %d s%n",
+                persons, nextVisitId - 1, nextMeasurementId - 1, nextDrugExposureId - 1, nextProcedureId - 1, nextConditionId - 1,
+                (System.nanoTime() - start) / 1_000_000_000);
+        System.out.printf("Clinical rows per person: p50 %d, p90 %d, p99 %d, p99.9 %d, max %d%n", percentile(rowsPerPerson, 0.5),
+                percentile(rowsPerPerson, 0.9), percentile(rowsPerPerson, 0.99), percentile(rowsPerPerson, 0.999), rowsPerPerson[persons - 1]);
+    }
+
+    private void generateVocabulary(DataSource dataSource) throws SQLException, IOException {
+        try (CopyWriter concept = new CopyWriter(dataSource, "concept", "concept_id", "concept_name", "domain_id", "vocabulary_id", "concept_code");
+             CopyWriter relationship = new CopyWriter(dataSource, "concept_relationship", "concept_id_1", "concept_id_2", "relationship_id");
+             CopyWriter strength = new CopyWriter(dataSource, "drug_strength", "drug_concept_id", "ingredient_concept_id", "amount_value",
+                     "amount_unit_concept_id");
+             CopyWriter ancestor = new CopyWriter(dataSource, "concept_ancestor", "ancestor_concept_id", "descendant_concept_id",
+                     "min_levels_of_separation", "max_levels_of_separation")) {
+            concept.row(0, "No matching concept", "Metadata", "None", "No matching concept");
+            concept.row(8507, "MALE", "Gender", "Gender", "M");
+            concept.row(8532, "FEMALE", "Gender", "Gender", "F");
+            concept.row(MILLIGRAM, "milligram", "Unit", "UCUM", "mg");
+            for (int i = 0; i < SMALL_DOMAIN_CONCEPTS; i++) {
+                concept.row(UNIT_CONCEPTS + i, "Synthetic unit " + i, "Unit", "UCUM", "u" + i);
+                concept.row(VALUE_CONCEPTS + i, "Synthetic value " + i, "Meas Value", "SNOMED", "SYN-V" + i);
+                concept.row(ROUTE_CONCEPTS + i, "Synthetic route " + i, "Route", "SNOMED", "SYN-R" + i);
+                concept.row(SITE_CONCEPTS + i, "Synthetic site " + i, "Spec Anatomic Site", "SNOMED", "SYN-S" + i);
+                concept.row(MORPHOLOGY_CONCEPTS + i, "Synthetic morphology " + i, "Observation", "SNOMED", "SYN-H" + i);
+            }
+            for (int i = 0; i < concepts; i++) {
+                concept.row(MEASUREMENT_CONCEPTS + i, "Synthetic measurement " + i, "Measurement", "LOINC", "SYN-M" + i);
+                concept.row(DRUG_CONCEPTS + i, "Synthetic drug " + i, "Drug", "RxNorm", "SYN-D" + i);
+                if (i % 5 != 0) {
+                    strength.row(DRUG_CONCEPTS + i, DRUG_CONCEPTS + i, 50 * (1 + i % 10), MILLIGRAM);
+                }
+                concept.row(PROCEDURE_CONCEPTS + i, "Synthetic procedure " + i, "Procedure", "SNOMED", "SYN-P" + i);
+                if (i % 5 < 3) {
+                    relationship.row(PROCEDURE_CONCEPTS + i, SITE_CONCEPTS + i % SMALL_DOMAIN_CONCEPTS, "Has proc site");
+                }
+                concept.row(CONDITION_CONCEPTS + i, "Synthetic condition " + i, "Condition", "SNOMED", "SYN-C" + i);
+                for (int morphology = 0; morphology < i % 3; morphology++) {
+                    relationship.row(CONDITION_CONCEPTS + i, MORPHOLOGY_CONCEPTS + (i + morphology) % SMALL_DOMAIN_CONCEPTS, "Has asso morph");
+                }
+                ancestor.row(CONDITION_CONCEPTS + i, CONDITION_CONCEPTS + i, 0, 0);
+                if (i % CONDITION_FAN_OUT != 0) {
+                    ancestor.row(CONDITION_CONCEPTS + i - i % CONDITION_FAN_OUT, CONDITION_CONCEPTS + i, 1, 1);
+                }
+            }
+        }
+    }
+
+    private void writeMeasurement(CopyWriter measurement, int personId, int visitId) throws IOException {
+        int concept = conceptSampler.sample(random);
+        Integer visitOccurrenceId = random.nextInt(10) < 8 ? visitId : null;
+        LocalDateTime dateTime = randomDateTime();
+        if (concept % 7 == 0) {
+            // a categorical measurement, with a value concept and no unit
+            int value = smallDomainSampler.sample(random);
+            measurement.row(nextId(nextMeasurementId++), personId, MEASUREMENT_CONCEPTS + concept, dateTime.toLocalDate(), dateTime, null,
+                    VALUE_CONCEPTS + value, null, null, null, visitOccurrenceId, null, "Synthetic value " + value);
+            return;
+        }
+        int unit = concept % SMALL_DOMAIN_CONCEPTS;
+        double rangeLow = 10 + concept % 90;
+        double rangeHigh = 2 * rangeLow;
+        double value = Math.round((rangeLow * 0.7 + random.nextDouble() * rangeLow * 1.6) * 10) / 10.0;
+        // a few units are not in the vocabulary, so are mapped from their source value
+        int unitConcept = random.nextInt(50) == 0 ? UNMAPPED_UNIT : UNIT_CONCEPTS + unit;
+        measurement.row(nextId(nextMeasurementId++), personId, MEASUREMENT_CONCEPTS + concept, dateTime.toLocalDate(), dateTime, value, null,
+                unitConcept, rangeLow, rangeHigh, visitOccurrenceId, "u" + unit, Double.toString(value));
+    }
+
+    private int rows(double mean, double activity) {
+        return (int) Math.min(maxRowsPerPerson, Math.round(mean * activity * (0.5 + random.nextDouble())));
+    }
+
+    private LocalDate randomDate() {
+        return FIRST_DATE.plusDays(random.nextInt(DATE_SPAN_DAYS));
+    }
+
+    private LocalDateTime randomDateTime() {
+        return randomDate().atTime(random.nextInt(24), random.nextInt(60));
+    }
+
+    private static int nextId(int id) {
+        if (id < 0) {
+            throw new IllegalStateException("Generated more rows than an integer primary key can hold");
+        }
+        return id;
+    }
+
+    private static int percentile(int[] sorted, double fraction) {
+        return sorted[Math.min(sorted.length - 1, (int) (fraction * sorted.length))];
+    }
+
+    /**
+     * Samples the ranks 0 to n - 1 with probabilities proportional to 1 / (rank + 1)^exponent.
+     */
+    static final class ZipfSampler {
+
+        private final double[] cumulative;
+
+        ZipfSampler(int n, double exponent) {
+            cumulative = new double[n];
+            double total = 0;
+            for (int rank = 0; rank < n; rank++) {
+                total += 1 / Math.pow(rank + 1, exponent);
+                cumulative[rank] = total;
+            }
+            for (int rank = 0; rank < n; rank++) {
+                cumulative[rank] /= total;
+            }
+        }
+
+        int sample(SplittableRandom random) {
+            int index = Arrays.binarySearch(cumulative, random.nextDouble());
+            return Math.min(cumulative.length - 1, index < 0 ? -index - 1 : index);
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package org.phenopackets.omopexporter;
+
+import org.phenopackets.omopexporter.dao.ConceptCache;
+import org.phenopackets.omopexporter.dao.ConceptIndex;
+import org.phenopackets.omopexporter.dao.PersonRowCounts;
+import org.phenopackets.omopexporter.dao.StagingTables;
+import org.phenopackets.omopexporter.snapshot.Snapshot;
+import org.phenopackets.omopexporter.snapshot.SnapshotStore;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.DeleteMapping;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.ResponseStatus;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Maintenance operations, to be called after the OMOP vocabulary or clinical tables have been refreshed.
+ */
+@RestController
+@RequestMapping("admin")
+public class AdminController {
+
+    private final ConceptCache conceptCache;
+    private final PhenopacketCache phenopacketCache;
+    private final StagingTables stagingTables;
+    private final StagingRefresher stagingRefresher;
+    private final SnapshotStore snapshotStore;
+    private final ConceptIndex conceptIndex;
+    private final PersonRowCounts personRowCounts;
+
+    public AdminController(ConceptCache conceptCache, PhenopacketCache phenopacketCache, StagingTables stagingTables, StagingRefresher stagingRefresher,
+                           SnapshotStore snapshotStore, ConceptIndex conceptIndex, PersonRowCounts personRowCounts) {
+        this.conceptCache = conceptCache;
+        this.phenopacketCache = phenopacketCache;
+        this.stagingTables = stagingTables;
+        this.stagingRefresher = stagingRefresher;
+        this.snapshotStore = snapshotStore;
+        this.conceptIndex = conceptIndex;
+        this.personRowCounts = personRowCounts;
+    }
+
+    /**
+     * Reloads the concepts and, as the cached phenopackets hold the old concept labels, flushes the phenopacket cache.
+     */
+    @PostMapping("concepts/reload")
+    public Map<String, Integer> reloadConcepts() {
+        conceptCache.reload();
+        phenopacketCache.invalidateAll();
+        return Map.of("cachedConcepts", conceptCache.size());
+    }
+
+    /**
+     * Stages the rows added since the last refresh or, with full=true, restages every row, as is needed after the
+     * vocabulary has been reloaded or OMOP rows have been updated or deleted. The sections are read from the old
+     * staging tables until a full refresh has completed, which then reloads the concepts and flushes the phenopacket
+     * cache. An incremental refresh evicts the cached phenopackets of the persons it staged rows for.
+     */
+    @PostMapping("staging/refresh")
+    public Map<String, Integer> refreshStaging(@RequestParam(defaultValue = "false") boolean full) {
+        if (!stagingTables.isEnabled()) {
+            throw new ResponseStatusException(HttpStatus.CONFLICT, "Staging is not enabled");
+        }
+        return stagingRefresher.refresh(full);
+    }
+
+    /**
+     * Starts building a snapshot of every phenopacket in the background, which is served in place of the current one
+     * once it is complete.
+     */
+    @PostMapping("snapshot/build")
+    @ResponseStatus(HttpStatus.ACCEPTED)
+    public Map<String, Object> buildSnapshot() {
+        try {
+            snapshotStore.startBuild();
+        } catch (IllegalStateException e) {
+            throw new ResponseStatusException(HttpStatus.CONFLICT, e.getMessage());
+        }
+        return snapshotStatus();
+    }
+
+    /**
+     * Serves the snapshot named in the {@code CURRENT} file of the snapshot directory, as after it has been edited to
+     * roll back to the previous snapshot.
+     */
+    @PostMapping("snapshot/reload")
+    public Map<String, Object> reloadSnapshot() throws IOException {
+        if (!snapshotStore.isEnabled()) {
+            throw new ResponseStatusException(HttpStatus.CONFLICT, "Snapshots are not enabled");
+        }
+        snapshotStore.reload();
+        return snapshotStatus();
+    }
+
+    @GetMapping("snapshot")
+    public Map<String, Object> snapshotStatus() {
+        Map<String, Object> status = new LinkedHashMap<>();
+        status.put("enabled", snapshotStore.isEnabled());
+        status.put("building", snapshotStore.isBuilding());
+        Optional<Snapshot> current = snapshotStore.getCurrent();
+        current.ifPresent(snapshot -> {
+            status.put("id", snapshot.getId());
+            status.put("phenopackets", snapshot.size());
+        });
+        snapshotStore.getLastBuildFailure().ifPresent(failure -> status.put("lastBuildFailure", failure));
+        return status;
+    }
+
+    /**
+     * Starts rebuilding the concept index from the clinical tables in the background, so that cohorts selected by
+     * concept include the rows added since it was last built. Cohorts are selected from the current index until the
+     * new one is complete.
+     */
+    @PostMapping("concept-index/rebuild")
+    @ResponseStatus(HttpStatus.ACCEPTED)
+    public Map<String, Object> rebuildConceptIndex() {
+        try {
+            conceptIndex.startRebuild();
+        } catch (IllegalStateException e) {
+            throw new ResponseStatusException(HttpStatus.CONFLICT, e.getMessage());
+        }
+        return conceptIndexStatus();
+    }
+
+    @GetMapping("concept-index")
+    public Map<String, Object> conceptIndexStatus() {
+        Map<String, Object> status = new LinkedHashMap<>();
+        status.put("enabled", conceptIndex.isEnabled());
+        status.put("rebuilding", conceptIndex.isRebuilding());
+        ConceptIndex.Bitmaps bitmaps = conceptIndex.getBitmaps();
+        if (bitmaps != null) {
+            status.put("builtAt", bitmaps.getBuiltAt().toString());
+            status.put("concepts", bitmaps.getConceptCount());
+            status.put("persons", bitmaps.getPersonCount());
+            status.put("sizeInBytes", bitmaps.getSizeInBytes());
+        }
+        conceptIndex.getLastRebuildFailure().ifPresent(failure -> status.put("lastRebuildFailure", failure));
+        return status;
+    }
+
+    /**
+     * Flushes the phenopacket cache and the row counts which admit the persons to the light or heavy lane, as after
+     * the clinical tables have been changed.
+     */
+    @DeleteMapping("phenopacket-cache")
+    public Map<String, Long> flushPhenopacketCache() {
+        phenopacketCache.invalidateAll();
+        personRowCounts.clear();
+        return Map.of("cachedPhenopackets", phenopacketCache.size());
+    }
+
+    @DeleteMapping("phenopacket-cache/{personId}")
+    public Map<String, Long> evictPhenopacket(@PathVariable int personId) {
+        phenopacketCache.invalidate(personId);
+        return Map.of("cachedPhenopackets", phenopacketCache.size());
+    }
+}
@@ -0,0 +1,30 @@
+package org.phenopackets.omopexporter;
+
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import javax.sql.DataSource;
+
+/**
+ * Wraps the application's data source in a {@link StatementTimeoutDataSource} when {@link AdmissionControl} is
+ * enabled, so that the deadlines of the admitted requests stop their queries on the server.
+ */
+@Configuration
+@ConditionalOnProperty("omop-exporter.admission.enabled")
+public class AdmissionConfig {
+
+    @Bean
+    public static BeanPostProcessor statementTimeoutDataSourcePostProcessor() {
+        return new BeanPostProcessor() {
+            @Override
+            public Object postProcessAfterInitialization(Object bean, String beanName) {
+                if (bean instanceof DataSource && "dataSource".equals(beanName)) {
+                    return new StatementTimeoutDataSource((DataSource) bean);
+                }
+                return bean;
+            }
+        };
+    }
+}
@@ -0,0 +1,295 @@
+package org.phenopackets.omopexporter;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.phenopackets.omopexporter.dao.PersonRowCounts;
+import org.phenopackets.omopexporter.dao.QueryDeadline;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.time.Duration;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounds the number of requests querying the database at once, so that a burst of expensive requests cannot take
+ * every pooled connection while cheap requests queue behind them until their clients give up. Requests are admitted
+ * to one of three {@link Lane lanes}, each with its own limit on the requests in flight and on the requests waiting
+ * for one of them to finish. A request which finds the wait queue of its lane full is rejected at once rather than
+ * adding to the backlog, as is one which has waited for the queue timeout, both with a {@code Retry-After} estimated
+ * from how long the lane's requests have recently taken.
+ * <p>
+ * The single-person requests are given a deadline of the request timeout from when they arrived, so that the time
+ * spent waiting to be admitted counts against it. The deadline is bound to the queries of the request as a
+ * {@link QueryDeadline}, which the {@link StatementTimeoutDataSource} turns into a Postgres {@code statement_timeout}.
+ * <p>
+ * Nothing is limited unless {@code omop-exporter.admission.enabled} is set.
+ */
+@Component
+public class AdmissionControl {
+
+    /**
+     * The single-person requests are admitted to the light lane, unless the person has at least
+     * {@code omop-exporter.admission.heavy-person-rows} clinical rows, in which case they are moved to the heavy lane
+     * so that a few very large persons hold only a few connections. Streamed phenopackets, which are meant for such
+     * persons, go straight to the heavy lane, and cohort requests to the bulk lane.
+     */
+    public enum Lane {
+        LIGHT, HEAVY, BULK
+    }
+
+    private static final long MAX_RETRY_AFTER_SECONDS = 300;
+
+    private final PersonRowCounts personRowCounts;
+    private final boolean enabled;
+    private final int heavyPersonRows;
+    private final Duration queueTimeout;
+    private final Duration requestTimeout;
+    private final Map<Lane, LaneLimiter> lanes = new EnumMap<>(Lane.class);
+
+    public AdmissionControl(PersonRowCounts personRowCounts, MeterRegistry meterRegistry,
+                            @Value("${omop-exporter.admission.enabled:false}") boolean enabled,
+                            @Value("${omop-exporter.admission.max-concurrent:16}") int maxConcurrent,
+                            @Value("${omop-exporter.admission.max-queued:64}") int maxQueued,
+                            @Value("${omop-exporter.admission.heavy.max-concurrent:2}") int heavyMaxConcurrent,
+                            @Value("${omop-exporter.admission.heavy.max-queued:8}") int heavyMaxQueued,
+                            @Value("${omop-exporter.admission.bulk.max-concurrent:2}") int bulkMaxConcurrent,
+                            @Value("${omop-exporter.admission.bulk.max-queued:2}") int bulkMaxQueued,
+                            @Value("${omop-exporter.admission.queue-timeout:1s}") Duration queueTimeout,
+                            @Value("${omop-exporter.request-timeout:30s}") Duration requestTimeout) {
+        this.personRowCounts = personRowCounts;
+        this.enabled = enabled;
+        this.heavyPersonRows = personRowCounts.getLimit();
+        this.queueTimeout = queueTimeout;
+        this.requestTimeout = requestTimeout;
+        // a single-person request rejected for a lack of capacity may well succeed on another instance, whereas the
+        // bulk lane is full because too many cohorts are being exported at once, which the client should back off from
+        lanes.put(Lane.LIGHT, new LaneLimiter(Lane.LIGHT, maxConcurrent, maxQueued, HttpStatus.SERVICE_UNAVAILABLE, meterRegistry));
+        lanes.put(Lane.HEAVY, new LaneLimiter(Lane.HEAVY, heavyMaxConcurrent, heavyMaxQueued, HttpStatus.SERVICE_UNAVAILABLE, meterRegistry));
+        lanes.put(Lane.BULK, new LaneLimiter(Lane.BULK, bulkMaxConcurrent, bulkMaxQueued, HttpStatus.TOO_MANY_REQUESTS, meterRegistry));
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Admits a request for the phenopacket of a person, to the heavy lane if the person has too many rows for the
+     * light one. The rows are counted while holding a permit of the light lane, so that counting them is limited too.
+     *
+     * @throws RejectedException if the request cannot be admitted
+     */
+    public Permit admitPerson(int personId) {
+        if (!enabled) {
+            return Permit.UNLIMITED;
+        }
+        long arrivalNanos = System.nanoTime();
+        long deadlineNanos = arrivalNanos + requestTimeout.toNanos();
+        Permit permit = admit(Lane.LIGHT, arrivalNanos, deadlineNanos);
+        if (heavyPersonRows <= 0) {
+            return permit;
+        }
+        int rows;
+        try (QueryDeadline.Scope ignored = permit.bindDeadline()) {
+            rows = personRowCounts.countRows(personId);
+        } catch (RuntimeException e) {
+            permit.close();
+            throw e;
+        }
+        if (rows < heavyPersonRows) {
+            return permit;
+        }
+        permit.close();
+        return admit(Lane.HEAVY, arrivalNanos, deadlineNanos);
+    }
+
+    /**
+     * Admits a request to the lane, with a deadline of the request timeout for the heavy lane and none for the bulk
+     * lane, whose cohorts take as long as they take while each batch of them is bounded by the batch timeout.
+     *
+     * @throws RejectedException if the request cannot be admitted
+     */
+    public Permit admit(Lane lane) {
+        if (!enabled) {
+            return Permit.UNLIMITED;
+        }
+        long arrivalNanos = System.nanoTime();
+        return admit(lane, arrivalNanos, lane == Lane.BULK ? 0 : arrivalNanos + requestTimeout.toNanos());
+    }
+
+    int getActive(Lane lane) {
+        return lanes.get(lane).getActive();
+    }
+
+    int getQueued(Lane lane) {
+        return lanes.get(lane).queued.get();
+    }
+
+    private Permit admit(Lane lane, long arrivalNanos, long deadlineNanos) {
+        LaneLimiter limiter = lanes.get(lane);
+        long waitNanos = arrivalNanos + queueTimeout.toNanos() - System.nanoTime();
+        if (deadlineNanos != 0) {
+            waitNanos = Math.min(waitNanos, deadlineNanos - System.nanoTime());
+        }
+        limiter.acquire(Math.max(0, waitNanos));
+        return new Permit(limiter, deadlineNanos);
+    }
+
+    /**
+     * A place in a lane, which is given up when the permit is closed. A permit may be closed by a different thread to
+     * the one which was admitted, as when a streamed response completes, and closing it more than once has no effect.
+     */
+    public static final class Permit implements AutoCloseable {
+
+        static final Permit UNLIMITED = new Permit(null, 0);
+
+        private final LaneLimiter limiter;
+        private final long deadlineNanos;
+        private final long admittedNanos = System.nanoTime();
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        private Permit(LaneLimiter limiter, long deadlineNanos) {
+            this.limiter = limiter;
+            this.deadlineNanos = deadlineNanos;
+        }
+
+        /**
+         * Returns the lane the request was admitted to, or null if admission control is not enabled.
+         */
+        public Lane getLane() {
+            return limiter == null ? null : limiter.lane;
+        }
+
+        /**
+         * Binds the deadline of the request, if it has one, to the current thread until the returned scope is closed.
+         */
+        public QueryDeadline.Scope bindDeadline() {
+            return deadlineNanos == 0 ? () -> {
+            } : QueryDeadline.bind(deadlineNanos);
+        }
+
+        @Override
+        public void close() {
+            if (limiter != null && closed.compareAndSet(false, true)) {
+                limiter.release(System.nanoTime() - admittedNanos);
+            }
+        }
+    }
+
+    /**
+     * Rejects a request which could not be admitted, with a {@code Retry-After} header giving the seconds after which
+     * it may be retried.
+     */
+    public static class RejectedException extends ResponseStatusException {
+
+        private final long retryAfterSeconds;
+
+        RejectedException(HttpStatus status, String reason, long retryAfterSeconds) {
+            super(status, reason);
+            this.retryAfterSeconds = retryAfterSeconds;
+        }
+
+        public long getRetryAfterSeconds() {
+            return retryAfterSeconds;
+        }
+
+        @Override
+        public HttpHeaders getResponseHeaders() {
+            HttpHeaders headers = new HttpHeaders();
+            headers.set(HttpHeaders.RETRY_AFTER, Long.toString(retryAfterSeconds));
+            return headers;
+        }
+    }
+
+    private static final class LaneLimiter {
+
+        private final Lane lane;
+        private final int maxConcurrent;
+        private final int maxQueued;
+        private final HttpStatus rejectionStatus;
+        private final Semaphore permits;
+        private final AtomicInteger queued = new AtomicInteger();
+        private final Timer waitTimer;
+        private final Counter queueFullRejections;
+        private final Counter timeoutRejections;
+        // updated without synchronization, so concurrent releases may lose an update to this approximate average
+        private volatile long meanHoldNanos;
+
+        LaneLimiter(Lane lane, int maxConcurrent, int maxQueued, HttpStatus rejectionStatus, MeterRegistry meterRegistry) {
+            if (maxConcurrent < 1) {
+                throw new IllegalArgumentException("The " + lane + " lane must admit at least one request but admits " + maxConcurrent);
+            }
+            this.lane = lane;
+            this.maxConcurrent = maxConcurrent;
+            this.maxQueued = maxQueued;
+            this.rejectionStatus = rejectionStatus;
+            this.permits = new Semaphore(maxConcurrent, true);
+            String tag = lane.name().toLowerCase();
+            Gauge.builder("omop.admission.active", this, LaneLimiter::getActive).tag("lane", tag)
+                    .description("Requests admitted and not yet complete").register(meterRegistry);
+            Gauge.builder("omop.admission.queued", queued, AtomicInteger::get).tag("lane", tag)
+                    .description("Requests waiting to be admitted").register(meterRegistry);
+            this.waitTimer = Timer.builder("omop.admission.wait").tag("lane", tag)
+                    .description("Time requests waited to be admitted").register(meterRegistry);
+            this.queueFullRejections = Counter.builder("omop.admission.rejected").tag("lane", tag).tag("reason", "queue-full")
+                    .description("Requests rejected without being admitted").register(meterRegistry);
+            this.timeoutRejections = Counter.builder("omop.admission.rejected").tag("lane", tag).tag("reason", "timeout")
+                    .description("Requests rejected without being admitted").register(meterRegistry);
+        }
+
+        void acquire(long waitNanos) {
+            long start = System.nanoTime();
+            try {
+                // unlike tryAcquire(), a timed tryAcquire does not barge ahead of the requests already waiting
+                if (permits.tryAcquire(0, TimeUnit.NANOSECONDS)) {
+                    waitTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+                    return;
+                }
+                if (queued.incrementAndGet() > maxQueued) {
+                    queued.decrementAndGet();
+                    queueFullRejections.increment();
+                    throw new RejectedException(rejectionStatus, "Too many " + lane.name().toLowerCase() + " requests are waiting", retryAfterSeconds());
+                }
+                try {
+                    if (!permits.tryAcquire(waitNanos, TimeUnit.NANOSECONDS)) {
+                        timeoutRejections.increment();
+                        throw new RejectedException(rejectionStatus, "Timed out waiting to be admitted", retryAfterSeconds());
+                    }
+                } finally {
+                    queued.decrementAndGet();
+                }
+                waitTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RejectedException(rejectionStatus, "Interrupted while waiting to be admitted", retryAfterSeconds());
+            }
+        }
+
+        void release(long holdNanos) {
+            long mean = meanHoldNanos;
+            meanHoldNanos = mean == 0 ? holdNanos : mean + (holdNanos - mean) / 8;
+            permits.release();
+        }
+
+        int getActive() {
+            return maxConcurrent - permits.availablePermits();
+        }
+
+        /**
+         * Estimates how long it would take for the requests in flight and those waiting to complete.
+         */
+        long retryAfterSeconds() {
+            double seconds = meanHoldNanos / 1e9 * (queued.get() + maxConcurrent) / maxConcurrent;
+            return Math.max(1, Math.min(MAX_RETRY_AFTER_SECONDS, (long) Math.ceil(seconds)));
+        }
+    }
+}
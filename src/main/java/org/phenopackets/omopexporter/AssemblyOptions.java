@@ -0,0 +1,81 @@
+package org.phenopackets.omopexporter;
+
+import org.phenopackets.omopexporter.dao.DateRange;
+import org.phenopackets.omopexporter.dao.Section;
+
+import java.util.EnumSet;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * What a request asks to be assembled into its phenopackets: which of the optional sections to include, the range of
+ * dates to include measurements, medical actions and diseases from, and whether to consolidate the treatments. Sections
+ * which are not included are not queried at all.
+ */
+public final class AssemblyOptions {
+
+    private final Set<Section> sections;
+    private final DateRange dateRange;
+    private final boolean consolidateTreatments;
+
+    public AssemblyOptions(Set<Section> sections, DateRange dateRange, boolean consolidateTreatments) {
+        this.sections = sections.isEmpty() ? EnumSet.noneOf(Section.class) : EnumSet.copyOf(sections);
+        this.dateRange = dateRange;
+        this.consolidateTreatments = consolidateTreatments;
+    }
+
+    /**
+     * Returns the options for every section over all dates.
+     */
+    public static AssemblyOptions all(boolean consolidateTreatments) {
+        return new AssemblyOptions(EnumSet.allOf(Section.class), DateRange.ALL, consolidateTreatments);
+    }
+
+    public boolean includes(Section section) {
+        return sections.contains(section);
+    }
+
+    public Set<Section> getSections() {
+        return sections;
+    }
+
+    public DateRange getDateRange() {
+        return dateRange;
+    }
+
+    public boolean isConsolidateTreatments() {
+        return consolidateTreatments;
+    }
+
+    /**
+     * Returns these options without the measurements, for when they are streamed separately.
+     */
+    AssemblyOptions withoutMeasurements() {
+        Set<Section> withoutMeasurements = EnumSet.noneOf(Section.class);
+        withoutMeasurements.addAll(sections);
+        withoutMeasurements.remove(Section.MEASUREMENTS);
+        return new AssemblyOptions(withoutMeasurements, dateRange, consolidateTreatments);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof AssemblyOptions)) {
+            return false;
+        }
+        AssemblyOptions that = (AssemblyOptions) o;
+        return consolidateTreatments == that.consolidateTreatments && sections.equals(that.sections) && dateRange.equals(that.dateRange);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(sections, dateRange, consolidateTreatments);
+    }
+
+    @Override
+    public String toString() {
+        return "AssemblyOptions{sections=" + sections + ", dateRange=" + dateRange + ", consolidateTreatments=" + consolidateTreatments + '}';
+    }
+}
@@ -0,0 +1,67 @@
+package org.phenopackets.omopexporter;
+
+import org.springframework.format.annotation.DateTimeFormat;
+
+import java.time.LocalDate;
+import java.util.List;
+
+/**
+ * The request parameters, or cohort request fields, which choose what goes into the phenopackets. Unset values take
+ * the defaults: every section, all dates and the {@code omop-exporter.consolidate-treatments} setting. They are turned
+ * into {@link AssemblyOptions} by {@link PhenopacketAssembler#options(AssemblyParameters)}.
+ */
+public class AssemblyParameters {
+
+    private List<String> include;
+    @DateTimeFormat(iso = DateTimeFormat.ISO.DATE)
+    private LocalDate from;
+    @DateTimeFormat(iso = DateTimeFormat.ISO.DATE)
+    private LocalDate to;
+    private Boolean consolidateTreatments;
+
+    /**
+     * The names of the phenopacket sections to include, from measurements, medicalActions and diseases. The subject is
+     * always included.
+     */
+    public List<String> getInclude() {
+        return include;
+    }
+
+    public void setInclude(List<String> include) {
+        this.include = include;
+    }
+
+    /**
+     * The first date to include measurements, medical actions and diseases from.
+     */
+    public LocalDate getFrom() {
+        return from;
+    }
+
+    public void setFrom(LocalDate from) {
+        this.from = from;
+    }
+
+    /**
+     * The last date to include measurements, medical actions and diseases from.
+     */
+    public LocalDate getTo() {
+        return to;
+    }
+
+    public void setTo(LocalDate to) {
+        this.to = to;
+    }
+
+    /**
+     * Whether the treatments with the same agent, route and unit are merged into one treatment with several dose
+     * intervals.
+     */
+    public Boolean getConsolidateTreatments() {
+        return consolidateTreatments;
+    }
+
+    public void setConsolidateTreatments(Boolean consolidateTreatments) {
+        this.consolidateTreatments = consolidateTreatments;
+    }
+}
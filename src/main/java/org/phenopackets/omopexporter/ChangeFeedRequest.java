@@ -0,0 +1,24 @@
+package org.phenopackets.omopexporter;
+
+import java.util.Map;
+
+/**
+ * Request body for the phenopackets of the persons changed since an earlier export, given the watermark returned with
+ * it, along with the {@link AssemblyParameters} for their phenopackets. Without a watermark every person is exported.
+ */
+public class ChangeFeedRequest extends AssemblyParameters {
+
+    private Map<String, Long> watermark;
+
+    /**
+     * The greatest primary key of each OMOP table as of the earlier export, as returned in its
+     * {@value OmopExporterController#WATERMARK_HEADER} header.
+     */
+    public Map<String, Long> getWatermark() {
+        return watermark;
+    }
+
+    public void setWatermark(Map<String, Long> watermark) {
+        this.watermark = watermark;
+    }
+}
@@ -0,0 +1,46 @@
+package org.phenopackets.omopexporter;
+
+import java.util.List;
+
+/**
+ * Request body for a cohort export, naming the persons either as an explicit list of person_ids or as an inclusive
+ * person_id range, along with the {@link AssemblyParameters} for their phenopackets.
+ */
+public class CohortRequest extends AssemblyParameters {
+
+    private List<Integer> personIds;
+    private Integer fromPersonId;
+    private Integer toPersonId;
+
+    public List<Integer> getPersonIds() {
+        return personIds;
+    }
+
+    public void setPersonIds(List<Integer> personIds) {
+        this.personIds = personIds;
+    }
+
+    public Integer getFromPersonId() {
+        return fromPersonId;
+    }
+
+    public void setFromPersonId(Integer fromPersonId) {
+        this.fromPersonId = fromPersonId;
+    }
+
+    public Integer getToPersonId() {
+        return toPersonId;
+    }
+
+    public void setToPersonId(Integer toPersonId) {
+        this.toPersonId = toPersonId;
+    }
+
+    /**
+     * Returns true if exactly one of the person_id list or a complete person_id range has been given.
+     */
+    public boolean isValid() {
+        boolean hasRange = fromPersonId != null && toPersonId != null && fromPersonId <= toPersonId;
+        return personIds != null ^ hasRange;
+    }
+}
@@ -0,0 +1,20 @@
+package org.phenopackets.omopexporter;
+
+import org.phenopackets.omopexporter.dao.ConceptExpression;
+
+/**
+ * Request body selecting a cohort from the {@link org.phenopackets.omopexporter.dao.ConceptIndex} by a boolean
+ * combination of concepts, along with the {@link AssemblyParameters} for the phenopackets of its persons.
+ */
+public class ConceptCohortRequest extends AssemblyParameters {
+
+    private ConceptExpression query;
+
+    public ConceptExpression getQuery() {
+        return query;
+    }
+
+    public void setQuery(ConceptExpression query) {
+        this.query = query;
+    }
+}
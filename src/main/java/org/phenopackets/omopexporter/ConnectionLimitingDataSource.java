@@ -0,0 +1,116 @@
+package org.phenopackets.omopexporter;
+
+import org.springframework.jdbc.datasource.DelegatingDataSource;
+
+import javax.sql.DataSource;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.time.Duration;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Lets at most a fixed number of connections be taken from the underlying pool at once, queueing any further callers
+ * in a fair semaphore. With platform threads the size of the query executor limits how many threads ask the pool for a
+ * connection, but there is no such limit on virtual threads, so without this thousands of them could be parked inside
+ * the pool's own connection handoff. A caller which cannot get a permit within the timeout fails as it would if the
+ * pool had timed out.
+ * <p>
+ * Only the first connection a thread takes needs a permit. A thread which already holds one and asks for another, as
+ * when a query is run while a result is still being read, goes straight to the pool. Were it to queue for a permit
+ * behind callers which each hold a connection and are about to ask for a second, none of them could make progress
+ * until they timed out. The limit is set below the size of the pool so that such nested connections can be had.
+ */
+class ConnectionLimitingDataSource extends DelegatingDataSource {
+
+    private final Semaphore permits;
+    private final Duration timeout;
+    // the number of connections held by each thread, which the connections it takes decrement when they are closed,
+    // on whichever thread that is
+    private final ThreadLocal<AtomicInteger> held = ThreadLocal.withInitial(AtomicInteger::new);
+
+    ConnectionLimitingDataSource(DataSource targetDataSource, int maxConnections, Duration timeout) {
+        super(targetDataSource);
+        this.permits = new Semaphore(maxConnections, true);
+        this.timeout = timeout;
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        return limit(super::getConnection);
+    }
+
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException {
+        return limit(() -> super.getConnection(username, password));
+    }
+
+    /**
+     * The number of callers waiting for a connection.
+     */
+    int getQueueLength() {
+        return permits.getQueueLength();
+    }
+
+    private void acquire() throws SQLException {
+        try {
+            if (!permits.tryAcquire(timeout.toNanos(), TimeUnit.NANOSECONDS)) {
+                throw new SQLTransientConnectionException("No connection available within " + timeout);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLTransientConnectionException("Interrupted while waiting for a connection", e);
+        }
+    }
+
+    private Connection limit(ConnectionSupplier target) throws SQLException {
+        AtomicInteger threadConnections = held.get();
+        boolean permitted = threadConnections.get() == 0;
+        if (permitted) {
+            acquire();
+        }
+        try {
+            Connection connection = target.getConnection();
+            threadConnections.incrementAndGet();
+            return releasingOnClose(connection, threadConnections, permitted);
+        } catch (SQLException | RuntimeException e) {
+            if (permitted) {
+                permits.release();
+            }
+            throw e;
+        }
+    }
+
+    private Connection releasingOnClose(Connection connection, AtomicInteger threadConnections, boolean permitted) {
+        AtomicBoolean released = new AtomicBoolean();
+        return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[]{Connection.class}, (proxy, method, args) -> {
+            if (method.getName().equals("close") && released.compareAndSet(false, true)) {
+                try {
+                    connection.close();
+                } finally {
+                    threadConnections.decrementAndGet();
+                    if (permitted) {
+                        permits.release();
+                    }
+                }
+                return null;
+            }
+            try {
+                return method.invoke(connection, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        });
+    }
+
+    @FunctionalInterface
+    private interface ConnectionSupplier {
+
+        Connection getConnection() throws SQLException;
+    }
+}
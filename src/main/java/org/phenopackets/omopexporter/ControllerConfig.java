@@ -1,5 +1,7 @@
 package org.phenopackets.omopexporter;
 
+import com.google.protobuf.util.JsonFormat;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.http.converter.protobuf.ProtobufJsonFormatHttpMessageConverter;
@@ -7,8 +9,20 @@ import org.springframework.http.converter.protobuf.ProtobufJsonFormatHttpMessage
 @Configuration
 public class ControllerConfig {
 
+    /**
+     * The printer for JSON responses. With {@code omop-exporter.json.compact} the JSON is printed without whitespace,
+     * which is both smaller and faster.
+     */
     @Bean
-    public ProtobufJsonFormatHttpMessageConverter protobufJsonFormatHttpMessageConverter() {
-        return new ProtobufJsonFormatHttpMessageConverter();
+    public JsonFormat.Printer jsonPrinter(@Value("${omop-exporter.json.compact:false}") boolean compact) {
+        return compact ? JsonFormat.printer().omittingInsignificantWhitespace() : JsonFormat.printer();
+    }
+
+    /**
+     * Writes protobuf messages as JSON or, when {@code application/x-protobuf} is accepted, in the binary wire format.
+     */
+    @Bean
+    public ProtobufJsonFormatHttpMessageConverter protobufJsonFormatHttpMessageConverter(JsonFormat.Printer jsonPrinter) {
+        return new ProtobufJsonFormatHttpMessageConverter(JsonFormat.parser(), jsonPrinter);
     }
 }
@@ -1,13 +1,29 @@
 package org.phenopackets.omopexporter;
 
 import org.springframework.boot.SpringApplication;
+import org.springframework.boot.WebApplicationType;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+
+import java.util.Arrays;
 
 @SpringBootApplication
 public class OmopExporterApplication {
 
     public static void main(String[] args) {
-        SpringApplication.run(OmopExporterApplication.class, args);
+        if (args.length > 0 && args[0].equals("export")) {
+            // run a single export job without starting the web server, see ExportCommandLineRunner
+            var context = new SpringApplicationBuilder(OmopExporterApplication.class)
+                    .web(WebApplicationType.NONE)
+                    .properties("omop-exporter.export.cli=true")
+                    .run(Arrays.copyOfRange(args, 1, args.length));
+            System.exit(SpringApplication.exit(context));
+        }
+        var context = SpringApplication.run(OmopExporterApplication.class, args);
+        if (context.getEnvironment().getProperty("omop-exporter.exit-after-startup", Boolean.class, false)) {
+            // the training run of the fast-start profile, whose JVM writes the classes it has loaded to an archive as it exits
+            System.exit(SpringApplication.exit(context));
+        }
     }
 
 }
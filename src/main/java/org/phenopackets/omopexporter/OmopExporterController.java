@@ -1,76 +1,482 @@
 package org.phenopackets.omopexporter;
 
-import org.phenopackets.omopexporter.dao.DiseaseDao;
-import org.phenopackets.omopexporter.dao.IndividualDao;
-import org.phenopackets.omopexporter.dao.MeasurementDao;
-import org.phenopackets.omopexporter.dao.MedicalActionDao;
-import org.phenopackets.phenotools.builder.builders.MetaDataBuilder;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.protobuf.util.JsonFormat;
+import org.phenopackets.omopexporter.dao.ConceptIndex;
+import org.phenopackets.omopexporter.dao.PersonChanges;
+import org.phenopackets.omopexporter.dao.QueryDeadline;
+import org.phenopackets.omopexporter.dao.Routing;
+import org.phenopackets.omopexporter.snapshot.Snapshot;
+import org.phenopackets.omopexporter.snapshot.SnapshotStore;
 import org.phenopackets.schema.v2.Phenopacket;
-import org.phenopackets.schema.v2.core.Disease;
-import org.phenopackets.schema.v2.core.Individual;
-import org.phenopackets.schema.v2.core.Measurement;
-import org.phenopackets.schema.v2.core.MedicalAction;
+import org.roaringbitmap.RoaringBitmap;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.NativeWebRequest;
+import org.springframework.web.context.request.RequestContextHolder;
+import org.springframework.web.context.request.ServletRequestAttributes;
+import org.springframework.web.context.request.WebRequest;
+import org.springframework.web.context.request.async.CallableProcessingInterceptor;
+import org.springframework.web.context.request.async.WebAsyncUtils;
+import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
-import java.time.Instant;
-import java.util.List;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Optional;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
-import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.Callable;
+import java.util.function.Function;
 
 @RestController
 public class OmopExporterController {
 
-    private final ExecutorService executorService = Executors.newWorkStealingPool();
+    public static final String APPLICATION_PROTOBUF_VALUE = "application/x-protobuf";
+    public static final MediaType APPLICATION_PROTOBUF = MediaType.parseMediaType(APPLICATION_PROTOBUF_VALUE);
 
-    private final IndividualDao individualDao;
-    private final MeasurementDao measurementDao;
-    private final MedicalActionDao medicalActionDao;
-    private final DiseaseDao diseaseDao;
+    /**
+     * A stream of binary protobuf messages, each preceded by its varint-encoded length as written by
+     * {@link com.google.protobuf.MessageLite#writeDelimitedTo(OutputStream)}.
+     */
+    public static final String APPLICATION_PROTOBUF_DELIMITED_VALUE = "application/x-protobuf-delimited";
+    public static final MediaType APPLICATION_PROTOBUF_DELIMITED = MediaType.parseMediaType(APPLICATION_PROTOBUF_DELIMITED_VALUE);
 
-    public OmopExporterController(IndividualDao individualDao, MeasurementDao measurementDao, MedicalActionDao medicalActionDao, DiseaseDao diseaseDao) {
-        this.individualDao = individualDao;
-        this.measurementDao = measurementDao;
-        this.medicalActionDao = medicalActionDao;
-        this.diseaseDao = diseaseDao;
+    /**
+     * The response header of a change feed holding the watermark to request the next changes from, as a JSON object.
+     */
+    public static final String WATERMARK_HEADER = "Omop-Watermark";
+
+    private static final JsonFormat.Printer NDJSON_PRINTER = JsonFormat.printer().omittingInsignificantWhitespace();
+
+    private static final String SENDFILE_SUPPORT = "org.apache.tomcat.sendfile.support";
+    private static final String SENDFILE_FILENAME = "org.apache.tomcat.sendfile.filename";
+    private static final String SENDFILE_START = "org.apache.tomcat.sendfile.start";
+    private static final String SENDFILE_END = "org.apache.tomcat.sendfile.end";
+
+    private final PhenopacketAssembler phenopacketAssembler;
+    private final PhenopacketCache phenopacketCache;
+    private final SnapshotStore snapshotStore;
+    private final ConceptIndex conceptIndex;
+    private final PersonChanges personChanges;
+    private final Routing routing;
+    private final AdmissionControl admissionControl;
+    private final ResponseMetrics responseMetrics;
+    private final JsonFormat.Printer jsonPrinter;
+    private final ObjectMapper objectMapper;
+
+    public OmopExporterController(PhenopacketAssembler phenopacketAssembler, PhenopacketCache phenopacketCache, SnapshotStore snapshotStore,
+                                  ConceptIndex conceptIndex, PersonChanges personChanges, Routing routing, AdmissionControl admissionControl,
+                                  ResponseMetrics responseMetrics, JsonFormat.Printer jsonPrinter, ObjectMapper objectMapper) {
+        this.phenopacketAssembler = phenopacketAssembler;
+        this.phenopacketCache = phenopacketCache;
+        this.snapshotStore = snapshotStore;
+        this.conceptIndex = conceptIndex;
+        this.personChanges = personChanges;
+        this.routing = routing;
+        this.admissionControl = admissionControl;
+        this.responseMetrics = responseMetrics;
+        this.jsonPrinter = jsonPrinter;
+        this.objectMapper = objectMapper;
     }
 
+    /**
+     * Returns the phenopacket for a person from the {@link PhenopacketCache}. Requests with an {@code If-None-Match}
+     * header matching the ETag of the cached phenopacket get a 304 response with no body. The {@link AssemblyParameters}
+     * are taken from the query parameters, as in {@code ?include=measurements,diseases&from=2021-01-01}.
+     * <p>
+     * When snapshots are enabled, a request with the default options for a person in the current {@link Snapshot} is
+     * served from it without querying the OMOP tables, with the same ETag as the cached phenopacket would have.
+     * <p>
+     * A phenopacket which has to be assembled waits to be admitted by the {@link AdmissionControl}, and the request is
+     * rejected with a 503 status if it cannot be.
+     */
     @CrossOrigin
     @GetMapping(value = "phenopacket/{personId}", produces = MediaType.APPLICATION_JSON_VALUE)
-    public Phenopacket getPhenopacketForPerson(@PathVariable int personId) {
-        Optional<Individual> result = individualDao.getIndividual(personId);
-        if (result.isEmpty()) {
+    public ResponseEntity<byte[]> getPhenopacketForPerson(@PathVariable int personId, AssemblyParameters parameters, WebRequest webRequest,
+                                                          HttpServletRequest request, HttpServletResponse response) throws IOException {
+        return phenopacket(personId, PhenopacketCache.Representation.JSON, options(parameters), webRequest, request, response);
+    }
+
+    @CrossOrigin
+    @GetMapping(value = "phenopacket/{personId}", produces = APPLICATION_PROTOBUF_VALUE)
+    public ResponseEntity<byte[]> getBinaryPhenopacketForPerson(@PathVariable int personId, AssemblyParameters parameters, WebRequest webRequest,
+                                                                HttpServletRequest request, HttpServletResponse response) throws IOException {
+        return phenopacket(personId, PhenopacketCache.Representation.PROTOBUF, options(parameters), webRequest, request, response);
+    }
+
+    /**
+     * Returns the phenopacket for a person with its measurements streamed from a database cursor as they are read, for
+     * persons with too many measurements to hold in memory at once. The rest of the phenopacket is assembled before the
+     * response starts, so a person who is not found gets an empty response as for the cached phenopacket, but a failure
+     * while streaming the measurements can only truncate the response. Streamed phenopackets are not cached.
+     */
+    @CrossOrigin
+    @GetMapping(value = "phenopacket/{personId}/stream", produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<StreamingResponseBody> streamPhenopacketForPerson(@PathVariable int personId, AssemblyParameters parameters) {
+        return streamedPhenopacket(personId, ResponseMetrics.Format.JSON, options(parameters), outputStream ->
+                StreamingPhenopacketWriter.json(jsonPrinter, new BufferedWriter(new OutputStreamWriter(outputStream, StandardCharsets.UTF_8))));
+    }
+
+    @CrossOrigin
+    @GetMapping(value = "phenopacket/{personId}/stream", produces = APPLICATION_PROTOBUF_VALUE)
+    public ResponseEntity<StreamingResponseBody> streamBinaryPhenopacketForPerson(@PathVariable int personId, AssemblyParameters parameters) {
+        return streamedPhenopacket(personId, ResponseMetrics.Format.PROTOBUF, options(parameters), StreamingPhenopacketWriter::protobuf);
+    }
+
+    /**
+     * Streams the phenopackets for a cohort as newline-delimited JSON, one phenopacket per line in person_id order.
+     * When the {@link AdmissionControl} is enabled, requests beyond the number of cohorts which may be exported at once
+     * are rejected with a 429 status.
+     */
+    @CrossOrigin
+    @PostMapping(value = "phenopackets", consumes = MediaType.APPLICATION_JSON_VALUE, produces = MediaType.APPLICATION_NDJSON_VALUE)
+    public ResponseEntity<StreamingResponseBody> getPhenopacketsForCohort(@RequestBody CohortRequest cohortRequest) {
+        validate(cohortRequest);
+        AssemblyOptions options = options(cohortRequest);
+        return ndjsonPhenopackets(sink -> phenopacketAssembler.assembleCohort(cohortRequest, options, sink));
+    }
+
+    /**
+     * Streams the phenopackets for a cohort as length-delimited binary protobuf messages in person_id order, which can
+     * be read back with {@code Phenopacket.parseDelimitedFrom(inputStream)} until it returns null.
+     */
+    @CrossOrigin
+    @PostMapping(value = "phenopackets", consumes = MediaType.APPLICATION_JSON_VALUE, produces = APPLICATION_PROTOBUF_DELIMITED_VALUE)
+    public ResponseEntity<StreamingResponseBody> getDelimitedPhenopacketsForCohort(@RequestBody CohortRequest cohortRequest) {
+        validate(cohortRequest);
+        AssemblyOptions options = options(cohortRequest);
+        return delimitedPhenopackets(sink -> phenopacketAssembler.assembleCohort(cohortRequest, options, sink));
+    }
+
+    /**
+     * Counts the persons matching a boolean combination of concepts, such as
+     * {@code {"query": {"and": [{"concept": 201820, "descendants": true}, {"not": {"concept": 4230911}}]}}}, from
+     * the {@link ConceptIndex} without querying the clinical tables.
+     */
+    @CrossOrigin
+    @PostMapping(value = "cohorts/count", consumes = MediaType.APPLICATION_JSON_VALUE, produces = MediaType.APPLICATION_JSON_VALUE)
+    public Map<String, Object> countConceptCohort(@RequestBody ConceptCohortRequest request) {
+        RoaringBitmap persons = select(request);
+        Map<String, Object> response = new LinkedHashMap<>();
+        response.put("count", persons.getLongCardinality());
+        response.put("indexBuiltAt", conceptIndex.getBitmaps().getBuiltAt().toString());
+        return response;
+    }
+
+    /**
+     * Streams the phenopackets of the persons matching a boolean combination of concepts as newline-delimited JSON, in
+     * person_id order.
+     */
+    @CrossOrigin
+    @PostMapping(value = "cohorts/phenopackets", consumes = MediaType.APPLICATION_JSON_VALUE, produces = MediaType.APPLICATION_NDJSON_VALUE)
+    public ResponseEntity<StreamingResponseBody> getPhenopacketsForConceptCohort(@RequestBody ConceptCohortRequest request) {
+        AssemblyOptions options = options(request);
+        RoaringBitmap persons = select(request);
+        return ndjsonPhenopackets(sink -> phenopacketAssembler.assembleCohort(persons, options, sink));
+    }
+
+    @CrossOrigin
+    @PostMapping(value = "cohorts/phenopackets", consumes = MediaType.APPLICATION_JSON_VALUE, produces = APPLICATION_PROTOBUF_DELIMITED_VALUE)
+    public ResponseEntity<StreamingResponseBody> getDelimitedPhenopacketsForConceptCohort(@RequestBody ConceptCohortRequest request) {
+        AssemblyOptions options = options(request);
+        RoaringBitmap persons = select(request);
+        return delimitedPhenopackets(sink -> phenopacketAssembler.assembleCohort(persons, options, sink));
+    }
+
+    /**
+     * Returns the current watermark of the OMOP tables, so that a change feed can start from now rather than by
+     * exporting every person.
+     */
+    @CrossOrigin
+    @GetMapping(value = "phenopackets/changes/watermark", produces = MediaType.APPLICATION_JSON_VALUE)
+    public Map<String, Long> getWatermark() {
+        try (Routing.Scope ignored = routing.bindConsistentReads()) {
+            return personChanges.watermark();
+        }
+    }
+
+    /**
+     * Streams the phenopackets of the persons with rows added since the watermark of the request as newline-delimited
+     * JSON, in person_id order, as found by {@link PersonChanges}. The {@value #WATERMARK_HEADER} header holds the
+     * watermark to request the next changes from, which is taken before the changed persons are looked for, so that
+     * rows added while the response is streamed are left for the next request rather than being missed.
+     */
+    @CrossOrigin(exposedHeaders = WATERMARK_HEADER)
+    @PostMapping(value = "phenopackets/changes", consumes = MediaType.APPLICATION_JSON_VALUE, produces = MediaType.APPLICATION_NDJSON_VALUE)
+    public ResponseEntity<StreamingResponseBody> getChangedPhenopackets(@RequestBody ChangeFeedRequest request) {
+        AssemblyOptions options = options(request);
+        Map<String, Long> watermark = watermark(request);
+        return ndjsonPhenopackets(sink -> assembleChanges(request.getWatermark(), watermark, options, sink), watermarkHeaders(watermark));
+    }
+
+    @CrossOrigin(exposedHeaders = WATERMARK_HEADER)
+    @PostMapping(value = "phenopackets/changes", consumes = MediaType.APPLICATION_JSON_VALUE, produces = APPLICATION_PROTOBUF_DELIMITED_VALUE)
+    public ResponseEntity<StreamingResponseBody> getDelimitedChangedPhenopackets(@RequestBody ChangeFeedRequest request) {
+        AssemblyOptions options = options(request);
+        Map<String, Long> watermark = watermark(request);
+        return delimitedPhenopackets(sink -> assembleChanges(request.getWatermark(), watermark, options, sink), watermarkHeaders(watermark));
+    }
+
+    /**
+     * Streams the phenopackets of a cohort once the request has been admitted to the bulk lane, which it holds until the
+     * response is complete.
+     */
+    private ResponseEntity<StreamingResponseBody> ndjsonPhenopackets(CohortAssembly assembly) {
+        return ndjsonPhenopackets(assembly, HttpHeaders.EMPTY);
+    }
+
+    private ResponseEntity<StreamingResponseBody> ndjsonPhenopackets(CohortAssembly assembly, HttpHeaders headers) {
+        AdmissionControl.Permit permit = releasedOnCompletion(admissionControl.admit(AdmissionControl.Lane.BULK));
+        StreamingResponseBody body = outputStream -> {
+            try (permit) {
+                CountingOutputStream countingOutputStream = new CountingOutputStream(outputStream);
+                Writer writer = new BufferedWriter(new OutputStreamWriter(countingOutputStream, StandardCharsets.UTF_8));
+                assembly.assemble(new PhenopacketAssembler.PhenopacketSink() {
+                    @Override
+                    public void accept(Phenopacket phenopacket) throws IOException {
+                        long start = System.nanoTime();
+                        NDJSON_PRINTER.appendTo(phenopacket, writer);
+                        writer.write('\n');
+                        responseMetrics.recordSerialization(ResponseMetrics.Format.NDJSON, System.nanoTime() - start);
+                    }
+
+                    @Override
+                    public void flush() throws IOException {
+                        writer.flush();
+                    }
+                });
+                writer.flush();
+                responseMetrics.recordResponseBytes(ResponseMetrics.Format.NDJSON, countingOutputStream.getCount());
+            }
+        };
+        return ResponseEntity.ok()
+                .headers(headers)
+                .contentType(MediaType.APPLICATION_NDJSON)
+                .body(body);
+    }
+
+    private ResponseEntity<StreamingResponseBody> delimitedPhenopackets(CohortAssembly assembly) {
+        return delimitedPhenopackets(assembly, HttpHeaders.EMPTY);
+    }
+
+    private ResponseEntity<StreamingResponseBody> delimitedPhenopackets(CohortAssembly assembly, HttpHeaders headers) {
+        AdmissionControl.Permit permit = releasedOnCompletion(admissionControl.admit(AdmissionControl.Lane.BULK));
+        StreamingResponseBody body = outputStream -> {
+            try (permit) {
+                CountingOutputStream countingOutputStream = new CountingOutputStream(outputStream);
+                OutputStream bufferedOutputStream = new BufferedOutputStream(countingOutputStream, 64 * 1024);
+                assembly.assemble(new PhenopacketAssembler.PhenopacketSink() {
+                    @Override
+                    public void accept(Phenopacket phenopacket) throws IOException {
+                        long start = System.nanoTime();
+                        phenopacket.writeDelimitedTo(bufferedOutputStream);
+                        responseMetrics.recordSerialization(ResponseMetrics.Format.PROTOBUF_DELIMITED, System.nanoTime() - start);
+                    }
+
+                    @Override
+                    public void flush() throws IOException {
+                        bufferedOutputStream.flush();
+                    }
+                });
+                bufferedOutputStream.flush();
+                responseMetrics.recordResponseBytes(ResponseMetrics.Format.PROTOBUF_DELIMITED, countingOutputStream.getCount());
+            }
+        };
+        return ResponseEntity.ok()
+                .headers(headers)
+                .contentType(APPLICATION_PROTOBUF_DELIMITED)
+                .body(body);
+    }
+
+    private ResponseEntity<byte[]> phenopacket(int personId, PhenopacketCache.Representation representation, AssemblyOptions options,
+                                               WebRequest webRequest, HttpServletRequest request, HttpServletResponse response) throws IOException {
+        if (options.equals(phenopacketAssembler.defaultOptions())) {
+            Optional<Snapshot.Entry> entry = snapshotStore.get(personId, representation);
+            if (entry.isPresent()) {
+                if (!webRequest.checkNotModified(entry.get().getETag())) {
+                    sendSnapshotEntry(entry.get(), representation, request, response);
+                }
+                // the response has been written, or the 304 status set
+                return null;
+            }
+        }
+        return cachedPhenopacket(personId, representation, options, webRequest);
+    }
+
+    /**
+     * Sends the body straight from the segment file with Tomcat's sendfile support where the connector has it, so that
+     * the kernel copies the bytes to the socket, and otherwise writes the mapped bytes through a small transfer buffer.
+     */
+    private void sendSnapshotEntry(Snapshot.Entry entry, PhenopacketCache.Representation representation, HttpServletRequest request,
+                                   HttpServletResponse response) throws IOException {
+        response.setContentType(representation.getMediaType().toString());
+        response.setHeader(HttpHeaders.ETAG, entry.getETag());
+        response.setContentLength(entry.getLength());
+        if (Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORT))) {
+            request.setAttribute(SENDFILE_FILENAME, entry.getFile().toAbsolutePath().toString());
+            request.setAttribute(SENDFILE_START, entry.getOffset());
+            request.setAttribute(SENDFILE_END, entry.getOffset() + entry.getLength());
+        } else {
+            ByteBuffer content = entry.getContent();
+            WritableByteChannel channel = Channels.newChannel(response.getOutputStream());
+            while (content.hasRemaining()) {
+                channel.write(content);
+            }
+        }
+        responseMetrics.recordResponseBytes(representation.getFormat(), entry.getLength());
+    }
+
+    private ResponseEntity<byte[]> cachedPhenopacket(int personId, PhenopacketCache.Representation representation, AssemblyOptions options,
+                                                     WebRequest webRequest) {
+        Optional<PhenopacketCache.Entry> entry = phenopacketCache.getIfPresent(personId, representation, options);
+        if (entry.isEmpty()) {
+            // only assembling a phenopacket queries the database, so cached phenopackets are served without admission
+            try (AdmissionControl.Permit permit = admissionControl.admitPerson(personId);
+                 QueryDeadline.Scope ignored = permit.bindDeadline()) {
+                entry = phenopacketCache.get(personId, representation, options);
+            }
+        }
+        if (entry.isEmpty()) {
+            return ResponseEntity.ok().build();
+        }
+        if (webRequest.checkNotModified(entry.get().getETag())) {
+            // the 304 status has been set
             return null;
         }
-        Phenopacket.Builder builder = Phenopacket.newBuilder();
-        Individual individual = result.get();
-        // TODO: provide a project CURIE prefix for this to be more meaningful - using N3C as a placeholder / example
-        builder.setId("N3C:" + individual.getId());
-        builder.setSubject(individual);
+        responseMetrics.recordResponseBytes(representation.getFormat(), entry.get().getBody().length);
+        return ResponseEntity.ok()
+                .contentType(representation.getMediaType())
+                .eTag(entry.get().getETag())
+                .body(entry.get().getBody());
+    }
 
-        var metaData = MetaDataBuilder.create(Instant.now().toString(), "OMOPackager").build();
-        builder.setMetaData(metaData);
+    private ResponseEntity<StreamingResponseBody> streamedPhenopacket(int personId, ResponseMetrics.Format format, AssemblyOptions options,
+                                                                      Function<OutputStream, StreamingPhenopacketWriter> writerFactory) {
+        // streaming is for the persons with the most rows, so the heavy lane is held until the response is complete
+        AdmissionControl.Permit permit = admissionControl.admit(AdmissionControl.Lane.HEAVY);
+        Optional<Phenopacket> phenopacket;
+        try (QueryDeadline.Scope ignored = permit.bindDeadline()) {
+            phenopacket = phenopacketAssembler.assemble(personId, options.withoutMeasurements());
+        } catch (RuntimeException e) {
+            permit.close();
+            throw e;
+        }
+        if (phenopacket.isEmpty()) {
+            permit.close();
+            return ResponseEntity.ok().build();
+        }
+        releasedOnCompletion(permit);
+        StreamingResponseBody body = outputStream -> {
+            try (permit) {
+                CountingOutputStream countingOutputStream = new CountingOutputStream(outputStream);
+                StreamingPhenopacketWriter writer = writerFactory.apply(countingOutputStream);
+                writer.start(phenopacket.get());
+                phenopacketAssembler.streamMeasurements(personId, options, writer::writeMeasurement);
+                writer.finish();
+                responseMetrics.recordResponseBytes(format, countingOutputStream.getCount());
+            }
+        };
+        return ResponseEntity.ok()
+                .contentType(format == ResponseMetrics.Format.JSON ? MediaType.APPLICATION_JSON : APPLICATION_PROTOBUF)
+                .body(body);
+    }
+
+    /**
+     * Closes the permit of a streamed response once its asynchronous request is complete, as the body, which closes the
+     * permit as soon as it has written the response, may never run if the request times out or fails before it starts.
+     */
+    private static AdmissionControl.Permit releasedOnCompletion(AdmissionControl.Permit permit) {
+        HttpServletRequest request = ((ServletRequestAttributes) RequestContextHolder.currentRequestAttributes()).getRequest();
+        WebAsyncUtils.getAsyncManager(request).registerCallableInterceptor(permit, new CallableProcessingInterceptor() {
+            @Override
+            public <T> void afterCompletion(NativeWebRequest webRequest, Callable<T> task) {
+                permit.close();
+            }
+        });
+        return permit;
+    }
+
+    private AssemblyOptions options(AssemblyParameters parameters) {
+        try {
+            return phenopacketAssembler.options(parameters);
+        } catch (IllegalArgumentException e) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, e.getMessage());
+        }
+    }
+
+    private RoaringBitmap select(ConceptCohortRequest request) {
+        if (request.getQuery() == null) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Provide a query");
+        }
+        try {
+            return conceptIndex.select(request.getQuery());
+        } catch (IllegalArgumentException e) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, e.getMessage());
+        } catch (IllegalStateException e) {
+            throw new ResponseStatusException(HttpStatus.CONFLICT, e.getMessage());
+        }
+    }
 
-//        Future<List<Measurement>> futureMeasurements = executorService.submit(() -> measurementDao.getMeasurements(personId));
+    /**
+     * Returns the current watermark, checking that the one in the request is for the same tables.
+     */
+    private Map<String, Long> watermark(ChangeFeedRequest request) {
+        Map<String, Long> watermark = getWatermark();
+        if (request.getWatermark() != null) {
+            for (String table : request.getWatermark().keySet()) {
+                if (!watermark.containsKey(table)) {
+                    throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Unknown watermark table " + table + ", expected some of " + watermark.keySet());
+                }
+            }
+        }
+        return watermark;
+    }
 
-        List<Measurement> measurements = measurementDao.getMeasurements(personId);
-        if (!measurements.isEmpty()) {
-            builder.addAllMeasurements(measurements);
+    private void assembleChanges(Map<String, Long> since, Map<String, Long> until, AssemblyOptions options,
+                                 PhenopacketAssembler.PhenopacketSink sink) throws IOException {
+        try (Routing.Scope ignored = routing.bindConsistentReads()) {
+            RoaringBitmap persons = personChanges.changedPersons(since != null ? since : Map.of(), until);
+            phenopacketAssembler.assembleCohort(persons, options, sink);
         }
+    }
 
-        List<MedicalAction> medicalActions = medicalActionDao.getMedicalActions(personId);
-        if (!medicalActions.isEmpty()) {
-            builder.addAllMedicalActions(medicalActions);
+    private HttpHeaders watermarkHeaders(Map<String, Long> watermark) {
+        HttpHeaders headers = new HttpHeaders();
+        try {
+            headers.set(WATERMARK_HEADER, objectMapper.writeValueAsString(watermark));
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException(e);
         }
+        return headers;
+    }
 
-        List<Disease> diseases = diseaseDao.getDiseases(personId);
-        if (!diseases.isEmpty()) {
-            builder.addAllDiseases(diseases);
+    private static void validate(CohortRequest cohortRequest) {
+        if (!cohortRequest.isValid()) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Provide either personIds or a fromPersonId/toPersonId range");
         }
+    }
+
+    /**
+     * Assembles the phenopackets of a cohort into the sink of a streamed response.
+     */
+    @FunctionalInterface
+    private interface CohortAssembly {
 
-        return builder.build();
+        void assemble(PhenopacketAssembler.PhenopacketSink sink) throws IOException;
     }
 }
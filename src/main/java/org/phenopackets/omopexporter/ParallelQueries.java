@@ -0,0 +1,118 @@
+package org.phenopackets.omopexporter;
+
+import org.phenopackets.omopexporter.dao.QueryCancellation;
+import org.phenopackets.omopexporter.dao.QueryDeadline;
+import org.phenopackets.omopexporter.dao.Routing;
+import org.springframework.dao.QueryTimeoutException;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A group of queries run in parallel on the query executor which either all complete before a shared deadline, or are
+ * all abandoned. As soon as one query fails or the deadline passes, the queries which are still queued or running are
+ * cancelled and {@link #await()} throws. The statements of the queries which are running are cancelled on the server by
+ * a {@link QueryCancellation} bound to the threads running them.
+ * <p>
+ * If a {@link QueryDeadline} is bound to the thread creating the group which is earlier than its own timeout, that
+ * deadline is shared instead. The shared deadline is bound to the threads running the queries, so that their
+ * statements are given a timeout which stops them on the server when it passes.
+ * The {@link Routing} target bound to the creating thread is carried over to the queries in the same way, unless a
+ * query is submitted for a target of its own.
+ */
+class ParallelQueries {
+
+    private final ExecutorCompletionService<Object> completionService;
+    private final List<Future<?>> futures = new ArrayList<>();
+    private final QueryCancellation cancellation = new QueryCancellation();
+    private final long deadlineNanos;
+    private final String target;
+
+    ParallelQueries(ExecutorService executorService, Duration timeout) {
+        this.completionService = new ExecutorCompletionService<>(executorService);
+        long deadlineNanos = System.nanoTime() + timeout.toNanos();
+        long boundDeadlineNanos = QueryDeadline.current().orElse(deadlineNanos);
+        this.deadlineNanos = boundDeadlineNanos - deadlineNanos < 0 ? boundDeadlineNanos : deadlineNanos;
+        this.target = Routing.current();
+    }
+
+    <T> Future<T> submit(Callable<T> query) {
+        return submit(target, query);
+    }
+
+    /**
+     * Submits a query to run against the target, such as one shard of a batch of persons.
+     */
+    @SuppressWarnings("unchecked")
+    <T> Future<T> submit(String target, Callable<T> query) {
+        Callable<Object> withinDeadline = () -> {
+            try (QueryDeadline.Scope ignored = QueryDeadline.bind(deadlineNanos); Routing.Scope routed = Routing.bind(target);
+                 QueryCancellation.Scope cancellable = cancellation.bind()) {
+                return query.call();
+            }
+        };
+        Future<T> future = (Future<T>) completionService.submit(withinDeadline);
+        futures.add(future);
+        return future;
+    }
+
+    /**
+     * Waits for all the submitted queries to complete, after which their results can be taken with {@link #get(Future)}.
+     */
+    void await() {
+        try {
+            for (int i = 0; i < futures.size(); i++) {
+                long remainingNanos = deadlineNanos - System.nanoTime();
+                Future<Object> completed = completionService.poll(remainingNanos, TimeUnit.NANOSECONDS);
+                if (completed == null) {
+                    throw new QueryTimeoutException("Queries did not complete before their deadline");
+                }
+                completed.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            cancelAll();
+            throw new CancellationException("Interrupted while waiting for queries");
+        } catch (ExecutionException e) {
+            cancelAll();
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException(cause);
+        } catch (RuntimeException e) {
+            cancelAll();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the result of a query submitted to this group, once {@link #await()} has returned.
+     */
+    <T> T get(Future<T> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException | ExecutionException e) {
+            // await() has already seen every future complete successfully
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void cancelAll() {
+        cancellation.cancel();
+        for (Future<?> future : futures) {
+            future.cancel(true);
+        }
+    }
+}
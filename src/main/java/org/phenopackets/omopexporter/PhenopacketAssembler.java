@@ -0,0 +1,319 @@
+package org.phenopackets.omopexporter;
+
+import org.phenopackets.omopexporter.dao.DateRange;
+import org.phenopackets.omopexporter.dao.DiseaseDao;
+import org.phenopackets.omopexporter.dao.IndividualDao;
+import org.phenopackets.omopexporter.dao.MeasurementDao;
+import org.phenopackets.omopexporter.dao.MedicalActionDao;
+import org.phenopackets.omopexporter.dao.PersonRecordDao;
+import org.phenopackets.omopexporter.dao.PersonRows;
+import org.phenopackets.omopexporter.dao.Routing;
+import org.phenopackets.omopexporter.dao.Section;
+import org.phenopackets.phenotools.builder.builders.MetaDataBuilder;
+import org.phenopackets.schema.v2.Phenopacket;
+import org.phenopackets.schema.v2.core.Disease;
+import org.phenopackets.schema.v2.core.Individual;
+import org.phenopackets.schema.v2.core.Measurement;
+import org.phenopackets.schema.v2.core.MedicalAction;
+import org.phenopackets.schema.v2.core.MetaData;
+import org.phenopackets.schema.v2.core.Procedure;
+import org.phenopackets.schema.v2.core.Treatment;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+
+/**
+ * Builds {@link Phenopacket} messages from the OMOP DAOs, either for a single person or for a batch of persons using
+ * one query per DAO for the whole batch.
+ */
+@Component
+public class PhenopacketAssembler {
+
+    /**
+     * How the sections of a single person's phenopacket are queried: as separate queries run in parallel, or as one
+     * multi-statement batch in a single round trip, which is faster when the database is across a high latency link.
+     */
+    public enum AssemblyMode {
+        PARALLEL, SINGLE_ROUND_TRIP
+    }
+
+    private final IndividualDao individualDao;
+    private final MeasurementDao measurementDao;
+    private final MedicalActionDao medicalActionDao;
+    private final DiseaseDao diseaseDao;
+    private final PersonRecordDao personRecordDao;
+    private final Routing routing;
+    private final AssemblyMode assemblyMode;
+    private final boolean consolidateTreatments;
+    private final ExecutorService queryExecutor;
+    private final Duration requestTimeout;
+    private final Duration batchTimeout;
+    private final int batchSize;
+
+    public PhenopacketAssembler(IndividualDao individualDao, MeasurementDao measurementDao, MedicalActionDao medicalActionDao, DiseaseDao diseaseDao,
+                                PersonRecordDao personRecordDao, Routing routing,
+                                @Value("${omop-exporter.assembly-mode:PARALLEL}") AssemblyMode assemblyMode,
+                                @Value("${omop-exporter.consolidate-treatments:false}") boolean consolidateTreatments,
+                                @Qualifier("queryExecutor") ExecutorService queryExecutor,
+                                @Value("${omop-exporter.request-timeout:30s}") Duration requestTimeout,
+                                @Value("${omop-exporter.batch-timeout:5m}") Duration batchTimeout,
+                                @Value("${omop-exporter.batch-size:500}") int batchSize) {
+        this.individualDao = individualDao;
+        this.measurementDao = measurementDao;
+        this.medicalActionDao = medicalActionDao;
+        this.diseaseDao = diseaseDao;
+        this.personRecordDao = personRecordDao;
+        this.routing = routing;
+        this.assemblyMode = assemblyMode;
+        this.consolidateTreatments = consolidateTreatments;
+        this.queryExecutor = queryExecutor;
+        this.requestTimeout = requestTimeout;
+        this.batchTimeout = batchTimeout;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Returns the options for the parameters of a request, taking the defaults for any which are unset.
+     *
+     * @throws IllegalArgumentException if a section name is unknown or the from date is after the to date
+     */
+    public AssemblyOptions options(AssemblyParameters parameters) {
+        Boolean requestedConsolidation = parameters.getConsolidateTreatments();
+        return new AssemblyOptions(Section.parse(parameters.getInclude()), DateRange.of(parameters.getFrom(), parameters.getTo()),
+                requestedConsolidation == null ? consolidateTreatments : requestedConsolidation);
+    }
+
+    public AssemblyOptions defaultOptions() {
+        return AssemblyOptions.all(consolidateTreatments);
+    }
+
+    /**
+     * Assembles the phenopacket for a single person. In the {@link AssemblyMode#PARALLEL} mode the queries for each
+     * section run in parallel so that the time taken is that of the slowest query rather than the sum of them all. If
+     * any query fails or they do not all complete within the request timeout, the others are cancelled and the
+     * exception is rethrown. When the persons are sharded, every query goes to the shard holding the person.
+     */
+    public Optional<Phenopacket> assemble(int personId, AssemblyOptions options) {
+        try (Routing.Scope ignored = routing.bindPerson(personId)) {
+            return assembleRouted(personId, options);
+        }
+    }
+
+    private Optional<Phenopacket> assembleRouted(int personId, AssemblyOptions options) {
+        if (assemblyMode == AssemblyMode.SINGLE_ROUND_TRIP) {
+            return personRecordDao.getPersonRecord(personId, options.getSections(), options.getDateRange(), requestTimeout)
+                    .map(record -> buildPhenopacket(record.getIndividual(), createMetaData(), record.getMeasurements(),
+                            medicalActionDao.toMedicalActions(record.getTreatments(), record.getProcedures(), options.isConsolidateTreatments()),
+                            record.getDiseases()));
+        }
+        ParallelQueries queries = new ParallelQueries(queryExecutor, requestTimeout);
+        DateRange dateRange = options.getDateRange();
+        Future<Optional<Individual>> individual = queries.submit(() -> individualDao.getIndividual(personId));
+        Future<List<Measurement>> measurements = options.includes(Section.MEASUREMENTS)
+                ? queries.submit(() -> measurementDao.getMeasurements(personId, dateRange)) : null;
+        Future<List<Treatment>> treatments = options.includes(Section.MEDICAL_ACTIONS)
+                ? queries.submit(() -> medicalActionDao.getTreatments(personId, dateRange)) : null;
+        Future<List<Procedure>> procedures = options.includes(Section.MEDICAL_ACTIONS)
+                ? queries.submit(() -> medicalActionDao.getProcedures(personId, dateRange)) : null;
+        Future<List<Disease>> diseases = options.includes(Section.DISEASES)
+                ? queries.submit(() -> diseaseDao.getDiseases(personId, dateRange)) : null;
+        queries.await();
+
+        Optional<Individual> result = queries.get(individual);
+        if (result.isEmpty()) {
+            return Optional.empty();
+        }
+        List<MedicalAction> medicalActions = treatments == null ? List.of()
+                : medicalActionDao.toMedicalActions(queries.get(treatments), queries.get(procedures), options.isConsolidateTreatments());
+        return Optional.of(buildPhenopacket(result.get(), createMetaData(), getOrEmpty(queries, measurements), medicalActions,
+                getOrEmpty(queries, diseases)));
+    }
+
+    /**
+     * Passes the measurements of a person within the date range of the options to the sink as they are read from the
+     * database, holding only a few of them in memory at a time. Returns the number of measurements, which is zero if
+     * the options do not include the measurements.
+     */
+    public int streamMeasurements(int personId, AssemblyOptions options, MeasurementDao.MeasurementSink sink) throws IOException {
+        if (!options.includes(Section.MEASUREMENTS)) {
+            return 0;
+        }
+        try (Routing.Scope ignored = routing.bindPerson(personId)) {
+            return measurementDao.streamMeasurements(personId, options.getDateRange(), sink);
+        }
+    }
+
+    /**
+     * Assembles the phenopackets for a batch of persons with the default options, in the order of the given
+     * person_ids. Persons which are not found are skipped. As for a single person, the queries for the batch run in
+     * parallel. When the persons are sharded, the batch is split up by shard and the queries for every shard run in
+     * parallel, with their results merged.
+     */
+    public List<Phenopacket> assemble(List<Integer> personIds, MetaData metaData) {
+        return assemble(personIds, metaData, defaultOptions());
+    }
+
+    public List<Phenopacket> assemble(List<Integer> personIds, MetaData metaData, AssemblyOptions options) {
+        ParallelQueries queries = new ParallelQueries(queryExecutor, batchTimeout);
+        DateRange dateRange = options.getDateRange();
+        List<Future<PersonRows<Individual>>> individualsFutures = new ArrayList<>();
+        List<Future<PersonRows<Measurement>>> measurementsFutures = new ArrayList<>();
+        List<Future<PersonRows<Treatment>>> treatmentsFutures = new ArrayList<>();
+        List<Future<PersonRows<Procedure>>> proceduresFutures = new ArrayList<>();
+        List<Future<PersonRows<Disease>>> diseasesFutures = new ArrayList<>();
+        for (Map.Entry<String, List<Integer>> partition : routing.partition(personIds).entrySet()) {
+            String target = partition.getKey();
+            List<Integer> targetPersonIds = partition.getValue();
+            individualsFutures.add(queries.submit(target, () -> individualDao.getIndividuals(targetPersonIds)));
+            if (options.includes(Section.MEASUREMENTS)) {
+                measurementsFutures.add(queries.submit(target, () -> measurementDao.getMeasurements(targetPersonIds, dateRange)));
+            }
+            if (options.includes(Section.MEDICAL_ACTIONS)) {
+                treatmentsFutures.add(queries.submit(target, () -> medicalActionDao.getTreatments(targetPersonIds, dateRange)));
+                proceduresFutures.add(queries.submit(target, () -> medicalActionDao.getProcedures(targetPersonIds, dateRange)));
+            }
+            if (options.includes(Section.DISEASES)) {
+                diseasesFutures.add(queries.submit(target, () -> diseaseDao.getDiseases(targetPersonIds, dateRange)));
+            }
+        }
+        queries.await();
+
+        // the rows of each section are in person_id order, and are merged by walking them alongside the persons
+        PersonRows.Cursor<Individual> individuals = merge(queries, individualsFutures).cursor();
+        PersonRows.Cursor<Measurement> measurements = merge(queries, measurementsFutures).cursor();
+        PersonRows.Cursor<MedicalAction> medicalActions = medicalActionDao.toMedicalActions(personIds, merge(queries, treatmentsFutures),
+                merge(queries, proceduresFutures), options.isConsolidateTreatments()).cursor();
+        PersonRows.Cursor<Disease> diseases = merge(queries, diseasesFutures).cursor();
+        int[] ascendingPersonIds = PersonRows.ascending(personIds);
+        Phenopacket[] ascendingPhenopackets = new Phenopacket[ascendingPersonIds.length];
+        for (int i = 0; i < ascendingPersonIds.length; i++) {
+            int personId = ascendingPersonIds[i];
+            List<Individual> individual = individuals.next(personId);
+            if (!individual.isEmpty()) {
+                ascendingPhenopackets[i] = buildPhenopacket(individual.get(0), metaData, measurements.next(personId), medicalActions.next(personId),
+                        diseases.next(personId));
+            }
+        }
+
+        List<Phenopacket> phenopackets = new ArrayList<>(personIds.size());
+        for (Integer personId : personIds) {
+            Phenopacket phenopacket = ascendingPhenopackets[Arrays.binarySearch(ascendingPersonIds, personId)];
+            if (phenopacket != null) {
+                phenopackets.add(phenopacket);
+            }
+        }
+        return phenopackets;
+    }
+
+    /**
+     * Assembles the phenopackets for every person in the cohort, passing them to the sink in person_id order. Only one
+     * batch of persons is held in memory at a time, however large the cohort.
+     */
+    public void assembleCohort(CohortRequest cohort, AssemblyOptions options, PhenopacketSink sink) throws IOException {
+        if (cohort.getPersonIds() != null) {
+            assembleCohort(cohort.getPersonIds().stream().distinct().sorted().collect(Collectors.toList()), options, sink);
+        } else {
+            MetaData metaData = createMetaData();
+            int afterPersonId = cohort.getFromPersonId() - 1;
+            List<Integer> batch = individualDao.getPersonIds(afterPersonId, cohort.getToPersonId(), batchSize);
+            while (!batch.isEmpty()) {
+                writeBatch(assemble(batch, metaData, options), sink);
+                afterPersonId = batch.get(batch.size() - 1);
+                batch = individualDao.getPersonIds(afterPersonId, cohort.getToPersonId(), batchSize);
+            }
+        }
+    }
+
+    /**
+     * Assembles the phenopackets for the distinct person_ids, passing them to the sink in the order they are iterated,
+     * one batch at a time.
+     */
+    public void assembleCohort(Iterable<Integer> personIds, AssemblyOptions options, PhenopacketSink sink) throws IOException {
+        MetaData metaData = createMetaData();
+        List<Integer> batch = new ArrayList<>(batchSize);
+        for (Integer personId : personIds) {
+            batch.add(personId);
+            if (batch.size() == batchSize) {
+                writeBatch(assemble(batch, metaData, options), sink);
+                batch = new ArrayList<>(batchSize);
+            }
+        }
+        if (!batch.isEmpty()) {
+            writeBatch(assemble(batch, metaData, options), sink);
+        }
+    }
+
+    private static <T> List<T> getOrEmpty(ParallelQueries queries, Future<List<T>> future) {
+        return future == null ? List.of() : queries.get(future);
+    }
+
+    /**
+     * Merges the rows of the queries for each shard of a batch, whose persons are disjoint.
+     */
+    private static <T> PersonRows<T> merge(ParallelQueries queries, List<Future<PersonRows<T>>> futures) {
+        List<PersonRows<T>> parts = new ArrayList<>(futures.size());
+        for (Future<PersonRows<T>> future : futures) {
+            parts.add(queries.get(future));
+        }
+        return PersonRows.merge(parts);
+    }
+
+    private void writeBatch(List<Phenopacket> phenopackets, PhenopacketSink sink) throws IOException {
+        for (Phenopacket phenopacket : phenopackets) {
+            sink.accept(phenopacket);
+        }
+        sink.flush();
+    }
+
+    public MetaData createMetaData() {
+        return MetaDataBuilder.create(Instant.now().toString(), "OMOPackager").build();
+    }
+
+    static Phenopacket buildPhenopacket(Individual individual, MetaData metaData, List<Measurement> measurements, List<MedicalAction> medicalActions, List<Disease> diseases) {
+        Phenopacket.Builder builder = Phenopacket.newBuilder();
+        // TODO: provide a project CURIE prefix for this to be more meaningful - using N3C as a placeholder / example
+        builder.setId("N3C:" + individual.getId());
+        builder.setSubject(individual);
+        builder.setMetaData(metaData);
+
+        if (!measurements.isEmpty()) {
+            builder.addAllMeasurements(measurements);
+        }
+
+        if (!medicalActions.isEmpty()) {
+            builder.addAllMedicalActions(medicalActions);
+        }
+
+        if (!diseases.isEmpty()) {
+            builder.addAllDiseases(diseases);
+        }
+
+        return builder.build();
+    }
+
+    /**
+     * Receives assembled phenopackets, typically writing them to a response or file.
+     */
+    public interface PhenopacketSink {
+
+        void accept(Phenopacket phenopacket) throws IOException;
+
+        /**
+         * Called after each batch of phenopackets has been passed to the sink.
+         */
+        default void flush() throws IOException {
+        }
+    }
+}
@@ -0,0 +1,265 @@
+package org.phenopackets.omopexporter;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.util.JsonFormat;
+import org.phenopackets.schema.v2.Phenopacket;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashSet;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Caches single phenopackets as their serialized response bodies, so that a repeated request for a person runs no
+ * queries and does no protobuf work. The cache is bounded by the total size of the bodies and entries expire after the
+ * configured time to live, or when they are invalidated after the OMOP tables have been refreshed.
+ * <p>
+ * Each body has an ETag derived from the hash of the phenopacket without its {@link Phenopacket#getMetaData() metadata},
+ * as the metadata records when the phenopacket was created and so differs between otherwise identical assemblies. A
+ * cached body keeps the metadata of when it was assembled.
+ * <p>
+ * The keys cached for each person are indexed, so that invalidating a person after its rows have changed removes just
+ * its entries rather than checking every key in the cache. Entries which are evicted or expire are dropped from the
+ * index by the cache as it removes them, under the same lock as a put of their key, so a cached entry is never missing
+ * from the index; a key may linger in it after its entry has gone, which invalidating tolerates.
+ * <p>
+ * A phenopacket is only cached if its person has not been invalidated while it was being assembled, as it may have
+ * been assembled from the rows which changed. Invalidating a person moves on the generation of its stripe of persons,
+ * and invalidating every person moves on a global epoch, so a person may now and then not be cached because another in
+ * its stripe was invalidated.
+ */
+@Component
+public class PhenopacketCache {
+
+    public enum Representation {
+        JSON(MediaType.APPLICATION_JSON, "json", ResponseMetrics.Format.JSON),
+        PROTOBUF(OmopExporterController.APPLICATION_PROTOBUF, "pb", ResponseMetrics.Format.PROTOBUF);
+
+        private final MediaType mediaType;
+        private final String etagSuffix;
+        private final ResponseMetrics.Format format;
+
+        Representation(MediaType mediaType, String etagSuffix, ResponseMetrics.Format format) {
+            this.mediaType = mediaType;
+            this.etagSuffix = etagSuffix;
+            this.format = format;
+        }
+
+        public MediaType getMediaType() {
+            return mediaType;
+        }
+
+        public ResponseMetrics.Format getFormat() {
+            return format;
+        }
+    }
+
+    public static class Entry {
+
+        private final String etag;
+        private final byte[] body;
+
+        Entry(String etag, byte[] body) {
+            this.etag = etag;
+            this.body = body;
+        }
+
+        /**
+         * The quoted entity tag, which differs between the representations of the same phenopacket.
+         */
+        public String getETag() {
+            return etag;
+        }
+
+        public byte[] getBody() {
+            return body;
+        }
+    }
+
+    public static final int CONTENT_DIGEST_LENGTH = 16;
+
+    // a power of two
+    private static final int GENERATION_STRIPES = 1024;
+
+    private final PhenopacketAssembler phenopacketAssembler;
+    private final JsonFormat.Printer jsonPrinter;
+    private final ResponseMetrics responseMetrics;
+    private final Cache<Key, Entry> cache;
+    private final ConcurrentMap<Integer, Set<Key>> keysByPerson = new ConcurrentHashMap<>();
+    private final AtomicLongArray generations = new AtomicLongArray(GENERATION_STRIPES);
+    private final AtomicLong epoch = new AtomicLong();
+
+    public PhenopacketCache(PhenopacketAssembler phenopacketAssembler, JsonFormat.Printer jsonPrinter, ResponseMetrics responseMetrics,
+                            @Value("${omop-exporter.response-cache.max-bytes:268435456}") long maxBytes,
+                            @Value("${omop-exporter.response-cache.time-to-live:10m}") Duration timeToLive) {
+        this.phenopacketAssembler = phenopacketAssembler;
+        this.jsonPrinter = jsonPrinter;
+        this.responseMetrics = responseMetrics;
+        this.cache = Caffeine.newBuilder()
+                .maximumWeight(maxBytes)
+                .<Key, Entry>weigher((key, entry) -> entry.body.length)
+                .expireAfterWrite(timeToLive)
+                .<Key, Entry>evictionListener((key, entry, cause) -> unindex(key))
+                .build();
+    }
+
+    /**
+     * Returns the serialized phenopacket for the person, assembling it if it is not cached, or empty if there is no
+     * such person. Phenopackets assembled with different options are cached separately.
+     */
+    public Optional<Entry> get(int personId, Representation representation, AssemblyOptions options) {
+        Key key = new Key(personId, representation, options);
+        Entry entry = cache.getIfPresent(key);
+        if (entry == null) {
+            long assemblyEpoch = epoch.get();
+            long assemblyGeneration = generations.get(stripe(personId));
+            // concurrent misses may both assemble the phenopacket, which is cheaper than holding a lock across queries
+            Optional<Phenopacket> phenopacket = phenopacketAssembler.assemble(personId, options);
+            if (phenopacket.isEmpty()) {
+                return Optional.empty();
+            }
+            Entry assembled = toEntry(phenopacket.get(), representation);
+            cache.asMap().compute(key, (k, previous) -> {
+                // indexed before the check, so an invalidation which moves the generation on after it removes the key
+                index(k);
+                return isCurrent(personId, assemblyEpoch, assemblyGeneration) ? assembled : previous;
+            });
+            if (!isCurrent(personId, assemblyEpoch, assemblyGeneration)) {
+                // an invalidation which moved on during the put may not have seen the entry
+                cache.invalidate(key);
+            }
+            entry = assembled;
+        }
+        return Optional.of(entry);
+    }
+
+    /**
+     * Returns the serialized phenopacket for the person if it is cached, without assembling it.
+     */
+    public Optional<Entry> getIfPresent(int personId, Representation representation, AssemblyOptions options) {
+        return Optional.ofNullable(cache.getIfPresent(new Key(personId, representation, options)));
+    }
+
+    public void invalidate(int personId) {
+        generations.incrementAndGet(stripe(personId));
+        // the index is updated first, so an entry put meanwhile is indexed again rather than left out of it
+        Set<Key> keys = keysByPerson.remove(personId);
+        if (keys != null) {
+            cache.invalidateAll(keys);
+        }
+    }
+
+    public void invalidateAll() {
+        epoch.incrementAndGet();
+        keysByPerson.clear();
+        cache.invalidateAll();
+    }
+
+    public long size() {
+        return cache.estimatedSize();
+    }
+
+    private boolean isCurrent(int personId, long assemblyEpoch, long assemblyGeneration) {
+        return epoch.get() == assemblyEpoch && generations.get(stripe(personId)) == assemblyGeneration;
+    }
+
+    private static int stripe(int personId) {
+        return personId & (GENERATION_STRIPES - 1);
+    }
+
+    private void index(Key key) {
+        keysByPerson.compute(key.personId, (personId, keys) -> {
+            Set<Key> indexed = keys != null ? keys : new HashSet<>(4);
+            indexed.add(key);
+            return indexed;
+        });
+    }
+
+    private void unindex(Key key) {
+        keysByPerson.computeIfPresent(key.personId, (personId, keys) -> {
+            keys.remove(key);
+            return keys.isEmpty() ? null : keys;
+        });
+    }
+
+    private Entry toEntry(Phenopacket phenopacket, Representation representation) {
+        long start = System.nanoTime();
+        byte[] body;
+        if (representation == Representation.JSON) {
+            try {
+                body = jsonPrinter.print(phenopacket).getBytes(StandardCharsets.UTF_8);
+            } catch (InvalidProtocolBufferException e) {
+                throw new IllegalStateException("Could not print phenopacket " + phenopacket.getId(), e);
+            }
+        } else {
+            body = phenopacket.toByteArray();
+        }
+        responseMetrics.recordSerialization(representation.format, System.nanoTime() - start);
+        return new Entry(etag(contentDigest(phenopacket), representation), body);
+    }
+
+    /**
+     * Returns the {@link #CONTENT_DIGEST_LENGTH} byte digest of the phenopacket without its metadata, from which its
+     * ETags are derived.
+     */
+    public static byte[] contentDigest(Phenopacket phenopacket) {
+        byte[] content = phenopacket.toBuilder().clearMetaData().build().toByteArray();
+        try {
+            return Arrays.copyOf(MessageDigest.getInstance("SHA-256").digest(content), CONTENT_DIGEST_LENGTH);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Returns the quoted ETag of a representation of the phenopacket with the {@link #contentDigest(Phenopacket)}.
+     */
+    public static String etag(byte[] contentDigest, Representation representation) {
+        String hash = Base64.getUrlEncoder().withoutPadding().encodeToString(contentDigest);
+        return '"' + hash + '-' + representation.etagSuffix + '"';
+    }
+
+    private static final class Key {
+
+        private final int personId;
+        private final Representation representation;
+        private final AssemblyOptions options;
+
+        private Key(int personId, Representation representation, AssemblyOptions options) {
+            this.personId = personId;
+            this.representation = representation;
+            this.options = options;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) o;
+            return personId == key.personId && representation == key.representation && options.equals(key.options);
+        }
+
+        @Override
+        public int hashCode() {
+            return (personId * 31 + representation.hashCode()) * 31 + options.hashCode();
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package org.phenopackets.omopexporter;
+
+import com.zaxxer.hikari.HikariDataSource;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.jdbc.DataSourceUnwrapper;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+import javax.sql.DataSource;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+@Configuration
+public class QueryExecutorConfig {
+
+    /**
+     * Executor used to run the DAO queries for a phenopacket in parallel. There is no point in having more threads
+     * than there are connections in the pool to run their queries on, so it is sized to match, or to all the pools
+     * together when the queries are routed over several databases. With virtual threads
+     * each query gets its own thread instead, and the {@link ConnectionLimitingDataSource} bounds the concurrency.
+     */
+    @Bean(destroyMethod = "shutdownNow")
+    public ExecutorService queryExecutor(DataSource dataSource, @Value("${omop-exporter.virtual-threads.enabled:false}") boolean virtualThreads) {
+        if (virtualThreads) {
+            return VirtualThreads.newVirtualThreadPerTaskExecutor();
+        }
+        return Executors.newFixedThreadPool(poolSize(dataSource), new CustomizableThreadFactory("omop-query-"));
+    }
+
+    static int poolSize(DataSource dataSource) {
+        // a routing data source would unwrap to the pool of whichever target is current
+        RoutingDataSource routingDataSource = DataSourceUnwrapper.unwrap(dataSource, RoutingDataSource.class);
+        if (routingDataSource != null) {
+            return routingDataSource.getTotalPoolSize();
+        }
+        HikariDataSource hikariDataSource = DataSourceUnwrapper.unwrap(dataSource, HikariDataSource.class);
+        return hikariDataSource != null ? maximumPoolSize(hikariDataSource) : 10;
+    }
+
+    /**
+     * Returns the maximum size of the pool, which is only defaulted to 10 when the pool starts, on the first connection.
+     */
+    static int maximumPoolSize(HikariDataSource pool) {
+        return pool.getMaximumPoolSize() > 0 ? pool.getMaximumPoolSize() : 10;
+    }
+}
@@ -0,0 +1,44 @@
+package org.phenopackets.omopexporter;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.stereotype.Component;
+
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records {@code omop.serialization}, the time taken to serialize each phenopacket, and {@code omop.response.bytes},
+ * the size of each response body, both tagged with the format written.
+ */
+@Component
+public class ResponseMetrics {
+
+    public enum Format {
+        JSON, PROTOBUF, NDJSON, PROTOBUF_DELIMITED
+    }
+
+    private final Map<Format, Timer> serializationTimers = new EnumMap<>(Format.class);
+    private final Map<Format, DistributionSummary> responseBytes = new EnumMap<>(Format.class);
+
+    public ResponseMetrics(MeterRegistry meterRegistry) {
+        for (Format format : Format.values()) {
+            String tag = format.name().toLowerCase(Locale.ROOT).replace('_', '-');
+            serializationTimers.put(format, Timer.builder("omop.serialization").tag("format", tag)
+                    .description("Time to serialize a phenopacket").register(meterRegistry));
+            responseBytes.put(format, DistributionSummary.builder("omop.response.bytes").tag("format", tag).baseUnit("bytes")
+                    .description("Size of a response body").register(meterRegistry));
+        }
+    }
+
+    public void recordSerialization(Format format, long nanos) {
+        serializationTimers.get(format).record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void recordResponseBytes(Format format, long bytes) {
+        responseBytes.get(format).record(bytes);
+    }
+}
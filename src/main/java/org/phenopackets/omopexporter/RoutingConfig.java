@@ -0,0 +1,258 @@
+package org.phenopackets.omopexporter;
+
+import com.zaxxer.hikari.HikariDataSource;
+import com.zaxxer.hikari.metrics.micrometer.MicrometerMetricsTrackerFactory;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.phenopackets.omopexporter.dao.Routing;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.HealthIndicator;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.boot.autoconfigure.flyway.FlywayDataSource;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceProperties;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.bind.Bindable;
+import org.springframework.boot.context.properties.bind.Binder;
+import org.springframework.boot.jdbc.DataSourceUnwrapper;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
+import org.springframework.core.env.Environment;
+import org.springframework.web.context.request.NativeWebRequest;
+import org.springframework.web.context.request.RequestAttributes;
+import org.springframework.web.context.request.async.CallableProcessingInterceptor;
+import org.springframework.web.filter.OncePerRequestFilter;
+import org.springframework.web.servlet.config.annotation.AsyncSupportConfigurer;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.sql.DataSource;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+/**
+ * Spreads the OMOP queries over several databases, as configured by {@code omop-exporter.routing.mode} and a list of
+ * {@code omop-exporter.routing.targets}, either read replicas of the {@code spring.datasource} database or shards
+ * holding the persons by person_id range. The staging tables and the Flyway migrations stay on the
+ * {@code spring.datasource} database. Every shard needs a copy of the vocabulary, as the DAO queries join it and the
+ * concepts of their rows are looked up on the shard's connection, while the concept cache is warmed from the
+ * {@code spring.datasource} database.
+ */
+@Configuration
+public class RoutingConfig {
+
+    static final String TARGETS = "omop-exporter.routing.targets";
+
+    @Bean
+    public Routing routing(@Value("${omop-exporter.routing.mode:NONE}") Routing.Mode mode,
+                           @Value("${omop-exporter.staging.enabled:false}") boolean stagingEnabled, Environment environment) {
+        if (mode != Routing.Mode.SHARDS) {
+            return new Routing(mode, Map.of());
+        }
+        if (stagingEnabled) {
+            throw new IllegalStateException("The staging tables cannot be used with sharding, as they are refreshed on the primary database alone");
+        }
+        Map<String, Integer> firstPersonIds = new LinkedHashMap<>();
+        for (Target target : targets(environment)) {
+            firstPersonIds.put(target.getName(), target.getFirstPersonId() != null ? target.getFirstPersonId() : Integer.MIN_VALUE);
+        }
+        return new Routing(mode, firstPersonIds);
+    }
+
+    static List<Target> targets(Environment environment) {
+        List<Target> targets = Binder.get(environment).bind(TARGETS, Bindable.listOf(Target.class)).orElse(List.of());
+        for (Target target : targets) {
+            if (target.getName() == null || target.getUrl() == null) {
+                throw new IllegalStateException("Each of the " + TARGETS + " needs a name and a url");
+            }
+            if (target.getName().equals(Routing.PRIMARY)) {
+                throw new IllegalStateException("The name " + Routing.PRIMARY + " is taken by the spring.datasource database");
+            }
+        }
+        return targets;
+    }
+
+    /**
+     * Replaces the application's data source with a {@link RoutingDataSource} over the {@code spring.datasource}
+     * database, built here as Spring Boot would have, and a pool for each target. Each target pool is named
+     * {@code omop-<name>} so that its {@code hikaricp_*} metrics can be told apart.
+     */
+    @Configuration
+    @ConditionalOnExpression("'${omop-exporter.routing.mode:NONE}' != 'NONE'")
+    static class RoutingDataSourceConfig {
+
+        @Bean
+        @FlywayDataSource
+        @ConfigurationProperties("spring.datasource.hikari")
+        public HikariDataSource primaryDataSource(DataSourceProperties properties) {
+            return properties.initializeDataSourceBuilder().type(HikariDataSource.class).build();
+        }
+
+        @Bean
+        @Primary
+        public DataSource dataSource(HikariDataSource primaryDataSource, Routing routing, Environment environment, MeterRegistry meterRegistry,
+                                     @Value("${omop-exporter.routing.replica-selection:LEAST_LOADED}") RoutingDataSource.ReplicaSelection replicaSelection,
+                                     @Value("${omop-exporter.routing.health-check-interval:10s}") Duration healthCheckInterval,
+                                     @Value("${omop-exporter.routing.health-check-timeout:2s}") Duration healthCheckTimeout) {
+            Map<String, HikariDataSource> pools = new LinkedHashMap<>();
+            for (Target target : targets(environment)) {
+                HikariDataSource pool = new HikariDataSource();
+                pool.setPoolName("omop-" + target.getName());
+                pool.setJdbcUrl(target.getUrl());
+                pool.setUsername(target.getUsername() != null ? target.getUsername() : primaryDataSource.getUsername());
+                pool.setPassword(target.getPassword() != null ? target.getPassword() : primaryDataSource.getPassword());
+                pool.setDriverClassName(primaryDataSource.getDriverClassName());
+                pool.setMaximumPoolSize(target.getMaximumPoolSize() != null ? target.getMaximumPoolSize()
+                        : QueryExecutorConfig.maximumPoolSize(primaryDataSource));
+                pool.setConnectionTimeout(primaryDataSource.getConnectionTimeout());
+                pool.setMetricsTrackerFactory(new MicrometerMetricsTrackerFactory(meterRegistry));
+                pools.put(target.getName(), pool);
+            }
+            if (pools.isEmpty()) {
+                throw new IllegalStateException("Routing needs at least one of the " + TARGETS);
+            }
+            return new RoutingDataSource(primaryDataSource, pools, routing.getMode(), replicaSelection, healthCheckInterval, healthCheckTimeout);
+        }
+
+        /**
+         * Reports the health of each database, as of its last check, with the usage of its pool. With replicas the
+         * exporter is up while it can read from the primary or any replica, but with shards it needs every one of them.
+         */
+        @Bean
+        public HealthIndicator routingHealthIndicator(DataSource dataSource) {
+            RoutingDataSource routingDataSource = DataSourceUnwrapper.unwrap(dataSource, RoutingDataSource.class);
+            return () -> {
+                Map<String, RoutingDataSource.TargetStatus> status = routingDataSource.getStatus();
+                boolean up = routingDataSource.getMode() == Routing.Mode.SHARDS
+                        ? status.values().stream().allMatch(RoutingDataSource.TargetStatus::isHealthy)
+                        : status.values().stream().anyMatch(RoutingDataSource.TargetStatus::isHealthy);
+                Health.Builder health = up ? Health.up() : Health.down();
+                status.forEach((name, targetStatus) -> health.withDetail(name, targetStatus.getDetails()));
+                return health.build();
+            };
+        }
+    }
+
+    /**
+     * Binds a replica to each request for as long as it runs, including the body of a streamed response on the thread
+     * which writes it, so that the queries of the request all read from the same replica.
+     */
+    @Configuration
+    @ConditionalOnExpression("'${omop-exporter.routing.mode:NONE}' == 'REPLICAS'")
+    static class ReplicaPerRequestConfig implements WebMvcConfigurer {
+
+        private static final ThreadLocal<Routing.Scope> ASYNC_SCOPE = new ThreadLocal<>();
+        private static final String TARGET_ATTRIBUTE = ReplicaPerRequestConfig.class.getName() + ".target";
+
+        @Bean
+        public OncePerRequestFilter replicaPerRequestFilter(DataSource dataSource) {
+            RoutingDataSource routingDataSource = DataSourceUnwrapper.unwrap(dataSource, RoutingDataSource.class);
+            return new OncePerRequestFilter() {
+                @Override
+                protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain)
+                        throws ServletException, IOException {
+                    try (Routing.Scope ignored = routingDataSource.bindReplica()) {
+                        filterChain.doFilter(request, response);
+                    }
+                }
+            };
+        }
+
+        @Override
+        public void configureAsyncSupport(AsyncSupportConfigurer configurer) {
+            configurer.registerCallableInterceptors(new CallableProcessingInterceptor() {
+                @Override
+                public <T> void beforeConcurrentHandling(NativeWebRequest request, Callable<T> task) {
+                    request.setAttribute(TARGET_ATTRIBUTE, Routing.current(), RequestAttributes.SCOPE_REQUEST);
+                }
+
+                @Override
+                public <T> void preProcess(NativeWebRequest request, Callable<T> task) {
+                    ASYNC_SCOPE.set(Routing.bind((String) request.getAttribute(TARGET_ATTRIBUTE, RequestAttributes.SCOPE_REQUEST)));
+                }
+
+                @Override
+                public <T> void postProcess(NativeWebRequest request, Callable<T> task, Object concurrentResult) {
+                    Routing.Scope scope = ASYNC_SCOPE.get();
+                    if (scope != null) {
+                        ASYNC_SCOPE.remove();
+                        scope.close();
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * One of the {@code omop-exporter.routing.targets}. The username, password and pool size default to those of the
+     * {@code spring.datasource} database.
+     */
+    public static class Target {
+
+        private String name;
+        private String url;
+        private String username;
+        private String password;
+        private Integer maximumPoolSize;
+        private Integer firstPersonId;
+
+        public String getName() {
+            return name;
+        }
+
+        public void setName(String name) {
+            this.name = name;
+        }
+
+        public String getUrl() {
+            return url;
+        }
+
+        public void setUrl(String url) {
+            this.url = url;
+        }
+
+        public String getUsername() {
+            return username;
+        }
+
+        public void setUsername(String username) {
+            this.username = username;
+        }
+
+        public String getPassword() {
+            return password;
+        }
+
+        public void setPassword(String password) {
+            this.password = password;
+        }
+
+        public Integer getMaximumPoolSize() {
+            return maximumPoolSize;
+        }
+
+        public void setMaximumPoolSize(Integer maximumPoolSize) {
+            this.maximumPoolSize = maximumPoolSize;
+        }
+
+        /**
+         * The first person_id of a shard, which holds the persons up to the first person_id of the next one. The shard
+         * with the lowest first person_id, or without one, also holds any persons below it.
+         */
+        public Integer getFirstPersonId() {
+            return firstPersonId;
+        }
+
+        public void setFirstPersonId(Integer firstPersonId) {
+            this.firstPersonId = firstPersonId;
+        }
+    }
+}
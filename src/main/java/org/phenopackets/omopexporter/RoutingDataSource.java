@@ -0,0 +1,250 @@
+package org.phenopackets.omopexporter;
+
+import com.zaxxer.hikari.HikariDataSource;
+import com.zaxxer.hikari.HikariPoolMXBean;
+import org.phenopackets.omopexporter.dao.Routing;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jdbc.datasource.lookup.AbstractRoutingDataSource;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+import javax.sql.DataSource;
+import java.io.Closeable;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Routes each connection to the pool of one of several OMOP databases: to the target {@link Routing} has bound to the
+ * taking thread if there is one, and otherwise to the primary database or, with read replicas, to one of the replicas
+ * which passed its last health check. A request is bound to a single replica by {@link #bindReplica()}, so that its
+ * queries all see the same rows. Every target is checked in the background, and a replica which fails is not chosen
+ * until it passes again. If every replica fails, reads go to the primary. A shard which fails is only reported, as
+ * there is nowhere else to read its persons from.
+ */
+class RoutingDataSource extends AbstractRoutingDataSource implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(RoutingDataSource.class);
+
+    /**
+     * How a replica is chosen for each connection.
+     */
+    enum ReplicaSelection {
+        /**
+         * Each replica in turn.
+         */
+        ROUND_ROBIN,
+        /**
+         * The replica with the fewest connections in use or waited for, taking each in turn when they are level.
+         */
+        LEAST_LOADED
+    }
+
+    private final Routing.Mode mode;
+    private final Map<String, DataSource> targets = new LinkedHashMap<>();
+    private final String[] replicas;
+    private final ReplicaSelection replicaSelection;
+    private final Set<String> failedTargets = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger nextReplica = new AtomicInteger();
+    private final ScheduledExecutorService healthChecks;
+    private final int healthCheckTimeoutSeconds;
+
+    /**
+     * @param targets            the pools of the replicas or shards, by target name
+     * @param healthCheckTimeout how long a target has to answer its health check, rounded up to whole seconds
+     */
+    RoutingDataSource(DataSource primary, Map<String, HikariDataSource> targets, Routing.Mode mode, ReplicaSelection replicaSelection,
+                      Duration healthCheckInterval, Duration healthCheckTimeout) {
+        this.mode = mode;
+        this.targets.put(Routing.PRIMARY, primary);
+        this.targets.putAll(targets);
+        this.replicas = mode == Routing.Mode.REPLICAS ? targets.keySet().toArray(new String[0]) : new String[0];
+        this.replicaSelection = replicaSelection;
+        this.healthCheckTimeoutSeconds = (int) Math.max(1, (healthCheckTimeout.toMillis() + 999) / 1000);
+        setTargetDataSources(new HashMap<>(this.targets));
+        setDefaultTargetDataSource(primary);
+        // a target bound by name must exist rather than quietly falling back to the primary
+        setLenientFallback(false);
+        afterPropertiesSet();
+        this.healthChecks = Executors.newSingleThreadScheduledExecutor(new CustomizableThreadFactory("omop-routing-health-"));
+        long intervalMillis = healthCheckInterval.toMillis();
+        healthChecks.scheduleWithFixedDelay(this::checkHealth, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    protected Object determineCurrentLookupKey() {
+        String target = Routing.current();
+        if (target != null) {
+            return target;
+        }
+        return mode == Routing.Mode.REPLICAS ? selectReplica() : null;
+    }
+
+    /**
+     * Binds a replica, chosen as for a single connection, to the current thread until the returned scope is closed, so
+     * that the queries of a request all read from one replica rather than from several which may have replayed
+     * different amounts of the primary's log. Leaves the routing as it is unless the reads are spread over replicas and
+     * no target is bound yet.
+     */
+    Routing.Scope bindReplica() {
+        return Routing.bind(mode == Routing.Mode.REPLICAS && Routing.current() == null ? selectReplica() : null);
+    }
+
+    /**
+     * Checks that each target accepts a connection which is valid, recording the targets which fail.
+     */
+    void checkHealth() {
+        targets.forEach((name, dataSource) -> {
+            boolean healthy;
+            try (Connection connection = probe(dataSource)) {
+                healthy = connection.isValid(healthCheckTimeoutSeconds);
+            } catch (SQLException | RuntimeException e) {
+                healthy = false;
+            }
+            if (healthy && failedTargets.remove(name)) {
+                logger.info("The {} database has passed its health check", name);
+            } else if (!healthy && failedTargets.add(name)) {
+                logger.warn("The {} database has failed its health check", name);
+            }
+        });
+    }
+
+    /**
+     * Returns the status of each target, the primary first.
+     */
+    Map<String, TargetStatus> getStatus() {
+        Map<String, TargetStatus> status = new LinkedHashMap<>();
+        targets.forEach((name, dataSource) -> status.put(name, new TargetStatus(!failedTargets.contains(name), pool(dataSource))));
+        return status;
+    }
+
+    Routing.Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * Returns the number of connections across the pools of every target.
+     */
+    int getTotalPoolSize() {
+        int total = 0;
+        for (DataSource dataSource : targets.values()) {
+            HikariDataSource pool = pool(dataSource);
+            total += pool != null ? QueryExecutorConfig.maximumPoolSize(pool) : 10;
+        }
+        return total;
+    }
+
+    @Override
+    public void close() {
+        healthChecks.shutdownNow();
+        for (Map.Entry<String, DataSource> target : targets.entrySet()) {
+            // the primary is a bean of its own, which is closed with the context
+            if (!target.getKey().equals(Routing.PRIMARY) && target.getValue() instanceof HikariDataSource) {
+                ((HikariDataSource) target.getValue()).close();
+            }
+        }
+    }
+
+    /**
+     * Opens a connection to the target outside its pool, so that a pool whose connections are all in use does not fail
+     * the check, with the health check timeout on connecting and reading, so that a database which does not answer
+     * fails it without holding up the checks of the others for long. Only a data source which is not a pool configured
+     * with a JDBC URL is checked with a connection from itself.
+     */
+    private Connection probe(DataSource dataSource) throws SQLException {
+        HikariDataSource pool = pool(dataSource);
+        if (pool == null || pool.getJdbcUrl() == null) {
+            return dataSource.getConnection();
+        }
+        Properties properties = new Properties();
+        properties.putAll(pool.getDataSourceProperties());
+        if (pool.getUsername() != null) {
+            properties.setProperty("user", pool.getUsername());
+        }
+        if (pool.getPassword() != null) {
+            properties.setProperty("password", pool.getPassword());
+        }
+        // the timeouts of the Postgres driver, in seconds
+        String timeout = Integer.toString(healthCheckTimeoutSeconds);
+        properties.setProperty("connectTimeout", timeout);
+        properties.setProperty("loginTimeout", timeout);
+        properties.setProperty("socketTimeout", timeout);
+        return DriverManager.getConnection(pool.getJdbcUrl(), properties);
+    }
+
+    private String selectReplica() {
+        int start = Math.floorMod(nextReplica.getAndIncrement(), Math.max(1, replicas.length));
+        String selected = null;
+        int selectedLoad = Integer.MAX_VALUE;
+        for (int i = 0; i < replicas.length; i++) {
+            String replica = replicas[(start + i) % replicas.length];
+            if (failedTargets.contains(replica)) {
+                continue;
+            }
+            if (replicaSelection == ReplicaSelection.ROUND_ROBIN) {
+                return replica;
+            }
+            int load = load(targets.get(replica));
+            if (load < selectedLoad) {
+                selected = replica;
+                selectedLoad = load;
+            }
+        }
+        return selected != null ? selected : Routing.PRIMARY;
+    }
+
+    private static int load(DataSource dataSource) {
+        HikariDataSource pool = pool(dataSource);
+        HikariPoolMXBean poolBean = pool != null ? pool.getHikariPoolMXBean() : null;
+        // a pool is only started when its first connection is taken
+        return poolBean != null ? poolBean.getActiveConnections() + poolBean.getThreadsAwaitingConnection() : 0;
+    }
+
+    private static HikariDataSource pool(DataSource dataSource) {
+        try {
+            return dataSource.isWrapperFor(HikariDataSource.class) ? dataSource.unwrap(HikariDataSource.class) : null;
+        } catch (SQLException e) {
+            return null;
+        }
+    }
+
+    static final class TargetStatus {
+
+        private final boolean healthy;
+        private final HikariDataSource pool;
+
+        private TargetStatus(boolean healthy, HikariDataSource pool) {
+            this.healthy = healthy;
+            this.pool = pool;
+        }
+
+        boolean isHealthy() {
+            return healthy;
+        }
+
+        Map<String, Object> getDetails() {
+            Map<String, Object> details = new LinkedHashMap<>();
+            details.put("status", healthy ? "UP" : "DOWN");
+            HikariPoolMXBean poolBean = pool != null ? pool.getHikariPoolMXBean() : null;
+            if (poolBean != null) {
+                details.put("pool", pool.getPoolName());
+                details.put("active", poolBean.getActiveConnections());
+                details.put("idle", poolBean.getIdleConnections());
+                details.put("waiting", poolBean.getThreadsAwaitingConnection());
+                details.put("max", pool.getMaximumPoolSize());
+            }
+            return details;
+        }
+    }
+}
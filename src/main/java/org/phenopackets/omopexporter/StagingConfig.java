@@ -0,0 +1,63 @@
+package org.phenopackets.omopexporter;
+
+import org.flywaydb.core.Flyway;
+import org.springframework.boot.LazyInitializationExcludeFilter;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.flyway.FlywayMigrationStrategy;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.scheduling.annotation.EnableScheduling;
+import org.springframework.scheduling.annotation.Scheduled;
+
+/**
+ * Refreshes the staging tables through the {@link StagingRefresher} every {@code omop-exporter.staging.refresh-interval}, starting with the initial
+ * load when the application starts, so that rows added to the OMOP tables are staged without waiting for a call to
+ * {@code POST /admin/staging/refresh}.
+ * <p>
+ * With {@code spring.flyway.enabled=true}, the {@code db/staging} migrations which create the staging tables are
+ * applied after the {@code spring.flyway} ones, with the same settings but recorded in their own
+ * {@value #STAGING_HISTORY_TABLE} table, so that each location is versioned independently of the other.
+ * <p>
+ * Its refresh is only scheduled once it has been created, and so it is created on startup even with the lazy
+ * initialization of the {@code fast-start} profile.
+ */
+@Configuration
+@EnableScheduling
+@ConditionalOnProperty("omop-exporter.staging.enabled")
+public class StagingConfig {
+
+    static final String STAGING_LOCATION = "classpath:db/staging";
+    static final String STAGING_HISTORY_TABLE = "omop_exporter_staging_history";
+
+    private final StagingRefresher stagingRefresher;
+
+    public StagingConfig(StagingRefresher stagingRefresher) {
+        this.stagingRefresher = stagingRefresher;
+    }
+
+    @Bean
+    static LazyInitializationExcludeFilter stagingConfigIsEager() {
+        return LazyInitializationExcludeFilter.forBeanTypes(StagingConfig.class);
+    }
+
+    /**
+     * Static, as the staging tables are refreshed through the data source which waits for the migrations.
+     */
+    @Bean
+    static FlywayMigrationStrategy stagingMigrationStrategy() {
+        return flyway -> {
+            flyway.migrate();
+            Flyway.configure()
+                    .configuration(flyway.getConfiguration())
+                    .locations(STAGING_LOCATION)
+                    .table(STAGING_HISTORY_TABLE)
+                    .load()
+                    .migrate();
+        };
+    }
+
+    @Scheduled(fixedDelayString = "${omop-exporter.staging.refresh-interval:PT5M}")
+    public void refreshStagingTables() {
+        stagingRefresher.refresh(false);
+    }
+}
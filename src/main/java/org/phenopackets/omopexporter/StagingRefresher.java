@@ -0,0 +1,53 @@
+package org.phenopackets.omopexporter;
+
+import org.phenopackets.omopexporter.dao.ConceptCache;
+import org.phenopackets.omopexporter.dao.PersonRowCounts;
+import org.phenopackets.omopexporter.dao.StagingTables;
+import org.roaringbitmap.RoaringBitmap;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+
+/**
+ * Refreshes the {@link StagingTables}, for the admin endpoint and the scheduled refresh alike, and then drops what the
+ * caches hold from before the refresh. An incremental refresh evicts the cached phenopackets of the persons whose rows
+ * it staged, which are read from the staging tables. A full refresh, which follows a reload of the vocabulary or
+ * changes to existing rows, reloads the concepts and flushes every cached phenopacket. Either clears the
+ * {@link PersonRowCounts} once rows have been staged, as the persons they belong to may now be heavy.
+ */
+@Component
+public class StagingRefresher {
+
+    private final StagingTables stagingTables;
+    private final ConceptCache conceptCache;
+    private final PhenopacketCache phenopacketCache;
+    private final PersonRowCounts personRowCounts;
+
+    public StagingRefresher(StagingTables stagingTables, ConceptCache conceptCache, PhenopacketCache phenopacketCache,
+                            PersonRowCounts personRowCounts) {
+        this.stagingTables = stagingTables;
+        this.conceptCache = conceptCache;
+        this.phenopacketCache = phenopacketCache;
+        this.personRowCounts = personRowCounts;
+    }
+
+    /**
+     * Refreshes the staging tables, returning the number of rows staged for each OMOP table.
+     *
+     * @throws IllegalStateException if staging is not enabled
+     */
+    public Map<String, Integer> refresh(boolean full) {
+        RoaringBitmap changedPersons = new RoaringBitmap();
+        Map<String, Integer> staged = stagingTables.refresh(full, changedPersons);
+        if (full) {
+            conceptCache.reload();
+            phenopacketCache.invalidateAll();
+        } else {
+            changedPersons.forEach((int personId) -> phenopacketCache.invalidate(personId));
+        }
+        if (full || !changedPersons.isEmpty()) {
+            personRowCounts.clear();
+        }
+        return staged;
+    }
+}
@@ -0,0 +1,71 @@
+package org.phenopackets.omopexporter;
+
+import org.phenopackets.omopexporter.dao.QueryDeadline;
+import org.springframework.jdbc.datasource.DelegatingDataSource;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.sql.Statement;
+import java.util.Collections;
+import java.util.Map;
+import java.util.OptionalLong;
+import java.util.WeakHashMap;
+
+/**
+ * Sets the Postgres {@code statement_timeout} of each connection taken while a {@link QueryDeadline} is bound to the
+ * time left until it, so that the server cancels a query which would overrun the deadline. A query whose caller has
+ * given up on it then stops holding its connection and the CPU and I/O of the database, which cancelling the future
+ * or interrupting the thread running it does not do.
+ * <p>
+ * The setting lasts for the session, so a pooled connection which was given a timeout has it reset when it is next
+ * taken without a deadline. The timeouts are tracked by the physical connection, which outlives the proxies the pool
+ * hands out, so that a connection which has never had one costs no extra round trip.
+ */
+class StatementTimeoutDataSource extends DelegatingDataSource {
+
+    private final Map<Connection, Boolean> timedConnections = Collections.synchronizedMap(new WeakHashMap<>());
+
+    StatementTimeoutDataSource(DataSource targetDataSource) {
+        super(targetDataSource);
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        return withStatementTimeout(super.getConnection());
+    }
+
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException {
+        return withStatementTimeout(super.getConnection(username, password));
+    }
+
+    private Connection withStatementTimeout(Connection connection) throws SQLException {
+        try {
+            // the pool's proxy unwraps to the connection it is currently lending
+            Connection physicalConnection = connection.unwrap(Connection.class);
+            OptionalLong remainingMillis = QueryDeadline.remainingMillis();
+            if (remainingMillis.isPresent()) {
+                if (remainingMillis.getAsLong() <= 0) {
+                    throw new SQLTimeoutException("The deadline for the queries has passed");
+                }
+                execute(connection, "SET statement_timeout = " + remainingMillis.getAsLong());
+                timedConnections.put(physicalConnection, Boolean.TRUE);
+            } else if (timedConnections.containsKey(physicalConnection)) {
+                execute(connection, "SET statement_timeout TO DEFAULT");
+                timedConnections.remove(physicalConnection);
+            }
+            return connection;
+        } catch (SQLException | RuntimeException e) {
+            connection.close();
+            throw e;
+        }
+    }
+
+    private static void execute(Connection connection, String sql) throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            statement.execute(sql);
+        }
+    }
+}
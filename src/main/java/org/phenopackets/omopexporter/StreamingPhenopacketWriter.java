@@ -0,0 +1,99 @@
+package org.phenopackets.omopexporter;
+
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.util.JsonFormat;
+import org.phenopackets.schema.v2.Phenopacket;
+import org.phenopackets.schema.v2.core.Measurement;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+
+/**
+ * Writes a phenopacket with its measurements appended one at a time, so that the measurements never have to be held
+ * in memory together. The rest of the phenopacket is written first, so the measurements come after its other fields,
+ * which is still a valid encoding in both JSON and the protobuf wire format as neither depends on the field order.
+ */
+abstract class StreamingPhenopacketWriter {
+
+    /**
+     * Writes the phenopacket, which should have no measurements of its own.
+     */
+    abstract void start(Phenopacket phenopacket) throws IOException;
+
+    abstract void writeMeasurement(Measurement measurement) throws IOException;
+
+    /**
+     * Completes the phenopacket after its last measurement and flushes it.
+     */
+    abstract void finish() throws IOException;
+
+    static StreamingPhenopacketWriter json(JsonFormat.Printer printer, Writer writer) {
+        return new Json(printer, writer);
+    }
+
+    static StreamingPhenopacketWriter protobuf(OutputStream outputStream) {
+        return new Protobuf(outputStream);
+    }
+
+    private static final class Json extends StreamingPhenopacketWriter {
+
+        private final JsonFormat.Printer printer;
+        private final Writer writer;
+        private boolean hasMeasurements;
+
+        private Json(JsonFormat.Printer printer, Writer writer) {
+            this.printer = printer;
+            this.writer = writer;
+        }
+
+        @Override
+        void start(Phenopacket phenopacket) throws IOException {
+            String json = printer.print(phenopacket);
+            // leave the object open for the measurements, dropping its closing brace and any whitespace before it
+            int end = json.lastIndexOf('}');
+            while (end > 0 && Character.isWhitespace(json.charAt(end - 1))) {
+                end--;
+            }
+            writer.write(json, 0, end);
+        }
+
+        @Override
+        void writeMeasurement(Measurement measurement) throws IOException {
+            // an empty repeated field is omitted, as the printer would
+            writer.write(hasMeasurements ? "," : ",\"measurements\":[");
+            hasMeasurements = true;
+            printer.appendTo(measurement, writer);
+        }
+
+        @Override
+        void finish() throws IOException {
+            writer.write(hasMeasurements ? "]}" : "}");
+            writer.flush();
+        }
+    }
+
+    private static final class Protobuf extends StreamingPhenopacketWriter {
+
+        private final CodedOutputStream output;
+
+        private Protobuf(OutputStream outputStream) {
+            this.output = CodedOutputStream.newInstance(outputStream, 64 * 1024);
+        }
+
+        @Override
+        void start(Phenopacket phenopacket) throws IOException {
+            phenopacket.writeTo(output);
+        }
+
+        @Override
+        void writeMeasurement(Measurement measurement) throws IOException {
+            output.writeMessage(Phenopacket.MEASUREMENTS_FIELD_NUMBER, measurement);
+        }
+
+        @Override
+        void finish() throws IOException {
+            output.flush();
+        }
+    }
+}
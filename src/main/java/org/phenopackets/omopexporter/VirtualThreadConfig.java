@@ -0,0 +1,84 @@
+package org.phenopackets.omopexporter;
+
+import com.zaxxer.hikari.HikariDataSource;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.jdbc.DataSourceUnwrapper;
+import org.springframework.boot.web.embedded.tomcat.TomcatProtocolHandlerCustomizer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.env.Environment;
+import org.springframework.core.task.support.TaskExecutorAdapter;
+import org.springframework.web.servlet.config.annotation.AsyncSupportConfigurer;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
+
+import javax.sql.DataSource;
+import java.time.Duration;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Runs requests, streamed responses and the DAO queries on virtual threads, for JDK 21 and later. Requests which
+ * mostly wait on Postgres then cost a virtual thread each rather than one of Tomcat's 200 platform threads, so many
+ * more can be in flight. The number of them using the database at once is still bounded by the connection pool, which
+ * is wrapped in a {@link ConnectionLimitingDataSource} so that the rest wait in a fair queue.
+ */
+@Configuration
+@ConditionalOnProperty("omop-exporter.virtual-threads.enabled")
+public class VirtualThreadConfig implements WebMvcConfigurer {
+
+    @Bean(destroyMethod = "shutdownNow")
+    public ExecutorService requestExecutor() {
+        return VirtualThreads.newVirtualThreadPerTaskExecutor();
+    }
+
+    /**
+     * Limits the connections taken by the threads which do not hold one already to the size of the pool less
+     * {@code omop-exporter.virtual-threads.reserved-connections}, which are left for the threads that do.
+     */
+    @Bean
+    public static BeanPostProcessor connectionLimitingDataSourcePostProcessor(Environment environment) {
+        int reservedConnections = environment.getProperty("omop-exporter.virtual-threads.reserved-connections", Integer.class, 2);
+        return new BeanPostProcessor() {
+            @Override
+            public Object postProcessAfterInitialization(Object bean, String beanName) {
+                // the pool may already have been wrapped, as in a StatementTimeoutDataSource, or be one of several a
+                // RoutingDataSource spreads the queries over, whose own bean is then left alone
+                if (!(bean instanceof DataSource) || !"dataSource".equals(beanName)) {
+                    return bean;
+                }
+                HikariDataSource hikariDataSource = DataSourceUnwrapper.unwrap((DataSource) bean, HikariDataSource.class);
+                if (hikariDataSource != null) {
+                    int maxConnections = Math.max(1, QueryExecutorConfig.poolSize((DataSource) bean) - reservedConnections);
+                    return new ConnectionLimitingDataSource((DataSource) bean, maxConnections, Duration.ofMillis(hikariDataSource.getConnectionTimeout()));
+                }
+                return bean;
+            }
+        };
+    }
+
+    @Bean
+    public TomcatProtocolHandlerCustomizer<?> virtualThreadProtocolHandlerCustomizer(ExecutorService requestExecutor) {
+        return protocolHandler -> protocolHandler.setExecutor(requestExecutor);
+    }
+
+    /**
+     * Looks the data source up when the gauge is read, as a {@link RoutingDataSource} is built with the meter registry
+     * this binder is bound to while the registry is created.
+     */
+    @Bean
+    public MeterBinder connectionLimiterMetrics(ObjectProvider<DataSource> dataSource) {
+        return meterRegistry -> Gauge.builder("omop.datasource.waiting", dataSource, provider -> {
+                    DataSource limited = provider.getIfAvailable();
+                    return limited instanceof ConnectionLimitingDataSource ? ((ConnectionLimitingDataSource) limited).getQueueLength() : 0;
+                })
+                .description("Threads waiting for a database connection").register(meterRegistry);
+    }
+
+    @Override
+    public void configureAsyncSupport(AsyncSupportConfigurer configurer) {
+        configurer.setTaskExecutor(new TaskExecutorAdapter(requestExecutor()));
+    }
+}
@@ -0,0 +1,224 @@
+package org.phenopackets.omopexporter.dao;
+
+import org.phenopackets.phenotools.builder.builders.OntologyClassBuilder;
+import org.phenopackets.schema.v2.core.OntologyClass;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * In-memory lookup of OMOP concepts by concept_id, holding each as a ready-built {@link OntologyClass} with a
+ * {@code vocabulary_id:concept_code} CURIE id and the concept_name as the label. The vocabulary only changes when it
+ * is reloaded, so this replaces joining the concept table in every DAO query.
+ * <p>
+ * The DAO queries select the raw concept ids, and each result set is mapped with a {@link Lookup} of its own. Rows
+ * whose concepts are all cached are mapped as they are read, and the others are copied and mapped once the result set
+ * has been read through, after their concepts have been loaded in a few queries on the same connection. No second
+ * connection is taken from the pool while the first is held, and the concepts loaded for a result set are kept by its
+ * lookup, so that they are not loaded again one at a time if the cache evicts them before the copied rows are mapped.
+ */
+@Component
+public class ConceptCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(ConceptCache.class);
+
+    public static final OntologyClass NO_MATCHING_CONCEPT = OntologyClassBuilder.ontologyClass("None:No matching concept", "No matching concept");
+
+    /**
+     * Cached for concept_ids which are not in the concept table, so that they are not looked up again.
+     */
+    private static final OntologyClass ABSENT = OntologyClass.newBuilder().build();
+
+    /**
+     * The most concept_ids bound to one query when loading the concepts of a result set.
+     */
+    private static final int LOAD_CHUNK_SIZE = 10_000;
+
+    private static final String SELECT_CONCEPTS = "SELECT c.concept_id, c.vocabulary_id, c.concept_code, c.concept_name\n" +
+            "FROM concept c\n";
+
+    static final String SELECT_CONCEPTS_BY_IDS = SELECT_CONCEPTS + "WHERE c.concept_id = ANY(?)";
+
+    private final JdbcTemplate jdbcTemplate;
+    private final Routing routing;
+    private final IntClockCache<OntologyClass> concepts;
+    private final List<String> warmDomains;
+
+    public ConceptCache(JdbcTemplate jdbcTemplate, Routing routing,
+                        @Value("${omop-exporter.concept-cache.max-size:200000}") int maxSize,
+                        @Value("${omop-exporter.concept-cache.warm-domains:}") List<String> warmDomains) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.routing = routing;
+        this.concepts = new IntClockCache<>(maxSize);
+        this.warmDomains = warmDomains;
+    }
+
+    /**
+     * Returns a lookup for the concepts of a result set read on the connection, on which any which are not cached are
+     * loaded. The connection may be null if they are all cached, as in the benchmarks.
+     */
+    Lookup lookup(Connection connection) {
+        return new Lookup(connection);
+    }
+
+    /**
+     * Empties the cache, for instance after the vocabulary tables have been refreshed, and re-warms it if configured.
+     */
+    public void reload() {
+        concepts.clear();
+        warm();
+    }
+
+    /**
+     * Caches a concept directly, for tests and benchmarks which run without a database.
+     */
+    void put(int conceptId, OntologyClass concept) {
+        concepts.put(conceptId, concept);
+    }
+
+    public int size() {
+        return concepts.size();
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void warm() {
+        if (warmDomains.isEmpty()) {
+            return;
+        }
+        String query = SELECT_CONCEPTS + "WHERE c.domain_id = ANY(?)";
+        try (Routing.Scope ignored = routing.bindVocabulary()) {
+            jdbcTemplate.query(connection -> {
+                var ps = connection.prepareStatement(query);
+                ps.setArray(1, connection.createArrayOf("varchar", warmDomains.toArray()));
+                return ps;
+            }, rs -> {
+                concepts.put(rs.getInt(1), mapRowToOntologyClass(rs));
+            });
+        } catch (DataAccessException e) {
+            logger.warn("Could not warm the concept cache, its concepts will be loaded as they are first read", e);
+            return;
+        }
+        logger.info("Warmed concept cache with {} concepts from domains {}", concepts.size(), warmDomains);
+    }
+
+    private static OntologyClass mapRowToOntologyClass(ResultSet rs) throws SQLException {
+        return OntologyClassBuilder.ontologyClass(rs.getString(2) + ':' + rs.getString(3), rs.getString(4));
+    }
+
+    /**
+     * The concepts of one result set, which is read on a single thread. The concepts loaded for it are kept here as
+     * well as in the cache, so that the rows can be mapped however many of them the cache has room for.
+     */
+    final class Lookup {
+
+        private final Connection connection;
+        private final Map<Integer, OntologyClass> loaded = new HashMap<>();
+        private final Set<Integer> missing = new HashSet<>();
+
+        private Lookup(Connection connection) {
+            this.connection = connection;
+        }
+
+        /**
+         * Returns the concept whose concept_id is in the column of the row, or null if the column is null or there is
+         * no concept with the id.
+         */
+        OntologyClass get(ResultRow row, int conceptColumnIndex) throws SQLException {
+            int conceptId = row.getInt(conceptColumnIndex);
+            if (row.wasNull()) {
+                return null;
+            }
+            OntologyClass concept = find(conceptId);
+            if (concept == null) {
+                // only happens if another thread evicted the concept between the row being checked and mapped
+                load(new int[]{conceptId}, 1);
+                concept = loaded.get(conceptId);
+            }
+            return concept == ABSENT ? null : concept;
+        }
+
+        /**
+         * Checks the concept_ids in the columns of the current row of the result set, remembering any which are not
+         * yet cached for {@link #loadMissing()}. Returns true if the row references any such concepts.
+         */
+        boolean addMissing(ResultSet resultSet, int[] conceptColumnIndexes) throws SQLException {
+            boolean anyMissing = false;
+            for (int columnIndex : conceptColumnIndexes) {
+                int conceptId = resultSet.getInt(columnIndex);
+                if (!resultSet.wasNull() && find(conceptId) == null) {
+                    missing.add(conceptId);
+                    anyMissing = true;
+                }
+            }
+            return anyMissing;
+        }
+
+        /**
+         * Loads the concepts found missing by {@link #addMissing(ResultSet, int[])}.
+         */
+        void loadMissing() throws SQLException {
+            if (!missing.isEmpty()) {
+                load(missing.stream().mapToInt(Integer::intValue).toArray(), missing.size());
+                missing.clear();
+            }
+        }
+
+        /**
+         * Loads any of the concepts which are not yet cached, for results which are read through only once, such as a
+         * server-side cursor, whose concepts are selected by a separate query first.
+         */
+        void load(int[] conceptIds) throws SQLException {
+            int[] uncached = Arrays.stream(conceptIds).filter(conceptId -> find(conceptId) == null).toArray();
+            if (uncached.length > 0) {
+                load(uncached, uncached.length);
+            }
+        }
+
+        private OntologyClass find(int conceptId) {
+            OntologyClass concept = loaded.isEmpty() ? null : loaded.get(conceptId);
+            return concept == null ? concepts.get(conceptId) : concept;
+        }
+
+        private void load(int[] conceptIds, int count) throws SQLException {
+            if (connection == null) {
+                throw new SQLException("The concepts are not cached, and there is no connection to load them on");
+            }
+            int[] distinct = Arrays.stream(conceptIds, 0, count).distinct().sorted().toArray();
+            for (int from = 0; from < distinct.length; from += LOAD_CHUNK_SIZE) {
+                int to = Math.min(distinct.length, from + LOAD_CHUNK_SIZE);
+                try (PreparedStatement ps = QueryCancellation.prepareStatement(connection, SELECT_CONCEPTS_BY_IDS)) {
+                    ps.setArray(1, connection.createArrayOf("int4", Arrays.stream(distinct, from, to).boxed().toArray()));
+                    try (ResultSet rs = ps.executeQuery()) {
+                        while (rs.next()) {
+                            OntologyClass concept = mapRowToOntologyClass(rs);
+                            concepts.put(rs.getInt(1), concept);
+                            loaded.put(rs.getInt(1), concept);
+                        }
+                    }
+                }
+                for (int i = from; i < to; i++) {
+                    if (!loaded.containsKey(distinct[i])) {
+                        concepts.put(distinct[i], ABSENT);
+                        loaded.put(distinct[i], ABSENT);
+                    }
+                }
+            }
+        }
+    }
+}
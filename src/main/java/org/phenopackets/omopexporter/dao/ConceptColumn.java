@@ -0,0 +1,54 @@
+package org.phenopackets.omopexporter.dao;
+
+import org.phenopackets.schema.v2.core.OntologyClass;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * A concept referenced by each row of a result set, which the row mappers read as an {@link OntologyClass} whether the
+ * rows came from the OMOP tables, with the concept as a concept_id, or from the {@link StagingTables}, with the concept
+ * already resolved to a CURIE and label.
+ */
+@FunctionalInterface
+interface ConceptColumn {
+
+    /**
+     * Returns the concept of the current row, or null if it has none.
+     */
+    OntologyClass get(ResultRow row) throws SQLException;
+
+    /**
+     * Returns the concept in the named concept_id column for an OMOP query, or in the {@code <name>_curie} and
+     * {@code <name>_label} columns for a staged one.
+     */
+    static ConceptColumn find(ResultSet resultSet, boolean staged, String conceptIdColumn, String name, ConceptCache.Lookup concepts, MessageInterner messageInterner)
+            throws SQLException {
+        return staged ? staged(resultSet, name, messageInterner) : conceptId(resultSet, conceptIdColumn, concepts);
+    }
+
+    /**
+     * Returns the concept whose concept_id is in the named column, from the lookup of the result set.
+     */
+    static ConceptColumn conceptId(ResultSet resultSet, String conceptIdColumn, ConceptCache.Lookup concepts) throws SQLException {
+        int conceptIdIndex = resultSet.findColumn(conceptIdColumn);
+        return row -> concepts.get(row, conceptIdIndex);
+    }
+
+    /**
+     * Returns the concept staged in the {@code <name>_curie} and {@code <name>_label} columns, interned as the staged
+     * rows repeat the same few concepts.
+     */
+    static ConceptColumn staged(ResultSet resultSet, String name, MessageInterner messageInterner) throws SQLException {
+        int curieIndex = resultSet.findColumn(name + "_curie");
+        int labelIndex = resultSet.findColumn(name + "_label");
+        return row -> {
+            String curie = row.getString(curieIndex);
+            if (curie == null) {
+                return null;
+            }
+            String label = row.getString(labelIndex);
+            return messageInterner.ontologyClass(curie, label == null ? "" : label);
+        };
+    }
+}
@@ -0,0 +1,119 @@
+package org.phenopackets.omopexporter.dao;
+
+import java.util.List;
+
+/**
+ * A boolean combination of OMOP concepts selecting the persons with condition, measurement, drug exposure or procedure
+ * rows for them, as evaluated by the {@link ConceptIndex}. Each expression is exactly one of:
+ * <ul>
+ *     <li>{@code {"concept": 201826}}, optionally with {@code "descendants": true} to include every concept below it in
+ *     {@code concept_ancestor}</li>
+ *     <li>{@code {"and": [...]}} or {@code {"or": [...]}} of one or more expressions</li>
+ *     <li>{@code {"not": {...}}}, the persons who do not match the expression</li>
+ * </ul>
+ */
+public class ConceptExpression {
+
+    private Integer concept;
+    private boolean descendants;
+    private List<ConceptExpression> and;
+    private List<ConceptExpression> or;
+    private ConceptExpression not;
+
+    public static ConceptExpression concept(int conceptId, boolean descendants) {
+        ConceptExpression expression = new ConceptExpression();
+        expression.setConcept(conceptId);
+        expression.setDescendants(descendants);
+        return expression;
+    }
+
+    public static ConceptExpression and(ConceptExpression... expressions) {
+        ConceptExpression expression = new ConceptExpression();
+        expression.setAnd(List.of(expressions));
+        return expression;
+    }
+
+    public static ConceptExpression or(ConceptExpression... expressions) {
+        ConceptExpression expression = new ConceptExpression();
+        expression.setOr(List.of(expressions));
+        return expression;
+    }
+
+    public static ConceptExpression not(ConceptExpression negated) {
+        ConceptExpression expression = new ConceptExpression();
+        expression.setNot(negated);
+        return expression;
+    }
+
+    public Integer getConcept() {
+        return concept;
+    }
+
+    public void setConcept(Integer concept) {
+        this.concept = concept;
+    }
+
+    public boolean isDescendants() {
+        return descendants;
+    }
+
+    public void setDescendants(boolean descendants) {
+        this.descendants = descendants;
+    }
+
+    public List<ConceptExpression> getAnd() {
+        return and;
+    }
+
+    public void setAnd(List<ConceptExpression> and) {
+        this.and = and;
+    }
+
+    public List<ConceptExpression> getOr() {
+        return or;
+    }
+
+    public void setOr(List<ConceptExpression> or) {
+        this.or = or;
+    }
+
+    public ConceptExpression getNot() {
+        return not;
+    }
+
+    public void setNot(ConceptExpression not) {
+        this.not = not;
+    }
+
+    /**
+     * Checks that this expression and every one nested in it is exactly one of a concept, an and, an or or a not.
+     *
+     * @throws IllegalArgumentException if any expression is empty, has more than one of them, or has an empty operand list
+     */
+    public void validate() {
+        int kinds = (concept != null ? 1 : 0) + (and != null ? 1 : 0) + (or != null ? 1 : 0) + (not != null ? 1 : 0);
+        if (kinds != 1) {
+            throw new IllegalArgumentException("A concept expression must have exactly one of concept, and, or and not");
+        }
+        validate(and, "and");
+        validate(or, "or");
+        if (not != null) {
+            not.validate();
+        }
+    }
+
+    private static void validate(List<ConceptExpression> operands, String operator) {
+        if (operands == null) {
+            return;
+        }
+        if (operands.isEmpty()) {
+            throw new IllegalArgumentException(operator + " must have at least one operand");
+        }
+        for (ConceptExpression operand : operands) {
+            if (operand == null) {
+                throw new IllegalArgumentException(operator + " has a null operand");
+            }
+            operand.validate();
+        }
+    }
+}
@@ -0,0 +1,299 @@
+package org.phenopackets.omopexporter.dao;
+
+import org.roaringbitmap.FastAggregation;
+import org.roaringbitmap.RoaringBitmap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * An in-memory inverted index from the concept_ids of the condition, measurement, drug exposure and procedure rows to
+ * compressed bitmaps of the person_ids with rows for them, so that a cohort defined by a {@link ConceptExpression} is
+ * selected by combining bitmaps rather than by querying the clinical tables. The index is built by scanning each table
+ * once when the application starts and again whenever it is {@link #rebuild() rebuilt}, which replaces it atomically;
+ * until then, the rows added to the OMOP tables are not selected.
+ * <p>
+ * Concepts are only expanded to their descendants when an expression asks for it, by looking them up in
+ * {@code concept_ancestor}, as holding the whole hierarchy in memory would take far more than the index itself.
+ */
+@Component
+public class ConceptIndex {
+
+    private static final Logger logger = LoggerFactory.getLogger(ConceptIndex.class);
+
+    enum Source {
+        CONDITION("condition_occurrence", "condition_concept_id"),
+        MEASUREMENT("measurement", "measurement_concept_id"),
+        DRUG("drug_exposure", "drug_concept_id"),
+        PROCEDURE("procedure_occurrence", "procedure_concept_id");
+
+        private final String select;
+
+        Source(String table, String conceptColumn) {
+            this.select = "SELECT person_id, " + conceptColumn + " FROM " + table;
+        }
+
+        String getSelect() {
+            return select;
+        }
+    }
+
+    static final String SELECT_PERSONS = "SELECT person_id FROM person";
+
+    static final String SELECT_DESCENDANTS = "SELECT descendant_concept_id FROM concept_ancestor WHERE ancestor_concept_id = ?";
+
+    private final JdbcTemplate jdbcTemplate;
+    private final Routing routing;
+    private final boolean enabled;
+    private final int fetchSize;
+    private final Map<Source, QueryMetrics.Query> sourceMetrics = new EnumMap<>(Source.class);
+    private final QueryMetrics.Query personMetrics;
+    private final AtomicBoolean rebuilding = new AtomicBoolean();
+    private final ExecutorService rebuildExecutor = Executors.newSingleThreadExecutor(new CustomizableThreadFactory("omop-concept-index-"));
+    private volatile Bitmaps bitmaps;
+    private volatile String lastRebuildFailure;
+
+    public ConceptIndex(JdbcTemplate jdbcTemplate, QueryMetrics queryMetrics, Routing routing,
+                        @Value("${omop-exporter.concept-index.enabled:false}") boolean enabled,
+                        @Value("${omop-exporter.concept-index.fetch-size:10000}") int fetchSize) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.routing = routing;
+        this.enabled = enabled;
+        this.fetchSize = fetchSize;
+        for (Source source : Source.values()) {
+            sourceMetrics.put(source, queryMetrics.query(source.name().toLowerCase(), "index"));
+        }
+        this.personMetrics = queryMetrics.query("person", "index");
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Returns the current index, or null if it has not been built.
+     */
+    public Bitmaps getBitmaps() {
+        return bitmaps;
+    }
+
+    public boolean isRebuilding() {
+        return rebuilding.get();
+    }
+
+    public Optional<String> getLastRebuildFailure() {
+        return Optional.ofNullable(lastRebuildFailure);
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void buildOnStartup() {
+        if (enabled) {
+            try {
+                rebuild();
+            } catch (DataAccessException e) {
+                logger.warn("Could not build the concept index, cohorts cannot be selected by concept until it is rebuilt", e);
+            }
+        }
+    }
+
+    /**
+     * Starts rebuilding the index in the background, as scanning the clinical tables of a large database takes far
+     * longer than a request should. The current index is used until the new one is complete.
+     *
+     * @throws IllegalStateException if the index is not enabled or a rebuild is already running
+     */
+    public void startRebuild() {
+        if (!enabled) {
+            throw new IllegalStateException("The concept index is not enabled");
+        }
+        if (!rebuilding.compareAndSet(false, true)) {
+            throw new IllegalStateException("The concept index is already being rebuilt");
+        }
+        rebuildExecutor.submit(() -> {
+            try {
+                rebuild();
+                lastRebuildFailure = null;
+            } catch (RuntimeException e) {
+                logger.error("Concept index rebuild failed", e);
+                lastRebuildFailure = e.toString();
+            } finally {
+                rebuilding.set(false);
+            }
+        });
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        rebuildExecutor.shutdownNow();
+    }
+
+    /**
+     * Scans the person and clinical tables into a new index, which replaces the current one once it is complete. When
+     * the persons are sharded, the tables of each shard are scanned in turn into the same bitmaps, as no person is in
+     * more than one of them.
+     */
+    public synchronized Bitmaps rebuild() {
+        long start = System.nanoTime();
+        RoaringBitmap persons = new RoaringBitmap();
+        Map<Integer, RoaringBitmap> byConcept = new HashMap<>();
+        for (String shard : routing.isSharded() ? routing.getShards() : Collections.<String>singletonList(null)) {
+            try (Routing.Scope ignored = Routing.bind(shard)) {
+                scan(SELECT_PERSONS, personMetrics, resultSet -> persons.add(resultSet.getInt(1)));
+                for (Source source : Source.values()) {
+                    scan(source.getSelect(), sourceMetrics.get(source), resultSet ->
+                            byConcept.computeIfAbsent(resultSet.getInt(2), conceptId -> new RoaringBitmap()).add(resultSet.getInt(1)));
+                }
+            }
+        }
+        persons.runOptimize();
+        byConcept.values().forEach(RoaringBitmap::runOptimize);
+        Bitmaps built = new Bitmaps(byConcept, persons, Instant.now());
+        bitmaps = built;
+        logger.info("Built the concept index of {} concepts for {} persons, {} bytes, in {} ms", byConcept.size(), persons.getCardinality(),
+                built.getSizeInBytes(), (System.nanoTime() - start) / 1_000_000);
+        return built;
+    }
+
+    /**
+     * Returns the persons matching the expression, as a new bitmap which the caller may modify.
+     *
+     * @throws IllegalArgumentException if the expression is not valid
+     * @throws IllegalStateException    if the index has not been built
+     */
+    public RoaringBitmap select(ConceptExpression expression) {
+        expression.validate();
+        Bitmaps current = bitmaps;
+        if (current == null) {
+            throw new IllegalStateException(enabled ? "The concept index has not been built" : "The concept index is not enabled");
+        }
+        return evaluate(expression, current);
+    }
+
+    private RoaringBitmap evaluate(ConceptExpression expression, Bitmaps current) {
+        if (expression.getConcept() != null) {
+            if (!expression.isDescendants()) {
+                return current.get(expression.getConcept()).clone();
+            }
+            List<RoaringBitmap> operands = new ArrayList<>();
+            operands.add(current.get(expression.getConcept()));
+            for (int descendant : jdbcTemplate.queryForList(SELECT_DESCENDANTS, Integer.class, expression.getConcept())) {
+                operands.add(current.get(descendant));
+            }
+            return FastAggregation.or(operands.iterator());
+        }
+        if (expression.getNot() != null) {
+            return RoaringBitmap.andNot(current.persons, evaluate(expression.getNot(), current));
+        }
+        List<ConceptExpression> operands = expression.getAnd() != null ? expression.getAnd() : expression.getOr();
+        RoaringBitmap[] evaluated = new RoaringBitmap[operands.size()];
+        for (int i = 0; i < evaluated.length; i++) {
+            evaluated[i] = evaluate(operands.get(i), current);
+        }
+        if (evaluated.length == 1) {
+            return evaluated[0];
+        }
+        return expression.getAnd() != null ? FastAggregation.and(evaluated) : FastAggregation.or(evaluated);
+    }
+
+    private void scan(String query, QueryMetrics.Query metrics, RowConsumer consumer) {
+        jdbcTemplate.execute((ConnectionCallback<Void>) connection -> {
+            boolean autoCommit = connection.getAutoCommit();
+            // the Postgres driver only fetches rows in chunks from a cursor inside a transaction
+            connection.setAutoCommit(false);
+            try (PreparedStatement ps = connection.prepareStatement(query)) {
+                ps.setFetchSize(fetchSize);
+                long start = System.nanoTime();
+                try (ResultSet resultSet = ps.executeQuery()) {
+                    long mappingStart = System.nanoTime();
+                    int rows = 0;
+                    while (resultSet.next()) {
+                        consumer.accept(resultSet);
+                        rows++;
+                    }
+                    metrics.record(mappingStart - start, System.nanoTime() - mappingStart, rows);
+                } catch (SQLException | RuntimeException e) {
+                    metrics.recordFailure(System.nanoTime() - start);
+                    throw e;
+                }
+            } finally {
+                connection.rollback();
+                connection.setAutoCommit(autoCommit);
+            }
+            return null;
+        });
+    }
+
+    @FunctionalInterface
+    private interface RowConsumer {
+
+        void accept(ResultSet resultSet) throws SQLException;
+    }
+
+    /**
+     * One build of the index, which is never modified once it has been built.
+     */
+    public static final class Bitmaps {
+
+        private static final RoaringBitmap EMPTY = new RoaringBitmap();
+
+        private final Map<Integer, RoaringBitmap> byConcept;
+        private final RoaringBitmap persons;
+        private final Instant builtAt;
+
+        private Bitmaps(Map<Integer, RoaringBitmap> byConcept, RoaringBitmap persons, Instant builtAt) {
+            this.byConcept = byConcept;
+            this.persons = persons;
+            this.builtAt = builtAt;
+        }
+
+        private RoaringBitmap get(int conceptId) {
+            return byConcept.getOrDefault(conceptId, EMPTY);
+        }
+
+        public int getConceptCount() {
+            return byConcept.size();
+        }
+
+        public int getPersonCount() {
+            return persons.getCardinality();
+        }
+
+        public Instant getBuiltAt() {
+            return builtAt;
+        }
+
+        /**
+         * The serialized size of the bitmaps, which is close to the memory they take.
+         */
+        public long getSizeInBytes() {
+            long size = persons.getLongSizeInBytes();
+            for (RoaringBitmap bitmap : byConcept.values()) {
+                size += bitmap.getLongSizeInBytes();
+            }
+            return size;
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package org.phenopackets.omopexporter.dao;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.Objects;
+
+/**
+ * An inclusive range of dates which the per-person queries are restricted to, by the date of the measurement, drug
+ * exposure, procedure or condition onset. Either end may be open. The bounds are added to the WHERE clause of each
+ * query, so that rows outside of the range are never read.
+ */
+public final class DateRange {
+
+    public static final DateRange ALL = new DateRange(null, null);
+
+    private final LocalDate from;
+    private final LocalDate to;
+
+    private DateRange(LocalDate from, LocalDate to) {
+        this.from = from;
+        this.to = to;
+    }
+
+    /**
+     * Returns the range from and to the given dates, either of which may be null for an open end.
+     *
+     * @throws IllegalArgumentException if from is after to
+     */
+    public static DateRange of(LocalDate from, LocalDate to) {
+        if (from == null && to == null) {
+            return ALL;
+        }
+        if (from != null && to != null && from.isAfter(to)) {
+            throw new IllegalArgumentException("from " + from + " is after to " + to);
+        }
+        return new DateRange(from, to);
+    }
+
+    public LocalDate getFrom() {
+        return from;
+    }
+
+    public LocalDate getTo() {
+        return to;
+    }
+
+    /**
+     * Returns the predicates restricting the date or timestamp column to the range, to be appended to a WHERE clause,
+     * or an empty string for {@link #ALL}. Their parameters are set by {@link #bind(PreparedStatement, int)}.
+     */
+    String predicate(String column) {
+        String predicate = "";
+        if (from != null) {
+            predicate += "\nAND " + column + " >= ?";
+        }
+        if (to != null) {
+            // the day after, so that timestamps during the last day are included
+            predicate += "\nAND " + column + " < ?";
+        }
+        return predicate;
+    }
+
+    /**
+     * Sets the parameters of the {@link #predicate(String)} starting at the parameterIndex, returning the index of the
+     * parameter after them.
+     */
+    int bind(PreparedStatement ps, int parameterIndex) throws SQLException {
+        if (from != null) {
+            ps.setObject(parameterIndex++, from);
+        }
+        if (to != null) {
+            ps.setObject(parameterIndex++, to.plusDays(1));
+        }
+        return parameterIndex;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof DateRange)) {
+            return false;
+        }
+        DateRange dateRange = (DateRange) o;
+        return Objects.equals(from, dateRange.from) && Objects.equals(to, dateRange.to);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(from, to);
+    }
+
+    @Override
+    public String toString() {
+        return "DateRange{from=" + from + ", to=" + to + '}';
+    }
+}
@@ -1,7 +1,5 @@
 package org.phenopackets.omopexporter.dao;
 
-import org.phenopackets.phenotools.builder.builders.OntologyClassBuilder;
-import org.phenopackets.phenotools.builder.builders.TimeElements;
 import org.phenopackets.schema.v2.core.OntologyClass;
 import org.phenopackets.schema.v2.core.TimeElement;
 import org.springframework.jdbc.core.JdbcTemplate;
@@ -10,56 +8,130 @@ import org.springframework.stereotype.Component;
 
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.sql.Timestamp;
+import java.time.LocalDate;
+import java.util.Collection;
 import java.util.List;
 
 @Component
 public class DiseaseDao {
 
+    private static final String SELECT_DISEASES = "select co.person_id,\n" +
+            "       co.condition_concept_id as term_concept_id,\n" +
+            "       co.condition_source_value,\n" +
+            "       FALSE as excluded,\n" +
+            "       co.condition_start_date as onset_timestamp,\n" +
+            "       co.condition_end_date as resolution\n" +
+            "from condition_occurrence co\n";
+
+    static final String SELECT_PERSON_DISEASES = selectPersonDiseases(DateRange.ALL);
+
+    private static final String SELECT_STAGED_DISEASES = "select co.person_id,\n" +
+            "       co.term_curie,\n" +
+            "       co.term_label,\n" +
+            "       co.onset_timestamp,\n" +
+            "       co.resolution\n" +
+            "from omop_exporter_stage_condition_occurrence co\n";
+
+    private static final String[] CONCEPT_COLUMNS = {"term_concept_id"};
+
     private final JdbcTemplate jdbcTemplate;
+    private final ConceptCache conceptCache;
+    private final MessageInterner messageInterner;
+    private final StagingTables stagingTables;
+    private final QueryMetrics.Query diseaseMetrics;
+    private final QueryMetrics.Query diseaseBatchMetrics;
 
-    public DiseaseDao(JdbcTemplate jdbcTemplate) {
+    public DiseaseDao(JdbcTemplate jdbcTemplate, ConceptCache conceptCache, MessageInterner messageInterner, QueryMetrics queryMetrics, StagingTables stagingTables) {
         this.jdbcTemplate = jdbcTemplate;
+        this.conceptCache = conceptCache;
+        this.messageInterner = messageInterner;
+        this.stagingTables = stagingTables;
+        this.diseaseMetrics = queryMetrics.query("diseases", false);
+        this.diseaseBatchMetrics = queryMetrics.query("diseases", true);
     }
 
-    public List<Disease> getDiseases(int personId) {
-        String query = "select co.person_id,\n" +
-                "       concat(c.vocabulary_id, ':', c.concept_code) as term_id,\n" +
-                "       c.concept_name as term_label,\n" +
-                "       co.condition_source_value,\n" +
-                "       FALSE as excluded,\n" +
-                "       co.condition_start_date as onset_timestamp,\n" +
-                "       co.condition_end_date as resolution,\n" +
-                "       case when c2.concept_id is null then null\n" +
-                "       else concat(c2.vocabulary_id, ':', c2.concept_code) end as clinical_tnm_finding_id,\n" +
-                "       c2.concept_name as clinical_tnm_finding_label,\n" +
-                "       case when c3.concept_id is null then null\n" +
-                "       else concat(c3.vocabulary_id, ':', c3.concept_code) end as primary_site_id,\n" +
-                "       c3.concept_name as primary_site_label\n" +
-                "from condition_occurrence co\n" +
-                "left join concept c on c.concept_id = co.condition_concept_id\n" +
-                "left join concept_relationship cr on cr.concept_id_1 = co.condition_concept_id and cr.relationship_id = 'Has asso morph' \n" +
-                "left join concept c2 on c2.concept_id = cr.concept_id_2 \n" +
-                "left join concept_relationship cr2 on cr2.concept_id_1 = co.condition_concept_id and cr.relationship_id = 'Has finding site' \n" +
-                "left join concept c3 on c3.concept_id = cr2.concept_id_2\n" +
-                "where co.person_id = ?";
-        return jdbcTemplate.query(query, this::mapRowToDisease, personId);
+    static String selectPersonDiseases(DateRange dateRange) {
+        return SELECT_DISEASES + "where co.person_id = ?" + dateRange.predicate("co.condition_start_date");
     }
 
-    private Disease mapRowToDisease(ResultSet resultSet, int i) throws SQLException {
+    static String selectBatchDiseases(DateRange dateRange) {
+        return SELECT_DISEASES + "where co.person_id = ANY(?)" + dateRange.predicate("co.condition_start_date") + "\n" +
+                "order by co.person_id";
+    }
+
+    static String selectStagedPersonDiseases(DateRange dateRange) {
+        return SELECT_STAGED_DISEASES + "where co.person_id = ?" + dateRange.predicate("co.onset_timestamp");
+    }
+
+    static String selectStagedBatchDiseases(DateRange dateRange) {
+        return SELECT_STAGED_DISEASES + "where co.person_id = ANY(?)" + dateRange.predicate("co.onset_timestamp") + "\n" +
+                "order by co.person_id";
+    }
+
+    public List<Disease> getDiseases(int personId, DateRange dateRange) {
+        boolean staged = stagingTables.isReadable();
+        String query = staged ? selectStagedPersonDiseases(dateRange) : selectPersonDiseases(dateRange);
+        return PersonQueries.queryForList(jdbcTemplate, PersonQueries.personIdStatement(query, personId, dateRange), diseaseMetrics, conceptCache,
+                (resultSet, concepts) -> diseaseRowMapper(resultSet, concepts, staged), conceptColumns(staged));
+    }
+
+    /**
+     * Returns the diseases for a batch of persons in person_id order, using a single query.
+     */
+    public PersonRows<Disease> getDiseases(Collection<Integer> personIds, DateRange dateRange) {
+        boolean staged = stagingTables.isReadable();
+        String query = staged ? selectStagedBatchDiseases(dateRange) : selectBatchDiseases(dateRange);
+        return PersonQueries.queryGroupedByPerson(jdbcTemplate, PersonQueries.personIdsStatement(query, personIds, dateRange), diseaseBatchMetrics, "person_id", conceptCache,
+                (resultSet, concepts) -> diseaseRowMapper(resultSet, concepts, staged), conceptColumns(staged));
+    }
+
+    /**
+     * Maps the result of {@link #SELECT_PERSON_DISEASES}, or of {@link #selectStagedPersonDiseases(DateRange)} if
+     * staged is true.
+     */
+    List<Disease> mapDiseases(ResultSet resultSet, boolean staged) throws SQLException {
+        return PersonQueries.mapRows(resultSet, conceptCache, (rs, concepts) -> diseaseRowMapper(rs, concepts, staged), conceptColumns(staged));
+    }
+
+    private static String[] conceptColumns(boolean staged) {
+        return staged ? PersonQueries.NO_CONCEPT_COLUMNS : CONCEPT_COLUMNS;
+    }
+
+    private RowMapperFactory.RowMapper<Disease> diseaseRowMapper(ResultSet resultSet, ConceptCache.Lookup concepts, boolean staged) throws SQLException {
+        Columns columns = new Columns(resultSet, staged, concepts, messageInterner);
+        return row -> mapRowToDisease(row, columns);
+    }
+
+    private Disease mapRowToDisease(ResultRow row, Columns columns) throws SQLException {
         Disease.Builder diseaseBuilder = Disease.newBuilder();
-        OntologyClass term = OntologyClassBuilder.ontologyClass(resultSet.getString("term_id"), resultSet.getString("term_label"));
-        diseaseBuilder.setTerm(term);
+        OntologyClass term = columns.term.get(row);
+        diseaseBuilder.setTerm(term == null ? ConceptCache.NO_MATCHING_CONCEPT : term);
 
-        TimeElement onset = TimeElements.timestamp(resultSet.getTimestamp("onset_timestamp").toInstant());
+        TimeElement onset = messageInterner.timeElement(row.getObject(columns.onsetTimestamp, LocalDate.class));
         diseaseBuilder.setOnset(onset);
 
-        Timestamp resolutionTimestamp = resultSet.getTimestamp("resolution");
-        if (resolutionTimestamp != null) {
-            diseaseBuilder.setResolution(TimeElements.timestamp(resolutionTimestamp.toInstant()));
+        LocalDate resolution = row.getObject(columns.resolution, LocalDate.class);
+        if (resolution != null) {
+            diseaseBuilder.setResolution(messageInterner.timeElement(resolution));
         }
 
 
         return diseaseBuilder.build();
     }
+
+    /**
+     * Indexes of the columns read by {@link #mapRowToDisease(ResultRow, Columns)}, found once per result set.
+     */
+    private static final class Columns {
+
+        private final ConceptColumn term;
+        private final int onsetTimestamp;
+        private final int resolution;
+
+        private Columns(ResultSet resultSet, boolean staged, ConceptCache.Lookup concepts, MessageInterner messageInterner) throws SQLException {
+            term = ConceptColumn.find(resultSet, staged, "term_concept_id", "term", concepts, messageInterner);
+            onsetTimestamp = resultSet.findColumn("onset_timestamp");
+            resolution = resultSet.findColumn("resolution");
+        }
+    }
 }
@@ -1,9 +1,7 @@
 package org.phenopackets.omopexporter.dao;
 
-import com.google.protobuf.Timestamp;
-import org.phenopackets.phenotools.builder.builders.OntologyClassBuilder;
-import org.phenopackets.phenotools.builder.builders.TimeElements;
 import org.phenopackets.schema.v2.core.Individual;
+import org.phenopackets.schema.v2.core.OntologyClass;
 import org.phenopackets.schema.v2.core.Sex;
 import org.phenopackets.schema.v2.core.VitalStatus;
 import org.springframework.jdbc.core.JdbcTemplate;
@@ -11,80 +9,169 @@ import org.springframework.stereotype.Component;
 
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.time.Instant;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 import java.util.Optional;
 
 @Component
 public class IndividualDao {
 
+    /**
+     * The death columns are aggregated rather than grouped by, so that a person with more than one death record still
+     * gets a single row.
+     */
+    private static final String SELECT_INDIVIDUALS = "SELECT p.person_id::text as id,\n" +
+            "        null as alternate_ids,\n" +
+            "       p.birth_datetime as date_of_birth,\n" +
+            "       max(vo.visit_start_date) as time_at_last_encounter,\n" +
+            "       (case when d.person_id is null then 0 else 2 end) as vital_status,\n" +
+            "       max(d.death_datetime) as time_of_death,\n" +
+            "       max(d.cause_concept_id) as cause_of_death_concept_id,\n" +
+            "       (case when p.gender_concept_id is null then 0\n" +
+            "             when p.gender_concept_id = 8532 then 1\n" +
+            "             when p.gender_concept_id = 8507 then 2\n" +
+            "             else 3 end) as sex,\n" +
+            "       null as karyotypic_sex,\n" +
+            "       null as gender,\n" +
+            "    'NCBITaxon:9606' as taxonomy_id,\n" +
+            "    'human' as taxonomy_label\n" +
+            "FROM person p\n" +
+            "    LEFT JOIN visit_occurrence vo on vo.person_id = p.person_id\n" +
+            "    LEFT JOIN death d on d.person_id = p.person_id\n" +
+            "%s\n" +
+            "GROUP BY p.person_id, p.birth_datetime, vital_status, sex";
+
+    static final String SELECT_PERSON_INDIVIDUAL = String.format(SELECT_INDIVIDUALS, "WHERE p.person_id = ?");
+
+    static final String SELECT_BATCH_INDIVIDUALS = String.format(SELECT_INDIVIDUALS, "WHERE p.person_id = ANY(?)") + "\nORDER BY p.person_id";
+
+    static final String SELECT_PERSON_IDS = "SELECT p.person_id FROM person p WHERE p.person_id > ? AND p.person_id <= ? ORDER BY p.person_id LIMIT ?";
+
+    private static final String[] CONCEPT_COLUMNS = {"cause_of_death_concept_id"};
+
     private final JdbcTemplate jdbcTemplate;
+    private final ConceptCache conceptCache;
+    private final MessageInterner messageInterner;
+    private final QueryMetrics.Query individualMetrics;
+    private final QueryMetrics.Query individualBatchMetrics;
+    private final Routing routing;
 
-    public IndividualDao(JdbcTemplate jdbcTemplate) {
+    public IndividualDao(JdbcTemplate jdbcTemplate, ConceptCache conceptCache, MessageInterner messageInterner, QueryMetrics queryMetrics,
+                         Routing routing) {
         this.jdbcTemplate = jdbcTemplate;
+        this.routing = routing;
+        this.conceptCache = conceptCache;
+        this.messageInterner = messageInterner;
+        this.individualMetrics = queryMetrics.query("individuals", false);
+        this.individualBatchMetrics = queryMetrics.query("individuals", true);
     }
 
     public Optional<Individual> getIndividual(int personId) {
+        List<Individual> individuals = PersonQueries.queryForList(jdbcTemplate, PersonQueries.personIdStatement(SELECT_PERSON_INDIVIDUAL, personId), individualMetrics, conceptCache, this::individualRowMapper, CONCEPT_COLUMNS);
+        return individuals.stream().findFirst();
+    }
 
-        String query = "SELECT p.person_id::text as id,\n" +
-                "        null as alternate_ids,\n" +
-                "       p.birth_datetime as date_of_birth,\n" +
-                "       max(vo.visit_start_date) as time_at_last_encounter,\n" +
-                "       (case when d.person_id is null then 0 else 2 end) as vital_status,\n" +
-                "       (case when p.gender_concept_id is null then 0\n" +
-                "             when p.gender_concept_id = 8532 then 1\n" +
-                "             when p.gender_concept_id = 8507 then 2\n" +
-                "             else 3 end) as sex,\n" +
-                "       null as karyotypic_sex,\n" +
-                "       null as gender,\n" +
-                "    'NCBITaxon:9606' as taxonomy_id,\n" +
-                "    'human' as taxonomy_label\n" +
-                "FROM person p\n" +
-                "    LEFT JOIN visit_occurrence vo on vo.person_id = p.person_id\n" +
-                "    LEFT JOIN death d on d.person_id = p.person_id\n" +
-                "WHERE p.person_id = ?" +
-                "GROUP BY p.person_id, p.birth_datetime, vital_status, sex";
-
-        var individual = jdbcTemplate.queryForObject(query, this::mapRowToIndividual, personId);
-        return individual == null ? Optional.empty() : Optional.of(individual);
+    /**
+     * Returns the individuals for a batch of persons in person_id order, each of whom has a single row.
+     */
+    public PersonRows<Individual> getIndividuals(Collection<Integer> personIds) {
+        return PersonQueries.queryGroupedByPerson(jdbcTemplate, PersonQueries.personIdsStatement(SELECT_BATCH_INDIVIDUALS, personIds), individualBatchMetrics, "id", conceptCache, this::individualRowMapper, CONCEPT_COLUMNS);
     }
 
-    private Individual mapRowToIndividual(ResultSet rs, int rowNum) throws SQLException {
+    /**
+     * Maps the result of {@link #SELECT_PERSON_INDIVIDUAL}, which has at most one row.
+     */
+    Optional<Individual> mapIndividual(ResultSet resultSet) throws SQLException {
+        return mapIndividuals(resultSet).stream().findFirst();
+    }
+
+    /**
+     * Maps a result with the columns of {@link #SELECT_INDIVIDUALS}, one individual per row.
+     */
+    List<Individual> mapIndividuals(ResultSet resultSet) throws SQLException {
+        return PersonQueries.mapRows(resultSet, conceptCache, this::individualRowMapper, CONCEPT_COLUMNS);
+    }
+
+    /**
+     * Returns up to limit person_ids greater than afterPersonId and no greater than toPersonId, in ascending order.
+     * Used to page through the person table by keyset rather than by offset.
+     * <p>
+     * When the persons are sharded, the shards are read in person_id order until there are enough, so that a page only
+     * spans two shards where it crosses from one to the next.
+     */
+    public List<Integer> getPersonIds(int afterPersonId, int toPersonId, int limit) {
+        if (!routing.isSharded()) {
+            return jdbcTemplate.queryForList(SELECT_PERSON_IDS, Integer.class, afterPersonId, toPersonId, limit);
+        }
+        List<Integer> personIds = new ArrayList<>();
+        if (afterPersonId >= toPersonId) {
+            return personIds;
+        }
+        for (String shard : routing.shardsBetween(afterPersonId + 1, toPersonId)) {
+            try (Routing.Scope ignored = Routing.bind(shard)) {
+                personIds.addAll(jdbcTemplate.queryForList(SELECT_PERSON_IDS, Integer.class, afterPersonId, toPersonId, limit - personIds.size()));
+            }
+            if (personIds.size() == limit) {
+                break;
+            }
+        }
+        return personIds;
+    }
+
+    private RowMapperFactory.RowMapper<Individual> individualRowMapper(ResultSet resultSet, ConceptCache.Lookup concepts) throws SQLException {
+        Columns columns = new Columns(resultSet, concepts);
+        return row -> mapRowToIndividual(row, columns);
+    }
+
+    private Individual mapRowToIndividual(ResultRow row, Columns columns) throws SQLException {
         Individual.Builder builder = Individual.newBuilder();
 
-        builder.setId(rs.getString("id"));
-        Instant dateOfBirth = rs.getTimestamp("date_of_birth").toInstant();
-        builder.setDateOfBirth(Timestamp.newBuilder().setSeconds(dateOfBirth.getEpochSecond()).setNanos(dateOfBirth.getNano()).build());
-        builder.setSex(Sex.forNumber(rs.getInt("sex")));
+        builder.setId(row.getString(columns.id));
+        builder.setDateOfBirth(messageInterner.timestamp(row.getObject(columns.dateOfBirth, LocalDateTime.class)));
+        builder.setSex(Sex.forNumber(row.getInt(columns.sex)));
 
-        if (rs.getInt("vital_status") > 0) {
-            VitalStatus vitalStatus = getVitalStatus(rs.getInt("id"));
-            builder.setVitalStatus(vitalStatus);
+        if (row.getInt(columns.vitalStatus) > 0) {
+            builder.setVitalStatus(mapRowToVitalStatus(row, columns));
         }
 
         return builder.build();
     }
 
-    private VitalStatus getVitalStatus(int personId) {
-            String query = "SELECT d.person_id,\n" +
-                    "       (case when d.person_id is null then 0 else 2 end) as vital_status,\n" +
-                    "       d.death_datetime as time_of_death,\n" +
-                    "       (case when c.concept_code is null then null else concat(c.vocabulary_id,':',c.concept_code) end) as cause_of_death_id,\n" +
-                    "       c.concept_name as cause_of_death_label\n" +
-                    "FROM person p\n" +
-                    "         LEFT JOIN death d on d.person_id = p.person_id\n" +
-                    "         LEFT JOIN condition_occurrence co on co.person_id = p.person_id and co.condition_concept_id = d.cause_concept_id\n" +
-                    "         LEFT JOIN concept c on c.concept_id = d.cause_concept_id\n" +
-                    "WHERE d.person_id = ?" +
-                    "GROUP BY d.person_id, vital_status, time_of_death, cause_of_death_id, cause_of_death_label\n"
-                    ;
-        return jdbcTemplate.queryForObject(query, this::mapRowToVitalStatus, personId);
+    private VitalStatus mapRowToVitalStatus(ResultRow row, Columns columns) throws SQLException {
+        VitalStatus.Builder builder = VitalStatus.newBuilder()
+                .setStatus(VitalStatus.Status.forNumber(row.getInt(columns.vitalStatus)));
+        LocalDateTime timeOfDeath = row.getObject(columns.timeOfDeath, LocalDateTime.class);
+        if (timeOfDeath != null) {
+            builder.setTimeOfDeath(messageInterner.timeElement(timeOfDeath));
+        }
+        OntologyClass causeOfDeath = columns.causeOfDeath.get(row);
+        if (causeOfDeath != null) {
+            builder.setCauseOfDeath(causeOfDeath);
+        }
+        return builder.build();
     }
 
-    private VitalStatus mapRowToVitalStatus(ResultSet rs, int i) throws SQLException {
-        return VitalStatus.newBuilder()
-                .setStatus(VitalStatus.Status.forNumber(rs.getInt("vital_status")))
-                .setTimeOfDeath(TimeElements.timestamp(rs.getTimestamp("time_of_death").toInstant()))
-                .setCauseOfDeath(OntologyClassBuilder.ontologyClass(rs.getString("cause_of_death_id"), rs.getString("cause_of_death_label")))
-                .build();
+    /**
+     * Indexes of the columns read by {@link #mapRowToIndividual(ResultRow, Columns)}, found once per result set.
+     */
+    private static final class Columns {
+
+        private final int id;
+        private final int dateOfBirth;
+        private final int sex;
+        private final int vitalStatus;
+        private final int timeOfDeath;
+        private final ConceptColumn causeOfDeath;
+
+        private Columns(ResultSet resultSet, ConceptCache.Lookup concepts) throws SQLException {
+            id = resultSet.findColumn("id");
+            dateOfBirth = resultSet.findColumn("date_of_birth");
+            sex = resultSet.findColumn("sex");
+            vitalStatus = resultSet.findColumn("vital_status");
+            timeOfDeath = resultSet.findColumn("time_of_death");
+            causeOfDeath = ConceptColumn.conceptId(resultSet, "cause_of_death_concept_id", concepts);
+        }
     }
 }
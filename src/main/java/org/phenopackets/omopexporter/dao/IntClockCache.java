@@ -0,0 +1,180 @@
+package org.phenopackets.omopexporter.dao;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * A size-bounded cache from primitive int keys to values, avoiding the boxing of an {@code Map<Integer, V>}. Entries
+ * are held in an open-addressed table with linear probing which is never resized. Once the cache is full, inserting a
+ * new entry evicts an older one using the CLOCK approximation of LRU, i.e. entries which have been read since the clock
+ * hand last passed them get a second chance.
+ * <p>
+ * Reads are optimistic and take no lock unless they race with a write, so concurrent readers do not contend.
+ */
+class IntClockCache<V> {
+
+    private final int maxSize;
+    private final int mask;
+    private final int shift;
+    private final int[] keys;
+    private final Object[] values;
+    private final boolean[] referenced;
+    private final StampedLock lock = new StampedLock();
+    private int size;
+    private int hand;
+
+    IntClockCache(int maxSize) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("maxSize must be positive but was " + maxSize);
+        }
+        this.maxSize = maxSize;
+        // keep the table at most half full so that probe sequences stay short
+        int capacity = Integer.highestOneBit(Math.max(2, maxSize) * 2 - 1) << 1;
+        this.mask = capacity - 1;
+        this.shift = Integer.numberOfLeadingZeros(capacity) + 1;
+        this.keys = new int[capacity];
+        this.values = new Object[capacity];
+        this.referenced = new boolean[capacity];
+    }
+
+    /**
+     * Returns the value for the key or null if it is not cached.
+     */
+    V get(int key) {
+        long stamp = lock.tryOptimisticRead();
+        V value = find(key);
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                value = find(key);
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        return value;
+    }
+
+    boolean containsKey(int key) {
+        return get(key) != null;
+    }
+
+    void put(int key, V value) {
+        if (value == null) {
+            throw new NullPointerException("value");
+        }
+        long stamp = lock.writeLock();
+        try {
+            int slot = slotOf(key);
+            if (values[slot] != null) {
+                values[slot] = value;
+                referenced[slot] = true;
+                return;
+            }
+            if (size == maxSize) {
+                evictOne();
+                slot = slotOf(key);
+            }
+            keys[slot] = key;
+            values[slot] = value;
+            referenced[slot] = false;
+            size++;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    void clear() {
+        long stamp = lock.writeLock();
+        try {
+            Arrays.fill(values, null);
+            Arrays.fill(referenced, false);
+            size = 0;
+            hand = 0;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    int size() {
+        long stamp = lock.readLock();
+        try {
+            return size;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private V find(int key) {
+        // bounded so that an optimistic read racing with a write cannot spin forever
+        for (int i = 0, slot = hash(key); i <= mask; i++, slot = (slot + 1) & mask) {
+            Object value = values[slot];
+            if (value == null) {
+                return null;
+            }
+            if (keys[slot] == key) {
+                // a lost update here only costs the entry its second chance
+                referenced[slot] = true;
+                return (V) value;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the slot holding the key, or the empty slot at which it should be inserted.
+     */
+    private int slotOf(int key) {
+        int slot = hash(key);
+        while (values[slot] != null && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void evictOne() {
+        while (true) {
+            int slot = hand;
+            hand = (hand + 1) & mask;
+            if (values[slot] != null) {
+                if (referenced[slot]) {
+                    referenced[slot] = false;
+                } else {
+                    remove(slot);
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Empties the slot and shifts any later entries of the same probe run back, so that lookups never stop early at a
+     * gap (backward shift deletion).
+     */
+    private void remove(int slot) {
+        values[slot] = null;
+        referenced[slot] = false;
+        size--;
+        int gap = slot;
+        int next = (gap + 1) & mask;
+        while (values[next] != null) {
+            int home = hash(keys[next]);
+            // move the entry into the gap unless its home slot lies cyclically within (gap, next]
+            boolean homeBetween = gap <= next ? gap < home && home <= next : gap < home || home <= next;
+            if (!homeBetween) {
+                keys[gap] = keys[next];
+                values[gap] = values[next];
+                referenced[gap] = referenced[next];
+                values[next] = null;
+                referenced[next] = false;
+                gap = next;
+            }
+            next = (next + 1) & mask;
+        }
+    }
+
+    private int hash(int key) {
+        // Fibonacci hashing spreads the sequential ids which OMOP concept ids tend to be
+        return (key * 0x9E3779B9) >>> shift;
+    }
+}
@@ -2,77 +2,293 @@ package org.phenopackets.omopexporter.dao;
 
 import org.phenopackets.phenotools.builder.builders.*;
 import org.phenopackets.schema.v2.core.*;
+import org.springframework.jdbc.core.ConnectionCallback;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.stereotype.Component;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.List;
 
 @Component
 public class MeasurementDao {
 
+    // OMOP only requires the date of a measurement, so its time is midnight of that date where it has no datetime
+    private static final String MEASUREMENT_DATETIME = "coalesce(m.measurement_datetime, m.measurement_date)";
+
+    private static final String SELECT_MEASUREMENTS = "select m.person_id,\n" +
+            "       m.measurement_concept_id,\n" +
+            "    -- value_as_number maps to a phenopacket Value\n" +
+            "       m.value_as_number,\n" +
+            "    -- value_as_concept_id and value_label map to a phenopacket OntologyClass\n" +
+            "       m.value_as_concept_id,\n" +
+            "       m.value_source_value as value_label,\n" +
+            "       " + MEASUREMENT_DATETIME + " as measurement_datetime,\n" +
+            "    -- phenopacket Quantity\n" +
+            "       m.unit_concept_id,\n" +
+            "    -- if range_low and range_high are not null, create a ReferenceRange\n" +
+            "       m.range_low,\n" +
+            "       m.range_high,\n" +
+            "       m.unit_source_value,\n" +
+            "       m.visit_occurrence_id,\n" +
+            "       row_number() over (partition by m.person_id, " + MEASUREMENT_DATETIME + ", m.visit_occurrence_id)\n" +
+            "FROM measurement m\n";
+
+    static final String SELECT_PERSON_MEASUREMENTS = selectPersonMeasurements(DateRange.ALL);
+
+    private static final String SELECT_STAGED_MEASUREMENTS = "select m.person_id,\n" +
+            "       m.assay_curie,\n" +
+            "       m.assay_label,\n" +
+            "       m.value_as_number,\n" +
+            "       m.value_concept_curie,\n" +
+            "       m.value_concept_label,\n" +
+            "       m.value_label,\n" +
+            "       m.measurement_datetime,\n" +
+            "       m.unit_curie,\n" +
+            "       m.unit_label,\n" +
+            "       m.unit_source_value\n" +
+            "FROM omop_exporter_stage_measurement m\n";
+
+    // the concepts referenced by a person's measurements, which are loaded before their rows are streamed
+    private static final String SELECT_MEASUREMENT_CONCEPTS = "select distinct c.concept_id\n" +
+            "FROM measurement m\n" +
+            "CROSS JOIN LATERAL (values (m.measurement_concept_id), (m.value_as_concept_id), (m.unit_concept_id)) as c(concept_id)\n" +
+            "WHERE c.concept_id IS NOT NULL AND m.person_id = ?";
+
+    private static final String[] CONCEPT_COLUMNS = {"measurement_concept_id", "value_as_concept_id", "unit_concept_id"};
+
     private final JdbcTemplate jdbcTemplate;
+    private final ConceptCache conceptCache;
+    private final MessageInterner messageInterner;
+    private final StagingTables stagingTables;
+    private final QueryMetrics.Query measurementMetrics;
+    private final QueryMetrics.Query measurementBatchMetrics;
+    private final QueryMetrics.Query measurementStreamMetrics;
+    private final int streamFetchSize;
+    private final Duration streamTimeout;
 
-    public MeasurementDao(JdbcTemplate jdbcTemplate) {
+    public MeasurementDao(JdbcTemplate jdbcTemplate, ConceptCache conceptCache, MessageInterner messageInterner, QueryMetrics queryMetrics,
+                          StagingTables stagingTables,
+                          @org.springframework.beans.factory.annotation.Value("${omop-exporter.stream.fetch-size:1000}") int streamFetchSize,
+                          @org.springframework.beans.factory.annotation.Value("${omop-exporter.stream.timeout:30s}") Duration streamTimeout) {
         this.jdbcTemplate = jdbcTemplate;
+        this.conceptCache = conceptCache;
+        this.messageInterner = messageInterner;
+        this.stagingTables = stagingTables;
+        this.measurementMetrics = queryMetrics.query("measurements", false);
+        this.measurementBatchMetrics = queryMetrics.query("measurements", true);
+        this.measurementStreamMetrics = queryMetrics.query("measurements", "stream");
+        this.streamFetchSize = streamFetchSize;
+        this.streamTimeout = streamTimeout;
+    }
+
+    static String selectPersonMeasurements(DateRange dateRange) {
+        return SELECT_MEASUREMENTS + "WHERE m.person_id = ?" + dateRange.predicate(MEASUREMENT_DATETIME);
+    }
+
+    static String selectBatchMeasurements(DateRange dateRange) {
+        return SELECT_MEASUREMENTS + "WHERE m.person_id = ANY(?)" + dateRange.predicate(MEASUREMENT_DATETIME) + "\n" +
+                "ORDER BY m.person_id";
+    }
+
+    static String selectPersonMeasurementConcepts(DateRange dateRange) {
+        return SELECT_MEASUREMENT_CONCEPTS + dateRange.predicate(MEASUREMENT_DATETIME);
+    }
+
+    static String selectStagedPersonMeasurements(DateRange dateRange) {
+        return SELECT_STAGED_MEASUREMENTS + "WHERE m.person_id = ?" + dateRange.predicate("m.measurement_datetime");
     }
 
-    public List<Measurement> getMeasurements(int personId) {
-        String query = "select m.person_id,\n" +
-                "       m.measurement_concept_id,\n" +
-                "       concat(c.vocabulary_id,':',c.concept_code) as assay_id,\n" +
-                "       c.concept_name as assay_label,\n" +
-                "    -- value_as_number maps to a phenopacket Value\n" +
-                "       m.value_as_number,\n" +
-                "    -- value_id and value_label map to a phenopacket OntologyClass\n" +
-                "       concat(c3.vocabulary_id,':',c3.concept_code) as value_id,\n" +
-                "       m.value_source_value as value_label,\n" +
-                "       m.measurement_datetime,\n" +
-                "    -- phenopacket Quantity\n" +
-                "       concat(c2.vocabulary_id,':',c2.concept_code) as unit_id,\n" +
-                "       c2.concept_name as unit_label,\n" +
-                "    -- if range_low and range_high are not null, create a ReferenceRange\n" +
-                "       m.range_low,\n" +
-                "       m.range_high,\n" +
-                "       c2.concept_id,\n" +
-                "       m.unit_source_value,\n" +
-                "       m.visit_occurrence_id,\n" +
-                "/*        c3.concept_name as procedure, */\n" +
-                "       row_number() over (partition by m.person_id, m.measurement_datetime, m.visit_occurrence_id)\n" +
-                "FROM measurement m\n" +
-                "         left join concept c on c.concept_id = m.measurement_concept_id\n" +
-                "         left join concept c2 on c2.concept_id = m.unit_concept_id\n" +
-                "         left join concept c3 on c3.concept_id = m.value_as_concept_id\n" +
-                "WHERE m.person_id = ?";
-
-        return jdbcTemplate.query(query, this::mapRowToMeasurement, personId);
-    }
-
-    private Measurement mapRowToMeasurement(ResultSet resultSet, int i) throws SQLException {
-        OntologyClass assay = OntologyClassBuilder.ontologyClass(resultSet.getString("assay_id"), resultSet.getString("assay_label"));
-        double valueAsNumber = resultSet.getDouble("value_as_number");
+    static String selectStagedBatchMeasurements(DateRange dateRange) {
+        return SELECT_STAGED_MEASUREMENTS + "WHERE m.person_id = ANY(?)" + dateRange.predicate("m.measurement_datetime") + "\n" +
+                "ORDER BY m.person_id";
+    }
+
+    public List<Measurement> getMeasurements(int personId, DateRange dateRange) {
+        boolean staged = stagingTables.isReadable();
+        String query = staged ? selectStagedPersonMeasurements(dateRange) : selectPersonMeasurements(dateRange);
+        return PersonQueries.queryForList(jdbcTemplate, PersonQueries.personIdStatement(query, personId, dateRange), measurementMetrics, conceptCache,
+                (resultSet, concepts) -> measurementRowMapper(resultSet, concepts, staged), conceptColumns(staged));
+    }
+
+    /**
+     * Returns the measurements for a batch of persons in person_id order, using a single query.
+     */
+    public PersonRows<Measurement> getMeasurements(Collection<Integer> personIds, DateRange dateRange) {
+        boolean staged = stagingTables.isReadable();
+        String query = staged ? selectStagedBatchMeasurements(dateRange) : selectBatchMeasurements(dateRange);
+        return PersonQueries.queryGroupedByPerson(jdbcTemplate, PersonQueries.personIdsStatement(query, personIds, dateRange), measurementBatchMetrics, "person_id", conceptCache,
+                (resultSet, concepts) -> measurementRowMapper(resultSet, concepts, staged), conceptColumns(staged));
+    }
+
+    /**
+     * Passes the measurements of a person to the sink one at a time, as they are read from a server-side cursor which
+     * fetches {@code omop-exporter.stream.fetch-size} rows at a time, so that only that many rows are held in memory
+     * however many measurements the person has. Returns the number of measurements passed to the sink.
+     * <p>
+     * The concepts referenced by the measurements are selected first by a separate query on the same connection, as
+     * the cursor can only be read through once, unless the measurements are read from the staging table.
+     * <p>
+     * The cursor is read in a read-only transaction in which each fetch, and each wait between fetches while the sink
+     * writes the rows already fetched, is limited to {@code omop-exporter.stream.timeout}. A client which stops reading
+     * the response then has its session ended by Postgres rather than holding the connection, and the snapshot of the
+     * transaction, for as long as it keeps the response open.
+     */
+    public int streamMeasurements(int personId, DateRange dateRange, MeasurementSink sink) throws IOException {
+        boolean staged = stagingTables.isReadable();
+        String query = staged ? selectStagedPersonMeasurements(dateRange) : selectPersonMeasurements(dateRange);
+        try {
+            return jdbcTemplate.execute((ConnectionCallback<Integer>) connection -> {
+                ConceptCache.Lookup concepts = conceptCache.lookup(connection);
+                if (!staged) {
+                    concepts.load(selectConceptIds(connection, personId, dateRange));
+                }
+                boolean autoCommit = connection.getAutoCommit();
+                boolean readOnly = connection.isReadOnly();
+                // the Postgres driver only fetches rows in chunks from a cursor inside a transaction
+                connection.setAutoCommit(false);
+                connection.setReadOnly(true);
+                try (PreparedStatement ps = connection.prepareStatement(query)) {
+                    setStreamTimeouts(connection);
+                    ps.setFetchSize(streamFetchSize);
+                    ps.setInt(1, personId);
+                    dateRange.bind(ps, 2);
+                    long start = System.nanoTime();
+                    try (ResultSet resultSet = ps.executeQuery()) {
+                        long mappingStart = System.nanoTime();
+                        RowMapperFactory.RowMapper<Measurement> rowMapper = measurementRowMapper(resultSet, concepts, staged);
+                        ResultRow row = ResultRow.of(resultSet);
+                        int rowNum = 0;
+                        while (resultSet.next()) {
+                            sink.accept(rowMapper.mapRow(row));
+                            rowNum++;
+                        }
+                        measurementStreamMetrics.record(mappingStart - start, System.nanoTime() - mappingStart, rowNum);
+                        return rowNum;
+                    } catch (SQLException | IOException | RuntimeException e) {
+                        measurementStreamMetrics.recordFailure(System.nanoTime() - start);
+                        throw e;
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                } finally {
+                    // nothing has been written, and rolling back closes the cursor if the sink failed part way through
+                    connection.rollback();
+                    connection.setReadOnly(readOnly);
+                    connection.setAutoCommit(autoCommit);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Sets the timeouts of the streaming transaction, which are undone when it is rolled back.
+     */
+    private void setStreamTimeouts(Connection connection) throws SQLException {
+        long millis = Math.max(1, streamTimeout.toMillis());
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("SET LOCAL statement_timeout = " + millis);
+            statement.execute("SET LOCAL idle_in_transaction_session_timeout = " + millis);
+        }
+    }
+
+    private static int[] selectConceptIds(Connection connection, int personId, DateRange dateRange) throws SQLException {
+        try (PreparedStatement ps = PersonQueries.personIdStatement(selectPersonMeasurementConcepts(dateRange), personId, dateRange).createPreparedStatement(connection);
+             ResultSet resultSet = ps.executeQuery()) {
+            int[] conceptIds = new int[16];
+            int count = 0;
+            while (resultSet.next()) {
+                if (count == conceptIds.length) {
+                    conceptIds = Arrays.copyOf(conceptIds, count * 2);
+                }
+                conceptIds[count++] = resultSet.getInt(1);
+            }
+            return Arrays.copyOf(conceptIds, count);
+        }
+    }
+
+    /**
+     * Maps the result of {@link #SELECT_PERSON_MEASUREMENTS}, or of {@link #selectStagedPersonMeasurements(DateRange)}
+     * if staged is true.
+     */
+    List<Measurement> mapMeasurements(ResultSet resultSet, boolean staged) throws SQLException {
+        return PersonQueries.mapRows(resultSet, conceptCache, (rs, concepts) -> measurementRowMapper(rs, concepts, staged), conceptColumns(staged));
+    }
+
+    private static String[] conceptColumns(boolean staged) {
+        return staged ? PersonQueries.NO_CONCEPT_COLUMNS : CONCEPT_COLUMNS;
+    }
+
+    private RowMapperFactory.RowMapper<Measurement> measurementRowMapper(ResultSet resultSet, ConceptCache.Lookup concepts, boolean staged) throws SQLException {
+        Columns columns = new Columns(resultSet, staged, concepts, messageInterner);
+        return row -> mapRowToMeasurement(row, columns);
+    }
+
+    private Measurement mapRowToMeasurement(ResultRow row, Columns columns) throws SQLException {
+        OntologyClass assay = columns.assay.get(row);
+        double valueAsNumber = row.getDouble(columns.valueAsNumber);
         Value value;
         if (valueAsNumber != 0) {
-            String unitLabel = resultSet.getString("unit_label");
-            if (unitLabel != null && unitLabel.equals("No matching concept")) {
+            OntologyClass unit = columns.unit.get(row);
+            if (unit == null || unit.getLabel().equals("No matching concept")) {
                 // hack to try and add in something meaningful
-                unitLabel = resultSet.getString("unit_source_value");
+                String unitSourceValue = row.getString(columns.unitSourceValue);
+                unit = messageInterner.ontologyClass(unit == null ? "" : unit.getId(), unitSourceValue == null ? "" : unitSourceValue);
             }
-            Quantity quantity = QuantityBuilder.quantity(resultSet.getString("unit_id"), unitLabel, valueAsNumber);
-            value = ValueBuilder.value(quantity);
+            value = messageInterner.quantityValue(unit, valueAsNumber);
         } else {
-            String valueId = resultSet.getString("value_id");
-            String valueLabel = resultSet.getString("value_label");
-            OntologyClass ontologyClass = OntologyClassBuilder.ontologyClass(valueId == null ? "" : valueId, valueLabel == null ? "" : valueLabel);
-            value = ValueBuilder.value(ontologyClass);
+            OntologyClass valueConcept = columns.valueConcept.get(row);
+            String valueLabel = row.getString(columns.valueLabel);
+            value = messageInterner.ontologyClassValue(valueConcept == null ? "" : valueConcept.getId(), valueLabel == null ? "" : valueLabel);
         }
-        TimeElement timeObserved = TimeElements.timestamp(resultSet.getTimestamp("measurement_datetime").toInstant());
+        TimeElement timeObserved = messageInterner.timeElement(row.getObject(columns.measurementDatetime, LocalDateTime.class));
         return Measurement.newBuilder()
-                .setAssay(assay)
+                .setAssay(assay == null ? ConceptCache.NO_MATCHING_CONCEPT : assay)
                 .setValue(value)
                 .setTimeObserved(timeObserved)
                 .build();
     }
 
+    /**
+     * Receives streamed measurements, typically writing them to a response.
+     */
+    public interface MeasurementSink {
+
+        void accept(Measurement measurement) throws IOException;
+    }
+
+    /**
+     * Indexes of the columns read by {@link #mapRowToMeasurement(ResultRow, Columns)}, found once per result set.
+     */
+    private static final class Columns {
+
+        private final ConceptColumn assay;
+        private final int valueAsNumber;
+        private final ConceptColumn valueConcept;
+        private final int valueLabel;
+        private final int measurementDatetime;
+        private final ConceptColumn unit;
+        private final int unitSourceValue;
+
+        private Columns(ResultSet resultSet, boolean staged, ConceptCache.Lookup concepts, MessageInterner messageInterner) throws SQLException {
+            assay = ConceptColumn.find(resultSet, staged, "measurement_concept_id", "assay", concepts, messageInterner);
+            valueAsNumber = resultSet.findColumn("value_as_number");
+            valueConcept = ConceptColumn.find(resultSet, staged, "value_as_concept_id", "value_concept", concepts, messageInterner);
+            valueLabel = resultSet.findColumn("value_label");
+            measurementDatetime = resultSet.findColumn("measurement_datetime");
+            unit = ConceptColumn.find(resultSet, staged, "unit_concept_id", "unit", concepts, messageInterner);
+            unitSourceValue = resultSet.findColumn("unit_source_value");
+        }
+    }
 }
@@ -7,8 +7,10 @@ import org.springframework.stereotype.Component;
 
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 
 @Component
@@ -16,21 +18,161 @@ public class MedicalActionDao {
 
     private static final OntologyClass NO_CONCEPT = OntologyClassBuilder.ontologyClass("None:No matching concept", "No matching concept");
 
+    private static final OntologyClass NO_UNIT = OntologyClassBuilder.ontologyClass("", "");
+
+    private static final String SELECT_TREATMENTS = "SELECT de.person_id,\n" +
+            "       de.drug_concept_id as agent_concept_id,\n" +
+            "       de.route_concept_id,\n" +
+            "       ds.amount_unit_concept_id as quantity_unit_concept_id,\n" +
+            "       ds.amount_value as quantity_value,\n" +
+            "       de.drug_exposure_start_date as interval_start,\n" +
+            "       de.drug_exposure_start_date + de.days_supply as interval_end\n" +
+            "FROM drug_exposure de \n" +
+            "LEFT JOIN drug_strength ds on ds.drug_concept_id = de.drug_concept_id\n";
+
+    // the order in which the TreatmentConsolidator can merge the most treatments in a single pass
+    private static final String TREATMENT_ORDER = "de.drug_concept_id, de.route_concept_id, ds.amount_unit_concept_id, ds.amount_value, de.drug_exposure_start_date";
+
+    static final String SELECT_PERSON_TREATMENTS = selectPersonTreatments(DateRange.ALL);
+
+    private static final String SELECT_STAGED_TREATMENTS = "SELECT de.person_id,\n" +
+            "       de.agent_curie,\n" +
+            "       de.agent_label,\n" +
+            "       de.route_curie,\n" +
+            "       de.route_label,\n" +
+            "       de.quantity_unit_curie,\n" +
+            "       de.quantity_unit_label,\n" +
+            "       de.quantity_value,\n" +
+            "       de.interval_start,\n" +
+            "       de.interval_end\n" +
+            "FROM omop_exporter_stage_drug_exposure de\n";
+
+    private static final String STAGED_TREATMENT_ORDER = "de.agent_curie, de.route_curie, de.quantity_unit_curie, de.quantity_value, de.interval_start";
+
+    private static final String[] TREATMENT_CONCEPT_COLUMNS = {"agent_concept_id", "route_concept_id", "quantity_unit_concept_id"};
+
+    private static final String SELECT_PROCEDURES = "select po.person_id as id,\n" +
+            "       po.procedure_concept_id,\n" +
+            "       cr.concept_id_2 as body_site_concept_id,\n" +
+            "       date_part('year',po.procedure_datetime) - date_part('year',p.birth_datetime) as performed_age,\n" +
+            "       po.procedure_datetime as performed_datetime\n" +
+            "from procedure_occurrence po\n" +
+            "left join person p on p.person_id = po.person_id\n" +
+            "left join concept_relationship cr on cr.concept_id_1 = po.procedure_concept_id and cr.relationship_id = 'Has proc site'\n";
+
+    static final String SELECT_PERSON_PROCEDURES = selectPersonProcedures(DateRange.ALL);
+
+    private static final String SELECT_STAGED_PROCEDURES = "select po.person_id as id,\n" +
+            "       po.procedure_curie,\n" +
+            "       po.procedure_label,\n" +
+            "       po.body_site_curie,\n" +
+            "       po.body_site_label,\n" +
+            "       po.performed_datetime\n" +
+            "from omop_exporter_stage_procedure_occurrence po\n";
+
+    private static final String[] PROCEDURE_CONCEPT_COLUMNS = {"procedure_concept_id", "body_site_concept_id"};
+
     private final JdbcTemplate jdbcTemplate;
+    private final ConceptCache conceptCache;
+    private final MessageInterner messageInterner;
+    private final StagingTables stagingTables;
+    private final QueryMetrics.Query treatmentMetrics;
+    private final QueryMetrics.Query treatmentBatchMetrics;
+    private final QueryMetrics.Query procedureMetrics;
+    private final QueryMetrics.Query procedureBatchMetrics;
 
-    public MedicalActionDao(JdbcTemplate jdbcTemplate) {
+    public MedicalActionDao(JdbcTemplate jdbcTemplate, ConceptCache conceptCache, MessageInterner messageInterner, QueryMetrics queryMetrics, StagingTables stagingTables) {
         this.jdbcTemplate = jdbcTemplate;
+        this.conceptCache = conceptCache;
+        this.messageInterner = messageInterner;
+        this.stagingTables = stagingTables;
+        this.treatmentMetrics = queryMetrics.query("treatments", false);
+        this.treatmentBatchMetrics = queryMetrics.query("treatments", true);
+        this.procedureMetrics = queryMetrics.query("procedures", false);
+        this.procedureBatchMetrics = queryMetrics.query("procedures", true);
+    }
+
+    static String selectPersonTreatments(DateRange dateRange) {
+        return SELECT_TREATMENTS + "WHERE de.person_id = ?" + dateRange.predicate("de.drug_exposure_start_date") + "\n" +
+                "ORDER BY " + TREATMENT_ORDER;
+    }
+
+    static String selectPersonProcedures(DateRange dateRange) {
+        return SELECT_PROCEDURES + "where po.person_id = ?" + dateRange.predicate("po.procedure_datetime");
+    }
+
+    static String selectBatchTreatments(DateRange dateRange) {
+        return SELECT_TREATMENTS + "WHERE de.person_id = ANY(?)" + dateRange.predicate("de.drug_exposure_start_date") + "\n" +
+                "ORDER BY de.person_id, " + TREATMENT_ORDER;
+    }
+
+    static String selectBatchProcedures(DateRange dateRange) {
+        return SELECT_PROCEDURES + "where po.person_id = ANY(?)" + dateRange.predicate("po.procedure_datetime") + "\n" +
+                "order by po.person_id";
+    }
+
+    static String selectStagedPersonTreatments(DateRange dateRange) {
+        return SELECT_STAGED_TREATMENTS + "WHERE de.person_id = ?" + dateRange.predicate("de.interval_start") + "\n" +
+                "ORDER BY " + STAGED_TREATMENT_ORDER;
+    }
+
+    static String selectStagedPersonProcedures(DateRange dateRange) {
+        return SELECT_STAGED_PROCEDURES + "where po.person_id = ?" + dateRange.predicate("po.performed_datetime");
+    }
+
+    static String selectStagedBatchTreatments(DateRange dateRange) {
+        return SELECT_STAGED_TREATMENTS + "WHERE de.person_id = ANY(?)" + dateRange.predicate("de.interval_start") + "\n" +
+                "ORDER BY de.person_id, " + STAGED_TREATMENT_ORDER;
+    }
+
+    static String selectStagedBatchProcedures(DateRange dateRange) {
+        return SELECT_STAGED_PROCEDURES + "where po.person_id = ANY(?)" + dateRange.predicate("po.performed_datetime") + "\n" +
+                "order by po.person_id";
+    }
+
+    public List<MedicalAction> getMedicalActions(int personId, DateRange dateRange, boolean consolidateTreatments) {
+        return toMedicalActions(getTreatments(personId, dateRange), getProcedures(personId, dateRange), consolidateTreatments);
+    }
+
+    /**
+     * Returns the medical actions for a batch of persons in person_id order, using one treatment and one procedure
+     * query for the whole batch.
+     */
+    public PersonRows<MedicalAction> getMedicalActions(Collection<Integer> personIds, DateRange dateRange, boolean consolidateTreatments) {
+        return toMedicalActions(personIds, getTreatments(personIds, dateRange), getProcedures(personIds, dateRange), consolidateTreatments);
+    }
+
+    /**
+     * Combines the treatments and procedures of a batch of persons into their medical actions, walking both in
+     * person_id order.
+     */
+    public PersonRows<MedicalAction> toMedicalActions(Collection<Integer> personIds, PersonRows<Treatment> treatments, PersonRows<Procedure> procedures,
+                                                      boolean consolidateTreatments) {
+        PersonRows.Cursor<Treatment> treatmentCursor = treatments.cursor();
+        PersonRows.Cursor<Procedure> procedureCursor = procedures.cursor();
+        PersonRows.Builder<MedicalAction> medicalActions = new PersonRows.Builder<>();
+        for (int personId : PersonRows.ascending(personIds)) {
+            for (MedicalAction medicalAction : toMedicalActions(treatmentCursor.next(personId), procedureCursor.next(personId), consolidateTreatments)) {
+                medicalActions.add(personId, medicalAction);
+            }
+        }
+        return medicalActions.build();
     }
 
-    public List<MedicalAction> getMedicalActions(int personId) {
+    /**
+     * Combines the treatments and procedures of a person into their medical actions. Exposed so that callers can fetch
+     * the treatments and procedures concurrently. If consolidateTreatments is true, the treatments with the same agent,
+     * route and unit are merged into one by the {@link TreatmentConsolidator}.
+     */
+    public List<MedicalAction> toMedicalActions(List<Treatment> treatments, List<Procedure> procedures, boolean consolidateTreatments) {
         List<MedicalAction> medicalActions = new ArrayList<>();
-        List<Treatment> treatments = getTreatments(personId);
+        if (consolidateTreatments) {
+            treatments = TreatmentConsolidator.consolidate(treatments);
+        }
         for (Treatment treatment : treatments) {
-            // TODO: group all treatments with same agent and combine all the dose intervals?
             medicalActions.add(MedicalActionBuilder.treatment(treatment));
         }
 
-        List<Procedure> procedures = getProcedures(personId);
         for (Procedure procedure : procedures) {
             medicalActions.add(MedicalActionBuilder.procedure(procedure));
         }
@@ -38,73 +180,104 @@ public class MedicalActionDao {
         return List.copyOf(medicalActions);
     }
 
-    public List<Treatment> getTreatments(int personId) {
-        String query = "SELECT de.person_id,\n" +
-                "       concat(c.vocabulary_id, ':', c.concept_code) as agent_id,\n" +
-                "       c.concept_name as agent_label,\n" +
-                "       concat(c2.vocabulary_id, ':', c2.concept_code) as route_of_administration_id,\n" +
-                "       c2.concept_name as route_of_administration_label,\n" +
-                "       concat(c3.vocabulary_id, ':', c3.concept_code) as quantity_unit_id,\n" +
-                "       c3.concept_name as quantity_unit_label,\n" +
-                "       ds.amount_value as quantity_value,\n" +
-                "       de.drug_exposure_start_date as interval_start,\n" +
-                "       de.drug_exposure_start_date + de.days_supply as interval_end\n" +
-                "FROM drug_exposure de \n" +
-                "LEFT JOIN drug_strength ds on ds.drug_concept_id = de.drug_concept_id\n" +
-                "LEFT JOIN concept c on c.concept_id = de.drug_concept_id\n" +
-                "LEFT JOIN concept c2 on c2.concept_id = de.route_concept_id\n" +
-                "LEFT JOIN concept c3 on c3.concept_id = ds.amount_unit_concept_id\n" +
-                "LEFT JOIN concept c4 on c4.concept_id = de.drug_type_concept_id\n" +
-                "WHERE de.person_id = ?";
-        return jdbcTemplate.query(query, this::mapRowToTreatment, personId);
-    }
-
-    private Treatment mapRowToTreatment(ResultSet resultSet, int i) throws SQLException {
+    public List<Treatment> getTreatments(int personId, DateRange dateRange) {
+        boolean staged = stagingTables.isReadable();
+        String query = staged ? selectStagedPersonTreatments(dateRange) : selectPersonTreatments(dateRange);
+        return PersonQueries.queryForList(jdbcTemplate, PersonQueries.personIdStatement(query, personId, dateRange), treatmentMetrics, conceptCache,
+                (resultSet, concepts) -> treatmentRowMapper(resultSet, concepts, staged), treatmentConceptColumns(staged));
+    }
+
+    /**
+     * Returns the treatments for a batch of persons in person_id order, using a single query.
+     */
+    public PersonRows<Treatment> getTreatments(Collection<Integer> personIds, DateRange dateRange) {
+        boolean staged = stagingTables.isReadable();
+        String query = staged ? selectStagedBatchTreatments(dateRange) : selectBatchTreatments(dateRange);
+        return PersonQueries.queryGroupedByPerson(jdbcTemplate, PersonQueries.personIdsStatement(query, personIds, dateRange), treatmentBatchMetrics, "person_id", conceptCache,
+                (resultSet, concepts) -> treatmentRowMapper(resultSet, concepts, staged), treatmentConceptColumns(staged));
+    }
+
+    /**
+     * Maps the result of {@link #SELECT_PERSON_TREATMENTS}, or of {@link #selectStagedPersonTreatments(DateRange)} if
+     * staged is true.
+     */
+    List<Treatment> mapTreatments(ResultSet resultSet, boolean staged) throws SQLException {
+        return PersonQueries.mapRows(resultSet, conceptCache, (rs, concepts) -> treatmentRowMapper(rs, concepts, staged), treatmentConceptColumns(staged));
+    }
+
+    private static String[] treatmentConceptColumns(boolean staged) {
+        return staged ? PersonQueries.NO_CONCEPT_COLUMNS : TREATMENT_CONCEPT_COLUMNS;
+    }
+
+    private RowMapperFactory.RowMapper<Treatment> treatmentRowMapper(ResultSet resultSet, ConceptCache.Lookup concepts, boolean staged) throws SQLException {
+        TreatmentColumns columns = new TreatmentColumns(resultSet, staged, concepts, messageInterner);
+        return row -> mapRowToTreatment(row, columns);
+    }
+
+    private Treatment mapRowToTreatment(ResultRow row, TreatmentColumns columns) throws SQLException {
         Treatment.Builder builder = Treatment.newBuilder();
-        builder.setAgent(OntologyClassBuilder.ontologyClass(resultSet.getString("agent_id"), resultSet.getString("agent_label")));
-        builder.setRouteOfAdministration(OntologyClassBuilder.ontologyClass(resultSet.getString("route_of_administration_id"), resultSet.getString("route_of_administration_label")));
-        String quantityUnitId = resultSet.getString("quantity_unit_id");
-        String quantityUnitLabel = resultSet.getString("quantity_unit_label");
-        OntologyClass unit = OntologyClassBuilder.ontologyClass(quantityUnitId == null ? "" : quantityUnitId, quantityUnitLabel == null ? "" : quantityUnitLabel);
-        Quantity quantity = QuantityBuilder.quantity(unit, resultSet.getDouble("quantity_value"));
-        Instant intervalStart = resultSet.getTimestamp("interval_start").toInstant();
-        Instant intervalEnd = resultSet.getTimestamp("interval_end").toInstant();
-        TimeInterval timeInterval = TimeIntervalBuilder.timeInterval(TimestampBuilder.fromInstant(intervalStart), TimestampBuilder.fromInstant(intervalEnd));
+        OntologyClass agent = columns.agent.get(row);
+        builder.setAgent(agent == null ? ConceptCache.NO_MATCHING_CONCEPT : agent);
+        OntologyClass route = columns.route.get(row);
+        builder.setRouteOfAdministration(route == null ? ConceptCache.NO_MATCHING_CONCEPT : route);
+        OntologyClass unit = columns.quantityUnit.get(row);
+        if (unit == null) {
+            unit = NO_UNIT;
+        }
+        Quantity quantity = messageInterner.quantity(unit, row.getDouble(columns.quantityValue));
+        var intervalStart = messageInterner.timestamp(row.getObject(columns.intervalStart, LocalDate.class));
+        // an exposure without a days_supply has no end
+        LocalDate end = row.getObject(columns.intervalEnd, LocalDate.class);
+        TimeInterval timeInterval = end == null
+                ? TimeInterval.newBuilder().setStart(intervalStart).build()
+                : TimeIntervalBuilder.timeInterval(intervalStart, messageInterner.timestamp(end));
         builder.addDoseIntervals(DoseIntervalBuilder.doseInterval(quantity, NO_CONCEPT, timeInterval));
         return builder.build();
     }
 
-    public List<Procedure> getProcedures(int personId) {
-        String query = "select po.person_id as id,\n" +
-                "       concat(c.vocabulary_id, ':', c.concept_code) as procedure_code_id,\n" +
-                "       c.concept_name as procedure_code_label,\n" +
-                "       case when c2.concept_id is null then null\n" +
-                "       else concat(c2.vocabulary_id, ':', c2.concept_code) end as body_site_id,\n" +
-                "       c2.concept_name as body_site_label,\n" +
-                "       date_part('year',po.procedure_datetime) - date_part('year',p.birth_datetime) as performed_age,\n" +
-                "       po.procedure_datetime as performed_datetime\n" +
-                "from procedure_occurrence po\n" +
-                "left join concept c on c.concept_id = po.procedure_concept_id\n" +
-                "left join person p on p.person_id = po.person_id\n" +
-                "left join concept_relationship cr on cr.concept_id_1 = po.procedure_concept_id and cr.relationship_id = 'Has proc site'\n" +
-                "left join concept c2 on c2.concept_id = cr.concept_id_2\n" +
-                "where po.person_id = ?";
-        return jdbcTemplate.query(query, this::mapRowToProcedure, personId);
-    }
-
-    private Procedure mapRowToProcedure(ResultSet resultSet, int i) throws SQLException {
-        var codeId = resultSet.getString("procedure_code_id");
-        var codeLabel = resultSet.getString("procedure_code_label");
-        OntologyClass code = OntologyClassBuilder.ontologyClass(codeId, codeLabel);
-
-        var bodySiteId = resultSet.getString("body_site_id");
-        var bodySiteLabel = resultSet.getString("body_site_label");
-        OntologyClass bodySite = null;
-        if (bodySiteId != null && bodySiteLabel != null) {
-            bodySite = OntologyClassBuilder.ontologyClass(bodySiteId, bodySiteLabel);
+    public List<Procedure> getProcedures(int personId, DateRange dateRange) {
+        boolean staged = stagingTables.isReadable();
+        String query = staged ? selectStagedPersonProcedures(dateRange) : selectPersonProcedures(dateRange);
+        return PersonQueries.queryForList(jdbcTemplate, PersonQueries.personIdStatement(query, personId, dateRange), procedureMetrics, conceptCache,
+                (resultSet, concepts) -> procedureRowMapper(resultSet, concepts, staged), procedureConceptColumns(staged));
+    }
+
+    /**
+     * Returns the procedures for a batch of persons in person_id order, using a single query.
+     */
+    public PersonRows<Procedure> getProcedures(Collection<Integer> personIds, DateRange dateRange) {
+        boolean staged = stagingTables.isReadable();
+        String query = staged ? selectStagedBatchProcedures(dateRange) : selectBatchProcedures(dateRange);
+        return PersonQueries.queryGroupedByPerson(jdbcTemplate, PersonQueries.personIdsStatement(query, personIds, dateRange), procedureBatchMetrics, "id", conceptCache,
+                (resultSet, concepts) -> procedureRowMapper(resultSet, concepts, staged), procedureConceptColumns(staged));
+    }
+
+    /**
+     * Maps the result of {@link #SELECT_PERSON_PROCEDURES}, or of {@link #selectStagedPersonProcedures(DateRange)} if
+     * staged is true.
+     */
+    List<Procedure> mapProcedures(ResultSet resultSet, boolean staged) throws SQLException {
+        return PersonQueries.mapRows(resultSet, conceptCache, (rs, concepts) -> procedureRowMapper(rs, concepts, staged), procedureConceptColumns(staged));
+    }
+
+    private static String[] procedureConceptColumns(boolean staged) {
+        return staged ? PersonQueries.NO_CONCEPT_COLUMNS : PROCEDURE_CONCEPT_COLUMNS;
+    }
+
+    private RowMapperFactory.RowMapper<Procedure> procedureRowMapper(ResultSet resultSet, ConceptCache.Lookup concepts, boolean staged) throws SQLException {
+        ProcedureColumns columns = new ProcedureColumns(resultSet, staged, concepts, messageInterner);
+        return row -> mapRowToProcedure(row, columns);
+    }
+
+    private Procedure mapRowToProcedure(ResultRow row, ProcedureColumns columns) throws SQLException {
+        OntologyClass code = columns.code.get(row);
+        if (code == null) {
+            code = ConceptCache.NO_MATCHING_CONCEPT;
         }
 
-        TimeElement timePerformed = TimeElements.timestamp(resultSet.getTimestamp("performed_datetime").toInstant());
+        OntologyClass bodySite = columns.bodySite.get(row);
+
+        TimeElement timePerformed = messageInterner.timeElement(row.getObject(columns.performedDatetime, LocalDateTime.class));
 
         Procedure.Builder procedureBuilder = Procedure.newBuilder()
                 .setCode(code)
@@ -116,4 +289,42 @@ public class MedicalActionDao {
 
         return procedureBuilder.build();
     }
+
+    /**
+     * Indexes of the columns read by {@link #mapRowToTreatment(ResultRow, TreatmentColumns)}, found once per result set.
+     */
+    private static final class TreatmentColumns {
+
+        private final ConceptColumn agent;
+        private final ConceptColumn route;
+        private final ConceptColumn quantityUnit;
+        private final int quantityValue;
+        private final int intervalStart;
+        private final int intervalEnd;
+
+        private TreatmentColumns(ResultSet resultSet, boolean staged, ConceptCache.Lookup concepts, MessageInterner messageInterner) throws SQLException {
+            agent = ConceptColumn.find(resultSet, staged, "agent_concept_id", "agent", concepts, messageInterner);
+            route = ConceptColumn.find(resultSet, staged, "route_concept_id", "route", concepts, messageInterner);
+            quantityUnit = ConceptColumn.find(resultSet, staged, "quantity_unit_concept_id", "quantity_unit", concepts, messageInterner);
+            quantityValue = resultSet.findColumn("quantity_value");
+            intervalStart = resultSet.findColumn("interval_start");
+            intervalEnd = resultSet.findColumn("interval_end");
+        }
+    }
+
+    /**
+     * Indexes of the columns read by {@link #mapRowToProcedure(ResultRow, ProcedureColumns)}, found once per result set.
+     */
+    private static final class ProcedureColumns {
+
+        private final ConceptColumn code;
+        private final ConceptColumn bodySite;
+        private final int performedDatetime;
+
+        private ProcedureColumns(ResultSet resultSet, boolean staged, ConceptCache.Lookup concepts, MessageInterner messageInterner) throws SQLException {
+            code = ConceptColumn.find(resultSet, staged, "procedure_concept_id", "procedure", concepts, messageInterner);
+            bodySite = ConceptColumn.find(resultSet, staged, "body_site_concept_id", "body_site", concepts, messageInterner);
+            performedDatetime = resultSet.findColumn("performed_datetime");
+        }
+    }
 }
@@ -0,0 +1,145 @@
+package org.phenopackets.omopexporter.dao;
+
+import com.google.protobuf.Timestamp;
+import org.phenopackets.phenotools.builder.builders.OntologyClassBuilder;
+import org.phenopackets.phenotools.builder.builders.QuantityBuilder;
+import org.phenopackets.phenotools.builder.builders.ValueBuilder;
+import org.phenopackets.schema.v2.core.OntologyClass;
+import org.phenopackets.schema.v2.core.Quantity;
+import org.phenopackets.schema.v2.core.TimeElement;
+import org.phenopackets.schema.v2.core.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.zone.ZoneRules;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Canonicalizes the small immutable messages which the row mappers produce over and over again - units and quantities,
+ * value classes and the timestamps shared by all the measurements taken at once - so that large exports hold one
+ * instance of each rather than one per row.
+ * <p>
+ * Each kind of message has a fixed-size, direct-mapped table looked up by the primitive fields the message would be
+ * built from, so a hit allocates nothing. A miss builds the message and overwrites whatever was in its slot, which
+ * keeps the tables bounded without any eviction bookkeeping or locking.
+ * <p>
+ * Timestamps are converted from the {@link LocalDateTime} or {@link LocalDate} read from the result set, avoiding the
+ * intermediate {@link java.sql.Timestamp} and {@link java.time.Instant}. As with {@link java.sql.ResultSet#getTimestamp},
+ * they are interpreted in the JVM default time zone, as it was at startup.
+ */
+@Component
+public class MessageInterner {
+
+    private final ZoneRules zoneRules = ZoneId.systemDefault().getRules();
+    private final int mask;
+    private final AtomicReferenceArray<OntologyClass> ontologyClasses;
+    private final AtomicReferenceArray<Quantity> quantities;
+    private final AtomicReferenceArray<Value> values;
+    private final AtomicReferenceArray<Timestamp> timestamps;
+    private final AtomicReferenceArray<TimeElement> timeElements;
+
+    public MessageInterner(@org.springframework.beans.factory.annotation.Value("${omop-exporter.interner.size:4096}") int size) {
+        int capacity = Integer.highestOneBit(Math.max(2, size) * 2 - 1);
+        this.mask = capacity - 1;
+        this.ontologyClasses = new AtomicReferenceArray<>(capacity);
+        this.quantities = new AtomicReferenceArray<>(capacity);
+        this.values = new AtomicReferenceArray<>(capacity);
+        this.timestamps = new AtomicReferenceArray<>(capacity);
+        this.timeElements = new AtomicReferenceArray<>(capacity);
+    }
+
+    public OntologyClass ontologyClass(String id, String label) {
+        int slot = slot(id.hashCode() * 31 + label.hashCode());
+        OntologyClass cached = ontologyClasses.get(slot);
+        if (cached != null && cached.getId().equals(id) && cached.getLabel().equals(label)) {
+            return cached;
+        }
+        OntologyClass created = OntologyClassBuilder.ontologyClass(id, label);
+        ontologyClasses.set(slot, created);
+        return created;
+    }
+
+    /**
+     * Returns the quantity for the unit, which should itself be a canonical instance from the {@link ConceptCache} or
+     * {@link #ontologyClass(String, String)} as units are compared by identity.
+     */
+    public Quantity quantity(OntologyClass unit, double value) {
+        int slot = slot(System.identityHashCode(unit) * 31 + Double.hashCode(value));
+        Quantity cached = quantities.get(slot);
+        if (cached != null && cached.getUnit() == unit && Double.compare(cached.getValue(), value) == 0) {
+            return cached;
+        }
+        Quantity created = QuantityBuilder.quantity(unit, value);
+        quantities.set(slot, created);
+        return created;
+    }
+
+    public Value quantityValue(OntologyClass unit, double value) {
+        Quantity quantity = quantity(unit, value);
+        int slot = slot(System.identityHashCode(quantity));
+        Value cached = values.get(slot);
+        if (cached != null && cached.getQuantity() == quantity) {
+            return cached;
+        }
+        Value created = ValueBuilder.value(quantity);
+        values.set(slot, created);
+        return created;
+    }
+
+    public Value ontologyClassValue(String id, String label) {
+        OntologyClass ontologyClass = ontologyClass(id, label);
+        int slot = slot(System.identityHashCode(ontologyClass));
+        Value cached = values.get(slot);
+        if (cached != null && cached.getOntologyClass() == ontologyClass) {
+            return cached;
+        }
+        Value created = ValueBuilder.value(ontologyClass);
+        values.set(slot, created);
+        return created;
+    }
+
+    public Timestamp timestamp(long epochSecond, int nanos) {
+        int slot = slot(Long.hashCode(epochSecond) * 31 + nanos);
+        Timestamp cached = timestamps.get(slot);
+        if (cached != null && cached.getSeconds() == epochSecond && cached.getNanos() == nanos) {
+            return cached;
+        }
+        Timestamp created = Timestamp.newBuilder().setSeconds(epochSecond).setNanos(nanos).build();
+        timestamps.set(slot, created);
+        return created;
+    }
+
+    public Timestamp timestamp(LocalDateTime dateTime) {
+        return timestamp(dateTime.toEpochSecond(zoneRules.getOffset(dateTime)), dateTime.getNano());
+    }
+
+    public Timestamp timestamp(LocalDate date) {
+        return timestamp(date.atStartOfDay());
+    }
+
+    public TimeElement timeElement(LocalDateTime dateTime) {
+        return timeElement(timestamp(dateTime));
+    }
+
+    public TimeElement timeElement(LocalDate date) {
+        return timeElement(timestamp(date));
+    }
+
+    private TimeElement timeElement(Timestamp timestamp) {
+        int slot = slot(System.identityHashCode(timestamp));
+        TimeElement cached = timeElements.get(slot);
+        if (cached != null && cached.getTimestamp() == timestamp) {
+            return cached;
+        }
+        TimeElement created = TimeElement.newBuilder().setTimestamp(timestamp).build();
+        timeElements.set(slot, created);
+        return created;
+    }
+
+    private int slot(int hash) {
+        int spread = hash * 0x9E3779B9;
+        return (spread ^ (spread >>> 16)) & mask;
+    }
+}
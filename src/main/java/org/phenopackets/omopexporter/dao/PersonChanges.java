@@ -0,0 +1,150 @@
+package org.phenopackets.omopexporter.dao;
+
+import org.roaringbitmap.RoaringBitmap;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.ResultSetExtractor;
+import org.springframework.stereotype.Component;
+
+import java.sql.PreparedStatement;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Finds the persons whose phenopackets may have changed since an earlier export, from a watermark of the greatest
+ * primary key of each table the DAOs read. A person has changed if they were added, or if a visit, measurement, drug
+ * exposure, procedure or condition has been added for them, with a primary key above the watermark of its table.
+ * <p>
+ * As with the staging tables, only rows added with a greater primary key are picked up: rows which are updated or
+ * deleted, deaths, which have no key of their own, and concepts which are renamed when the vocabulary is reloaded are
+ * not. A row whose transaction commits after a later row's may also be missed, so the OMOP tables are best loaded in
+ * one transaction at a time, as ETL jobs usually do. When the staging tables are read, the watermark of each staged
+ * table stops at the rows staged so far, so that a changed person is not exported before their new rows can be read.
+ * <p>
+ * When the persons are sharded each shard has keys of its own, and so a watermark of its own for each table, under
+ * {@code <shard>.<table>}. Read replicas may lag behind the primary by different amounts, so the watermark and the
+ * phenopackets of a change feed have to be read from the same database, as bound by {@link Routing#bindConsistentReads()}.
+ */
+@Component
+public class PersonChanges {
+
+    enum Source {
+        PERSON("person", "person_id", false),
+        VISIT_OCCURRENCE("visit_occurrence", "visit_occurrence_id", false),
+        MEASUREMENT("measurement", "measurement_id", true),
+        DRUG_EXPOSURE("drug_exposure", "drug_exposure_id", true),
+        PROCEDURE_OCCURRENCE("procedure_occurrence", "procedure_occurrence_id", true),
+        CONDITION_OCCURRENCE("condition_occurrence", "condition_occurrence_id", true);
+
+        private final String table;
+        private final boolean staged;
+        private final String selectMaxId;
+        private final String selectPersonIds;
+
+        Source(String table, String idColumn, boolean staged) {
+            this.table = table;
+            this.staged = staged;
+            this.selectMaxId = "SELECT max(" + idColumn + ") FROM " + table;
+            this.selectPersonIds = "SELECT DISTINCT person_id FROM " + table + " WHERE " + idColumn + " > ? AND " + idColumn + " <= ?";
+        }
+
+        String getSelectMaxId() {
+            return selectMaxId;
+        }
+
+        String getSelectPersonIds() {
+            return selectPersonIds;
+        }
+    }
+
+    private final JdbcTemplate jdbcTemplate;
+    private final StagingTables stagingTables;
+    private final Routing routing;
+    private final QueryMetrics.Query changeMetrics;
+
+    public PersonChanges(JdbcTemplate jdbcTemplate, StagingTables stagingTables, Routing routing, QueryMetrics queryMetrics) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.stagingTables = stagingTables;
+        this.routing = routing;
+        this.changeMetrics = queryMetrics.query("changes", true);
+    }
+
+    /**
+     * Returns the current watermark, with the greatest primary key of each table, or 0 for an empty one.
+     */
+    public Map<String, Long> watermark() {
+        Map<String, Long> staged = stagingTables.isReadable() ? stagingTables.getWatermarks() : Map.of();
+        Map<String, Long> watermark = new LinkedHashMap<>();
+        for (String shard : targets()) {
+            try (Routing.Scope ignored = Routing.bind(shard)) {
+                for (Source source : Source.values()) {
+                    Long maxId = jdbcTemplate.queryForObject(source.selectMaxId, Long.class);
+                    long mark = maxId != null ? maxId : 0;
+                    if (source.staged && staged.containsKey(source.table)) {
+                        mark = Math.min(mark, staged.get(source.table));
+                    }
+                    watermark.put(key(shard, source), mark);
+                }
+            }
+        }
+        return watermark;
+    }
+
+    /**
+     * Returns the persons with rows above the since watermark and up to the until watermark, which should be one
+     * returned by {@link #watermark()}. A table missing from the since watermark is read from its first row.
+     *
+     * @throws IllegalArgumentException if the since watermark has a table which is not in the until watermark
+     */
+    public RoaringBitmap changedPersons(Map<String, Long> since, Map<String, Long> until) {
+        for (String key : since.keySet()) {
+            if (!until.containsKey(key)) {
+                throw new IllegalArgumentException("Unknown watermark table " + key + ", expected some of " + until.keySet());
+            }
+        }
+        RoaringBitmap persons = new RoaringBitmap();
+        for (String shard : targets()) {
+            try (Routing.Scope ignored = Routing.bind(shard)) {
+                for (Source source : Source.values()) {
+                    String key = key(shard, source);
+                    long from = since.get(key) != null ? since.get(key) : 0;
+                    long to = until.get(key);
+                    if (from >= to) {
+                        continue;
+                    }
+                    QueryMetrics.Execution execution = changeMetrics.time(connection -> {
+                        PreparedStatement ps = connection.prepareStatement(source.selectPersonIds);
+                        ps.setLong(1, from);
+                        ps.setLong(2, to);
+                        return ps;
+                    });
+                    try {
+                        jdbcTemplate.query(execution, (ResultSetExtractor<Void>) resultSet -> {
+                            execution.mapping();
+                            int rows = 0;
+                            while (resultSet.next()) {
+                                persons.add(resultSet.getInt(1));
+                                rows++;
+                            }
+                            execution.succeeded(rows);
+                            return null;
+                        });
+                    } catch (RuntimeException e) {
+                        execution.failed();
+                        throw e;
+                    }
+                }
+            }
+        }
+        return persons;
+    }
+
+    private List<String> targets() {
+        return routing.isSharded() ? routing.getShards() : Collections.singletonList(null);
+    }
+
+    private static String key(String shard, Source source) {
+        return shard == null ? source.table : shard + '.' + source.table;
+    }
+}
@@ -0,0 +1,181 @@
+package org.phenopackets.omopexporter.dao;
+
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.PreparedStatementCreator;
+import org.springframework.jdbc.core.ResultSetExtractor;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Helpers for running the per-person DAO queries, either for a single person or for a whole batch of persons in one
+ * statement using a {@code person_id = ANY(?)} predicate bound to a Postgres int array.
+ * <p>
+ * The statements can be cancelled by the {@link QueryCancellation} of the group of queries they are run in, and are
+ * given a query timeout by the {@link QueryDeadline}.
+ * <p>
+ * The results are read through once. Rows whose concepts are all in the {@link ConceptCache} are mapped as they are
+ * read, and the others are copied until their concepts have been loaded on the same connection, once every row has
+ * been read.
+ */
+final class PersonQueries {
+
+    /**
+     * The concept columns of the staged queries, whose rows hold their concepts as CURIEs and labels rather than ids.
+     */
+    static final String[] NO_CONCEPT_COLUMNS = {};
+
+    private PersonQueries() {
+    }
+
+    static PreparedStatementCreator personIdStatement(String query, int personId) {
+        return personIdStatement(query, personId, DateRange.ALL);
+    }
+
+    /**
+     * Returns the statement for a query with the person_id as its first parameter, followed by those of the
+     * {@link DateRange#predicate(String)}.
+     */
+    static PreparedStatementCreator personIdStatement(String query, int personId, DateRange dateRange) {
+        return connection -> {
+            PreparedStatement ps = QueryCancellation.prepareStatement(connection, query);
+            ps.setInt(1, personId);
+            dateRange.bind(ps, 2);
+            return ps;
+        };
+    }
+
+    static PreparedStatementCreator personIdsStatement(String query, Collection<Integer> personIds) {
+        return personIdsStatement(query, personIds, DateRange.ALL);
+    }
+
+    static PreparedStatementCreator personIdsStatement(String query, Collection<Integer> personIds, DateRange dateRange) {
+        return connection -> {
+            PreparedStatement ps = QueryCancellation.prepareStatement(connection, query);
+            ps.setArray(1, connection.createArrayOf("int4", personIds.toArray()));
+            dateRange.bind(ps, 2);
+            return ps;
+        };
+    }
+
+    /**
+     * Runs the query, mapping its rows with the concepts in the conceptColumns, and records it in the metrics, timed
+     * from when the statement is prepared.
+     */
+    static <T> List<T> queryForList(JdbcTemplate jdbcTemplate, PreparedStatementCreator statement, QueryMetrics.Query metrics, ConceptCache conceptCache, RowMapperFactory<T> rowMapperFactory, String... conceptColumns) {
+        QueryMetrics.Execution execution = metrics.time(statement);
+        try {
+            return jdbcTemplate.query(execution, (ResultSetExtractor<List<T>>) resultSet -> {
+                execution.mapping();
+                List<T> rows = mapRows(resultSet, conceptCache, rowMapperFactory, conceptColumns);
+                execution.succeeded(rows.size());
+                return rows;
+            });
+        } catch (RuntimeException e) {
+            execution.failed();
+            throw e;
+        }
+    }
+
+    /**
+     * Maps all the rows of the result set, loading any concepts in the conceptColumns which are not cached on the
+     * connection of its statement once the rows have been read.
+     */
+    static <T> List<T> mapRows(ResultSet resultSet, ConceptCache conceptCache, RowMapperFactory<T> rowMapperFactory, String... conceptColumns) throws SQLException {
+        return read(resultSet, conceptCache, rowMapperFactory, conceptColumns, null).rows;
+    }
+
+    /**
+     * Runs the query for the batch of persons, mapping its rows with the concepts in the conceptColumns, and collects
+     * them by the value of the personIdColumn, by which the query must be ordered. Persons without any rows are absent
+     * from the returned rows.
+     */
+    static <T> PersonRows<T> queryGroupedByPerson(JdbcTemplate jdbcTemplate, PreparedStatementCreator statement, QueryMetrics.Query metrics, String personIdColumn, ConceptCache conceptCache, RowMapperFactory<T> rowMapperFactory, String... conceptColumns) {
+        QueryMetrics.Execution execution = metrics.time(statement);
+        try {
+            return jdbcTemplate.query(execution, resultSet -> {
+                execution.mapping();
+                MappedRows<T> mapped = read(resultSet, conceptCache, rowMapperFactory, conceptColumns, personIdColumn);
+                PersonRows.Builder<T> rowsByPerson = new PersonRows.Builder<>();
+                for (int i = 0; i < mapped.rows.size(); i++) {
+                    rowsByPerson.add(mapped.personIds[i], mapped.rows.get(i));
+                }
+                execution.succeeded(mapped.rows.size());
+                return rowsByPerson.build();
+            });
+        } catch (RuntimeException e) {
+            execution.failed();
+            throw e;
+        }
+    }
+
+    /**
+     * Reads through the result set once, mapping the rows whose concepts are all cached as they are read and copying
+     * the others, which are mapped in their place once their concepts have been loaded. The person_ids of the rows are
+     * read as well if the personIdColumn is not null.
+     */
+    private static <T> MappedRows<T> read(ResultSet resultSet, ConceptCache conceptCache, RowMapperFactory<T> rowMapperFactory, String[] conceptColumns,
+                                          String personIdColumn) throws SQLException {
+        ConceptCache.Lookup concepts = conceptCache.lookup(connection(resultSet));
+        RowMapperFactory.RowMapper<T> rowMapper = rowMapperFactory.create(resultSet, concepts);
+        int[] conceptColumnIndexes = new int[conceptColumns.length];
+        for (int i = 0; i < conceptColumns.length; i++) {
+            conceptColumnIndexes[i] = resultSet.findColumn(conceptColumns[i]);
+        }
+        int personIdIndex = personIdColumn == null ? 0 : resultSet.findColumn(personIdColumn);
+        ResultRow currentRow = ResultRow.of(resultSet);
+        List<T> rows = new ArrayList<>();
+        int[] personIds = new int[personIdColumn == null ? 0 : 16];
+        List<ResultRow> copiedRows = new ArrayList<>();
+        List<Integer> copiedRowNums = new ArrayList<>();
+        while (resultSet.next()) {
+            if (personIdColumn != null) {
+                if (rows.size() == personIds.length) {
+                    personIds = Arrays.copyOf(personIds, personIds.length * 2);
+                }
+                personIds[rows.size()] = resultSet.getInt(personIdIndex);
+            }
+            if (concepts.addMissing(resultSet, conceptColumnIndexes)) {
+                copiedRows.add(ResultRow.copy(resultSet));
+                copiedRowNums.add(rows.size());
+                rows.add(null);
+            } else {
+                rows.add(rowMapper.mapRow(currentRow));
+            }
+        }
+        if (!copiedRows.isEmpty()) {
+            concepts.loadMissing();
+            for (int i = 0; i < copiedRows.size(); i++) {
+                rows.set(copiedRowNums.get(i), rowMapper.mapRow(copiedRows.get(i)));
+            }
+        }
+        return new MappedRows<>(rows, personIds);
+    }
+
+    /**
+     * Returns the connection the result set was read on, or null if it was not produced by a statement, as for the
+     * synthetic result sets of the benchmarks.
+     */
+    private static Connection connection(ResultSet resultSet) throws SQLException {
+        Statement statement = resultSet.getStatement();
+        return statement == null ? null : statement.getConnection();
+    }
+
+    private static final class MappedRows<T> {
+
+        private final List<T> rows;
+        private final int[] personIds;
+
+        private MappedRows(List<T> rows, int[] personIds) {
+            this.rows = rows;
+            this.personIds = personIds;
+        }
+    }
+}
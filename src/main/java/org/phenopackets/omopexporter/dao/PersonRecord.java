@@ -0,0 +1,50 @@
+package org.phenopackets.omopexporter.dao;
+
+import org.phenopackets.schema.v2.core.Disease;
+import org.phenopackets.schema.v2.core.Individual;
+import org.phenopackets.schema.v2.core.Measurement;
+import org.phenopackets.schema.v2.core.Procedure;
+import org.phenopackets.schema.v2.core.Treatment;
+
+import java.util.List;
+
+/**
+ * The sections of the phenopacket for one person, as read by {@link PersonRecordDao}. Sections which were not read are
+ * empty.
+ */
+public class PersonRecord {
+
+    private final Individual individual;
+    private final List<Measurement> measurements;
+    private final List<Treatment> treatments;
+    private final List<Procedure> procedures;
+    private final List<Disease> diseases;
+
+    PersonRecord(Individual individual, List<Measurement> measurements, List<Treatment> treatments, List<Procedure> procedures, List<Disease> diseases) {
+        this.individual = individual;
+        this.measurements = measurements;
+        this.treatments = treatments;
+        this.procedures = procedures;
+        this.diseases = diseases;
+    }
+
+    public Individual getIndividual() {
+        return individual;
+    }
+
+    public List<Measurement> getMeasurements() {
+        return measurements;
+    }
+
+    public List<Treatment> getTreatments() {
+        return treatments;
+    }
+
+    public List<Procedure> getProcedures() {
+        return procedures;
+    }
+
+    public List<Disease> getDiseases() {
+        return diseases;
+    }
+}
@@ -0,0 +1,117 @@
+package org.phenopackets.omopexporter.dao;
+
+import org.phenopackets.schema.v2.core.Disease;
+import org.phenopackets.schema.v2.core.Individual;
+import org.phenopackets.schema.v2.core.Measurement;
+import org.phenopackets.schema.v2.core.Procedure;
+import org.phenopackets.schema.v2.core.Treatment;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * Reads the sections of a person's phenopacket in a single database round trip, by sending the single-person queries
+ * of the other DAOs as one multi-statement batch and decoding each of its result sets with that DAO's row mapper.
+ * The Postgres driver sends all the statements of a batch before waiting for any of the results.
+ * <p>
+ * The only further round trips are for concepts which are not yet in the {@link ConceptCache}, which are loaded on the
+ * same connection once the rows of a section have been read, so once the cache is warm this costs one round trip per
+ * person rather than one per section. Once the {@link StagingTables} are loaded the
+ * sections are read from them instead, and there are no further round trips.
+ */
+@Component
+public class PersonRecordDao {
+
+    private final JdbcTemplate jdbcTemplate;
+    private final IndividualDao individualDao;
+    private final MeasurementDao measurementDao;
+    private final MedicalActionDao medicalActionDao;
+    private final DiseaseDao diseaseDao;
+    private final StagingTables stagingTables;
+    private final QueryMetrics.Query metrics;
+
+    public PersonRecordDao(JdbcTemplate jdbcTemplate, IndividualDao individualDao, MeasurementDao measurementDao, MedicalActionDao medicalActionDao, DiseaseDao diseaseDao,
+                           StagingTables stagingTables, QueryMetrics queryMetrics) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.individualDao = individualDao;
+        this.measurementDao = measurementDao;
+        this.medicalActionDao = medicalActionDao;
+        this.diseaseDao = diseaseDao;
+        this.stagingTables = stagingTables;
+        this.metrics = queryMetrics.query("person-record", false);
+    }
+
+    /**
+     * Returns the record for the person, or empty if there is no such person. Only the statements for the given sections
+     * are sent, restricted to the date range, and the sections not asked for are left empty. The whole batch is
+     * cancelled if it has not completed within the timeout.
+     */
+    public Optional<PersonRecord> getPersonRecord(int personId, Set<Section> sections, DateRange dateRange, Duration timeout) {
+        boolean measurementsIncluded = sections.contains(Section.MEASUREMENTS);
+        boolean medicalActionsIncluded = sections.contains(Section.MEDICAL_ACTIONS);
+        boolean diseasesIncluded = sections.contains(Section.DISEASES);
+        boolean staged = stagingTables.isReadable();
+        List<String> statements = new ArrayList<>(5);
+        statements.add(IndividualDao.SELECT_PERSON_INDIVIDUAL);
+        if (measurementsIncluded) {
+            statements.add(staged ? MeasurementDao.selectStagedPersonMeasurements(dateRange) : MeasurementDao.selectPersonMeasurements(dateRange));
+        }
+        if (medicalActionsIncluded) {
+            statements.add(staged ? MedicalActionDao.selectStagedPersonTreatments(dateRange) : MedicalActionDao.selectPersonTreatments(dateRange));
+            statements.add(staged ? MedicalActionDao.selectStagedPersonProcedures(dateRange) : MedicalActionDao.selectPersonProcedures(dateRange));
+        }
+        if (diseasesIncluded) {
+            statements.add(staged ? DiseaseDao.selectStagedPersonDiseases(dateRange) : DiseaseDao.selectPersonDiseases(dateRange));
+        }
+        return jdbcTemplate.execute((ConnectionCallback<Optional<PersonRecord>>) connection -> {
+            try (PreparedStatement ps = connection.prepareStatement(String.join(";\n", statements))) {
+                // the individual has the person_id as its only parameter, and each of the others is followed by the date range
+                ps.setInt(1, personId);
+                int parameterIndex = 2;
+                for (int i = 1; i < statements.size(); i++) {
+                    ps.setInt(parameterIndex, personId);
+                    parameterIndex = dateRange.bind(ps, parameterIndex + 1);
+                }
+                ps.setQueryTimeout((int) Math.max(1, timeout.toSeconds()));
+                long start = System.nanoTime();
+                Optional<Individual> individual;
+                List<Measurement> measurements;
+                List<Treatment> treatments;
+                List<Procedure> procedures;
+                List<Disease> diseases;
+                long mappingStart;
+                try {
+                    ps.execute();
+                    mappingStart = System.nanoTime();
+                    individual = individualDao.mapIndividual(nextResultSet(ps, true));
+                    measurements = measurementsIncluded ? measurementDao.mapMeasurements(nextResultSet(ps, false), staged) : List.of();
+                    treatments = medicalActionsIncluded ? medicalActionDao.mapTreatments(nextResultSet(ps, false), staged) : List.of();
+                    procedures = medicalActionsIncluded ? medicalActionDao.mapProcedures(nextResultSet(ps, false), staged) : List.of();
+                    diseases = diseasesIncluded ? diseaseDao.mapDiseases(nextResultSet(ps, false), staged) : List.of();
+                } catch (SQLException | RuntimeException e) {
+                    metrics.recordFailure(System.nanoTime() - start);
+                    throw e;
+                }
+                metrics.record(mappingStart - start, System.nanoTime() - mappingStart,
+                        individual.map(value -> 1).orElse(0) + measurements.size() + treatments.size() + procedures.size() + diseases.size());
+                return individual.map(value -> new PersonRecord(value, measurements, treatments, procedures, diseases));
+            }
+        });
+    }
+
+    private static ResultSet nextResultSet(PreparedStatement ps, boolean first) throws SQLException {
+        if (!first && !ps.getMoreResults()) {
+            throw new SQLException("Expected another result set from the person record batch");
+        }
+        return ps.getResultSet();
+    }
+}
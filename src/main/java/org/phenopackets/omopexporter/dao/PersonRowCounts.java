@@ -0,0 +1,84 @@
+package org.phenopackets.omopexporter.dao;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.ResultSetExtractor;
+import org.springframework.stereotype.Component;
+
+import java.sql.PreparedStatement;
+
+/**
+ * Counts the clinical rows of a person, up to a limit, to tell the persons whose phenopackets are expensive to assemble
+ * from the rest before their sections are queried. The count reads the person_id indexes alone and stops as soon as
+ * the limit is reached, so even for the largest persons it costs no more than reading that many index entries. Counts
+ * are cached, as the heavy persons tend to be the ones requested again and again.
+ */
+@Component
+public class PersonRowCounts {
+
+    static final String COUNT_PERSON_ROWS = "SELECT count(*) FROM (" +
+            "SELECT 1 FROM measurement WHERE person_id = ? " +
+            "UNION ALL SELECT 1 FROM drug_exposure WHERE person_id = ? " +
+            "UNION ALL SELECT 1 FROM procedure_occurrence WHERE person_id = ? " +
+            "UNION ALL SELECT 1 FROM condition_occurrence WHERE person_id = ? " +
+            "LIMIT ?) AS person_rows";
+
+    private final JdbcTemplate jdbcTemplate;
+    private final Routing routing;
+    private final QueryMetrics.Query metrics;
+    private final IntClockCache<Integer> counts;
+    private final int limit;
+
+    public PersonRowCounts(JdbcTemplate jdbcTemplate, QueryMetrics queryMetrics, Routing routing,
+                           @Value("${omop-exporter.admission.heavy-person-rows:20000}") int limit,
+                           @Value("${omop-exporter.admission.row-count-cache.max-size:100000}") int maxSize) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.routing = routing;
+        this.metrics = queryMetrics.query("person rows", false);
+        this.limit = limit;
+        this.counts = new IntClockCache<>(maxSize);
+    }
+
+    /**
+     * Returns the number of measurement, drug exposure, procedure and condition rows of the person, or the limit if
+     * there are at least that many.
+     */
+    public int countRows(int personId) {
+        Integer count = counts.get(personId);
+        if (count == null) {
+            QueryMetrics.Execution execution = metrics.time(connection -> {
+                PreparedStatement ps = connection.prepareStatement(COUNT_PERSON_ROWS);
+                for (int i = 1; i <= 4; i++) {
+                    ps.setInt(i, personId);
+                }
+                ps.setInt(5, limit);
+                return ps;
+            });
+            try (Routing.Scope ignored = routing.bindPerson(personId)) {
+                count = jdbcTemplate.query(execution, (ResultSetExtractor<Integer>) resultSet -> {
+                    execution.mapping();
+                    resultSet.next();
+                    int rows = resultSet.getInt(1);
+                    execution.succeeded(1);
+                    return rows;
+                });
+            } catch (RuntimeException e) {
+                execution.failed();
+                throw e;
+            }
+            counts.put(personId, count);
+        }
+        return count;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    /**
+     * Forgets every count, as after rows have been added to the clinical tables.
+     */
+    public void clear() {
+        counts.clear();
+    }
+}
@@ -0,0 +1,159 @@
+package org.phenopackets.omopexporter.dao;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The mapped rows of a batch query for several persons, held in ascending person_id order as they were read from a
+ * result set ordered by person_id, rather than hashed by person. The rows of each section of a batch are merged by
+ * walking a {@link Cursor} over each of them alongside the persons in person_id order.
+ */
+public final class PersonRows<T> {
+
+    private static final PersonRows<?> EMPTY = new PersonRows<>(new int[0], new int[]{0}, List.of());
+
+    // the distinct person_ids in ascending order, the first of whose rows is at the same index of starts
+    private final int[] personIds;
+    private final int[] starts;
+    private final List<T> rows;
+
+    private PersonRows(int[] personIds, int[] starts, List<T> rows) {
+        this.personIds = personIds;
+        this.starts = starts;
+        this.rows = Collections.unmodifiableList(rows);
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <T> PersonRows<T> empty() {
+        return (PersonRows<T>) EMPTY;
+    }
+
+    /**
+     * Merges the rows of batches with no persons in common, such as those of the shards of a batch.
+     */
+    public static <T> PersonRows<T> merge(List<PersonRows<T>> parts) {
+        if (parts.isEmpty()) {
+            return empty();
+        }
+        if (parts.size() == 1) {
+            return parts.get(0);
+        }
+        Builder<T> builder = new Builder<>();
+        int[] next = new int[parts.size()];
+        while (true) {
+            int lowest = -1;
+            for (int i = 0; i < parts.size(); i++) {
+                PersonRows<T> part = parts.get(i);
+                if (next[i] < part.personIds.length && (lowest < 0 || part.personIds[next[i]] < parts.get(lowest).personIds[next[lowest]])) {
+                    lowest = i;
+                }
+            }
+            if (lowest < 0) {
+                return builder.build();
+            }
+            PersonRows<T> part = parts.get(lowest);
+            int index = next[lowest]++;
+            for (T row : part.rows(index)) {
+                builder.add(part.personIds[index], row);
+            }
+        }
+    }
+
+    /**
+     * Returns the distinct person_ids in ascending order, the order in which a {@link Cursor} walks them.
+     */
+    public static int[] ascending(Collection<Integer> personIds) {
+        return personIds.stream().mapToInt(Integer::intValue).sorted().distinct().toArray();
+    }
+
+    /**
+     * Returns the number of persons with rows.
+     */
+    public int size() {
+        return personIds.length;
+    }
+
+    /**
+     * Returns the rows of the person, which are empty if they have none.
+     */
+    public List<T> get(int personId) {
+        int index = Arrays.binarySearch(personIds, personId);
+        return index >= 0 ? rows(index) : List.of();
+    }
+
+    /**
+     * Returns every row, in person_id order.
+     */
+    public List<T> getRows() {
+        return rows;
+    }
+
+    public Cursor<T> cursor() {
+        return new Cursor<>(this);
+    }
+
+    private List<T> rows(int index) {
+        return rows.subList(starts[index], starts[index + 1]);
+    }
+
+    /**
+     * Walks the persons in ascending person_id order.
+     */
+    public static final class Cursor<T> {
+
+        private final PersonRows<T> personRows;
+        private int index;
+
+        private Cursor(PersonRows<T> personRows) {
+            this.personRows = personRows;
+        }
+
+        /**
+         * Returns the rows of the person, which are empty if they have none. The person_ids passed must not decrease
+         * from one call to the next.
+         */
+        public List<T> next(int personId) {
+            int[] personIds = personRows.personIds;
+            while (index < personIds.length && personIds[index] < personId) {
+                index++;
+            }
+            return index < personIds.length && personIds[index] == personId ? personRows.rows(index) : List.of();
+        }
+    }
+
+    /**
+     * Collects the rows of a result set ordered by person_id.
+     */
+    static final class Builder<T> {
+
+        private int[] personIds = new int[16];
+        private int[] starts = new int[17];
+        private int persons;
+        private final List<T> rows = new ArrayList<>();
+
+        /**
+         * @throws IllegalStateException if the person_id is lower than that of the previous row
+         */
+        void add(int personId, T row) {
+            if (persons == 0 || personId > personIds[persons - 1]) {
+                if (persons == personIds.length) {
+                    personIds = Arrays.copyOf(personIds, persons * 2);
+                    starts = Arrays.copyOf(starts, persons * 2 + 1);
+                }
+                personIds[persons] = personId;
+                starts[persons++] = rows.size();
+            } else if (personId < personIds[persons - 1]) {
+                throw new IllegalStateException("The rows are not ordered by person_id: " + personId + " follows " + personIds[persons - 1]);
+            }
+            rows.add(row);
+        }
+
+        PersonRows<T> build() {
+            starts[persons] = rows.size();
+            return new PersonRows<>(Arrays.copyOf(personIds, persons), Arrays.copyOf(starts, persons + 1), rows);
+        }
+    }
+}
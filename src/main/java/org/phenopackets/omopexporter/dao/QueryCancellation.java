@@ -0,0 +1,98 @@
+package org.phenopackets.omopexporter.dao;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.sql.Statement;
+import java.util.OptionalLong;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The statements of a group of queries, which can all be stopped on the server at once when the group is abandoned.
+ * Cancelling the future of a query or interrupting the thread running it leaves its statement running, holding its
+ * connection and the CPU and I/O of the database, until it completes. The group is bound to the threads running its
+ * queries, and each statement prepared by {@link #prepareStatement(Connection, String)} on one of them is
+ * cancelled with {@link Statement#cancel()}.
+ * <p>
+ * Each statement is also given a query timeout of the time left until the {@link QueryDeadline} bound to the thread, so
+ * that the driver cancels it when the deadline passes, as well as a statement cancelled in the moment between being
+ * prepared and executed.
+ */
+public final class QueryCancellation {
+
+    private static final ThreadLocal<QueryCancellation> CURRENT = new ThreadLocal<>();
+
+    // cancelling a statement which has completed does nothing, so they are kept until the group is discarded
+    private final Set<Statement> statements = ConcurrentHashMap.newKeySet();
+    private volatile boolean cancelled;
+
+    /**
+     * Binds the group to the current thread until the returned scope is closed, when the previous one is restored.
+     */
+    public Scope bind() {
+        QueryCancellation previous = CURRENT.get();
+        CURRENT.set(this);
+        return () -> {
+            if (previous == null) {
+                CURRENT.remove();
+            } else {
+                CURRENT.set(previous);
+            }
+        };
+    }
+
+    /**
+     * Cancels the statements of the group which are running, and any prepared later.
+     */
+    public void cancel() {
+        cancelled = true;
+        for (Statement statement : statements) {
+            try {
+                statement.cancel();
+            } catch (SQLException e) {
+                // the statement has been closed, and so is no longer running
+            }
+        }
+    }
+
+    /**
+     * Prepares a forward-only, read-only statement on the connection, registering it with the group bound to the
+     * current thread if there is one.
+     *
+     * @throws SQLTimeoutException if the deadline bound to the current thread has passed
+     * @throws SQLException        if the group has been cancelled
+     */
+    public static PreparedStatement prepareStatement(Connection connection, String sql) throws SQLException {
+        OptionalLong remainingMillis = QueryDeadline.remainingMillis();
+        if (remainingMillis.isPresent() && remainingMillis.getAsLong() <= 0) {
+            throw new SQLTimeoutException("The deadline for the queries has passed");
+        }
+        PreparedStatement statement = connection.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+        try {
+            if (remainingMillis.isPresent()) {
+                statement.setQueryTimeout((int) Math.min(Integer.MAX_VALUE, Math.max(1, (remainingMillis.getAsLong() + 999) / 1000)));
+            }
+            QueryCancellation cancellation = CURRENT.get();
+            if (cancellation != null) {
+                cancellation.statements.add(statement);
+                if (cancellation.cancelled) {
+                    throw new SQLException("The queries have been cancelled");
+                }
+            }
+            return statement;
+        } catch (SQLException | RuntimeException e) {
+            statement.close();
+            throw e;
+        }
+    }
+
+    @FunctionalInterface
+    public interface Scope extends AutoCloseable {
+
+        @Override
+        void close();
+    }
+}
@@ -0,0 +1,56 @@
+package org.phenopackets.omopexporter.dao;
+
+import java.util.OptionalLong;
+
+/**
+ * The time by which the queries run on the current thread must complete, in {@link System#nanoTime()} terms. A
+ * deadline bound while an earlier one is in force cannot extend it, so the queries of a batch never outlive the
+ * request which started them. Queries handed to another thread have to carry the deadline over with
+ * {@link #current()}.
+ */
+public final class QueryDeadline {
+
+    private static final ThreadLocal<Long> DEADLINE = new ThreadLocal<>();
+
+    private QueryDeadline() {
+    }
+
+    /**
+     * Binds the deadline to the current thread until the returned scope is closed, when the previous one is restored.
+     */
+    public static Scope bind(long deadlineNanos) {
+        Long previous = DEADLINE.get();
+        DEADLINE.set(previous == null || deadlineNanos - previous < 0 ? deadlineNanos : previous);
+        return () -> {
+            if (previous == null) {
+                DEADLINE.remove();
+            } else {
+                DEADLINE.set(previous);
+            }
+        };
+    }
+
+    /**
+     * Returns the deadline bound to the current thread, if there is one.
+     */
+    public static OptionalLong current() {
+        Long deadline = DEADLINE.get();
+        return deadline == null ? OptionalLong.empty() : OptionalLong.of(deadline);
+    }
+
+    /**
+     * Returns the milliseconds left until the deadline bound to the current thread, which are zero or negative once it
+     * has passed.
+     */
+    public static OptionalLong remainingMillis() {
+        Long deadline = DEADLINE.get();
+        return deadline == null ? OptionalLong.empty() : OptionalLong.of(Math.floorDiv(deadline - System.nanoTime(), 1_000_000L));
+    }
+
+    @FunctionalInterface
+    public interface Scope extends AutoCloseable {
+
+        @Override
+        void close();
+    }
+}
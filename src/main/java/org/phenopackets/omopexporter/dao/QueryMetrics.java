@@ -0,0 +1,130 @@
+package org.phenopackets.omopexporter.dao;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.jdbc.core.PreparedStatementCreator;
+import org.springframework.stereotype.Component;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Registers the meters recorded for each DAO query: {@code omop.dao.query} times the statement from when it is
+ * prepared, once a connection has been obtained, up to its results being available, {@code omop.dao.mapping} times
+ * mapping the rows, including loading any uncached concepts, and {@code omop.dao.rows} counts the rows. Each is tagged
+ * with the section queried and whether it was for a single person, a batch, or streamed from a cursor, in which case
+ * the mapping time includes that taken to consume the rows.
+ * <p>
+ * The query timer is also tagged with the {@code outcome}, {@code success} or {@code failure}. A query which fails,
+ * including one cancelled or timed out, or whose rows cannot be mapped, is timed up to the failure, and its mapping
+ * time and rows are not recorded.
+ * <p>
+ * The DAOs look up their meters once, when they are constructed, so recording costs two clock reads and three
+ * lock-free updates per query.
+ */
+@Component
+public class QueryMetrics {
+
+    private final MeterRegistry meterRegistry;
+
+    public QueryMetrics(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+    }
+
+    Query query(String section, boolean batch) {
+        return query(section, batch ? "batch" : "single");
+    }
+
+    Query query(String section, String mode) {
+        return new Query(queryTimer(section, mode, "success"), queryTimer(section, mode, "failure"),
+                Timer.builder("omop.dao.mapping").tag("section", section).tag("mode", mode)
+                        .description("Time to map the rows of a DAO query").register(meterRegistry),
+                DistributionSummary.builder("omop.dao.rows").tag("section", section).tag("mode", mode)
+                        .description("Rows returned by a DAO query").register(meterRegistry));
+    }
+
+    private Timer queryTimer(String section, String mode, String outcome) {
+        return Timer.builder("omop.dao.query").tag("section", section).tag("mode", mode).tag("outcome", outcome)
+                .description("Time to run a DAO query until its results are available").register(meterRegistry);
+    }
+
+    static final class Query {
+
+        private final Timer queryTimer;
+        private final Timer failedQueryTimer;
+        private final Timer mappingTimer;
+        private final DistributionSummary rows;
+
+        private Query(Timer queryTimer, Timer failedQueryTimer, Timer mappingTimer, DistributionSummary rows) {
+            this.queryTimer = queryTimer;
+            this.failedQueryTimer = failedQueryTimer;
+            this.mappingTimer = mappingTimer;
+            this.rows = rows;
+        }
+
+        void record(long queryNanos, long mappingNanos, int rowCount) {
+            queryTimer.record(queryNanos, TimeUnit.NANOSECONDS);
+            mappingTimer.record(mappingNanos, TimeUnit.NANOSECONDS);
+            rows.record(rowCount);
+        }
+
+        void recordFailure(long queryNanos) {
+            failedQueryTimer.record(queryNanos, TimeUnit.NANOSECONDS);
+        }
+
+        /**
+         * Returns the statement wrapped to be timed from when it is prepared, so that the time spent waiting for a
+         * connection from the pool is not counted as the query's.
+         */
+        Execution time(PreparedStatementCreator statement) {
+            return new Execution(this, statement);
+        }
+    }
+
+    /**
+     * A single run of a timed statement, by a {@code JdbcTemplate} whose result set extractor calls
+     * {@link #mapping()} once the results are available and {@link #succeeded(int)} once they have been mapped, and
+     * whose caller calls {@link #failed()} if the query throws. A failure before the statement is prepared, while
+     * obtaining a connection, is not recorded.
+     */
+    static final class Execution implements PreparedStatementCreator {
+
+        private final Query query;
+        private final PreparedStatementCreator statement;
+        private boolean started;
+        private boolean recorded;
+        private long start;
+        private long mappingStart;
+
+        private Execution(Query query, PreparedStatementCreator statement) {
+            this.query = query;
+            this.statement = statement;
+        }
+
+        @Override
+        public PreparedStatement createPreparedStatement(Connection connection) throws SQLException {
+            started = true;
+            start = System.nanoTime();
+            return statement.createPreparedStatement(connection);
+        }
+
+        void mapping() {
+            mappingStart = System.nanoTime();
+        }
+
+        void succeeded(int rowCount) {
+            recorded = true;
+            query.record(mappingStart - start, System.nanoTime() - mappingStart, rowCount);
+        }
+
+        void failed() {
+            if (started && !recorded) {
+                recorded = true;
+                query.recordFailure(System.nanoTime() - start);
+            }
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package org.phenopackets.omopexporter.dao;
+
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+
+/**
+ * The values of a row read by the DAO row mappers, either the current row of a result set or a copy of one which is
+ * mapped later, once the concepts it references have been loaded. The columns are numbered from 1, as in a
+ * {@link ResultSet}, and a null value reads as 0 from the primitive getters with {@link #wasNull()} then true.
+ */
+interface ResultRow {
+
+    int getInt(int columnIndex) throws SQLException;
+
+    double getDouble(int columnIndex) throws SQLException;
+
+    String getString(int columnIndex) throws SQLException;
+
+    <T> T getObject(int columnIndex, Class<T> type) throws SQLException;
+
+    boolean wasNull() throws SQLException;
+
+    /**
+     * Returns a view of whichever row the result set is on.
+     */
+    static ResultRow of(ResultSet resultSet) {
+        return new ResultRow() {
+            @Override
+            public int getInt(int columnIndex) throws SQLException {
+                return resultSet.getInt(columnIndex);
+            }
+
+            @Override
+            public double getDouble(int columnIndex) throws SQLException {
+                return resultSet.getDouble(columnIndex);
+            }
+
+            @Override
+            public String getString(int columnIndex) throws SQLException {
+                return resultSet.getString(columnIndex);
+            }
+
+            @Override
+            public <T> T getObject(int columnIndex, Class<T> type) throws SQLException {
+                return resultSet.getObject(columnIndex, type);
+            }
+
+            @Override
+            public boolean wasNull() throws SQLException {
+                return resultSet.wasNull();
+            }
+        };
+    }
+
+    /**
+     * Copies the current row of the result set. Dates and timestamps are read as {@link LocalDate} and
+     * {@link LocalDateTime}, which are what the mappers ask for, rather than through the JVM's time zone.
+     */
+    static ResultRow copy(ResultSet resultSet) throws SQLException {
+        ResultSetMetaData metaData = resultSet.getMetaData();
+        Object[] values = new Object[metaData.getColumnCount()];
+        for (int i = 0; i < values.length; i++) {
+            int columnIndex = i + 1;
+            switch (metaData.getColumnType(columnIndex)) {
+                case Types.DATE:
+                    values[i] = resultSet.getObject(columnIndex, LocalDate.class);
+                    break;
+                case Types.TIMESTAMP:
+                    values[i] = resultSet.getObject(columnIndex, LocalDateTime.class);
+                    break;
+                default:
+                    values[i] = resultSet.getObject(columnIndex);
+            }
+        }
+        return new CopiedRow(values);
+    }
+
+    final class CopiedRow implements ResultRow {
+
+        private final Object[] values;
+        private boolean wasNull;
+
+        private CopiedRow(Object[] values) {
+            this.values = values;
+        }
+
+        @Override
+        public int getInt(int columnIndex) throws SQLException {
+            Object value = get(columnIndex);
+            return value == null ? 0 : number(value, columnIndex).intValue();
+        }
+
+        @Override
+        public double getDouble(int columnIndex) throws SQLException {
+            Object value = get(columnIndex);
+            return value == null ? 0 : number(value, columnIndex).doubleValue();
+        }
+
+        @Override
+        public String getString(int columnIndex) throws SQLException {
+            Object value = get(columnIndex);
+            return value == null ? null : value.toString();
+        }
+
+        @Override
+        public <T> T getObject(int columnIndex, Class<T> type) throws SQLException {
+            Object value = get(columnIndex);
+            if (value == null || type.isInstance(value)) {
+                return type.cast(value);
+            }
+            if (type == LocalDate.class && value instanceof LocalDateTime) {
+                return type.cast(((LocalDateTime) value).toLocalDate());
+            }
+            if (type == LocalDateTime.class && value instanceof LocalDate) {
+                return type.cast(((LocalDate) value).atStartOfDay());
+            }
+            throw new SQLException("Cannot read column " + columnIndex + " of type " + value.getClass().getName() + " as " + type.getName());
+        }
+
+        @Override
+        public boolean wasNull() {
+            return wasNull;
+        }
+
+        private Object get(int columnIndex) throws SQLException {
+            if (columnIndex < 1 || columnIndex > values.length) {
+                throw new SQLException("No column " + columnIndex);
+            }
+            Object value = values[columnIndex - 1];
+            wasNull = value == null;
+            return value;
+        }
+
+        private static Number number(Object value, int columnIndex) throws SQLException {
+            if (!(value instanceof Number)) {
+                throw new SQLException("Column " + columnIndex + " of type " + value.getClass().getName() + " is not a number");
+            }
+            return (Number) value;
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package org.phenopackets.omopexporter.dao;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Which of several OMOP databases the queries of the current thread go to. The data source routes each connection by
+ * the target bound to the thread taking it, and with none bound to the primary database or, when there are read
+ * replicas, to one of them. Queries handed to another thread have to carry the target over with {@link #current()}.
+ * <p>
+ * When the clinical tables are sharded, each shard holds the persons from its first person_id up to the first
+ * person_id of the next one, and the first shard holds any persons below its own first person_id too. The queries for
+ * a person are bound to the shard holding them, and those for a batch of persons are split up by shard.
+ */
+public class Routing {
+
+    public enum Mode {
+        /**
+         * A single database.
+         */
+        NONE,
+        /**
+         * Reads spread over read replicas of the primary database, which takes the writes.
+         */
+        REPLICAS,
+        /**
+         * The persons partitioned by person_id range, with a copy of the vocabulary on every shard, as the queries for
+         * the persons join it.
+         */
+        SHARDS
+    }
+
+    /**
+     * The target of the database configured as {@code spring.datasource}.
+     */
+    public static final String PRIMARY = "primary";
+
+    private static final ThreadLocal<String> TARGET = new ThreadLocal<>();
+
+    private static final Scope UNCHANGED = () -> {
+    };
+
+    private final Mode mode;
+    private final String[] shards;
+    private final int[] firstPersonIds;
+
+    /**
+     * @param firstPersonIds the first person_id of each shard, by its target name, for the {@link Mode#SHARDS} mode
+     * @throws IllegalArgumentException if two shards start at the same person_id
+     */
+    public Routing(Mode mode, Map<String, Integer> firstPersonIds) {
+        this.mode = mode;
+        List<Map.Entry<String, Integer>> ordered = new ArrayList<>(firstPersonIds.entrySet());
+        ordered.sort(Map.Entry.comparingByValue());
+        this.shards = new String[ordered.size()];
+        this.firstPersonIds = new int[ordered.size()];
+        for (int i = 0; i < shards.length; i++) {
+            shards[i] = ordered.get(i).getKey();
+            this.firstPersonIds[i] = ordered.get(i).getValue();
+            if (i > 0 && this.firstPersonIds[i] == this.firstPersonIds[i - 1]) {
+                throw new IllegalArgumentException("Shards " + shards[i - 1] + " and " + shards[i] + " both start at person_id " + this.firstPersonIds[i]);
+            }
+        }
+        if (mode == Mode.SHARDS && shards.length == 0) {
+            throw new IllegalArgumentException("Sharding needs at least one shard");
+        }
+    }
+
+    public static Routing none() {
+        return new Routing(Mode.NONE, Map.of());
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public boolean isSharded() {
+        return mode == Mode.SHARDS;
+    }
+
+    /**
+     * Returns the shards in person_id order.
+     */
+    public List<String> getShards() {
+        return Collections.unmodifiableList(Arrays.asList(shards));
+    }
+
+    /**
+     * Returns the shard holding the person.
+     *
+     * @throws IllegalStateException if the persons are not sharded
+     */
+    public String shardOf(int personId) {
+        return shards[shardIndexOf(personId)];
+    }
+
+    /**
+     * Returns the shards which may hold persons from fromPersonId to toPersonId inclusive, in person_id order.
+     */
+    public List<String> shardsBetween(int fromPersonId, int toPersonId) {
+        if (fromPersonId > toPersonId) {
+            return List.of();
+        }
+        return getShards().subList(shardIndexOf(fromPersonId), shardIndexOf(toPersonId) + 1);
+    }
+
+    /**
+     * Splits the person_ids by the shard holding them, keeping their order within each shard. Without sharding they
+     * are all under a null target, which leaves the routing as it is.
+     */
+    public Map<String, List<Integer>> partition(List<Integer> personIds) {
+        Map<String, List<Integer>> partitions = new LinkedHashMap<>();
+        if (!isSharded()) {
+            partitions.put(null, personIds);
+            return partitions;
+        }
+        for (Integer personId : personIds) {
+            partitions.computeIfAbsent(shardOf(personId), shard -> new ArrayList<>()).add(personId);
+        }
+        return partitions;
+    }
+
+    /**
+     * Binds the shard holding the person to the current thread, when the persons are sharded, until the returned scope
+     * is closed.
+     */
+    public Scope bindPerson(int personId) {
+        return isSharded() ? bind(shardOf(personId)) : UNCHANGED;
+    }
+
+    /**
+     * Binds the primary database to the current thread, when the persons are sharded, until the returned scope is
+     * closed, for reading the vocabulary outside the queries for persons, as when warming the concept cache. The
+     * concepts of a shard's rows are looked up on the shard itself, which holds its own copy of the vocabulary.
+     */
+    public Scope bindVocabulary() {
+        return isSharded() ? bind(PRIMARY) : UNCHANGED;
+    }
+
+    /**
+     * Binds the primary database to the current thread, when the reads are spread over replicas, until the returned
+     * scope is closed. Reads which have to see the same rows as each other, such as a watermark and the rows it covers,
+     * then go to one database rather than to replicas which may have replayed different amounts of the primary's log.
+     */
+    public Scope bindConsistentReads() {
+        return mode == Mode.REPLICAS ? bind(PRIMARY) : UNCHANGED;
+    }
+
+    /**
+     * Binds the target to the current thread until the returned scope is closed, when the previous one is restored.
+     * Binding null leaves the current target bound.
+     */
+    public static Scope bind(String target) {
+        if (target == null) {
+            return UNCHANGED;
+        }
+        String previous = TARGET.get();
+        TARGET.set(target);
+        return () -> {
+            if (previous == null) {
+                TARGET.remove();
+            } else {
+                TARGET.set(previous);
+            }
+        };
+    }
+
+    /**
+     * Returns the target bound to the current thread, or null if there is none.
+     */
+    public static String current() {
+        return TARGET.get();
+    }
+
+    private int shardIndexOf(int personId) {
+        if (!isSharded()) {
+            throw new IllegalStateException("The persons are not sharded");
+        }
+        int index = Arrays.binarySearch(firstPersonIds, personId);
+        // the insertion point is the first shard starting after the person, which is held by the one before it
+        return index >= 0 ? index : Math.max(0, -index - 2);
+    }
+
+    @FunctionalInterface
+    public interface Scope extends AutoCloseable {
+
+        @Override
+        void close();
+    }
+}
@@ -0,0 +1,24 @@
+package org.phenopackets.omopexporter.dao;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Creates a {@link RowMapper} for a particular result set, so that the mapper can find the indexes of the columns it
+ * reads once rather than looking each one up by label on every row, and resolves the concepts of the result set with
+ * its {@link ConceptCache.Lookup}.
+ */
+@FunctionalInterface
+interface RowMapperFactory<T> {
+
+    RowMapper<T> create(ResultSet resultSet, ConceptCache.Lookup concepts) throws SQLException;
+
+    /**
+     * Maps a row of the result set the mapper was created for, which may be a copy taken while its concepts were loaded.
+     */
+    @FunctionalInterface
+    interface RowMapper<T> {
+
+        T mapRow(ResultRow row) throws SQLException;
+    }
+}
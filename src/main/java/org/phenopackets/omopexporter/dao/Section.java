@@ -0,0 +1,52 @@
+package org.phenopackets.omopexporter.dao;
+
+import java.util.Collection;
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * The optional sections of a phenopacket, each of which is read by its own queries. The subject is always included.
+ */
+public enum Section {
+    MEASUREMENTS("measurements"),
+    MEDICAL_ACTIONS("medicalActions"),
+    DISEASES("diseases");
+
+    private final String fieldName;
+
+    Section(String fieldName) {
+        this.fieldName = fieldName;
+    }
+
+    /**
+     * The name of the phenopacket field, by which the section is named in requests.
+     */
+    public String getFieldName() {
+        return fieldName;
+    }
+
+    /**
+     * Returns the sections named by their field names, or all of them if names is null or empty.
+     *
+     * @throws IllegalArgumentException if a name is not that of a section
+     */
+    public static Set<Section> parse(Collection<String> names) {
+        if (names == null || names.isEmpty()) {
+            return EnumSet.allOf(Section.class);
+        }
+        Set<Section> sections = EnumSet.noneOf(Section.class);
+        for (String name : names) {
+            sections.add(parse(name.trim()));
+        }
+        return sections;
+    }
+
+    private static Section parse(String name) {
+        for (Section section : values()) {
+            if (section.fieldName.equalsIgnoreCase(name)) {
+                return section;
+            }
+        }
+        throw new IllegalArgumentException("Unknown section " + name);
+    }
+}
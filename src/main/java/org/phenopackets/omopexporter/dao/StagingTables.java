@@ -0,0 +1,417 @@
+package org.phenopackets.omopexporter.dao;
+
+import org.roaringbitmap.RoaringBitmap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The optional staging layer: denormalized copies of the measurement, drug_exposure, procedure_occurrence and
+ * condition_occurrence rows with their concepts already resolved to CURIEs and labels, created by the
+ * {@code db/staging} migration. With {@code omop-exporter.staging.enabled=true} the DAOs read each section from its
+ * staging table alone, without the concept_relationship and drug_strength joins or any concept lookups, so that their
+ * latency no longer depends on the size of the vocabulary.
+ * <p>
+ * The tables are refreshed incrementally from the high-water mark of each source table's primary key, a batch of
+ * {@code omop-exporter.staging.refresh-batch-size} source rows at a time. Each batch is staged in one transaction with
+ * the update of its watermark, whose row is locked for the duration, so a refresh which is interrupted carries on from
+ * where it stopped and concurrent refreshes from several instances do not stage a row twice. Only rows added with a
+ * greater primary key are picked up: rows which are updated or deleted, and concepts which are renamed when the
+ * vocabulary is reloaded, need a full refresh. A row whose transaction commits after that of a row with a greater key
+ * has been staged is also missed until the next full refresh, as with {@link PersonChanges}, so the OMOP tables are
+ * best loaded in one transaction at a time.
+ * <p>
+ * A full refresh stages every row into a copy of each staging table, which then replaces the table in a short
+ * transaction that moves its watermark to the last row copied, so that the DAOs keep reading the old rows until the
+ * new ones are ready rather than waiting on the lock of a {@code TRUNCATE}. The copy is made with
+ * {@code CREATE TABLE ... (LIKE ... INCLUDING ALL)} and renamed, along with its indexes, so any privileges granted on
+ * the staging tables to other roles have to be granted again. A full refresh is run by one instance at a time.
+ * <p>
+ * The DAOs keep reading the OMOP tables until every staging table has been loaded.
+ */
+@Component
+public class StagingTables {
+
+    private static final Logger logger = LoggerFactory.getLogger(StagingTables.class);
+
+    private static final String SELECT_UNLOADED = "SELECT count(*) FROM omop_exporter_stage_watermark WHERE refreshed_at IS NULL";
+
+    private static final String SELECT_WATERMARKS = "SELECT source_table, max_source_id FROM omop_exporter_stage_watermark";
+
+    private static final String SELECT_WATERMARK = "SELECT max_source_id FROM omop_exporter_stage_watermark WHERE source_table = ? FOR UPDATE";
+
+    private static final String UPDATE_WATERMARK = "UPDATE omop_exporter_stage_watermark SET max_source_id = ? WHERE source_table = ?";
+
+    private static final String MARK_REFRESHED = "UPDATE omop_exporter_stage_watermark SET refreshed_at = now() WHERE source_table = ?";
+
+    private static final String SWAP_WATERMARK = "UPDATE omop_exporter_stage_watermark SET max_source_id = ?, refreshed_at = now() WHERE source_table = ?";
+
+    // pairs each index of a rebuilt table with that of the staging table it replaces, by their definitions less their
+    // names and tables
+    private static final String SELECT_INDEX_NAMES = "SELECT rebuilt.indexname, staged.indexname\n" +
+            "FROM pg_indexes rebuilt\n" +
+            "JOIN pg_indexes staged ON regexp_replace(staged.indexdef, 'INDEX \\S+ ON \\S+', '') = regexp_replace(rebuilt.indexdef, 'INDEX \\S+ ON \\S+', '')\n" +
+            "WHERE rebuilt.schemaname = current_schema() AND rebuilt.tablename = ? AND staged.schemaname = current_schema() AND staged.tablename = ?";
+
+    // how long swapping in a rebuilt table waits for the queries reading the old one, during which new queries queue
+    // behind it, before the refresh fails rather than stalling them any longer
+    private static final String SWAP_LOCK_TIMEOUT = "SET LOCAL lock_timeout = '2s'";
+
+    private static final String STAGE_MEASUREMENTS = "INSERT INTO omop_exporter_stage_measurement (measurement_id, person_id, measurement_datetime,\n" +
+            "       assay_curie, assay_label, value_as_number, value_concept_curie, value_concept_label, value_label, unit_curie, unit_label, unit_source_value)\n" +
+            "SELECT m.measurement_id,\n" +
+            "       m.person_id,\n" +
+            "       coalesce(m.measurement_datetime, m.measurement_date),\n" +
+            "       ca.vocabulary_id || ':' || ca.concept_code,\n" +
+            "       ca.concept_name,\n" +
+            "       m.value_as_number,\n" +
+            "       cv.vocabulary_id || ':' || cv.concept_code,\n" +
+            "       cv.concept_name,\n" +
+            "       m.value_source_value,\n" +
+            "       cu.vocabulary_id || ':' || cu.concept_code,\n" +
+            "       cu.concept_name,\n" +
+            "       m.unit_source_value\n" +
+            "FROM measurement m\n" +
+            "LEFT JOIN concept ca on ca.concept_id = m.measurement_concept_id\n" +
+            "LEFT JOIN concept cv on cv.concept_id = m.value_as_concept_id\n" +
+            "LEFT JOIN concept cu on cu.concept_id = m.unit_concept_id\n" +
+            "WHERE m.measurement_id > ? AND m.measurement_id <= ?";
+
+    private static final String STAGE_DRUG_EXPOSURES = "INSERT INTO omop_exporter_stage_drug_exposure (drug_exposure_id, ingredient_concept_id, person_id, interval_start, interval_end,\n" +
+            "       agent_curie, agent_label, route_curie, route_label, quantity_unit_curie, quantity_unit_label, quantity_value)\n" +
+            "SELECT de.drug_exposure_id,\n" +
+            "       coalesce(ds.ingredient_concept_id, 0),\n" +
+            "       de.person_id,\n" +
+            "       de.drug_exposure_start_date,\n" +
+            "       de.drug_exposure_start_date + de.days_supply,\n" +
+            "       ca.vocabulary_id || ':' || ca.concept_code,\n" +
+            "       ca.concept_name,\n" +
+            "       cr.vocabulary_id || ':' || cr.concept_code,\n" +
+            "       cr.concept_name,\n" +
+            "       cu.vocabulary_id || ':' || cu.concept_code,\n" +
+            "       cu.concept_name,\n" +
+            "       ds.amount_value\n" +
+            "FROM drug_exposure de\n" +
+            "LEFT JOIN drug_strength ds on ds.drug_concept_id = de.drug_concept_id\n" +
+            "LEFT JOIN concept ca on ca.concept_id = de.drug_concept_id\n" +
+            "LEFT JOIN concept cr on cr.concept_id = de.route_concept_id\n" +
+            "LEFT JOIN concept cu on cu.concept_id = ds.amount_unit_concept_id\n" +
+            "WHERE de.drug_exposure_id > ? AND de.drug_exposure_id <= ?";
+
+    private static final String STAGE_PROCEDURES = "INSERT INTO omop_exporter_stage_procedure_occurrence (procedure_occurrence_id, body_site_concept_id, person_id, performed_datetime,\n" +
+            "       procedure_curie, procedure_label, body_site_curie, body_site_label)\n" +
+            "SELECT po.procedure_occurrence_id,\n" +
+            "       coalesce(cr.concept_id_2, 0),\n" +
+            "       po.person_id,\n" +
+            "       po.procedure_datetime,\n" +
+            "       cp.vocabulary_id || ':' || cp.concept_code,\n" +
+            "       cp.concept_name,\n" +
+            "       cb.vocabulary_id || ':' || cb.concept_code,\n" +
+            "       cb.concept_name\n" +
+            "FROM procedure_occurrence po\n" +
+            "LEFT JOIN concept_relationship cr on cr.concept_id_1 = po.procedure_concept_id and cr.relationship_id = 'Has proc site'\n" +
+            "LEFT JOIN concept cp on cp.concept_id = po.procedure_concept_id\n" +
+            "LEFT JOIN concept cb on cb.concept_id = cr.concept_id_2\n" +
+            "WHERE po.procedure_occurrence_id > ? AND po.procedure_occurrence_id <= ?";
+
+    private static final String STAGE_CONDITIONS = "INSERT INTO omop_exporter_stage_condition_occurrence (condition_occurrence_id, person_id, onset_timestamp, resolution,\n" +
+            "       term_curie, term_label)\n" +
+            "SELECT co.condition_occurrence_id,\n" +
+            "       co.person_id,\n" +
+            "       co.condition_start_date,\n" +
+            "       co.condition_end_date,\n" +
+            "       ct.vocabulary_id || ':' || ct.concept_code,\n" +
+            "       ct.concept_name\n" +
+            "FROM condition_occurrence co\n" +
+            "LEFT JOIN concept ct on ct.concept_id = co.condition_concept_id\n" +
+            "WHERE co.condition_occurrence_id > ? AND co.condition_occurrence_id <= ?";
+
+    /**
+     * The OMOP tables which are staged, each with its staging table and the statement which stages its rows with
+     * primary keys in a range.
+     */
+    enum Source {
+        MEASUREMENT("measurement", "measurement_id", STAGE_MEASUREMENTS),
+        DRUG_EXPOSURE("drug_exposure", "drug_exposure_id", STAGE_DRUG_EXPOSURES),
+        PROCEDURE_OCCURRENCE("procedure_occurrence", "procedure_occurrence_id", STAGE_PROCEDURES),
+        CONDITION_OCCURRENCE("condition_occurrence", "condition_occurrence_id", STAGE_CONDITIONS);
+
+        private final String table;
+        private final String stagingTable;
+        private final String rebuildTable;
+        private final String stage;
+        private final String stageReturningPersons;
+        private final String rebuild;
+        private final String selectBatchEnd;
+
+        Source(String table, String idColumn, String stage) {
+            this.table = table;
+            this.stagingTable = "omop_exporter_stage_" + table;
+            this.rebuildTable = stagingTable + "_rebuild";
+            this.stage = stage;
+            this.stageReturningPersons = stage + "\nRETURNING person_id";
+            String insert = "INSERT INTO " + stagingTable + " ";
+            if (!stage.startsWith(insert)) {
+                throw new IllegalArgumentException("The statement staging " + table + " does not insert into " + stagingTable);
+            }
+            this.rebuild = "INSERT INTO " + rebuildTable + " " + stage.substring(insert.length());
+            // the primary key which ends the next batch of rows after the watermark, or null if there are none
+            this.selectBatchEnd = "SELECT max(" + idColumn + ") FROM (SELECT " + idColumn + " FROM " + table + " WHERE " + idColumn + " > ? ORDER BY " + idColumn + " LIMIT ?) batch";
+        }
+
+        String getStage() {
+            return stage;
+        }
+
+        String getSelectBatchEnd() {
+            return selectBatchEnd;
+        }
+    }
+
+    private final JdbcTemplate jdbcTemplate;
+    private final boolean enabled;
+    private final int batchSize;
+    private volatile boolean loaded;
+
+    public StagingTables(JdbcTemplate jdbcTemplate,
+                         @Value("${omop-exporter.staging.enabled:false}") boolean enabled,
+                         @Value("${omop-exporter.staging.refresh-batch-size:100000}") int batchSize) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.enabled = enabled;
+        this.batchSize = batchSize;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Returns true if the DAOs should read the staging tables rather than the OMOP tables, which is once staging is
+     * enabled and every staging table has been loaded.
+     */
+    public boolean isReadable() {
+        return enabled && loaded;
+    }
+
+    /**
+     * Checks whether the staging tables were loaded before this instance started, as the DAOs can then read them
+     * straight away.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void checkLoaded() {
+        if (!enabled) {
+            return;
+        }
+        Integer unloaded = jdbcTemplate.queryForObject(SELECT_UNLOADED, Integer.class);
+        loaded = unloaded != null && unloaded == 0;
+        if (!loaded) {
+            logger.info("The staging tables have not been loaded, reading the OMOP tables until they are");
+        }
+    }
+
+    /**
+     * Returns the greatest primary key staged from each OMOP table.
+     */
+    public Map<String, Long> getWatermarks() {
+        Map<String, Long> watermarks = new LinkedHashMap<>();
+        jdbcTemplate.query(SELECT_WATERMARKS, resultSet -> {
+            watermarks.put(resultSet.getString(1), resultSet.getLong(2));
+        });
+        return watermarks;
+    }
+
+    /**
+     * Stages the rows added to the OMOP tables since the last refresh or, if full is true, rebuilds the staging tables
+     * from every row. Returns the number of rows staged for each OMOP table. The staging tables are written on the
+     * primary database, from which any read replicas copy them.
+     *
+     * @throws IllegalStateException if staging is not enabled
+     */
+    public Map<String, Integer> refresh(boolean full) {
+        return refresh(full, new RoaringBitmap());
+    }
+
+    /**
+     * Refreshes the staging tables as {@link #refresh(boolean)} does, adding the persons with rows staged by an
+     * incremental refresh to the changedPersons. Those of a full refresh, which may be all of them, are not added.
+     */
+    public synchronized Map<String, Integer> refresh(boolean full, RoaringBitmap changedPersons) {
+        if (!enabled) {
+            throw new IllegalStateException("Staging is not enabled");
+        }
+        Map<String, Integer> staged = new LinkedHashMap<>();
+        try (Routing.Scope ignored = Routing.bind(Routing.PRIMARY)) {
+            if (full) {
+                for (Source source : Source.values()) {
+                    staged.put(source.table, rebuild(source));
+                }
+            }
+            for (Source source : Source.values()) {
+                staged.merge(source.table, refresh(source, changedPersons), Integer::sum);
+            }
+        }
+        if (!loaded) {
+            loaded = true;
+            logger.info("Loaded the staging tables, reading them rather than the OMOP tables");
+        }
+        return staged;
+    }
+
+    private int refresh(Source source, RoaringBitmap changedPersons) {
+        int staged = 0;
+        while (true) {
+            Integer batch = inTransaction(connection -> stageBatch(connection, source, changedPersons));
+            if (batch == null) {
+                break;
+            }
+            staged += batch;
+        }
+        jdbcTemplate.update(MARK_REFRESHED, source.table);
+        if (staged > 0) {
+            logger.info("Staged {} rows from {}", staged, source.table);
+        }
+        return staged;
+    }
+
+    /**
+     * Stages the next batch of rows after the watermark and moves the watermark past them. Returns the number of rows
+     * staged, or null if there were no more rows.
+     */
+    private Integer stageBatch(Connection connection, Source source, RoaringBitmap changedPersons) throws SQLException {
+        long watermark;
+        try (PreparedStatement ps = connection.prepareStatement(SELECT_WATERMARK)) {
+            ps.setString(1, source.table);
+            try (ResultSet resultSet = ps.executeQuery()) {
+                if (!resultSet.next()) {
+                    throw new SQLException("No staging watermark for " + source.table + ", has the db/staging migration been applied?");
+                }
+                watermark = resultSet.getLong(1);
+            }
+        }
+        Long batchEnd = selectBatchEnd(connection, source, watermark);
+        if (batchEnd == null) {
+            return null;
+        }
+        int staged = 0;
+        try (PreparedStatement ps = connection.prepareStatement(source.stageReturningPersons)) {
+            ps.setLong(1, watermark);
+            ps.setLong(2, batchEnd);
+            try (ResultSet resultSet = ps.executeQuery()) {
+                while (resultSet.next()) {
+                    changedPersons.add(resultSet.getInt(1));
+                    staged++;
+                }
+            }
+        }
+        try (PreparedStatement ps = connection.prepareStatement(UPDATE_WATERMARK)) {
+            ps.setLong(1, batchEnd);
+            ps.setString(2, source.table);
+            ps.executeUpdate();
+        }
+        return staged;
+    }
+
+    private Long selectBatchEnd(Connection connection, Source source, long after) throws SQLException {
+        try (PreparedStatement ps = connection.prepareStatement(source.selectBatchEnd)) {
+            ps.setLong(1, after);
+            ps.setInt(2, batchSize);
+            try (ResultSet resultSet = ps.executeQuery()) {
+                resultSet.next();
+                long batchEnd = resultSet.getLong(1);
+                return resultSet.wasNull() ? null : batchEnd;
+            }
+        }
+    }
+
+    /**
+     * Stages every row of the source into a new copy of its staging table, a batch at a time, and swaps it in for the
+     * staging table. Returns the number of rows staged.
+     */
+    private int rebuild(Source source) {
+        jdbcTemplate.execute("DROP TABLE IF EXISTS " + source.rebuildTable);
+        jdbcTemplate.execute("CREATE TABLE " + source.rebuildTable + " (LIKE " + source.stagingTable + " INCLUDING ALL)");
+        int staged = 0;
+        long end = 0;
+        while (true) {
+            long start = end;
+            Long batchEnd = jdbcTemplate.execute((ConnectionCallback<Long>) connection -> selectBatchEnd(connection, source, start));
+            if (batchEnd == null) {
+                break;
+            }
+            staged += jdbcTemplate.update(source.rebuild, start, batchEnd);
+            end = batchEnd;
+        }
+        long rebuiltEnd = end;
+        inTransaction(connection -> swap(connection, source, rebuiltEnd));
+        logger.info("Rebuilt the staging table of {} from {} rows", source.table, staged);
+        return staged;
+    }
+
+    /**
+     * Replaces the staging table with its rebuilt copy, and moves the watermark to the last row copied. Rows staged
+     * into the old table by another instance meanwhile are staged again by the next refresh.
+     */
+    private Void swap(Connection connection, Source source, long rebuiltEnd) throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            statement.execute(SWAP_LOCK_TIMEOUT);
+        }
+        // waits for an incremental refresh of the source to commit
+        try (PreparedStatement ps = connection.prepareStatement(SELECT_WATERMARK)) {
+            ps.setString(1, source.table);
+            ps.executeQuery().close();
+        }
+        Map<String, String> indexNames = new LinkedHashMap<>();
+        try (PreparedStatement ps = connection.prepareStatement(SELECT_INDEX_NAMES)) {
+            ps.setString(1, source.rebuildTable);
+            ps.setString(2, source.stagingTable);
+            try (ResultSet resultSet = ps.executeQuery()) {
+                while (resultSet.next()) {
+                    indexNames.put(resultSet.getString(1), resultSet.getString(2));
+                }
+            }
+        }
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("DROP TABLE " + source.stagingTable);
+            statement.execute("ALTER TABLE " + source.rebuildTable + " RENAME TO " + source.stagingTable);
+            for (Map.Entry<String, String> indexName : indexNames.entrySet()) {
+                statement.execute("ALTER INDEX " + indexName.getKey() + " RENAME TO " + indexName.getValue());
+            }
+        }
+        try (PreparedStatement ps = connection.prepareStatement(SWAP_WATERMARK)) {
+            ps.setLong(1, rebuiltEnd);
+            ps.setString(2, source.table);
+            ps.executeUpdate();
+        }
+        return null;
+    }
+
+    private <T> T inTransaction(ConnectionCallback<T> callback) {
+        return jdbcTemplate.execute((ConnectionCallback<T>) connection -> {
+            boolean autoCommit = connection.getAutoCommit();
+            connection.setAutoCommit(false);
+            try {
+                T result = callback.doInConnection(connection);
+                connection.commit();
+                return result;
+            } catch (SQLException | RuntimeException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(autoCommit);
+            }
+        });
+    }
+}
@@ -0,0 +1,120 @@
+package org.phenopackets.omopexporter.dao;
+
+import com.google.protobuf.Timestamp;
+import com.google.protobuf.util.Timestamps;
+import org.phenopackets.schema.v2.core.DoseInterval;
+import org.phenopackets.schema.v2.core.OntologyClass;
+import org.phenopackets.schema.v2.core.TimeInterval;
+import org.phenopackets.schema.v2.core.Treatment;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Merges the single dose treatments mapped from drug_exposure rows into one treatment for each agent, route of
+ * administration and unit, with a dose interval for each run of overlapping or contiguous exposures of the same
+ * quantity. A patient on a chronic medication then has one treatment with a few dose intervals rather than a treatment
+ * for every prescription fill.
+ * <p>
+ * This is a single pass which only compares each treatment with the one before it, so it only merges fully when the
+ * treatments are ordered as by {@link MedicalActionDao#SELECT_PERSON_TREATMENTS}: by agent, route, unit, quantity and
+ * then start date. Treatments in any other order are still consolidated correctly, only less compactly.
+ */
+final class TreatmentConsolidator {
+
+    private final List<Treatment> consolidated = new ArrayList<>();
+    private Treatment.Builder treatment;
+    // the first dose interval of the current run, whose interval is widened to start and end
+    private DoseInterval dose;
+    private Timestamp start;
+    private Timestamp end;
+    private boolean merged;
+
+    private TreatmentConsolidator() {
+    }
+
+    static List<Treatment> consolidate(List<Treatment> treatments) {
+        if (treatments.size() < 2) {
+            return treatments;
+        }
+        TreatmentConsolidator consolidator = new TreatmentConsolidator();
+        for (Treatment treatment : treatments) {
+            consolidator.add(treatment);
+        }
+        return consolidator.finish();
+    }
+
+    private void add(Treatment next) {
+        if (treatment == null || !sameTreatment(next)) {
+            finishTreatment();
+            treatment = next.toBuilder().clearDoseIntervals();
+        }
+        for (DoseInterval doseInterval : next.getDoseIntervalsList()) {
+            add(doseInterval);
+        }
+    }
+
+    private void add(DoseInterval doseInterval) {
+        TimeInterval interval = doseInterval.getInterval();
+        Timestamp nextStart = interval.getStart();
+        // drug exposures without a days_supply have no end, so are taken as lasting for the day they started
+        Timestamp nextEnd = interval.hasEnd() ? interval.getEnd() : nextStart;
+        if (dose != null && dose.getQuantity().equals(doseInterval.getQuantity())
+                && dose.getScheduleFrequency().equals(doseInterval.getScheduleFrequency())
+                && Timestamps.compare(nextStart, end) <= 0 && Timestamps.compare(nextEnd, start) >= 0) {
+            start = min(start, nextStart);
+            end = max(end, nextEnd);
+            merged = true;
+            return;
+        }
+        finishDoseInterval();
+        dose = doseInterval;
+        start = nextStart;
+        end = nextEnd;
+        merged = false;
+    }
+
+    private boolean sameTreatment(Treatment next) {
+        // the concepts come from the ConceptCache, so are usually the same instances
+        return sameConcept(treatment.getAgent(), next.getAgent())
+                && sameConcept(treatment.getRouteOfAdministration(), next.getRouteOfAdministration())
+                && next.getDoseIntervalsCount() > 0 && dose != null
+                && sameConcept(dose.getQuantity().getUnit(), next.getDoseIntervals(0).getQuantity().getUnit());
+    }
+
+    private List<Treatment> finish() {
+        finishTreatment();
+        return consolidated;
+    }
+
+    private void finishTreatment() {
+        if (treatment != null) {
+            finishDoseInterval();
+            consolidated.add(treatment.build());
+            treatment = null;
+        }
+    }
+
+    private void finishDoseInterval() {
+        if (dose != null) {
+            if (merged) {
+                treatment.addDoseIntervals(dose.toBuilder().setInterval(TimeInterval.newBuilder().setStart(start).setEnd(end)));
+            } else {
+                treatment.addDoseIntervals(dose);
+            }
+            dose = null;
+        }
+    }
+
+    private static boolean sameConcept(OntologyClass a, OntologyClass b) {
+        return a == b || a.equals(b);
+    }
+
+    private static Timestamp min(Timestamp a, Timestamp b) {
+        return Timestamps.compare(a, b) <= 0 ? a : b;
+    }
+
+    private static Timestamp max(Timestamp a, Timestamp b) {
+        return Timestamps.compare(a, b) >= 0 ? a : b;
+    }
+}
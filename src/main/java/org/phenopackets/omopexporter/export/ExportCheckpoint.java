@@ -0,0 +1,75 @@
+package org.phenopackets.omopexporter.export;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Optional;
+import java.util.Properties;
+
+/**
+ * The progress of an export as recorded in its directory: every person up to and including lastPersonId is in one of
+ * the completed shards, and the next shard to be written is nextShard. It is only written once a shard has been
+ * closed, so on resuming, any later partial shard can be discarded and the export continued after lastPersonId.
+ */
+class ExportCheckpoint {
+
+    static final String FILE_NAME = "checkpoint.properties";
+
+    static final ExportCheckpoint START = new ExportCheckpoint(Integer.MIN_VALUE, 0, false);
+
+    private final int lastPersonId;
+    private final int nextShard;
+    private final boolean complete;
+
+    ExportCheckpoint(int lastPersonId, int nextShard, boolean complete) {
+        this.lastPersonId = lastPersonId;
+        this.nextShard = nextShard;
+        this.complete = complete;
+    }
+
+    int getLastPersonId() {
+        return lastPersonId;
+    }
+
+    int getNextShard() {
+        return nextShard;
+    }
+
+    boolean isComplete() {
+        return complete;
+    }
+
+    static Optional<ExportCheckpoint> read(Path directory) throws IOException {
+        Path file = directory.resolve(FILE_NAME);
+        if (!Files.exists(file)) {
+            return Optional.empty();
+        }
+        Properties properties = new Properties();
+        try (Reader reader = Files.newBufferedReader(file)) {
+            properties.load(reader);
+        }
+        return Optional.of(new ExportCheckpoint(
+                Integer.parseInt(properties.getProperty("lastPersonId")),
+                Integer.parseInt(properties.getProperty("nextShard")),
+                Boolean.parseBoolean(properties.getProperty("complete"))));
+    }
+
+    /**
+     * Writes the checkpoint to a temporary file which is then moved over the previous checkpoint, so that a crash
+     * leaves either the old or the new checkpoint and never a partial one.
+     */
+    void write(Path directory) throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty("lastPersonId", Integer.toString(lastPersonId));
+        properties.setProperty("nextShard", Integer.toString(nextShard));
+        properties.setProperty("complete", Boolean.toString(complete));
+        Path temporary = directory.resolve(FILE_NAME + ".tmp");
+        try (Writer writer = Files.newBufferedWriter(temporary)) {
+            properties.store(writer, "OMOP phenopacket export checkpoint");
+        }
+        Files.move(temporary, directory.resolve(FILE_NAME), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
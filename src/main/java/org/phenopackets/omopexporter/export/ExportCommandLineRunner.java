@@ -0,0 +1,57 @@
+package org.phenopackets.omopexporter.export;
+
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.boot.ExitCodeGenerator;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+
+/**
+ * Runs a single export job when the application is started with {@code export} as its first argument, e.g.
+ * <pre>
+ * java -jar omop-exporter.jar export --name=full --format=DELIMITED_PROTOBUF --workers=4 [--resume]
+ * </pre>
+ */
+@Component
+@ConditionalOnProperty("omop-exporter.export.cli")
+public class ExportCommandLineRunner implements ApplicationRunner, ExitCodeGenerator {
+
+    private final ExportJobService exportJobService;
+    private ExportJob job;
+
+    public ExportCommandLineRunner(ExportJobService exportJobService) {
+        this.exportJobService = exportJobService;
+    }
+
+    @Override
+    public void run(ApplicationArguments args) {
+        ExportJobRequest request = new ExportJobRequest();
+        request.setName(option(args, "name"));
+        String format = option(args, "format");
+        if (format != null) {
+            request.setFormat(ExportFormat.valueOf(format));
+        }
+        String workers = option(args, "workers");
+        if (workers != null) {
+            request.setWorkers(Integer.parseInt(workers));
+        }
+        String maxShardBytes = option(args, "max-shard-bytes");
+        if (maxShardBytes != null) {
+            request.setMaxShardBytes(Long.parseLong(maxShardBytes));
+        }
+        request.setResume(args.containsOption("resume"));
+        job = exportJobService.runNow(request);
+    }
+
+    @Override
+    public int getExitCode() {
+        return job != null && job.getState() == ExportJob.State.COMPLETED ? 0 : 1;
+    }
+
+    private static String option(ApplicationArguments args, String name) {
+        List<String> values = args.getOptionValues(name);
+        return values == null || values.isEmpty() ? null : values.get(0);
+    }
+}
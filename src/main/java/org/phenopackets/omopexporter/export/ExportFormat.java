@@ -0,0 +1,28 @@
+package org.phenopackets.omopexporter.export;
+
+/**
+ * The file formats an export can write its shards in.
+ */
+public enum ExportFormat {
+
+    /**
+     * Gzip-compressed newline-delimited JSON, one phenopacket per line.
+     */
+    NDJSON_GZIP(".ndjson.gz"),
+
+    /**
+     * Binary protobuf phenopackets, each prefixed by its length as a varint, as written by
+     * {@link com.google.protobuf.MessageLite#writeDelimitedTo(java.io.OutputStream)}.
+     */
+    DELIMITED_PROTOBUF(".pb");
+
+    private final String fileExtension;
+
+    ExportFormat(String fileExtension) {
+        this.fileExtension = fileExtension;
+    }
+
+    public String getFileExtension() {
+        return fileExtension;
+    }
+}
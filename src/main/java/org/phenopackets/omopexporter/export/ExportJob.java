@@ -0,0 +1,92 @@
+package org.phenopackets.omopexporter.export;
+
+import java.time.Instant;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The state of an export job, as reported by the status endpoint.
+ */
+public class ExportJob {
+
+    public enum State {
+        RUNNING, COMPLETED, CANCELLED, FAILED
+    }
+
+    private final String name;
+    private final ExportFormat format;
+    private final Instant startedAt = Instant.now();
+    private final AtomicLong personsExported = new AtomicLong();
+    private volatile State state = State.RUNNING;
+    private volatile boolean cancelRequested;
+    private volatile int lastCheckpointedPersonId;
+    private volatile int shardsWritten;
+    private volatile Instant finishedAt;
+    private volatile String error;
+
+    ExportJob(String name, ExportFormat format) {
+        this.name = name;
+        this.format = format;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public ExportFormat getFormat() {
+        return format;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    public Instant getStartedAt() {
+        return startedAt;
+    }
+
+    public Instant getFinishedAt() {
+        return finishedAt;
+    }
+
+    /**
+     * The number of persons exported by this run of the job, not counting those exported before it was resumed.
+     */
+    public long getPersonsExported() {
+        return personsExported.get();
+    }
+
+    public int getLastCheckpointedPersonId() {
+        return lastCheckpointedPersonId;
+    }
+
+    public int getShardsWritten() {
+        return shardsWritten;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    boolean isCancelRequested() {
+        return cancelRequested;
+    }
+
+    void requestCancel() {
+        cancelRequested = true;
+    }
+
+    void personExported() {
+        personsExported.incrementAndGet();
+    }
+
+    void checkpointed(ExportCheckpoint checkpoint) {
+        lastCheckpointedPersonId = checkpoint.getLastPersonId();
+        shardsWritten = checkpoint.getNextShard();
+    }
+
+    void finished(State state, String error) {
+        this.error = error;
+        this.finishedAt = Instant.now();
+        this.state = state;
+    }
+}
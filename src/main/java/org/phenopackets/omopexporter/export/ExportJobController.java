@@ -0,0 +1,48 @@
+package org.phenopackets.omopexporter.export;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.util.Collection;
+
+@RestController
+@RequestMapping("export-jobs")
+public class ExportJobController {
+
+    private final ExportJobService exportJobService;
+
+    public ExportJobController(ExportJobService exportJobService) {
+        this.exportJobService = exportJobService;
+    }
+
+    @PostMapping
+    public ResponseEntity<ExportJob> startExportJob(@RequestBody ExportJobRequest request) {
+        try {
+            return ResponseEntity.status(HttpStatus.ACCEPTED).body(exportJobService.start(request));
+        } catch (IllegalArgumentException e) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, e.getMessage());
+        } catch (IllegalStateException e) {
+            throw new ResponseStatusException(HttpStatus.CONFLICT, e.getMessage());
+        }
+    }
+
+    @GetMapping
+    public Collection<ExportJob> getExportJobs() {
+        return exportJobService.getJobs();
+    }
+
+    @GetMapping("{name}")
+    public ExportJob getExportJob(@PathVariable String name) {
+        return exportJobService.getJob(name)
+                .orElseThrow(() -> new ResponseStatusException(HttpStatus.NOT_FOUND, "No export job " + name));
+    }
+
+    @PostMapping("{name}/cancel")
+    public ExportJob cancelExportJob(@PathVariable String name) {
+        ExportJob job = getExportJob(name);
+        exportJobService.cancel(name);
+        return job;
+    }
+}
@@ -0,0 +1,60 @@
+package org.phenopackets.omopexporter.export;
+
+/**
+ * Parameters of an export job. Unset values take the defaults from the {@code omop-exporter.export} properties.
+ */
+public class ExportJobRequest {
+
+    private String name;
+    private ExportFormat format;
+    private Integer workers;
+    private Long maxShardBytes;
+    private boolean resume;
+
+    /**
+     * The name of the job, which is also the name of the directory under the export base directory that the shards
+     * and checkpoint are written to.
+     */
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public ExportFormat getFormat() {
+        return format;
+    }
+
+    public void setFormat(ExportFormat format) {
+        this.format = format;
+    }
+
+    public Integer getWorkers() {
+        return workers;
+    }
+
+    public void setWorkers(Integer workers) {
+        this.workers = workers;
+    }
+
+    public Long getMaxShardBytes() {
+        return maxShardBytes;
+    }
+
+    public void setMaxShardBytes(Long maxShardBytes) {
+        this.maxShardBytes = maxShardBytes;
+    }
+
+    /**
+     * If true, the job continues from the checkpoint left in its directory by an earlier run of the same name.
+     */
+    public boolean isResume() {
+        return resume;
+    }
+
+    public void setResume(boolean resume) {
+        this.resume = resume;
+    }
+}
@@ -0,0 +1,200 @@
+package org.phenopackets.omopexporter.export;
+
+import org.phenopackets.omopexporter.PhenopacketAssembler;
+import org.phenopackets.omopexporter.dao.IndividualDao;
+import org.phenopackets.schema.v2.Phenopacket;
+import org.phenopackets.schema.v2.core.MetaData;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Pattern;
+
+/**
+ * Runs exports of every person in the OMOP database to sharded phenopacket files. The person table is walked in
+ * person_id order by keyset pagination, and the phenopackets for up to {@code workers} batches are assembled
+ * concurrently while the completed batches are written out in order. Progress is checkpointed as each shard is closed
+ * so that an interrupted job can be resumed.
+ */
+@Service
+public class ExportJobService {
+
+    private static final Logger logger = LoggerFactory.getLogger(ExportJobService.class);
+
+    private static final Pattern JOB_NAME = Pattern.compile("[A-Za-z0-9_-]+");
+
+    private final PhenopacketAssembler phenopacketAssembler;
+    private final IndividualDao individualDao;
+    private final Path baseDirectory;
+    private final ExportFormat defaultFormat;
+    private final int defaultWorkers;
+    private final long defaultMaxShardBytes;
+    private final int batchSize;
+    private final Map<String, ExportJob> jobs = new ConcurrentHashMap<>();
+    private final ExecutorService jobExecutor = Executors.newCachedThreadPool(new CustomizableThreadFactory("omop-export-"));
+
+    public ExportJobService(PhenopacketAssembler phenopacketAssembler, IndividualDao individualDao,
+                            @Value("${omop-exporter.export.base-directory:exports}") Path baseDirectory,
+                            @Value("${omop-exporter.export.format:NDJSON_GZIP}") ExportFormat defaultFormat,
+                            @Value("${omop-exporter.export.workers:2}") int defaultWorkers,
+                            @Value("${omop-exporter.export.max-shard-bytes:268435456}") long defaultMaxShardBytes,
+                            @Value("${omop-exporter.batch-size:500}") int batchSize) {
+        this.phenopacketAssembler = phenopacketAssembler;
+        this.individualDao = individualDao;
+        this.baseDirectory = baseDirectory;
+        this.defaultFormat = defaultFormat;
+        this.defaultWorkers = defaultWorkers;
+        this.defaultMaxShardBytes = defaultMaxShardBytes;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Starts the export in the background, returning the job whose progress can then be followed.
+     */
+    public ExportJob start(ExportJobRequest request) {
+        ExportJob job = register(request);
+        jobExecutor.submit(() -> run(job, request));
+        return job;
+    }
+
+    /**
+     * Runs the export on the calling thread, returning the job once it has finished.
+     */
+    public ExportJob runNow(ExportJobRequest request) {
+        ExportJob job = register(request);
+        run(job, request);
+        return job;
+    }
+
+    public Optional<ExportJob> getJob(String name) {
+        return Optional.ofNullable(jobs.get(name));
+    }
+
+    public Collection<ExportJob> getJobs() {
+        return jobs.values();
+    }
+
+    /**
+     * Requests that the job stops. It finishes writing its current batch, then closes its shard and checkpoints so that
+     * it can later be resumed.
+     */
+    public boolean cancel(String name) {
+        ExportJob job = jobs.get(name);
+        if (job == null || job.getState() != ExportJob.State.RUNNING) {
+            return false;
+        }
+        job.requestCancel();
+        return true;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        jobs.values().forEach(ExportJob::requestCancel);
+        jobExecutor.shutdown();
+    }
+
+    private ExportJob register(ExportJobRequest request) {
+        String name = request.getName();
+        if (name == null || !JOB_NAME.matcher(name).matches()) {
+            throw new IllegalArgumentException("Export job name must consist of letters, digits, '-' and '_' but was " + name);
+        }
+        ExportJob job = new ExportJob(name, request.getFormat() == null ? defaultFormat : request.getFormat());
+        ExportJob existing = jobs.putIfAbsent(name, job);
+        if (existing != null) {
+            if (existing.getState() == ExportJob.State.RUNNING) {
+                throw new IllegalStateException("Export job " + name + " is already running");
+            }
+            jobs.put(name, job);
+        }
+        return job;
+    }
+
+    private void run(ExportJob job, ExportJobRequest request) {
+        int workers = request.getWorkers() == null ? defaultWorkers : request.getWorkers();
+        long maxShardBytes = request.getMaxShardBytes() == null ? defaultMaxShardBytes : request.getMaxShardBytes();
+        Path directory = baseDirectory.resolve(job.getName());
+        ExecutorService assemblers = Executors.newFixedThreadPool(workers, new CustomizableThreadFactory("omop-export-" + job.getName() + "-"));
+        try {
+            ExportCheckpoint checkpoint = openDirectory(directory, request.isResume());
+            if (checkpoint.isComplete()) {
+                job.checkpointed(checkpoint);
+                job.finished(ExportJob.State.COMPLETED, null);
+                return;
+            }
+            logger.info("Starting export {} to {} after person_id {}", job.getName(), directory, checkpoint.getLastPersonId());
+            MetaData metaData = phenopacketAssembler.createMetaData();
+            try (ShardWriter shardWriter = new ShardWriter(directory, job.getFormat(), maxShardBytes, checkpoint)) {
+                Deque<Future<List<Phenopacket>>> inFlight = new ArrayDeque<>();
+                int afterPersonId = checkpoint.getLastPersonId();
+                boolean exhausted = false;
+                while (!job.isCancelRequested()) {
+                    while (!exhausted && inFlight.size() < workers) {
+                        List<Integer> batch = individualDao.getPersonIds(afterPersonId, Integer.MAX_VALUE, batchSize);
+                        if (batch.isEmpty()) {
+                            exhausted = true;
+                        } else {
+                            afterPersonId = batch.get(batch.size() - 1);
+                            inFlight.add(assemblers.submit(() -> phenopacketAssembler.assemble(batch, metaData)));
+                        }
+                    }
+                    Future<List<Phenopacket>> next = inFlight.poll();
+                    if (next == null) {
+                        break;
+                    }
+                    for (Phenopacket phenopacket : next.get()) {
+                        shardWriter.write(phenopacket);
+                        job.personExported();
+                    }
+                    job.checkpointed(shardWriter.getCheckpoint());
+                }
+                if (job.isCancelRequested()) {
+                    inFlight.forEach(future -> future.cancel(true));
+                    shardWriter.suspend();
+                } else {
+                    shardWriter.finish();
+                }
+                job.checkpointed(shardWriter.getCheckpoint());
+            }
+            job.finished(job.isCancelRequested() ? ExportJob.State.CANCELLED : ExportJob.State.COMPLETED, null);
+            logger.info("Export {} {} after exporting {} persons", job.getName(), job.getState(), job.getPersonsExported());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            job.finished(ExportJob.State.CANCELLED, "Interrupted");
+        } catch (IOException | ExecutionException | RuntimeException e) {
+            Throwable cause = e instanceof ExecutionException ? e.getCause() : e;
+            logger.error("Export {} failed", job.getName(), cause);
+            job.finished(ExportJob.State.FAILED, cause.toString());
+        } finally {
+            assemblers.shutdownNow();
+        }
+    }
+
+    private ExportCheckpoint openDirectory(Path directory, boolean resume) throws IOException {
+        Files.createDirectories(directory);
+        Optional<ExportCheckpoint> existing = ExportCheckpoint.read(directory);
+        if (existing.isPresent() && !resume) {
+            throw new IllegalStateException("Directory " + directory + " already holds an export, either resume it or use another name");
+        }
+        ExportCheckpoint checkpoint = existing.orElse(ExportCheckpoint.START);
+        ShardWriter.discardUncheckpointedShards(directory, checkpoint);
+        return checkpoint;
+    }
+}
@@ -0,0 +1,160 @@
+package org.phenopackets.omopexporter.export;
+
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.util.JsonFormat;
+import org.phenopackets.schema.v2.Phenopacket;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes phenopackets in person_id order to numbered shard files, starting a new shard once the current one reaches the
+ * maximum size. Shards are written as {@code .part} files and only renamed to their final name once closed, at which
+ * point the {@link ExportCheckpoint} is advanced past them.
+ */
+class ShardWriter implements Closeable {
+
+    private static final String PART_SUFFIX = ".part";
+
+    private static final Pattern SHARD_FILE_NAME = Pattern.compile("phenopackets-(\\d+)\\.[a-z.]+?(\\.part)?");
+
+    private static final JsonFormat.Printer PRINTER = JsonFormat.printer().omittingInsignificantWhitespace();
+
+    private final Path directory;
+    private final ExportFormat format;
+    private final long maxShardBytes;
+
+    private ExportCheckpoint checkpoint;
+    private int lastPersonId;
+    private FileOutputStream fileOutputStream;
+    private OutputStream outputStream;
+    private Writer writer;
+    private long uncompressedBytes;
+
+    ShardWriter(Path directory, ExportFormat format, long maxShardBytes, ExportCheckpoint checkpoint) {
+        this.directory = directory;
+        this.format = format;
+        this.maxShardBytes = maxShardBytes;
+        this.checkpoint = checkpoint;
+        this.lastPersonId = checkpoint.getLastPersonId();
+    }
+
+    /**
+     * Deletes any shards left in the directory by an export which did not finish that are not covered by the
+     * checkpoint, i.e. partially written shards and any shard which was closed just before a crash.
+     */
+    static void discardUncheckpointedShards(Path directory, ExportCheckpoint checkpoint) throws IOException {
+        try (var files = Files.list(directory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Matcher matcher = SHARD_FILE_NAME.matcher(file.getFileName().toString());
+                if (matcher.matches() && (matcher.group(2) != null || Integer.parseInt(matcher.group(1)) >= checkpoint.getNextShard())) {
+                    Files.delete(file);
+                }
+            }
+        }
+    }
+
+    void write(Phenopacket phenopacket) throws IOException {
+        if (fileOutputStream == null) {
+            openShard();
+        }
+        long shardBytes;
+        if (format == ExportFormat.NDJSON_GZIP) {
+            PRINTER.appendTo(phenopacket, writer);
+            writer.write('\n');
+            // the compressed size is only known for what has made it through the buffers, so shards run slightly over
+            shardBytes = fileOutputStream.getChannel().position();
+        } else {
+            int size = phenopacket.getSerializedSize();
+            phenopacket.writeDelimitedTo(outputStream);
+            uncompressedBytes += CodedOutputStream.computeUInt32SizeNoTag(size) + size;
+            shardBytes = uncompressedBytes;
+        }
+        lastPersonId = Integer.parseInt(phenopacket.getSubject().getId());
+        if (shardBytes >= maxShardBytes) {
+            closeShard(false);
+        }
+    }
+
+    /**
+     * Closes the last shard and marks the export as complete.
+     */
+    void finish() throws IOException {
+        closeShard(true);
+    }
+
+    /**
+     * Closes the current shard, if any, so that the export can be resumed from after the last person written.
+     */
+    void suspend() throws IOException {
+        closeShard(false);
+    }
+
+    ExportCheckpoint getCheckpoint() {
+        return checkpoint;
+    }
+
+    /**
+     * Releases the current shard without checkpointing it, as its last phenopacket may be incomplete. The partial shard
+     * is discarded when the export is resumed.
+     */
+    @Override
+    public void close() throws IOException {
+        if (fileOutputStream != null) {
+            fileOutputStream.close();
+            fileOutputStream = null;
+            outputStream = null;
+            writer = null;
+        }
+    }
+
+    private void openShard() throws IOException {
+        uncompressedBytes = 0;
+        fileOutputStream = new FileOutputStream(partFile(checkpoint.getNextShard()).toFile());
+        if (format == ExportFormat.NDJSON_GZIP) {
+            outputStream = new GZIPOutputStream(fileOutputStream, 64 * 1024);
+            writer = new BufferedWriter(new OutputStreamWriter(outputStream, StandardCharsets.UTF_8), 64 * 1024);
+        } else {
+            outputStream = new BufferedOutputStream(fileOutputStream, 64 * 1024);
+        }
+    }
+
+    private void closeShard(boolean complete) throws IOException {
+        int nextShard = checkpoint.getNextShard();
+        if (fileOutputStream != null) {
+            if (writer != null) {
+                writer.close();
+            } else {
+                outputStream.close();
+            }
+            fileOutputStream = null;
+            outputStream = null;
+            writer = null;
+            Files.move(partFile(nextShard), shardFile(nextShard), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            nextShard++;
+        }
+        checkpoint = new ExportCheckpoint(lastPersonId, nextShard, complete);
+        checkpoint.write(directory);
+    }
+
+    private Path shardFile(int shard) {
+        return directory.resolve(String.format("phenopackets-%05d%s", shard, format.getFileExtension()));
+    }
+
+    private Path partFile(int shard) {
+        return directory.resolve(shardFile(shard).getFileName() + PART_SUFFIX);
+    }
+}
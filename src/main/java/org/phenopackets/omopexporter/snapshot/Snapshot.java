@@ -0,0 +1,186 @@
+package org.phenopackets.omopexporter.snapshot;
+
+import org.phenopackets.omopexporter.PhenopacketCache;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Optional;
+
+/**
+ * A read-only, memory-mapped set of precomputed phenopackets written by a {@link SnapshotWriter}. The index is a sorted
+ * array of fixed-size entries, one per person, which is binary searched for the person_id; the entry locates the
+ * protobuf and JSON serializations of the phenopacket in one of the segment files. Looking up a phenopacket allocates
+ * nothing but the returned {@link Entry}, and its bytes are never copied onto the heap.
+ * <p>
+ * The mappings are released by the garbage collector once the snapshot and the entries read from it are unreachable,
+ * so a snapshot which has been replaced stays readable by the requests still using it.
+ */
+public final class Snapshot {
+
+    static final int MAGIC = 0x50504b53;
+    static final int VERSION = 1;
+    static final int INDEX_HEADER_BYTES = 16;
+    // person_id, segment, offset, protobuf length, JSON length and content digest
+    static final int INDEX_ENTRY_BYTES = 4 + 4 + 8 + 4 + 4 + PhenopacketCache.CONTENT_DIGEST_LENGTH;
+    // the index is mapped as a single buffer, so it can be no larger than 2 GiB
+    static final int MAX_ENTRIES = (Integer.MAX_VALUE - INDEX_HEADER_BYTES) / INDEX_ENTRY_BYTES;
+
+    private final String id;
+    private final Path directory;
+    private final MappedByteBuffer index;
+    private final MappedByteBuffer[] segments;
+    private final int count;
+
+    private Snapshot(String id, Path directory, MappedByteBuffer index, MappedByteBuffer[] segments, int count) {
+        this.id = id;
+        this.directory = directory;
+        this.index = index;
+        this.segments = segments;
+        this.count = count;
+    }
+
+    /**
+     * Maps the snapshot in the directory, whose name is the id of the snapshot.
+     *
+     * @throws IOException if the snapshot is missing or was not completely written
+     */
+    static Snapshot open(Path directory) throws IOException {
+        MappedByteBuffer index = map(indexFile(directory));
+        if (index.capacity() < INDEX_HEADER_BYTES || index.getInt(0) != MAGIC || index.getInt(4) != VERSION) {
+            throw new IOException("Snapshot " + directory + " is incomplete or was written by another version");
+        }
+        int count = index.getInt(8);
+        int segmentCount = index.getInt(12);
+        if (index.capacity() != INDEX_HEADER_BYTES + (long) count * INDEX_ENTRY_BYTES) {
+            throw new IOException("Snapshot " + directory + " has an index of " + index.capacity() + " bytes for " + count + " persons");
+        }
+        MappedByteBuffer[] segments = new MappedByteBuffer[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            segments[i] = map(segmentFile(directory, i));
+        }
+        return new Snapshot(directory.getFileName().toString(), directory, index, segments, count);
+    }
+
+    static Path indexFile(Path directory) {
+        return directory.resolve("index.bin");
+    }
+
+    static Path segmentFile(Path directory, int segment) {
+        return directory.resolve(String.format("segment-%05d.bin", segment));
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * The number of persons in the snapshot.
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Returns the serialized phenopacket of the person, or empty if the person is not in the snapshot.
+     */
+    public Optional<Entry> get(int personId, PhenopacketCache.Representation representation) {
+        int low = 0;
+        int high = count - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int position = entryPosition(middle);
+            int middlePersonId = index.getInt(position);
+            if (middlePersonId < personId) {
+                low = middle + 1;
+            } else if (middlePersonId > personId) {
+                high = middle - 1;
+            } else {
+                return Optional.of(entry(position, representation));
+            }
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * The position of the entry in the index, which fits in an int because the index was mapped as one buffer.
+     */
+    private static int entryPosition(int entry) {
+        return Math.toIntExact(INDEX_HEADER_BYTES + (long) entry * INDEX_ENTRY_BYTES);
+    }
+
+    private Entry entry(int position, PhenopacketCache.Representation representation) {
+        int segment = index.getInt(position + 4);
+        long offset = index.getLong(position + 8);
+        int protobufLength = index.getInt(position + 16);
+        int jsonLength = index.getInt(position + 20);
+        byte[] contentDigest = new byte[PhenopacketCache.CONTENT_DIGEST_LENGTH];
+        // an absolute bulk get is only available from Java 13
+        index.duplicate().position(position + 24).get(contentDigest);
+        if (representation == PhenopacketCache.Representation.JSON) {
+            offset += protobufLength;
+        }
+        int length = representation == PhenopacketCache.Representation.JSON ? jsonLength : protobufLength;
+        return new Entry(segmentFile(directory, segment), segments[segment], offset, length, PhenopacketCache.etag(contentDigest, representation));
+    }
+
+    private static MappedByteBuffer map(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    /**
+     * A serialized phenopacket in a segment file, which can be sent either from the file itself or from its mapping.
+     */
+    public static final class Entry {
+
+        private final Path file;
+        private final MappedByteBuffer segment;
+        private final long offset;
+        private final int length;
+        private final String etag;
+
+        private Entry(Path file, MappedByteBuffer segment, long offset, int length, String etag) {
+            this.file = file;
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+            this.etag = etag;
+        }
+
+        /**
+         * The segment file which holds the serialized phenopacket at {@link #getOffset()}.
+         */
+        public Path getFile() {
+            return file;
+        }
+
+        public long getOffset() {
+            return offset;
+        }
+
+        public int getLength() {
+            return length;
+        }
+
+        /**
+         * The same quoted ETag as the {@link PhenopacketCache} gives the phenopacket.
+         */
+        public String getETag() {
+            return etag;
+        }
+
+        /**
+         * Returns a read-only view of the serialized phenopacket in the mapped segment.
+         */
+        public ByteBuffer getContent() {
+            ByteBuffer content = segment.asReadOnlyBuffer();
+            content.position((int) offset).limit((int) offset + length);
+            return content.slice();
+        }
+    }
+}
@@ -0,0 +1,265 @@
+package org.phenopackets.omopexporter.snapshot;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.util.JsonFormat;
+import org.phenopackets.omopexporter.PhenopacketAssembler;
+import org.phenopackets.omopexporter.PhenopacketCache;
+import org.phenopackets.omopexporter.dao.IndividualDao;
+import org.phenopackets.schema.v2.Phenopacket;
+import org.phenopackets.schema.v2.core.MetaData;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayDeque;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Stream;
+
+/**
+ * Serves phenopackets from a precomputed {@link Snapshot}, for OMOP databases which are refreshed far less often than
+ * they are queried. A build assembles every person with the default options, walking the person table by keyset
+ * pagination as an export does, and writes the snapshot to a new directory under {@code omop-exporter.snapshot.directory}.
+ * Once it is complete the directory is named in the {@code CURRENT} file, which is replaced atomically, and the new
+ * snapshot is swapped in for the requests which follow; the snapshot before it is kept so that a build can be rolled
+ * back by editing {@code CURRENT} and reloading.
+ */
+@Service
+public class SnapshotStore {
+
+    private static final Logger logger = LoggerFactory.getLogger(SnapshotStore.class);
+
+    static final String CURRENT = "CURRENT";
+    private static final String BUILDING_SUFFIX = ".building";
+    private static final DateTimeFormatter SNAPSHOT_ID = DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss'Z'").withZone(ZoneOffset.UTC);
+
+    private final PhenopacketAssembler phenopacketAssembler;
+    private final IndividualDao individualDao;
+    private final JsonFormat.Printer jsonPrinter;
+    private final boolean enabled;
+    private final Path baseDirectory;
+    private final long maxSegmentBytes;
+    private final int workers;
+    private final int batchSize;
+    private final AtomicReference<Snapshot> current = new AtomicReference<>();
+    private final AtomicBoolean building = new AtomicBoolean();
+    private final ExecutorService buildExecutor = Executors.newSingleThreadExecutor(new CustomizableThreadFactory("omop-snapshot-"));
+    private volatile String lastBuildFailure;
+
+    public SnapshotStore(PhenopacketAssembler phenopacketAssembler, IndividualDao individualDao, JsonFormat.Printer jsonPrinter,
+                         @Value("${omop-exporter.snapshot.enabled:false}") boolean enabled,
+                         @Value("${omop-exporter.snapshot.directory:snapshots}") Path baseDirectory,
+                         @Value("${omop-exporter.snapshot.max-segment-bytes:1073741824}") long maxSegmentBytes,
+                         @Value("${omop-exporter.export.workers:2}") int workers,
+                         @Value("${omop-exporter.batch-size:500}") int batchSize) {
+        this.phenopacketAssembler = phenopacketAssembler;
+        this.individualDao = individualDao;
+        this.jsonPrinter = jsonPrinter;
+        this.enabled = enabled;
+        this.baseDirectory = baseDirectory;
+        this.maxSegmentBytes = maxSegmentBytes;
+        this.workers = workers;
+        this.batchSize = batchSize;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Returns the person's phenopacket as assembled with the default options, or empty if snapshots are not enabled,
+     * none has been built or the person was not in the OMOP database when it was.
+     */
+    public Optional<Snapshot.Entry> get(int personId, PhenopacketCache.Representation representation) {
+        Snapshot snapshot = current.get();
+        return snapshot == null ? Optional.empty() : snapshot.get(personId, representation);
+    }
+
+    public Optional<Snapshot> getCurrent() {
+        return Optional.ofNullable(current.get());
+    }
+
+    public boolean isBuilding() {
+        return building.get();
+    }
+
+    public Optional<String> getLastBuildFailure() {
+        return Optional.ofNullable(lastBuildFailure);
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void openCurrent() {
+        if (enabled) {
+            try {
+                reload();
+            } catch (IOException | UncheckedIOException e) {
+                logger.warn("Could not open the current snapshot, serving from the OMOP tables", e);
+            }
+        }
+    }
+
+    /**
+     * Opens the snapshot named in the {@code CURRENT} file, if there is one, in place of the one being served.
+     */
+    public synchronized Optional<Snapshot> reload() throws IOException {
+        Path currentFile = baseDirectory.resolve(CURRENT);
+        if (!Files.exists(currentFile)) {
+            return Optional.empty();
+        }
+        String id = Files.readString(currentFile, StandardCharsets.UTF_8).trim();
+        Snapshot snapshot = Snapshot.open(baseDirectory.resolve(id));
+        current.set(snapshot);
+        logger.info("Serving {} phenopackets from snapshot {}", snapshot.size(), id);
+        return Optional.of(snapshot);
+    }
+
+    /**
+     * Starts building a new snapshot in the background, which is served once it is complete.
+     *
+     * @throws IllegalStateException if snapshots are not enabled or a build is already running
+     */
+    public void startBuild() {
+        if (!enabled) {
+            throw new IllegalStateException("Snapshots are not enabled");
+        }
+        if (!building.compareAndSet(false, true)) {
+            throw new IllegalStateException("A snapshot is already being built");
+        }
+        buildExecutor.submit(() -> {
+            try {
+                build();
+                lastBuildFailure = null;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                lastBuildFailure = "Interrupted";
+            } catch (IOException | ExecutionException | RuntimeException e) {
+                Throwable cause = e instanceof ExecutionException ? e.getCause() : e;
+                logger.error("Snapshot build failed", cause);
+                lastBuildFailure = cause.toString();
+            } finally {
+                building.set(false);
+            }
+        });
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        buildExecutor.shutdownNow();
+    }
+
+    private void build() throws IOException, InterruptedException, ExecutionException {
+        String id = SNAPSHOT_ID.format(Instant.now());
+        Path buildDirectory = baseDirectory.resolve(id + BUILDING_SUFFIX);
+        logger.info("Building snapshot {}", id);
+        ExecutorService assemblers = Executors.newFixedThreadPool(workers, new CustomizableThreadFactory("omop-snapshot-" + id + "-"));
+        try {
+            MetaData metaData = phenopacketAssembler.createMetaData();
+            try (SnapshotWriter writer = new SnapshotWriter(buildDirectory, maxSegmentBytes)) {
+                Deque<Future<List<Phenopacket>>> inFlight = new ArrayDeque<>();
+                int afterPersonId = Integer.MIN_VALUE;
+                boolean exhausted = false;
+                while (true) {
+                    while (!exhausted && inFlight.size() < workers) {
+                        List<Integer> batch = individualDao.getPersonIds(afterPersonId, Integer.MAX_VALUE, batchSize);
+                        if (batch.isEmpty()) {
+                            exhausted = true;
+                        } else {
+                            afterPersonId = batch.get(batch.size() - 1);
+                            inFlight.add(assemblers.submit(() -> phenopacketAssembler.assemble(batch, metaData)));
+                        }
+                    }
+                    Future<List<Phenopacket>> next = inFlight.poll();
+                    if (next == null) {
+                        break;
+                    }
+                    for (Phenopacket phenopacket : next.get()) {
+                        write(writer, phenopacket);
+                    }
+                }
+                writer.finish();
+            }
+            Path directory = baseDirectory.resolve(id);
+            Files.move(buildDirectory, directory, StandardCopyOption.ATOMIC_MOVE);
+            swap(Snapshot.open(directory));
+        } catch (IOException | InterruptedException | ExecutionException | RuntimeException e) {
+            deleteRecursively(buildDirectory);
+            throw e;
+        } finally {
+            assemblers.shutdownNow();
+        }
+    }
+
+    private void write(SnapshotWriter writer, Phenopacket phenopacket) throws IOException {
+        int personId = Integer.parseInt(phenopacket.getSubject().getId());
+        byte[] json;
+        try {
+            json = jsonPrinter.print(phenopacket).getBytes(StandardCharsets.UTF_8);
+        } catch (InvalidProtocolBufferException e) {
+            throw new IllegalStateException("Could not print the phenopacket for person " + personId, e);
+        }
+        writer.write(personId, phenopacket.toByteArray(), json, PhenopacketCache.contentDigest(phenopacket));
+    }
+
+    /**
+     * Names the snapshot in the {@code CURRENT} file and serves it, then deletes every other snapshot but the one it
+     * replaces.
+     */
+    private synchronized void swap(Snapshot snapshot) throws IOException {
+        Path temporary = Files.createTempFile(baseDirectory, CURRENT, ".tmp");
+        Files.writeString(temporary, snapshot.getId(), StandardCharsets.UTF_8);
+        Files.move(temporary, baseDirectory.resolve(CURRENT), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        Snapshot previous = current.getAndSet(snapshot);
+        logger.info("Serving {} phenopackets from snapshot {}", snapshot.size(), snapshot.getId());
+
+        Map<String, Path> obsolete = new LinkedHashMap<>();
+        try (DirectoryStream<Path> directories = Files.newDirectoryStream(baseDirectory, Files::isDirectory)) {
+            for (Path directory : directories) {
+                obsolete.put(directory.getFileName().toString(), directory);
+            }
+        }
+        obsolete.remove(snapshot.getId());
+        if (previous != null) {
+            obsolete.remove(previous.getId());
+        }
+        // a mapped snapshot stays readable after its files are deleted, so requests which are still using it complete
+        for (Path directory : obsolete.values()) {
+            deleteRecursively(directory);
+        }
+    }
+
+    private static void deleteRecursively(Path directory) throws IOException {
+        if (!Files.exists(directory)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(path);
+            }
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package org.phenopackets.omopexporter.snapshot;
+
+import org.phenopackets.omopexporter.PhenopacketCache;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Writes the phenopackets of a {@link Snapshot} to its directory: each phenopacket is appended to the current segment
+ * file as its protobuf bytes followed by its JSON bytes, and an index entry locating them is added to the index file.
+ * A new segment is started once the current one would grow past the maximum segment size, so that every segment can be
+ * memory-mapped as a single buffer. Persons must be written in ascending person_id order, which keeps the index sorted
+ * for binary search. The index is mapped as a single buffer too, so a snapshot holds at most
+ * {@link Snapshot#MAX_ENTRIES} persons.
+ * <p>
+ * The index header, which records the number of entries, is only written by {@link #finish()}, so a snapshot which
+ * was not completely written cannot be opened.
+ */
+class SnapshotWriter implements Closeable {
+
+    private final Path directory;
+    private final long maxSegmentBytes;
+    private final int maxEntries;
+    private final FileChannel index;
+    private final ByteBuffer entry = ByteBuffer.allocate(Snapshot.INDEX_ENTRY_BYTES);
+
+    private FileChannel segment;
+    private int segmentNumber = -1;
+    private long segmentBytes;
+    private int count;
+    private int lastPersonId = Integer.MIN_VALUE;
+
+    SnapshotWriter(Path directory, long maxSegmentBytes) throws IOException {
+        this(directory, maxSegmentBytes, Snapshot.MAX_ENTRIES);
+    }
+
+    SnapshotWriter(Path directory, long maxSegmentBytes, int maxEntries) throws IOException {
+        if (maxSegmentBytes > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Segments are mapped as single buffers, so must be smaller than 2 GiB but max segment bytes was " + maxSegmentBytes);
+        }
+        this.directory = directory;
+        this.maxSegmentBytes = maxSegmentBytes;
+        this.maxEntries = maxEntries;
+        Files.createDirectories(directory);
+        this.index = FileChannel.open(Snapshot.indexFile(directory), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        index.position(Snapshot.INDEX_HEADER_BYTES);
+    }
+
+    /**
+     * Appends the serialized phenopacket of the person, whose content digest is that of
+     * {@link PhenopacketCache#contentDigest(org.phenopackets.schema.v2.Phenopacket)}.
+     *
+     * @throws IllegalArgumentException if the person_id is not greater than the last one written, or the phenopacket
+     *                                  is too large for a segment to be mapped
+     * @throws IllegalStateException    if the index already holds the most entries it can
+     */
+    void write(int personId, byte[] protobuf, byte[] json, byte[] contentDigest) throws IOException {
+        if (personId <= lastPersonId && count > 0) {
+            throw new IllegalArgumentException("Persons must be written in ascending person_id order, but " + personId + " followed " + lastPersonId);
+        }
+        if (count >= maxEntries) {
+            throw new IllegalStateException("A snapshot can hold at most " + maxEntries + " persons, so person " + personId + " cannot be written");
+        }
+        long recordBytes = (long) protobuf.length + json.length;
+        if (recordBytes > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("The phenopacket of person " + personId + " is " + recordBytes + " bytes, too large for a segment to be mapped");
+        }
+        if (segment == null || (segmentBytes > 0 && segmentBytes + recordBytes > maxSegmentBytes)) {
+            openSegment();
+        }
+        long offset = segmentBytes;
+        writeFully(segment, ByteBuffer.wrap(protobuf));
+        writeFully(segment, ByteBuffer.wrap(json));
+        segmentBytes += recordBytes;
+
+        entry.clear();
+        entry.putInt(personId).putInt(segmentNumber).putLong(offset).putInt(protobuf.length).putInt(json.length).put(contentDigest, 0, PhenopacketCache.CONTENT_DIGEST_LENGTH);
+        entry.flip();
+        writeFully(index, entry);
+        lastPersonId = personId;
+        count++;
+    }
+
+    int getCount() {
+        return count;
+    }
+
+    /**
+     * Forces the segments to disk and completes the index with its header.
+     */
+    void finish() throws IOException {
+        if (segment != null) {
+            segment.force(true);
+        }
+        ByteBuffer header = ByteBuffer.allocate(Snapshot.INDEX_HEADER_BYTES)
+                .putInt(Snapshot.MAGIC).putInt(Snapshot.VERSION).putInt(count).putInt(segmentNumber + 1);
+        header.flip();
+        index.position(0);
+        writeFully(index, header);
+        index.force(true);
+    }
+
+    /**
+     * Closes the files, leaving the snapshot unreadable unless it has been finished.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            if (segment != null) {
+                segment.close();
+            }
+        } finally {
+            index.close();
+        }
+    }
+
+    private void openSegment() throws IOException {
+        if (segment != null) {
+            segment.force(true);
+            segment.close();
+        }
+        segmentNumber++;
+        segment = FileChannel.open(Snapshot.segmentFile(directory, segmentNumber), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        segmentBytes = 0;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+}
@@ -0,0 +1,26 @@
+-- Access paths for the per-person queries of the DAOs. Each index leads with person_id, then the date that the date
+-- range filters on, and includes the other selected columns so that the rows can be read from the index alone.
+--
+-- The indexes are built CONCURRENTLY so that the tables stay writable while they build, which Flyway runs outside of
+-- a transaction. If a build fails it leaves an INVALID index behind, which must be dropped before migrating again.
+
+CREATE INDEX CONCURRENTLY IF NOT EXISTS idx_omop_exporter_measurement_person
+    ON measurement (person_id, measurement_datetime)
+    INCLUDE (measurement_concept_id, value_as_number, value_as_concept_id, value_source_value, unit_concept_id,
+             range_low, range_high, unit_source_value, visit_occurrence_id);
+
+CREATE INDEX CONCURRENTLY IF NOT EXISTS idx_omop_exporter_drug_exposure_person
+    ON drug_exposure (person_id, drug_exposure_start_date)
+    INCLUDE (drug_concept_id, route_concept_id, days_supply);
+
+CREATE INDEX CONCURRENTLY IF NOT EXISTS idx_omop_exporter_procedure_occurrence_person
+    ON procedure_occurrence (person_id, procedure_datetime)
+    INCLUDE (procedure_concept_id);
+
+CREATE INDEX CONCURRENTLY IF NOT EXISTS idx_omop_exporter_condition_occurrence_person
+    ON condition_occurrence (person_id, condition_start_date)
+    INCLUDE (condition_concept_id, condition_source_value, condition_end_date);
+
+CREATE INDEX CONCURRENTLY IF NOT EXISTS idx_omop_exporter_visit_occurrence_person
+    ON visit_occurrence (person_id)
+    INCLUDE (visit_start_date);
@@ -0,0 +1,11 @@
+-- Access paths for the vocabulary tables joined by the DAOs: the site of a procedure concept, and the strength of a
+-- drug. Only the procedure site relationships are indexed, as no query joins any other.
+
+CREATE INDEX CONCURRENTLY IF NOT EXISTS idx_omop_exporter_concept_relationship_proc_site
+    ON concept_relationship (concept_id_1)
+    INCLUDE (concept_id_2)
+    WHERE relationship_id = 'Has proc site';
+
+CREATE INDEX CONCURRENTLY IF NOT EXISTS idx_omop_exporter_drug_strength_drug
+    ON drug_strength (drug_concept_id)
+    INCLUDE (amount_value, amount_unit_concept_id);
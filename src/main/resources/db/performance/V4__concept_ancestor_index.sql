@@ -0,0 +1,5 @@
+-- Access path for expanding a concept to its descendants when selecting a cohort from the concept index.
+
+CREATE INDEX CONCURRENTLY IF NOT EXISTS idx_omop_exporter_concept_ancestor_ancestor
+    ON concept_ancestor (ancestor_concept_id)
+    INCLUDE (descendant_concept_id);
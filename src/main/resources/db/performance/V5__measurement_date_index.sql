@@ -0,0 +1,10 @@
+-- Access path for the per-person measurement queries, whose date range filters on the measurement_datetime or, where
+-- that is null, on the measurement_date, which is all OMOP requires. It replaces the index of V1, which led with the
+-- measurement_datetime alone and so could not be used for that filter.
+
+CREATE INDEX CONCURRENTLY IF NOT EXISTS idx_omop_exporter_measurement_person_date
+    ON measurement (person_id, coalesce(measurement_datetime, measurement_date))
+    INCLUDE (measurement_datetime, measurement_date, measurement_concept_id, value_as_number, value_as_concept_id,
+             value_source_value, unit_concept_id, range_low, range_high, unit_source_value, visit_occurrence_id);
+
+DROP INDEX CONCURRENTLY IF EXISTS idx_omop_exporter_measurement_person;
@@ -0,0 +1,87 @@
+-- Denormalized copies of the clinical rows read by the DAOs, one table per source table, with each concept already
+-- resolved to the CURIE (vocabulary_id:concept_code) and label (concept_name) of its phenopacket OntologyClass, so that
+-- reading a section is a single-table lookup by person_id that never touches the vocabulary tables. They are filled and
+-- kept up to date by StagingTables, from the high-water marks of the source primary keys in
+-- omop_exporter_stage_watermark, and only read with omop-exporter.staging.enabled=true.
+--
+-- A drug exposure with more than one drug_strength row, and a procedure with more than one site, is staged once for
+-- each, as the OMOP queries return it. Each table's primary key is the source row's, with the ingredient or site
+-- concept which distinguishes these rows, so that a staging statement which multiplies rows any further fails.
+
+CREATE TABLE IF NOT EXISTS omop_exporter_stage_watermark (
+    source_table text PRIMARY KEY,
+    -- the greatest primary key of the source table which has been staged
+    max_source_id bigint NOT NULL DEFAULT 0,
+    -- when the source table was last staged up to its greatest primary key, null until it first has been
+    refreshed_at timestamptz NULL
+);
+
+INSERT INTO omop_exporter_stage_watermark (source_table)
+VALUES ('measurement'), ('drug_exposure'), ('procedure_occurrence'), ('condition_occurrence')
+ON CONFLICT DO NOTHING;
+
+CREATE TABLE IF NOT EXISTS omop_exporter_stage_measurement (
+    measurement_id bigint PRIMARY KEY,
+    person_id integer NOT NULL,
+    measurement_datetime timestamp NULL,
+    assay_curie text NULL,
+    assay_label text NULL,
+    value_as_number numeric NULL,
+    value_concept_curie text NULL,
+    value_concept_label text NULL,
+    value_label text NULL,
+    unit_curie text NULL,
+    unit_label text NULL,
+    unit_source_value text NULL
+);
+
+CREATE INDEX IF NOT EXISTS idx_omop_exporter_stage_measurement_person
+    ON omop_exporter_stage_measurement (person_id, measurement_datetime);
+
+CREATE TABLE IF NOT EXISTS omop_exporter_stage_drug_exposure (
+    drug_exposure_id bigint NOT NULL,
+    -- the ingredient of the drug_strength row, or 0 if there is none
+    ingredient_concept_id integer NOT NULL,
+    person_id integer NOT NULL,
+    interval_start date NOT NULL,
+    interval_end date NULL,
+    agent_curie text NULL,
+    agent_label text NULL,
+    route_curie text NULL,
+    route_label text NULL,
+    quantity_unit_curie text NULL,
+    quantity_unit_label text NULL,
+    quantity_value numeric NULL,
+    PRIMARY KEY (drug_exposure_id, ingredient_concept_id)
+);
+
+CREATE INDEX IF NOT EXISTS idx_omop_exporter_stage_drug_exposure_person
+    ON omop_exporter_stage_drug_exposure (person_id, interval_start);
+
+CREATE TABLE IF NOT EXISTS omop_exporter_stage_procedure_occurrence (
+    procedure_occurrence_id bigint NOT NULL,
+    -- the concept of the site, or 0 if there is none
+    body_site_concept_id integer NOT NULL,
+    person_id integer NOT NULL,
+    performed_datetime timestamp NULL,
+    procedure_curie text NULL,
+    procedure_label text NULL,
+    body_site_curie text NULL,
+    body_site_label text NULL,
+    PRIMARY KEY (procedure_occurrence_id, body_site_concept_id)
+);
+
+CREATE INDEX IF NOT EXISTS idx_omop_exporter_stage_procedure_occurrence_person
+    ON omop_exporter_stage_procedure_occurrence (person_id, performed_datetime);
+
+CREATE TABLE IF NOT EXISTS omop_exporter_stage_condition_occurrence (
+    condition_occurrence_id bigint PRIMARY KEY,
+    person_id integer NOT NULL,
+    onset_timestamp date NOT NULL,
+    resolution date NULL,
+    term_curie text NULL,
+    term_label text NULL
+);
+
+CREATE INDEX IF NOT EXISTS idx_omop_exporter_stage_condition_occurrence_person
+    ON omop_exporter_stage_condition_occurrence (person_id, onset_timestamp);
@@ -0,0 +1,123 @@
+package org.phenopackets.omopexporter;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.phenopackets.omopexporter.dao.PersonRowCounts;
+import org.phenopackets.omopexporter.dao.QueryDeadline;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+
+import java.time.Duration;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+class AdmissionControlTest {
+
+    private final PersonRowCounts personRowCounts = mock(PersonRowCounts.class);
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    @AfterEach
+    void shutdown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    void fullQueueIsRejectedAtOnceWithRetryAfter() throws Exception {
+        AdmissionControl instance = admissionControl(true, 0, Duration.ofSeconds(10));
+        AdmissionControl.Permit first = instance.admitPerson(1);
+        Future<AdmissionControl.Permit> queued = executor.submit(() -> instance.admitPerson(2));
+        awaitQueued(instance, AdmissionControl.Lane.LIGHT, 1);
+
+        long start = System.nanoTime();
+        AdmissionControl.RejectedException rejected = assertThrows(AdmissionControl.RejectedException.class, () -> instance.admitPerson(3));
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+        assertEquals(HttpStatus.SERVICE_UNAVAILABLE, rejected.getStatus());
+        assertTrue(rejected.getRetryAfterSeconds() >= 1);
+        assertEquals(Long.toString(rejected.getRetryAfterSeconds()), rejected.getResponseHeaders().getFirst(HttpHeaders.RETRY_AFTER));
+
+        // the queued request is admitted when the first completes, and closing a permit twice releases it once
+        first.close();
+        first.close();
+        AdmissionControl.Permit second = queued.get(5, TimeUnit.SECONDS);
+        assertEquals(1, instance.getActive(AdmissionControl.Lane.LIGHT));
+        second.close();
+        assertEquals(0, instance.getActive(AdmissionControl.Lane.LIGHT));
+    }
+
+    @Test
+    void queuedRequestIsRejectedAfterTheQueueTimeout() {
+        AdmissionControl instance = admissionControl(true, 0, Duration.ofMillis(50));
+        try (AdmissionControl.Permit ignored = instance.admit(AdmissionControl.Lane.BULK)) {
+            AdmissionControl.RejectedException rejected = assertThrows(AdmissionControl.RejectedException.class,
+                    () -> instance.admit(AdmissionControl.Lane.BULK));
+            assertEquals(HttpStatus.TOO_MANY_REQUESTS, rejected.getStatus());
+            assertEquals(0, instance.getQueued(AdmissionControl.Lane.BULK));
+        }
+    }
+
+    @Test
+    void heavyPersonsAreMovedToTheHeavyLane() {
+        AdmissionControl instance = admissionControl(true, 100, Duration.ofMillis(50));
+        when(personRowCounts.countRows(1)).thenReturn(100);
+        when(personRowCounts.countRows(2)).thenReturn(99);
+
+        try (AdmissionControl.Permit heavy = instance.admitPerson(1)) {
+            assertEquals(AdmissionControl.Lane.HEAVY, heavy.getLane());
+            assertEquals(0, instance.getActive(AdmissionControl.Lane.LIGHT));
+            // the heavy lane is full, but a light person is still admitted
+            assertThrows(AdmissionControl.RejectedException.class, () -> instance.admitPerson(1));
+            try (AdmissionControl.Permit light = instance.admitPerson(2)) {
+                assertEquals(AdmissionControl.Lane.LIGHT, light.getLane());
+            }
+        }
+    }
+
+    @Test
+    void deadlineCountsFromArrival() {
+        AdmissionControl instance = admissionControl(true, 0, Duration.ofMillis(50));
+        long before = System.nanoTime();
+        try (AdmissionControl.Permit permit = instance.admitPerson(1); QueryDeadline.Scope ignored = permit.bindDeadline()) {
+            long after = System.nanoTime();
+            long deadline = QueryDeadline.current().orElseThrow();
+            assertTrue(deadline - before >= Duration.ofSeconds(30).toNanos());
+            assertTrue(deadline - after <= Duration.ofSeconds(30).toNanos());
+        }
+        assertTrue(QueryDeadline.current().isEmpty());
+    }
+
+    @Test
+    void disabledAdmitsEverything() {
+        AdmissionControl instance = admissionControl(false, 100, Duration.ofMillis(50));
+        for (int i = 0; i < 10; i++) {
+            AdmissionControl.Permit permit = instance.admitPerson(1);
+            assertNull(permit.getLane());
+            try (QueryDeadline.Scope ignored = permit.bindDeadline()) {
+                assertTrue(QueryDeadline.current().isEmpty());
+            }
+        }
+        verify(personRowCounts, never()).countRows(anyInt());
+    }
+
+    /**
+     * Admits one request at a time to each lane, with room for one more to wait in the light and bulk lanes.
+     */
+    private AdmissionControl admissionControl(boolean enabled, int heavyPersonRows, Duration queueTimeout) {
+        when(personRowCounts.getLimit()).thenReturn(heavyPersonRows);
+        return new AdmissionControl(personRowCounts, new SimpleMeterRegistry(), enabled, 1, 1, 1, 0, 1, 1, queueTimeout,
+                Duration.ofSeconds(30));
+    }
+
+    private static void awaitQueued(AdmissionControl instance, AdmissionControl.Lane lane, int queued) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (instance.getQueued(lane) < queued) {
+            assertTrue(System.nanoTime() < deadline, "Request was not queued");
+            Thread.sleep(1);
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package org.phenopackets.omopexporter;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CohortRequestTest {
+
+    @Test
+    void personIdsAloneAreValid() {
+        assertTrue(request(List.of(1, 2), null, null).isValid());
+        assertTrue(request(List.of(), null, null).isValid());
+    }
+
+    @Test
+    void rangeAloneIsValid() {
+        assertTrue(request(null, 1, 10).isValid());
+        assertTrue(request(null, 5, 5).isValid());
+    }
+
+    @Test
+    void neitherIsInvalid() {
+        assertFalse(request(null, null, null).isValid());
+    }
+
+    @Test
+    void bothAreInvalid() {
+        assertFalse(request(List.of(1), 1, 10).isValid());
+    }
+
+    @Test
+    void incompleteOrReversedRangeIsInvalid() {
+        assertFalse(request(null, 1, null).isValid());
+        assertFalse(request(null, null, 10).isValid());
+        assertFalse(request(null, 10, 1).isValid());
+    }
+
+    @Test
+    void personIdsWithIncompleteRangeAreValid() {
+        // only a complete range competes with the person_ids, which are exported alone
+        assertTrue(request(List.of(1), 1, null).isValid());
+    }
+
+    private static CohortRequest request(List<Integer> personIds, Integer fromPersonId, Integer toPersonId) {
+        CohortRequest request = new CohortRequest();
+        request.setPersonIds(personIds);
+        request.setFromPersonId(fromPersonId);
+        request.setToPersonId(toPersonId);
+        return request;
+    }
+}
@@ -0,0 +1,93 @@
+package org.phenopackets.omopexporter;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.time.Duration;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+class ConnectionLimitingDataSourceTest {
+
+    private final DataSource pool = mock(DataSource.class);
+
+    @BeforeEach
+    void createPool() throws SQLException {
+        when(pool.getConnection()).thenAnswer(invocation -> mock(Connection.class));
+    }
+
+    @Test
+    void callersQueueOnceTheLimitIsReached() throws Exception {
+        ConnectionLimitingDataSource dataSource = new ConnectionLimitingDataSource(pool, 2, Duration.ofSeconds(10));
+        Connection first = connect(dataSource).get(5, TimeUnit.SECONDS);
+        Connection second = connect(dataSource).get(5, TimeUnit.SECONDS);
+        Future<Connection> queued = connect(dataSource);
+        awaitQueued(dataSource, 1);
+
+        // the queued caller gets a connection when one is closed, and closing one twice releases it once
+        first.close();
+        first.close();
+        queued.get(5, TimeUnit.SECONDS).close();
+        assertEquals(0, dataSource.getQueueLength());
+        second.close();
+        verify(pool, times(3)).getConnection();
+    }
+
+    @Test
+    void queuedCallerTimesOut() throws Exception {
+        ConnectionLimitingDataSource dataSource = new ConnectionLimitingDataSource(pool, 1, Duration.ofMillis(50));
+        try (Connection ignored = dataSource.getConnection()) {
+            Future<Connection> queued = connect(dataSource);
+
+            Exception e = assertThrows(Exception.class, () -> queued.get(5, TimeUnit.SECONDS));
+            assertTrue(e.getCause() instanceof SQLTransientConnectionException, e.getCause().toString());
+        }
+        verify(pool, times(1)).getConnection();
+    }
+
+    @Test
+    void threadHoldingAConnectionIsNotQueuedForAnother() throws Exception {
+        ConnectionLimitingDataSource dataSource = new ConnectionLimitingDataSource(pool, 1, Duration.ofSeconds(10));
+        Connection outer = dataSource.getConnection();
+        Future<Connection> queued = connect(dataSource);
+        awaitQueued(dataSource, 1);
+
+        // the nested connection goes straight to the pool, and closing it leaves the permit with the outer one
+        long start = System.nanoTime();
+        dataSource.getConnection().close();
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1));
+        assertFalse(queued.isDone());
+        assertEquals(1, dataSource.getQueueLength());
+
+        outer.close();
+        queued.get(5, TimeUnit.SECONDS).close();
+        verify(pool, times(3)).getConnection();
+    }
+
+    /**
+     * Takes a connection on a thread of its own, as a thread which already holds one would not be queued.
+     */
+    private static Future<Connection> connect(ConnectionLimitingDataSource dataSource) {
+        FutureTask<Connection> task = new FutureTask<>(() -> dataSource.getConnection());
+        Thread thread = new Thread(task);
+        thread.setDaemon(true);
+        thread.start();
+        return task;
+    }
+
+    private static void awaitQueued(ConnectionLimitingDataSource dataSource, int queued) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (dataSource.getQueueLength() < queued) {
+            assertTrue(System.nanoTime() < deadline, "Caller was not queued");
+            Thread.sleep(1);
+        }
+    }
+}
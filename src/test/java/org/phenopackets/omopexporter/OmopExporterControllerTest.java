@@ -0,0 +1,244 @@
+package org.phenopackets.omopexporter;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.util.JsonFormat;
+import io.zonky.test.db.postgres.embedded.EmbeddedPostgres;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Test;
+import org.phenopackets.schema.v2.Phenopacket;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.http.MediaType;
+import org.springframework.jdbc.datasource.init.ResourceDatabasePopulator;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.RequestBuilder;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.*;
+
+/**
+ * Requests the endpoints of the {@link OmopExporterController} of the whole application, reading the example rows
+ * from an embedded Postgres.
+ */
+@SpringBootTest
+@AutoConfigureMockMvc
+class OmopExporterControllerTest {
+
+    private static EmbeddedPostgres postgres;
+
+    @Autowired
+    private MockMvc mockMvc;
+
+    @DynamicPropertySource
+    static void omopDatabase(DynamicPropertyRegistry registry) throws IOException {
+        postgres = EmbeddedPostgres.start();
+        new ResourceDatabasePopulator(new ClassPathResource("omop/cdm_tables.sql"), new ClassPathResource("omop/example_rows.sql"))
+                .execute(postgres.getPostgresDatabase());
+        registry.add("spring.datasource.url", () -> postgres.getJdbcUrl("postgres", "postgres"));
+        registry.add("spring.datasource.username", () -> "postgres");
+        registry.add("spring.datasource.password", () -> "");
+        registry.add("spring.datasource.hikari.schema", () -> "public");
+        registry.add("omop-exporter.concept-index.enabled", () -> "true");
+    }
+
+    @AfterAll
+    static void stop() throws IOException {
+        if (postgres != null) {
+            postgres.close();
+        }
+    }
+
+    @Test
+    void cohortOfPersonIdsIsStreamedInPersonIdOrder() throws Exception {
+        String body = streamed(post("/phenopackets")
+                .contentType(MediaType.APPLICATION_JSON)
+                .accept(MediaType.APPLICATION_NDJSON)
+                .content("{\"personIds\": [3, 1, 3, 4]}"), MediaType.APPLICATION_NDJSON);
+
+        assertEquals(List.of("N3C:1", "N3C:3"), ids(body));
+    }
+
+    @Test
+    void cohortOfPersonIdRangeIsStreamedInPersonIdOrder() throws Exception {
+        String body = streamed(post("/phenopackets")
+                .contentType(MediaType.APPLICATION_JSON)
+                .accept(MediaType.APPLICATION_NDJSON)
+                .content("{\"fromPersonId\": 2, \"toPersonId\": 10, \"include\": [\"diseases\"]}"), MediaType.APPLICATION_NDJSON);
+
+        List<Phenopacket> phenopackets = parse(body);
+        assertEquals(List.of("N3C:2", "N3C:3"), ids(body));
+        for (Phenopacket phenopacket : phenopackets) {
+            assertTrue(phenopacket.getMeasurementsList().isEmpty());
+            assertFalse(phenopacket.getDiseasesList().isEmpty());
+        }
+    }
+
+    @Test
+    void invalidCohortIsRejected() throws Exception {
+        mockMvc.perform(post("/phenopackets")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .accept(MediaType.APPLICATION_NDJSON)
+                        .content("{\"personIds\": [1], \"fromPersonId\": 1, \"toPersonId\": 2}"))
+                .andExpect(status().isBadRequest());
+    }
+
+    @Test
+    void phenopacketIsNegotiatedAsJsonOrProtobuf() throws Exception {
+        byte[] json = mockMvc.perform(get("/phenopacket/1").accept(MediaType.APPLICATION_JSON))
+                .andExpect(status().isOk())
+                .andExpect(content().contentType(MediaType.APPLICATION_JSON))
+                .andReturn().getResponse().getContentAsByteArray();
+        byte[] protobuf = mockMvc.perform(get("/phenopacket/1").accept(OmopExporterController.APPLICATION_PROTOBUF))
+                .andExpect(status().isOk())
+                .andExpect(content().contentType(OmopExporterController.APPLICATION_PROTOBUF))
+                .andReturn().getResponse().getContentAsByteArray();
+
+        Phenopacket.Builder fromJson = Phenopacket.newBuilder();
+        JsonFormat.parser().merge(new String(json, StandardCharsets.UTF_8), fromJson);
+        Phenopacket fromProtobuf = Phenopacket.parseFrom(protobuf);
+        assertEquals("N3C:1", fromProtobuf.getId());
+        assertEquals(withoutMetaData(fromJson.build()), withoutMetaData(fromProtobuf));
+    }
+
+    @Test
+    void streamedPhenopacketIsNegotiatedAsProtobuf() throws Exception {
+        byte[] protobuf = streamedBytes(get("/phenopacket/1/stream").accept(OmopExporterController.APPLICATION_PROTOBUF),
+                OmopExporterController.APPLICATION_PROTOBUF);
+        byte[] cached = mockMvc.perform(get("/phenopacket/1").accept(OmopExporterController.APPLICATION_PROTOBUF))
+                .andReturn().getResponse().getContentAsByteArray();
+
+        Phenopacket streamed = Phenopacket.parseFrom(protobuf);
+        assertFalse(streamed.getMeasurementsList().isEmpty());
+        assertEquals(withoutMetaData(Phenopacket.parseFrom(cached)), withoutMetaData(streamed));
+    }
+
+    @Test
+    void cohortIsNegotiatedAsDelimitedProtobuf() throws Exception {
+        String cohort = "{\"personIds\": [3, 1, 3, 4]}";
+        String ndjson = streamed(post("/phenopackets")
+                .contentType(MediaType.APPLICATION_JSON)
+                .accept(MediaType.APPLICATION_NDJSON)
+                .content(cohort), MediaType.APPLICATION_NDJSON);
+        byte[] delimited = streamedBytes(post("/phenopackets")
+                .contentType(MediaType.APPLICATION_JSON)
+                .accept(OmopExporterController.APPLICATION_PROTOBUF_DELIMITED)
+                .content(cohort), OmopExporterController.APPLICATION_PROTOBUF_DELIMITED);
+
+        List<Phenopacket> phenopackets = new ArrayList<>();
+        InputStream inputStream = new ByteArrayInputStream(delimited);
+        Phenopacket phenopacket;
+        while ((phenopacket = Phenopacket.parseDelimitedFrom(inputStream)) != null) {
+            phenopackets.add(phenopacket);
+        }
+        List<Phenopacket> fromJson = parse(ndjson);
+        assertEquals(2, phenopackets.size());
+        for (int i = 0; i < phenopackets.size(); i++) {
+            assertEquals(withoutMetaData(fromJson.get(i)), withoutMetaData(phenopackets.get(i)));
+        }
+    }
+
+    @Test
+    void conceptCohortIsCounted() throws Exception {
+        mockMvc.perform(post("/cohorts/count")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .accept(MediaType.APPLICATION_JSON)
+                        .content("{\"query\": {\"and\": [{\"concept\": 201820, \"descendants\": true}, {\"not\": {\"concept\": 4230911}}]}}"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.count").value(2))
+                .andExpect(jsonPath("$.indexBuiltAt").isString());
+    }
+
+    @Test
+    void conceptCohortIsStreamedInPersonIdOrder() throws Exception {
+        String body = streamed(post("/cohorts/phenopackets")
+                .contentType(MediaType.APPLICATION_JSON)
+                .accept(MediaType.APPLICATION_NDJSON)
+                .content("{\"query\": {\"concept\": 201826, \"descendants\": true}, \"include\": [\"diseases\"]}"), MediaType.APPLICATION_NDJSON);
+
+        List<Phenopacket> phenopackets = parse(body);
+        assertEquals(List.of("N3C:1", "N3C:2"), ids(body));
+        for (Phenopacket phenopacket : phenopackets) {
+            assertTrue(phenopacket.getMeasurementsList().isEmpty());
+            assertFalse(phenopacket.getDiseasesList().isEmpty());
+        }
+    }
+
+    @Test
+    void invalidConceptCohortIsRejected() throws Exception {
+        mockMvc.perform(post("/cohorts/count")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .accept(MediaType.APPLICATION_JSON)
+                        .content("{\"query\": {\"or\": []}}"))
+                .andExpect(status().isBadRequest());
+        mockMvc.perform(post("/cohorts/phenopackets")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .accept(MediaType.APPLICATION_NDJSON)
+                        .content("{}"))
+                .andExpect(status().isBadRequest());
+    }
+
+    @Test
+    void unsupportedAcceptIsNotAcceptable() throws Exception {
+        mockMvc.perform(get("/phenopacket/1").accept(MediaType.APPLICATION_XML))
+                .andExpect(status().isNotAcceptable());
+    }
+
+    /**
+     * Performs a request for a streamed response and returns its body once the stream is complete.
+     */
+    private String streamed(RequestBuilder requestBuilder, MediaType contentType) throws Exception {
+        return new String(streamedBytes(requestBuilder, contentType), StandardCharsets.UTF_8);
+    }
+
+    private byte[] streamedBytes(RequestBuilder requestBuilder, MediaType contentType) throws Exception {
+        MvcResult started = mockMvc.perform(requestBuilder)
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        return mockMvc.perform(asyncDispatch(started))
+                .andExpect(status().isOk())
+                .andExpect(content().contentType(contentType))
+                .andReturn()
+                .getResponse()
+                .getContentAsByteArray();
+    }
+
+    private static List<Phenopacket> parse(String ndjson) throws InvalidProtocolBufferException {
+        List<Phenopacket> phenopackets = new ArrayList<>();
+        for (String line : ndjson.split("\n")) {
+            if (!line.isEmpty()) {
+                Phenopacket.Builder builder = Phenopacket.newBuilder();
+                JsonFormat.parser().merge(line, builder);
+                phenopackets.add(builder.build());
+            }
+        }
+        return phenopackets;
+    }
+
+    private static Phenopacket withoutMetaData(Phenopacket phenopacket) {
+        // the metadata records when each phenopacket was assembled
+        return phenopacket.toBuilder().clearMetaData().build();
+    }
+
+    private static List<String> ids(String ndjson) throws InvalidProtocolBufferException {
+        List<String> ids = new ArrayList<>();
+        for (Phenopacket phenopacket : parse(ndjson)) {
+            ids.add(phenopacket.getId());
+        }
+        return ids;
+    }
+}
@@ -0,0 +1,131 @@
+package org.phenopackets.omopexporter;
+
+import io.zonky.test.db.postgres.embedded.EmbeddedPostgres;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.phenopackets.omopexporter.dao.QueryCancellation;
+import org.phenopackets.omopexporter.dao.QueryDeadline;
+import org.springframework.dao.QueryTimeoutException;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ParallelQueriesTest {
+
+    private static final String SLEEP = "SELECT pg_sleep(30)";
+
+    private static EmbeddedPostgres postgres;
+    private static JdbcTemplate jdbcTemplate;
+
+    private final ExecutorService executor = Executors.newFixedThreadPool(4);
+
+    @BeforeAll
+    static void start() throws IOException {
+        postgres = EmbeddedPostgres.start();
+        jdbcTemplate = new JdbcTemplate(postgres.getPostgresDatabase());
+    }
+
+    @AfterAll
+    static void stop() throws IOException {
+        if (postgres != null) {
+            postgres.close();
+        }
+    }
+
+    @AfterEach
+    void shutdown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    void resultsAreAvailableOnceAllComplete() {
+        ParallelQueries queries = new ParallelQueries(executor, Duration.ofSeconds(10));
+        Future<Integer> one = queries.submit(() -> query("SELECT 1"));
+        Future<Integer> two = queries.submit(() -> query("SELECT 2"));
+
+        queries.await();
+
+        assertEquals(1, queries.get(one));
+        assertEquals(2, queries.get(two));
+    }
+
+    @Test
+    void failureCancelsTheRunningStatements() {
+        ParallelQueries queries = new ParallelQueries(executor, Duration.ofSeconds(60));
+        queries.submit(() -> query(SLEEP));
+        queries.submit(() -> {
+            awaitSleeping(1);
+            throw new IllegalStateException("failed");
+        });
+
+        long start = System.nanoTime();
+        IllegalStateException e = assertThrows(IllegalStateException.class, queries::await);
+
+        assertEquals("failed", e.getMessage());
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(10));
+        awaitSleeping(0);
+    }
+
+    @Test
+    void deadlineCancelsTheRunningStatements() {
+        ParallelQueries queries = new ParallelQueries(executor, Duration.ofMillis(500));
+        queries.submit(() -> query(SLEEP));
+        queries.submit(() -> query(SLEEP));
+
+        long start = System.nanoTime();
+        assertThrows(QueryTimeoutException.class, queries::await);
+
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(10));
+        awaitSleeping(0);
+    }
+
+    @Test
+    void earlierBoundDeadlineIsShared() {
+        try (QueryDeadline.Scope ignored = QueryDeadline.bind(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(500))) {
+            ParallelQueries queries = new ParallelQueries(executor, Duration.ofSeconds(60));
+            queries.submit(() -> query(SLEEP));
+
+            assertThrows(QueryTimeoutException.class, queries::await);
+        }
+        awaitSleeping(0);
+    }
+
+    /**
+     * Runs the query as the DAOs do, with a statement which the group of queries can cancel.
+     */
+    private static Integer query(String sql) {
+        return jdbcTemplate.query(connection -> QueryCancellation.prepareStatement(connection, sql),
+                resultSet -> resultSet.next() ? resultSet.getInt(1) : null);
+    }
+
+    /**
+     * Waits until the number of statements sleeping on the server is as expected.
+     */
+    private static void awaitSleeping(int expected) {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        int sleeping;
+        do {
+            sleeping = jdbcTemplate.queryForObject("SELECT count(*) FROM pg_stat_activity WHERE state = 'active' AND query = ?",
+                    Integer.class, SLEEP);
+            if (sleeping == expected) {
+                return;
+            }
+            try {
+                Thread.sleep(20);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(e);
+            }
+        } while (System.nanoTime() < deadline);
+        fail(sleeping + " statements are sleeping rather than " + expected);
+    }
+}
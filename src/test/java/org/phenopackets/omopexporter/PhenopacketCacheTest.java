@@ -0,0 +1,150 @@
+package org.phenopackets.omopexporter;
+
+import com.google.protobuf.Timestamp;
+import com.google.protobuf.util.JsonFormat;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.phenopackets.omopexporter.dao.DateRange;
+import org.phenopackets.omopexporter.dao.Section;
+import org.phenopackets.schema.v2.Phenopacket;
+import org.phenopackets.schema.v2.core.Individual;
+import org.phenopackets.schema.v2.core.MetaData;
+
+import java.time.Duration;
+import java.time.LocalDate;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+class PhenopacketCacheTest {
+
+    private static final AssemblyOptions OPTIONS = AssemblyOptions.all(false);
+
+    private final PhenopacketAssembler phenopacketAssembler = mock(PhenopacketAssembler.class);
+    private final PhenopacketCache instance = new PhenopacketCache(phenopacketAssembler, JsonFormat.printer(), new ResponseMetrics(new SimpleMeterRegistry()), 1024 * 1024, Duration.ofMinutes(1));
+
+    @Test
+    void hitDoesNotReassemble() {
+        when(phenopacketAssembler.assemble(1, OPTIONS)).thenReturn(Optional.of(phenopacket(1, 1635724800L)));
+
+        PhenopacketCache.Entry first = instance.get(1, PhenopacketCache.Representation.PROTOBUF, OPTIONS).orElseThrow();
+        PhenopacketCache.Entry second = instance.get(1, PhenopacketCache.Representation.PROTOBUF, OPTIONS).orElseThrow();
+
+        assertSame(first, second);
+        verify(phenopacketAssembler, times(1)).assemble(1, OPTIONS);
+    }
+
+    @Test
+    void etagIgnoresMetadataButDiffersByRepresentation() {
+        when(phenopacketAssembler.assemble(1, OPTIONS)).thenReturn(
+                Optional.of(phenopacket(1, 1635724800L)),
+                Optional.of(phenopacket(1, 1635811200L)));
+
+        String first = instance.get(1, PhenopacketCache.Representation.JSON, OPTIONS).orElseThrow().getETag();
+        instance.invalidate(1);
+        String second = instance.get(1, PhenopacketCache.Representation.JSON, OPTIONS).orElseThrow().getETag();
+        String binary = instance.get(1, PhenopacketCache.Representation.PROTOBUF, OPTIONS).orElseThrow().getETag();
+
+        assertEquals(first, second);
+        assertNotEquals(first, binary);
+        verify(phenopacketAssembler, times(3)).assemble(1, OPTIONS);
+    }
+
+    @Test
+    void optionsAreCachedSeparately() {
+        AssemblyOptions diseasesOnly = new AssemblyOptions(EnumSet.of(Section.DISEASES), DateRange.of(LocalDate.of(2021, 1, 1), null), false);
+        when(phenopacketAssembler.assemble(1, OPTIONS)).thenReturn(Optional.of(phenopacket(1, 1635724800L)));
+        when(phenopacketAssembler.assemble(1, diseasesOnly)).thenReturn(Optional.of(phenopacket(1, 1635724800L)));
+
+        instance.get(1, PhenopacketCache.Representation.JSON, OPTIONS);
+        instance.get(1, PhenopacketCache.Representation.JSON, diseasesOnly);
+        instance.get(1, PhenopacketCache.Representation.JSON, new AssemblyOptions(EnumSet.of(Section.DISEASES), DateRange.of(LocalDate.of(2021, 1, 1), null), false));
+        instance.invalidate(1);
+        instance.get(1, PhenopacketCache.Representation.JSON, diseasesOnly);
+
+        verify(phenopacketAssembler, times(1)).assemble(1, OPTIONS);
+        verify(phenopacketAssembler, times(2)).assemble(1, diseasesOnly);
+    }
+
+    @Test
+    void invalidateRemovesEveryEntryOfThePersonAlone() {
+        AssemblyOptions diseasesOnly = new AssemblyOptions(EnumSet.of(Section.DISEASES), DateRange.ALL, false);
+        for (int personId = 1; personId <= 2; personId++) {
+            for (AssemblyOptions options : List.of(OPTIONS, diseasesOnly)) {
+                when(phenopacketAssembler.assemble(personId, options)).thenReturn(Optional.of(phenopacket(personId, 1635724800L)));
+                for (PhenopacketCache.Representation representation : PhenopacketCache.Representation.values()) {
+                    instance.get(personId, representation, options);
+                }
+            }
+        }
+
+        instance.invalidate(1);
+        instance.invalidate(3);
+
+        for (AssemblyOptions options : List.of(OPTIONS, diseasesOnly)) {
+            for (PhenopacketCache.Representation representation : PhenopacketCache.Representation.values()) {
+                assertTrue(instance.getIfPresent(1, representation, options).isEmpty());
+                assertTrue(instance.getIfPresent(2, representation, options).isPresent());
+            }
+        }
+        // entries cached again after an invalidation are indexed again
+        instance.get(1, PhenopacketCache.Representation.JSON, OPTIONS);
+        instance.invalidate(1);
+        assertTrue(instance.getIfPresent(1, PhenopacketCache.Representation.JSON, OPTIONS).isEmpty());
+    }
+
+    @Test
+    void invalidationDuringAssemblyIsNotUndone() throws Exception {
+        for (Runnable invalidation : List.<Runnable>of(() -> instance.invalidate(1), instance::invalidateAll)) {
+            CountDownLatch assembling = new CountDownLatch(1);
+            CountDownLatch invalidated = new CountDownLatch(1);
+            when(phenopacketAssembler.assemble(1, OPTIONS)).thenAnswer(invocation -> {
+                assembling.countDown();
+                assertTrue(invalidated.await(10, TimeUnit.SECONDS));
+                return Optional.of(phenopacket(1, 1635724800L));
+            });
+            ExecutorService executor = Executors.newSingleThreadExecutor();
+            try {
+                Future<Optional<PhenopacketCache.Entry>> stale = executor.submit(() -> instance.get(1, PhenopacketCache.Representation.JSON, OPTIONS));
+                assertTrue(assembling.await(10, TimeUnit.SECONDS));
+                invalidation.run();
+                invalidated.countDown();
+
+                // the request which was assembling still gets its phenopacket, which is not cached
+                assertTrue(stale.get(10, TimeUnit.SECONDS).isPresent());
+                assertTrue(instance.getIfPresent(1, PhenopacketCache.Representation.JSON, OPTIONS).isEmpty());
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+
+        when(phenopacketAssembler.assemble(1, OPTIONS)).thenReturn(Optional.of(phenopacket(1, 1635724800L)));
+        instance.get(1, PhenopacketCache.Representation.JSON, OPTIONS);
+        assertTrue(instance.getIfPresent(1, PhenopacketCache.Representation.JSON, OPTIONS).isPresent());
+    }
+
+    @Test
+    void missingPersonIsNotCached() {
+        when(phenopacketAssembler.assemble(2, OPTIONS)).thenReturn(Optional.empty());
+
+        assertTrue(instance.get(2, PhenopacketCache.Representation.JSON, OPTIONS).isEmpty());
+        assertTrue(instance.get(2, PhenopacketCache.Representation.JSON, OPTIONS).isEmpty());
+        verify(phenopacketAssembler, times(2)).assemble(2, OPTIONS);
+    }
+
+    private static Phenopacket phenopacket(int personId, long createdSeconds) {
+        return Phenopacket.newBuilder()
+                .setId("N3C:" + personId)
+                .setSubject(Individual.newBuilder().setId(Integer.toString(personId)))
+                .setMetaData(MetaData.newBuilder().setCreatedBy("OMOPackager").setCreated(Timestamp.newBuilder().setSeconds(createdSeconds)))
+                .build();
+    }
+}
@@ -0,0 +1,222 @@
+package org.phenopackets.omopexporter;
+
+import com.zaxxer.hikari.HikariDataSource;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.zonky.test.db.postgres.embedded.EmbeddedPostgres;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.phenopackets.omopexporter.dao.ConceptCache;
+import org.phenopackets.omopexporter.dao.DiseaseDao;
+import org.phenopackets.omopexporter.dao.IndividualDao;
+import org.phenopackets.omopexporter.dao.MeasurementDao;
+import org.phenopackets.omopexporter.dao.MedicalActionDao;
+import org.phenopackets.omopexporter.dao.MessageInterner;
+import org.phenopackets.omopexporter.dao.PersonRecordDao;
+import org.phenopackets.omopexporter.dao.QueryMetrics;
+import org.phenopackets.omopexporter.dao.Routing;
+import org.phenopackets.omopexporter.dao.StagingTables;
+import org.phenopackets.schema.v2.Phenopacket;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.init.ResourceDatabasePopulator;
+
+import javax.sql.DataSource;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.sql.Connection;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RoutingDataSourceTest {
+
+    private static final List<String> PERSON_TABLES = List.of("measurement", "drug_exposure", "procedure_occurrence", "condition_occurrence",
+            "visit_occurrence", "person");
+
+    private static EmbeddedPostgres shardA;
+    private static EmbeddedPostgres shardB;
+
+    /**
+     * Starts two copies of the example rows, then deletes person 3 from shard a and the others from shard b.
+     */
+    @BeforeAll
+    static void start() throws IOException {
+        shardA = startOmopDatabase();
+        shardB = startOmopDatabase();
+        for (String table : PERSON_TABLES) {
+            new JdbcTemplate(shardA.getPostgresDatabase()).update("DELETE FROM " + table + " WHERE person_id >= 3");
+            new JdbcTemplate(shardB.getPostgresDatabase()).update("DELETE FROM " + table + " WHERE person_id < 3");
+        }
+    }
+
+    @AfterAll
+    static void stop() throws IOException {
+        if (shardA != null) {
+            shardA.close();
+        }
+        if (shardB != null) {
+            shardB.close();
+        }
+    }
+
+    @Test
+    void shardedBatchesAreMergedInTheOrderRequested() {
+        Map<String, Integer> firstPersonIds = new LinkedHashMap<>();
+        firstPersonIds.put("a", Integer.MIN_VALUE);
+        firstPersonIds.put("b", 3);
+        Routing routing = new Routing(Routing.Mode.SHARDS, firstPersonIds);
+        Map<String, HikariDataSource> shards = new LinkedHashMap<>();
+        shards.put("a", pool(shardA));
+        shards.put("b", pool(shardB));
+        ExecutorService queryExecutor = Executors.newFixedThreadPool(4);
+        // the primary holds the vocabulary, and so here is another pool on shard a
+        try (HikariDataSource primary = pool(shardA);
+             RoutingDataSource dataSource = new RoutingDataSource(primary, shards, Routing.Mode.SHARDS,
+                     RoutingDataSource.ReplicaSelection.ROUND_ROBIN, Duration.ofHours(1), Duration.ofSeconds(2))) {
+            JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
+            ConceptCache conceptCache = new ConceptCache(jdbcTemplate, routing, 1000, List.of());
+            MessageInterner messageInterner = new MessageInterner(256);
+            QueryMetrics queryMetrics = new QueryMetrics(new SimpleMeterRegistry());
+            StagingTables stagingTables = new StagingTables(jdbcTemplate, false, 1000);
+            IndividualDao individualDao = new IndividualDao(jdbcTemplate, conceptCache, messageInterner, queryMetrics, routing);
+            MeasurementDao measurementDao = new MeasurementDao(jdbcTemplate, conceptCache, messageInterner, queryMetrics, stagingTables, 100, Duration.ofSeconds(30));
+            MedicalActionDao medicalActionDao = new MedicalActionDao(jdbcTemplate, conceptCache, messageInterner, queryMetrics, stagingTables);
+            DiseaseDao diseaseDao = new DiseaseDao(jdbcTemplate, conceptCache, messageInterner, queryMetrics, stagingTables);
+            PersonRecordDao personRecordDao = new PersonRecordDao(jdbcTemplate, individualDao, measurementDao, medicalActionDao, diseaseDao,
+                    stagingTables, queryMetrics);
+            PhenopacketAssembler assembler = new PhenopacketAssembler(individualDao, measurementDao, medicalActionDao, diseaseDao,
+                    personRecordDao, routing, PhenopacketAssembler.AssemblyMode.PARALLEL, false, queryExecutor, Duration.ofSeconds(30),
+                    Duration.ofMinutes(1), 2);
+
+            assertEquals(List.of(1, 2, 3), individualDao.getPersonIds(0, 10, 10));
+            assertEquals(List.of(2, 3), individualDao.getPersonIds(1, 10, 2));
+            assertEquals(List.of(3), individualDao.getPersonIds(2, 10, 10));
+            assertEquals(List.of(), individualDao.getPersonIds(3, 10, 10));
+
+            List<Phenopacket> batch = assembler.assemble(List.of(3, 1, 2), assembler.createMetaData());
+            assertEquals(List.of("N3C:3", "N3C:1", "N3C:2"), batch.stream().map(Phenopacket::getId).collect(Collectors.toList()));
+            for (Phenopacket phenopacket : batch) {
+                int personId = Integer.parseInt(phenopacket.getSubject().getId());
+                Phenopacket single = assembler.assemble(personId, assembler.defaultOptions()).orElseThrow();
+                assertEquals(phenopacket.toBuilder().clearMetaData().build(), single.toBuilder().clearMetaData().build());
+                assertFalse(single.getDiseasesList().isEmpty());
+            }
+            assertTrue(assembler.assemble(4, assembler.defaultOptions()).isEmpty());
+        } finally {
+            queryExecutor.shutdownNow();
+        }
+    }
+
+    @Test
+    void failedReplicasAreSkipped() throws Exception {
+        HikariDataSource down = new HikariDataSource();
+        down.setJdbcUrl("jdbc:postgresql://localhost:1/postgres");
+        down.setConnectionTimeout(250);
+        down.setMaximumPoolSize(1);
+        Map<String, HikariDataSource> replicas = new LinkedHashMap<>();
+        replicas.put("up", pool(shardB));
+        replicas.put("down", down);
+        try (HikariDataSource primary = pool(shardA);
+             RoutingDataSource dataSource = new RoutingDataSource(primary, replicas, Routing.Mode.REPLICAS,
+                     RoutingDataSource.ReplicaSelection.ROUND_ROBIN, Duration.ofHours(1), Duration.ofSeconds(2))) {
+            dataSource.checkHealth();
+
+            assertTrue(dataSource.getStatus().get("up").isHealthy());
+            assertFalse(dataSource.getStatus().get("down").isHealthy());
+            for (int i = 0; i < 4; i++) {
+                assertEquals(shardB.getPort(), port(dataSource));
+            }
+            try (Routing.Scope ignored = Routing.bind(Routing.PRIMARY)) {
+                assertEquals(shardA.getPort(), port(dataSource));
+            }
+            assertEquals(3, dataSource.getTotalPoolSize());
+        }
+    }
+
+    @Test
+    void requestReadsFromOneReplica() {
+        Map<String, HikariDataSource> replicas = new LinkedHashMap<>();
+        replicas.put("a", pool(shardA));
+        replicas.put("b", pool(shardB));
+        try (HikariDataSource primary = pool(shardA);
+             RoutingDataSource dataSource = new RoutingDataSource(primary, replicas, Routing.Mode.REPLICAS,
+                     RoutingDataSource.ReplicaSelection.ROUND_ROBIN, Duration.ofHours(1), Duration.ofSeconds(2))) {
+            assertNotEquals(port(dataSource), port(dataSource));
+            try (Routing.Scope ignored = dataSource.bindReplica()) {
+                int replica = port(dataSource);
+                for (int i = 0; i < 4; i++) {
+                    assertEquals(replica, port(dataSource));
+                }
+                // a request which reads consistently from the primary keeps it
+                try (Routing.Scope primaryReads = Routing.bind(Routing.PRIMARY); Routing.Scope unchanged = dataSource.bindReplica()) {
+                    assertEquals(Routing.PRIMARY, Routing.current());
+                }
+            }
+            assertNull(Routing.current());
+        }
+    }
+
+    @Test
+    void healthCheckProbesOutsideThePools() throws Exception {
+        HikariDataSource busy = pool(shardB);
+        busy.setConnectionTimeout(30_000);
+        try (ServerSocket unresponsive = new ServerSocket(0)) {
+            // accepts connections, as the kernel does on the server's behalf, but never answers
+            HikariDataSource hung = new HikariDataSource();
+            hung.setJdbcUrl("jdbc:postgresql://localhost:" + unresponsive.getLocalPort() + "/postgres");
+            Map<String, HikariDataSource> replicas = new LinkedHashMap<>();
+            replicas.put("busy", busy);
+            replicas.put("hung", hung);
+            try (HikariDataSource primary = pool(shardA);
+                 RoutingDataSource dataSource = new RoutingDataSource(primary, replicas, Routing.Mode.REPLICAS,
+                         RoutingDataSource.ReplicaSelection.ROUND_ROBIN, Duration.ofHours(1), Duration.ofSeconds(1));
+                 Connection held = busy.getConnection()) {
+                long start = System.nanoTime();
+                dataSource.checkHealth();
+
+                assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(10));
+                assertTrue(dataSource.getStatus().get("busy").isHealthy());
+                assertFalse(dataSource.getStatus().get("hung").isHealthy());
+            }
+        }
+    }
+
+    @Test
+    void unsetPoolSizesAreTheHikariDefault() {
+        HikariDataSource replica = new HikariDataSource();
+        replica.setJdbcUrl(shardB.getJdbcUrl("postgres", "postgres"));
+        // the pools have not started, so their sizes are still unset rather than defaulted
+        try (HikariDataSource primary = new HikariDataSource();
+             RoutingDataSource dataSource = new RoutingDataSource(primary, Map.of("replica", replica), Routing.Mode.REPLICAS,
+                     RoutingDataSource.ReplicaSelection.ROUND_ROBIN, Duration.ofHours(1), Duration.ofSeconds(2))) {
+            assertEquals(10, QueryExecutorConfig.poolSize(primary));
+            assertEquals(20, dataSource.getTotalPoolSize());
+        }
+    }
+
+    private static EmbeddedPostgres startOmopDatabase() throws IOException {
+        EmbeddedPostgres postgres = EmbeddedPostgres.start();
+        new ResourceDatabasePopulator(new ClassPathResource("omop/cdm_tables.sql"), new ClassPathResource("omop/example_rows.sql"))
+                .execute(postgres.getPostgresDatabase());
+        return postgres;
+    }
+
+    private static HikariDataSource pool(EmbeddedPostgres postgres) {
+        HikariDataSource pool = new HikariDataSource();
+        pool.setJdbcUrl(postgres.getJdbcUrl("postgres", "postgres"));
+        pool.setMaximumPoolSize(1);
+        return pool;
+    }
+
+    private static int port(DataSource dataSource) {
+        return Integer.parseInt(new JdbcTemplate(dataSource).queryForObject("SELECT current_setting('port')", String.class));
+    }
+}
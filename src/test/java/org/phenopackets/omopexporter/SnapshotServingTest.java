@@ -0,0 +1,139 @@
+package org.phenopackets.omopexporter;
+
+import io.zonky.test.db.postgres.embedded.EmbeddedPostgres;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.phenopackets.omopexporter.snapshot.Snapshot;
+import org.phenopackets.omopexporter.snapshot.SnapshotStore;
+import org.phenopackets.schema.v2.Phenopacket;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.http.HttpHeaders;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.init.ResourceDatabasePopulator;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.util.FileSystemUtils;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.*;
+
+/**
+ * Requests phenopackets of the whole application with snapshots enabled, once a snapshot of the example rows has been
+ * built.
+ */
+@SpringBootTest
+@AutoConfigureMockMvc
+class SnapshotServingTest {
+
+    private static final String SENDFILE_SUPPORT = "org.apache.tomcat.sendfile.support";
+
+    private static EmbeddedPostgres postgres;
+    private static Path snapshots;
+
+    @Autowired
+    private MockMvc mockMvc;
+
+    @Autowired
+    private SnapshotStore snapshotStore;
+
+    @DynamicPropertySource
+    static void omopDatabase(DynamicPropertyRegistry registry) throws IOException {
+        postgres = EmbeddedPostgres.start();
+        new ResourceDatabasePopulator(new ClassPathResource("omop/cdm_tables.sql"), new ClassPathResource("omop/example_rows.sql"))
+                .execute(postgres.getPostgresDatabase());
+        snapshots = Files.createTempDirectory("omop-snapshots");
+        registry.add("spring.datasource.url", () -> postgres.getJdbcUrl("postgres", "postgres"));
+        registry.add("spring.datasource.username", () -> "postgres");
+        registry.add("spring.datasource.password", () -> "");
+        registry.add("spring.datasource.hikari.schema", () -> "public");
+        registry.add("omop-exporter.snapshot.enabled", () -> "true");
+        registry.add("omop-exporter.snapshot.directory", snapshots::toString);
+    }
+
+    @AfterAll
+    static void stop() throws IOException {
+        if (postgres != null) {
+            postgres.close();
+        }
+        if (snapshots != null) {
+            FileSystemUtils.deleteRecursively(snapshots);
+        }
+    }
+
+    @BeforeEach
+    void buildSnapshot() throws InterruptedException {
+        if (snapshotStore.getCurrent().isPresent()) {
+            return;
+        }
+        snapshotStore.startBuild();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        while (snapshotStore.isBuilding() && System.nanoTime() < deadline) {
+            Thread.sleep(20);
+        }
+        assertEquals(3, snapshotStore.getCurrent().orElseThrow().size(), () -> snapshotStore.getLastBuildFailure().orElse("Still building"));
+    }
+
+    @Test
+    void phenopacketIsSentFromItsSegmentFile() throws Exception {
+        Snapshot.Entry entry = snapshotStore.get(1, PhenopacketCache.Representation.PROTOBUF).orElseThrow();
+
+        mockMvc.perform(get("/phenopacket/1").accept(OmopExporterController.APPLICATION_PROTOBUF).requestAttr(SENDFILE_SUPPORT, true))
+                .andExpect(status().isOk())
+                .andExpect(content().contentType(OmopExporterController.APPLICATION_PROTOBUF))
+                .andExpect(header().string(HttpHeaders.ETAG, entry.getETag()))
+                .andExpect(header().longValue(HttpHeaders.CONTENT_LENGTH, entry.getLength()))
+                .andExpect(request().attribute("org.apache.tomcat.sendfile.filename", entry.getFile().toAbsolutePath().toString()))
+                .andExpect(request().attribute("org.apache.tomcat.sendfile.start", entry.getOffset()))
+                .andExpect(request().attribute("org.apache.tomcat.sendfile.end", entry.getOffset() + entry.getLength()))
+                .andExpect(content().bytes(new byte[0]));
+    }
+
+    @Test
+    void phenopacketIsWrittenFromTheMappingWithoutSendfile() throws Exception {
+        byte[] protobuf = mockMvc.perform(get("/phenopacket/1").accept(OmopExporterController.APPLICATION_PROTOBUF))
+                .andExpect(status().isOk())
+                .andExpect(request().attribute("org.apache.tomcat.sendfile.filename", (Object) null))
+                .andReturn().getResponse().getContentAsByteArray();
+
+        assertEquals("N3C:1", Phenopacket.parseFrom(protobuf).getId());
+    }
+
+    @Test
+    void matchingETagIsNotModified() throws Exception {
+        String etag = snapshotStore.get(2, PhenopacketCache.Representation.JSON).orElseThrow().getETag();
+
+        mockMvc.perform(get("/phenopacket/2").header(HttpHeaders.IF_NONE_MATCH, etag).requestAttr(SENDFILE_SUPPORT, true))
+                .andExpect(status().isNotModified())
+                .andExpect(request().attribute("org.apache.tomcat.sendfile.filename", (Object) null))
+                .andExpect(content().bytes(new byte[0]));
+    }
+
+    @Test
+    void personNotInTheSnapshotIsAssembled() throws Exception {
+        JdbcTemplate jdbcTemplate = new JdbcTemplate(postgres.getPostgresDatabase());
+        jdbcTemplate.update("INSERT INTO person (person_id, gender_concept_id, birth_datetime) VALUES (4, 8507, '1982-05-09 00:00:00')");
+        try {
+            assertTrue(snapshotStore.get(4, PhenopacketCache.Representation.PROTOBUF).isEmpty());
+
+            byte[] protobuf = mockMvc.perform(get("/phenopacket/4").accept(OmopExporterController.APPLICATION_PROTOBUF).requestAttr(SENDFILE_SUPPORT, true))
+                    .andExpect(status().isOk())
+                    .andExpect(request().attribute("org.apache.tomcat.sendfile.filename", (Object) null))
+                    .andReturn().getResponse().getContentAsByteArray();
+
+            assertEquals("N3C:4", Phenopacket.parseFrom(protobuf).getId());
+        } finally {
+            jdbcTemplate.update("DELETE FROM person WHERE person_id = 4");
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package org.phenopackets.omopexporter;
+
+import org.junit.jupiter.api.Test;
+import org.phenopackets.omopexporter.dao.ConceptCache;
+import org.phenopackets.omopexporter.dao.PersonRowCounts;
+import org.phenopackets.omopexporter.dao.StagingTables;
+import org.roaringbitmap.RoaringBitmap;
+
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+class StagingRefresherTest {
+
+    private static final Map<String, Integer> STAGED = Map.of("measurement", 2);
+
+    private final StagingTables stagingTables = mock(StagingTables.class);
+    private final ConceptCache conceptCache = mock(ConceptCache.class);
+    private final PhenopacketCache phenopacketCache = mock(PhenopacketCache.class);
+    private final PersonRowCounts personRowCounts = mock(PersonRowCounts.class);
+    private final StagingRefresher instance = new StagingRefresher(stagingTables, conceptCache, phenopacketCache, personRowCounts);
+
+    @Test
+    void incrementalRefreshEvictsThePersonsWithStagedRows() {
+        when(stagingTables.refresh(eq(false), any(RoaringBitmap.class))).thenAnswer(invocation -> {
+            invocation.<RoaringBitmap>getArgument(1).or(RoaringBitmap.bitmapOf(2, 7));
+            return STAGED;
+        });
+
+        assertEquals(STAGED, instance.refresh(false));
+
+        verify(phenopacketCache).invalidate(2);
+        verify(phenopacketCache).invalidate(7);
+        verify(phenopacketCache, never()).invalidateAll();
+        verify(conceptCache, never()).reload();
+        verify(personRowCounts).clear();
+    }
+
+    @Test
+    void incrementalRefreshWhichStagesNothingKeepsTheRowCounts() {
+        when(stagingTables.refresh(eq(false), any(RoaringBitmap.class))).thenReturn(Map.of("measurement", 0));
+
+        instance.refresh(false);
+
+        verifyNoInteractions(phenopacketCache, personRowCounts);
+    }
+
+    @Test
+    void fullRefreshReloadsTheConceptsAndFlushesThePhenopackets() {
+        when(stagingTables.refresh(eq(true), any(RoaringBitmap.class))).thenReturn(STAGED);
+
+        assertEquals(STAGED, instance.refresh(true));
+
+        verify(conceptCache).reload();
+        verify(phenopacketCache).invalidateAll();
+        verify(phenopacketCache, never()).invalidate(anyInt());
+        verify(personRowCounts).clear();
+    }
+}
@@ -0,0 +1,67 @@
+package org.phenopackets.omopexporter;
+
+import io.zonky.test.db.postgres.embedded.EmbeddedPostgres;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.phenopackets.omopexporter.dao.QueryDeadline;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.SingleConnectionDataSource;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class StatementTimeoutDataSourceTest {
+
+    private static EmbeddedPostgres postgres;
+
+    @BeforeAll
+    static void start() throws IOException {
+        postgres = EmbeddedPostgres.start();
+    }
+
+    @AfterAll
+    static void stop() throws IOException {
+        if (postgres != null) {
+            postgres.close();
+        }
+    }
+
+    @Test
+    void queriesAreCancelledOnTheServerAtTheDeadline() throws SQLException {
+        // one connection, suppressing close as a pool would, to check that the timeout does not outlive the deadline
+        SingleConnectionDataSource pool = new SingleConnectionDataSource(postgres.getPostgresDatabase().getConnection(), true);
+        JdbcTemplate jdbcTemplate = new JdbcTemplate(new StatementTimeoutDataSource(pool));
+        try {
+            assertEquals("0", jdbcTemplate.queryForObject("SHOW statement_timeout", String.class));
+
+            long start = System.nanoTime();
+            try (QueryDeadline.Scope ignored = QueryDeadline.bind(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(200))) {
+                assertThrows(DataAccessException.class, () -> jdbcTemplate.execute("SELECT pg_sleep(10)"));
+            }
+            assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+
+            assertEquals("0", jdbcTemplate.queryForObject("SHOW statement_timeout", String.class));
+        } finally {
+            pool.destroy();
+        }
+    }
+
+    @Test
+    void connectionsAreRefusedOnceTheDeadlineHasPassed() {
+        JdbcTemplate jdbcTemplate = new JdbcTemplate(new StatementTimeoutDataSource(postgres.getPostgresDatabase()));
+        try (QueryDeadline.Scope ignored = QueryDeadline.bind(System.nanoTime() - 1)) {
+            assertThrows(DataAccessException.class, () -> jdbcTemplate.queryForObject("SELECT 1", Integer.class));
+        }
+        // a later deadline does not extend an earlier one
+        try (QueryDeadline.Scope outer = QueryDeadline.bind(System.nanoTime() - 1);
+             QueryDeadline.Scope inner = QueryDeadline.bind(System.nanoTime() + TimeUnit.MINUTES.toNanos(1))) {
+            assertThrows(DataAccessException.class, () -> jdbcTemplate.queryForObject("SELECT 1", Integer.class));
+        }
+        assertEquals(1, jdbcTemplate.queryForObject("SELECT 1", Integer.class));
+    }
+}
@@ -0,0 +1,85 @@
+package org.phenopackets.omopexporter;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.protobuf.util.JsonFormat;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.phenopackets.omopexporter.dao.ConceptIndex;
+import org.phenopackets.omopexporter.dao.PersonChanges;
+import org.phenopackets.omopexporter.dao.PersonRowCounts;
+import org.phenopackets.omopexporter.dao.Routing;
+import org.phenopackets.omopexporter.snapshot.SnapshotStore;
+import org.springframework.http.MediaType;
+import org.springframework.mock.web.MockAsyncContext;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
+
+/**
+ * Streams a cohort whose assembly is stuck, through a controller admitting one cohort at a time, to check that the
+ * place in the bulk lane is given up when the request times out rather than when the body finally returns.
+ */
+class StreamedAdmissionTest {
+
+    private final PhenopacketAssembler phenopacketAssembler = mock(PhenopacketAssembler.class);
+    private final AdmissionControl admissionControl = admissionControl();
+    private final MockMvc mockMvc = MockMvcBuilders.standaloneSetup(new OmopExporterController(phenopacketAssembler, mock(PhenopacketCache.class),
+            mock(SnapshotStore.class), mock(ConceptIndex.class), mock(PersonChanges.class), Routing.none(), admissionControl,
+            new ResponseMetrics(new SimpleMeterRegistry()), JsonFormat.printer(), new ObjectMapper())).build();
+
+    @Test
+    void bulkLaneIsGivenUpWhenTheRequestTimesOut() throws Exception {
+        CountDownLatch assembling = new CountDownLatch(1);
+        CountDownLatch stuck = new CountDownLatch(1);
+        doAnswer(invocation -> {
+            assembling.countDown();
+            // as a write to a client which has stopped reading, which an interrupt does not end
+            while (stuck.getCount() > 0) {
+                try {
+                    stuck.await();
+                } catch (InterruptedException ignored) {
+                }
+            }
+            return null;
+        }).when(phenopacketAssembler).assembleCohort(any(CohortRequest.class), any(), any());
+
+        try {
+            MvcResult started = mockMvc.perform(post("/phenopackets")
+                            .contentType(MediaType.APPLICATION_JSON)
+                            .accept(MediaType.APPLICATION_NDJSON)
+                            .content("{\"personIds\": [1]}"))
+                    .andExpect(request().asyncStarted())
+                    .andReturn();
+            assertTrue(assembling.await(5, TimeUnit.SECONDS));
+            assertEquals(1, admissionControl.getActive(AdmissionControl.Lane.BULK));
+
+            MockAsyncContext asyncContext = (MockAsyncContext) started.getRequest().getAsyncContext();
+            for (AsyncListener listener : asyncContext.getListeners()) {
+                listener.onTimeout(new AsyncEvent(asyncContext));
+            }
+            asyncContext.complete();
+
+            assertEquals(0, admissionControl.getActive(AdmissionControl.Lane.BULK));
+        } finally {
+            stuck.countDown();
+        }
+    }
+
+    private static AdmissionControl admissionControl() {
+        PersonRowCounts personRowCounts = mock(PersonRowCounts.class);
+        return new AdmissionControl(personRowCounts, new SimpleMeterRegistry(), true, 1, 1, 1, 1, 1, 1, Duration.ofMillis(50),
+                Duration.ofSeconds(30));
+    }
+}
@@ -0,0 +1,72 @@
+package org.phenopackets.omopexporter;
+
+import com.google.protobuf.util.JsonFormat;
+import org.junit.jupiter.api.Test;
+import org.phenopackets.phenotools.builder.builders.OntologyClassBuilder;
+import org.phenopackets.schema.v2.Phenopacket;
+import org.phenopackets.schema.v2.core.Individual;
+import org.phenopackets.schema.v2.core.Measurement;
+import org.phenopackets.schema.v2.core.MedicalAction;
+import org.phenopackets.schema.v2.core.Procedure;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class StreamingPhenopacketWriterTest {
+
+    private static final Phenopacket PHENOPACKET = Phenopacket.newBuilder()
+            .setId("N3C:1")
+            .setSubject(Individual.newBuilder().setId("1"))
+            .addMedicalActions(MedicalAction.newBuilder().setProcedure(Procedure.newBuilder()
+                    .setCode(OntologyClassBuilder.ontologyClass("SNOMED:232717009", "Coronary artery bypass graft"))))
+            .build();
+
+    private static final List<Measurement> MEASUREMENTS = List.of(
+            Measurement.newBuilder().setAssay(OntologyClassBuilder.ontologyClass("LOINC:8867-4", "Heart rate")).build(),
+            Measurement.newBuilder().setAssay(OntologyClassBuilder.ontologyClass("LOINC:8310-5", "Body temperature")).build());
+
+    @Test
+    void protobufParsesAsPhenopacketWithMeasurements() throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        write(StreamingPhenopacketWriter.protobuf(outputStream), MEASUREMENTS);
+
+        assertEquals(PHENOPACKET.toBuilder().addAllMeasurements(MEASUREMENTS).build(), Phenopacket.parseFrom(outputStream.toByteArray()));
+    }
+
+    @Test
+    void jsonParsesAsPhenopacketWithMeasurements() throws IOException {
+        for (JsonFormat.Printer printer : List.of(JsonFormat.printer(), JsonFormat.printer().omittingInsignificantWhitespace())) {
+            StringWriter writer = new StringWriter();
+            write(StreamingPhenopacketWriter.json(printer, writer), MEASUREMENTS);
+
+            assertEquals(PHENOPACKET.toBuilder().addAllMeasurements(MEASUREMENTS).build(), parseJson(writer.toString()));
+        }
+    }
+
+    @Test
+    void jsonWithoutMeasurementsOmitsThem() throws IOException {
+        StringWriter writer = new StringWriter();
+        write(StreamingPhenopacketWriter.json(JsonFormat.printer(), writer), List.of());
+
+        assertFalse(writer.toString().contains("measurements"));
+        assertEquals(PHENOPACKET, parseJson(writer.toString()));
+    }
+
+    private static void write(StreamingPhenopacketWriter writer, List<Measurement> measurements) throws IOException {
+        writer.start(PHENOPACKET);
+        for (Measurement measurement : measurements) {
+            writer.writeMeasurement(measurement);
+        }
+        writer.finish();
+    }
+
+    private static Phenopacket parseJson(String json) throws IOException {
+        Phenopacket.Builder builder = Phenopacket.newBuilder();
+        JsonFormat.parser().merge(json, builder);
+        return builder.build();
+    }
+}
@@ -0,0 +1,132 @@
+package org.phenopackets.omopexporter.dao;
+
+import com.zaxxer.hikari.HikariDataSource;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.zonky.test.db.postgres.embedded.EmbeddedPostgres;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.phenopackets.schema.v2.core.Measurement;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.init.ResourceDatabasePopulator;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Maps the example rows with a cold cache which only has room for one concept, through a pool of one connection, so
+ * that loading the concepts on a second connection would time out, and compares them with the rows mapped once all
+ * their concepts are cached.
+ */
+class ConceptCacheTest {
+
+    private static final List<Integer> PERSON_IDS = List.of(1, 2, 3);
+
+    private static EmbeddedPostgres postgres;
+
+    private HikariDataSource pool;
+    private Daos cold;
+    private Daos warm;
+
+    @BeforeAll
+    static void start() throws IOException {
+        postgres = OmopDatabase.start();
+        new ResourceDatabasePopulator(new ClassPathResource("omop/example_rows.sql")).execute(postgres.getPostgresDatabase());
+    }
+
+    @AfterAll
+    static void stop() throws IOException {
+        if (postgres != null) {
+            postgres.close();
+        }
+    }
+
+    @BeforeEach
+    void createDaos() {
+        pool = new HikariDataSource();
+        pool.setJdbcUrl(postgres.getJdbcUrl("postgres", "postgres"));
+        pool.setMaximumPoolSize(1);
+        pool.setConnectionTimeout(250);
+        cold = new Daos(new JdbcTemplate(pool), 1);
+        warm = new Daos(new JdbcTemplate(postgres.getPostgresDatabase()), 1000);
+        // the first read loads the concepts, so the second maps every row as it is read
+        warm.read();
+    }
+
+    @AfterEach
+    void closePool() {
+        pool.close();
+    }
+
+    @Test
+    void uncachedConceptsAreLoadedOnTheSameConnection() {
+        List<Object> expected = warm.read();
+        assertTrue(warm.measurementDao.getMeasurements(1, DateRange.ALL).stream()
+                .anyMatch(measurement -> measurement.getAssay().getId().startsWith("LOINC:")));
+
+        assertEquals(expected, cold.read());
+        assertEquals(1, cold.conceptCache.size());
+    }
+
+    @Test
+    void streamedConceptsAreLoadedOnTheSameConnection() throws IOException {
+        List<Measurement> expected = warm.measurementDao.getMeasurements(1, DateRange.ALL);
+        List<Measurement> streamed = new ArrayList<>();
+
+        cold.measurementDao.streamMeasurements(1, DateRange.ALL, streamed::add);
+
+        assertEquals(expected, streamed);
+    }
+
+    private static final class Daos {
+
+        private final ConceptCache conceptCache;
+        private final IndividualDao individualDao;
+        private final MeasurementDao measurementDao;
+        private final MedicalActionDao medicalActionDao;
+        private final DiseaseDao diseaseDao;
+        private final PersonRecordDao personRecordDao;
+
+        private Daos(JdbcTemplate jdbcTemplate, int conceptCacheSize) {
+            conceptCache = new ConceptCache(jdbcTemplate, Routing.none(), conceptCacheSize, List.of());
+            MessageInterner messageInterner = new MessageInterner(256);
+            QueryMetrics queryMetrics = new QueryMetrics(new SimpleMeterRegistry());
+            StagingTables stagingTables = new StagingTables(jdbcTemplate, false, 100);
+            individualDao = new IndividualDao(jdbcTemplate, conceptCache, messageInterner, queryMetrics, Routing.none());
+            measurementDao = new MeasurementDao(jdbcTemplate, conceptCache, messageInterner, queryMetrics, stagingTables, 2, Duration.ofSeconds(30));
+            medicalActionDao = new MedicalActionDao(jdbcTemplate, conceptCache, messageInterner, queryMetrics, stagingTables);
+            diseaseDao = new DiseaseDao(jdbcTemplate, conceptCache, messageInterner, queryMetrics, stagingTables);
+            personRecordDao = new PersonRecordDao(jdbcTemplate, individualDao, measurementDao, medicalActionDao, diseaseDao, stagingTables, queryMetrics);
+        }
+
+        /**
+         * Reads every section of the persons, for a single person, for the batch and as a person record.
+         */
+        private List<Object> read() {
+            List<Object> sections = new ArrayList<>();
+            for (int personId : PERSON_IDS) {
+                sections.add(individualDao.getIndividual(personId));
+                sections.add(measurementDao.getMeasurements(personId, DateRange.ALL));
+                sections.add(medicalActionDao.getMedicalActions(personId, DateRange.ALL, false));
+                sections.add(diseaseDao.getDiseases(personId, DateRange.ALL));
+                PersonRecord personRecord = personRecordDao.getPersonRecord(personId, EnumSet.allOf(Section.class), DateRange.ALL, Duration.ofSeconds(10))
+                        .orElseThrow();
+                sections.add(List.of(personRecord.getIndividual(), personRecord.getMeasurements(), personRecord.getTreatments(),
+                        personRecord.getProcedures(), personRecord.getDiseases()));
+            }
+            sections.add(individualDao.getIndividuals(PERSON_IDS).getRows());
+            sections.add(measurementDao.getMeasurements(PERSON_IDS, DateRange.ALL).getRows());
+            sections.add(medicalActionDao.getMedicalActions(PERSON_IDS, DateRange.ALL, false).getRows());
+            sections.add(diseaseDao.getDiseases(PERSON_IDS, DateRange.ALL).getRows());
+            return sections;
+        }
+    }
+}
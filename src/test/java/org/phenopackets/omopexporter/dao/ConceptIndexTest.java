@@ -0,0 +1,121 @@
+package org.phenopackets.omopexporter.dao;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.zonky.test.db.postgres.embedded.EmbeddedPostgres;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.roaringbitmap.RoaringBitmap;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.init.ResourceDatabasePopulator;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.phenopackets.omopexporter.dao.ConceptExpression.*;
+
+class ConceptIndexTest {
+
+    private static final int DIABETES = 201820;
+    private static final int TYPE_1_DIABETES = 201254;
+    private static final int TYPE_2_DIABETES = 201826;
+    private static final int SYSTOLIC_BLOOD_PRESSURE = 3004249;
+    private static final int APPENDECTOMY = 4230911;
+
+    private static EmbeddedPostgres postgres;
+    private static JdbcTemplate jdbcTemplate;
+
+    private ConceptIndex conceptIndex;
+
+    @BeforeAll
+    static void start() throws IOException {
+        postgres = OmopDatabase.start();
+        new ResourceDatabasePopulator(new ClassPathResource("omop/example_rows.sql")).execute(postgres.getPostgresDatabase());
+        jdbcTemplate = new JdbcTemplate(postgres.getPostgresDatabase());
+    }
+
+    @AfterAll
+    static void stop() throws IOException {
+        if (postgres != null) {
+            postgres.close();
+        }
+    }
+
+    @BeforeEach
+    void createIndex() {
+        // a small fetch size, so that the tables are read over several fetches
+        conceptIndex = new ConceptIndex(jdbcTemplate, new QueryMetrics(new SimpleMeterRegistry()), Routing.none(), true, 2);
+    }
+
+    @Test
+    void conceptsSelectThePersonsWithRowsForThem() {
+        ConceptIndex.Bitmaps bitmaps = conceptIndex.rebuild();
+
+        assertEquals(3, bitmaps.getPersonCount());
+        assertEquals(List.of(1, 2), select(concept(SYSTOLIC_BLOOD_PRESSURE, false)));
+        assertEquals(List.of(1), select(concept(APPENDECTOMY, false)));
+        assertEquals(List.of(1, 2), select(concept(TYPE_2_DIABETES, true)));
+        // no rows have the parent concept itself
+        assertEquals(List.of(), select(concept(DIABETES, false)));
+        assertEquals(List.of(1, 2, 3), select(concept(DIABETES, true)));
+        assertEquals(List.of(), select(concept(123, true)));
+    }
+
+    @Test
+    void booleanCombinationsOfConcepts() {
+        conceptIndex.rebuild();
+
+        assertEquals(List.of(2, 3), select(and(concept(DIABETES, true), not(concept(APPENDECTOMY, false)))));
+        assertEquals(List.of(1, 3), select(or(concept(TYPE_1_DIABETES, false), concept(APPENDECTOMY, false))));
+        assertEquals(List.of(3), select(not(concept(TYPE_2_DIABETES, false))));
+        assertEquals(List.of(1), select(and(concept(SYSTOLIC_BLOOD_PRESSURE, false), concept(APPENDECTOMY, false))));
+        // the bitmaps of the index are not modified by evaluating an expression
+        assertEquals(List.of(1, 2), select(concept(SYSTOLIC_BLOOD_PRESSURE, false)));
+    }
+
+    @Test
+    void invalidExpressionsAndMissingIndexAreRejected() {
+        assertThrows(IllegalStateException.class, () -> conceptIndex.select(concept(DIABETES, false)));
+        conceptIndex.rebuild();
+
+        assertThrows(IllegalArgumentException.class, () -> conceptIndex.select(new ConceptExpression()));
+        assertThrows(IllegalArgumentException.class, () -> conceptIndex.select(or()));
+        ConceptExpression both = concept(DIABETES, false);
+        both.setNot(concept(APPENDECTOMY, false));
+        assertThrows(IllegalArgumentException.class, () -> conceptIndex.select(not(both)));
+    }
+
+    @Test
+    void rebuildIsStartedInTheBackground() throws InterruptedException {
+        try {
+            conceptIndex.startRebuild();
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (conceptIndex.isRebuilding() && System.nanoTime() < deadline) {
+                Thread.sleep(20);
+            }
+
+            assertFalse(conceptIndex.isRebuilding());
+            assertEquals(Optional.empty(), conceptIndex.getLastRebuildFailure());
+            assertEquals(3, conceptIndex.getBitmaps().getPersonCount());
+        } finally {
+            conceptIndex.shutdown();
+        }
+        ConceptIndex disabled = new ConceptIndex(jdbcTemplate, new QueryMetrics(new SimpleMeterRegistry()), Routing.none(), false, 2);
+        assertThrows(IllegalStateException.class, disabled::startRebuild);
+    }
+
+    private List<Integer> select(ConceptExpression expression) {
+        RoaringBitmap persons = conceptIndex.select(expression);
+        List<Integer> personIds = new ArrayList<>();
+        persons.forEach((int personId) -> personIds.add(personId));
+        // the result is the caller's to modify
+        persons.clear();
+        return personIds;
+    }
+}
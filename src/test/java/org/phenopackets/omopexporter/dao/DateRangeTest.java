@@ -0,0 +1,46 @@
+package org.phenopackets.omopexporter.dao;
+
+import org.junit.jupiter.api.Test;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.time.LocalDate;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+class DateRangeTest {
+
+    @Test
+    void allHasNoPredicate() {
+        assertSame(DateRange.ALL, DateRange.of(null, null));
+        assertEquals("", DateRange.ALL.predicate("m.measurement_datetime"));
+    }
+
+    @Test
+    void boundsAreBoundAfterThePersonId() throws SQLException {
+        DateRange dateRange = DateRange.of(LocalDate.of(2021, 1, 1), LocalDate.of(2021, 3, 31));
+        PreparedStatement ps = mock(PreparedStatement.class);
+
+        assertEquals("\nAND m.measurement_datetime >= ?\nAND m.measurement_datetime < ?", dateRange.predicate("m.measurement_datetime"));
+        assertEquals(4, dateRange.bind(ps, 2));
+        verify(ps).setObject(2, LocalDate.of(2021, 1, 1));
+        // the to date is inclusive, so timestamps on it are before the next day
+        verify(ps).setObject(3, LocalDate.of(2021, 4, 1));
+    }
+
+    @Test
+    void openEndedRangeHasOnePredicate() throws SQLException {
+        DateRange dateRange = DateRange.of(null, LocalDate.of(2021, 3, 31));
+        PreparedStatement ps = mock(PreparedStatement.class);
+
+        assertEquals("\nAND co.condition_start_date < ?", dateRange.predicate("co.condition_start_date"));
+        assertEquals(3, dateRange.bind(ps, 2));
+        verify(ps).setObject(2, LocalDate.of(2021, 4, 1));
+    }
+
+    @Test
+    void fromAfterToIsRejected() {
+        assertThrows(IllegalArgumentException.class, () -> DateRange.of(LocalDate.of(2021, 2, 1), LocalDate.of(2021, 1, 1)));
+    }
+}
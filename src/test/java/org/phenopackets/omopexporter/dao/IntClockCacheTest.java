@@ -0,0 +1,73 @@
+package org.phenopackets.omopexporter.dao;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class IntClockCacheTest {
+
+    @Test
+    void getReturnsPutValues() {
+        IntClockCache<String> cache = new IntClockCache<>(10);
+        cache.put(0, "zero");
+        cache.put(8532, "female");
+        cache.put(-1, "minus one");
+
+        assertEquals("zero", cache.get(0));
+        assertEquals("female", cache.get(8532));
+        assertEquals("minus one", cache.get(-1));
+        assertNull(cache.get(8507));
+        assertEquals(3, cache.size());
+    }
+
+    @Test
+    void putReplacesExistingValue() {
+        IntClockCache<String> cache = new IntClockCache<>(10);
+        cache.put(1, "one");
+        cache.put(1, "uno");
+
+        assertEquals("uno", cache.get(1));
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    void evictsUnreferencedEntriesBeforeReferencedOnes() {
+        IntClockCache<Integer> cache = new IntClockCache<>(100);
+        for (int i = 0; i < 100; i++) {
+            cache.put(i, i);
+        }
+        // give the even keys a second chance
+        for (int i = 0; i < 100; i += 2) {
+            cache.get(i);
+        }
+        for (int i = 100; i < 150; i++) {
+            cache.put(i, i);
+        }
+
+        assertEquals(100, cache.size());
+        for (int i = 0; i < 100; i += 2) {
+            assertEquals(i, cache.get(i));
+        }
+    }
+
+    @Test
+    void remainsConsistentUnderChurn() {
+        IntClockCache<Integer> cache = new IntClockCache<>(1000);
+        for (int i = 0; i < 100_000; i++) {
+            int key = i * 7919;
+            cache.put(key, i);
+            assertEquals(i, cache.get(key));
+        }
+        assertEquals(1000, cache.size());
+    }
+
+    @Test
+    void clearRemovesAllEntries() {
+        IntClockCache<String> cache = new IntClockCache<>(10);
+        cache.put(1, "one");
+        cache.clear();
+
+        assertNull(cache.get(1));
+        assertEquals(0, cache.size());
+    }
+}
@@ -0,0 +1,134 @@
+package org.phenopackets.omopexporter.dao;
+
+import com.google.protobuf.util.Timestamps;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.zonky.test.db.postgres.embedded.EmbeddedPostgres;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.phenopackets.schema.v2.core.Measurement;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.SingleConnectionDataSource;
+import org.springframework.jdbc.datasource.init.ResourceDatabasePopulator;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Reads the measurements of the example rows, one of which has a date but no datetime, and streams them from a cursor,
+ * one row per fetch, to check the transaction they are read in and that a sink which stops reading has its stream
+ * ended.
+ */
+class MeasurementDaoTest {
+
+    private static EmbeddedPostgres postgres;
+
+    @BeforeAll
+    static void start() throws IOException {
+        postgres = OmopDatabase.start();
+        new ResourceDatabasePopulator(new ClassPathResource("omop/example_rows.sql")).execute(postgres.getPostgresDatabase());
+    }
+
+    @AfterAll
+    static void stop() throws IOException {
+        if (postgres != null) {
+            postgres.close();
+        }
+    }
+
+    @Test
+    void measurementWithoutADatetimeIsFilteredOnItsDate() {
+        JdbcTemplate jdbcTemplate = new JdbcTemplate(postgres.getPostgresDatabase());
+        DateRange march = DateRange.of(LocalDate.of(2021, 3, 1), LocalDate.of(2021, 3, 31));
+        StagingTables stagingTables = new StagingTables(jdbcTemplate, true, 100);
+        MeasurementDao measurementDao = measurementDao(jdbcTemplate, Duration.ofSeconds(5));
+        MeasurementDao stagedMeasurementDao = measurementDao(jdbcTemplate, stagingTables, Duration.ofSeconds(5));
+        stagingTables.refresh(true);
+
+        for (MeasurementDao dao : List.of(measurementDao, stagedMeasurementDao)) {
+            List<Measurement> measurements = dao.getMeasurements(2, march);
+            assertEquals(1, measurements.size());
+            assertEquals("2021-03-02T00:00:00Z", Timestamps.toString(measurements.get(0).getTimeObserved().getTimestamp()));
+            assertEquals(measurements, dao.getMeasurements(List.of(2), march).getRows());
+            assertEquals(3, dao.getMeasurements(2, DateRange.ALL).size());
+        }
+    }
+
+    @Test
+    void measurementsAreStreamedInAReadOnlyTransactionWithTimeouts() throws SQLException, IOException {
+        // one connection, suppressing close as a pool would, so that the sink can look at the streaming transaction
+        SingleConnectionDataSource pool = new SingleConnectionDataSource(postgres.getPostgresDatabase().getConnection(), true);
+        try {
+            JdbcTemplate jdbcTemplate = new JdbcTemplate(pool);
+            MeasurementDao measurementDao = measurementDao(jdbcTemplate, Duration.ofSeconds(5));
+            List<Measurement> streamed = new ArrayList<>();
+            List<String> settings = new ArrayList<>();
+
+            int count = measurementDao.streamMeasurements(1, DateRange.ALL, measurement -> {
+                if (streamed.isEmpty()) {
+                    settings.add(jdbcTemplate.queryForObject("SHOW transaction_read_only", String.class));
+                    settings.add(jdbcTemplate.queryForObject("SHOW statement_timeout", String.class));
+                    settings.add(jdbcTemplate.queryForObject("SHOW idle_in_transaction_session_timeout", String.class));
+                }
+                streamed.add(measurement);
+            });
+
+            assertEquals(3, count);
+            assertEquals(measurementDao.getMeasurements(1, DateRange.ALL), streamed);
+            assertEquals(List.of("on", "5s", "5s"), settings);
+            // the connection is handed back as it was
+            assertTrue(pool.getConnection().getAutoCommit());
+            assertFalse(pool.getConnection().isReadOnly());
+            assertEquals("off", jdbcTemplate.queryForObject("SHOW transaction_read_only", String.class));
+            assertEquals("0", jdbcTemplate.queryForObject("SHOW statement_timeout", String.class));
+            assertEquals("0", jdbcTemplate.queryForObject("SHOW idle_in_transaction_session_timeout", String.class));
+        } finally {
+            pool.destroy();
+        }
+    }
+
+    @Test
+    void sinkWhichStopsReadingHasItsStreamEnded() {
+        SingleConnectionDataSource pool = new SingleConnectionDataSource(postgres.getJdbcUrl("postgres", "postgres"), "postgres", "", true);
+        try {
+            MeasurementDao measurementDao = measurementDao(new JdbcTemplate(pool), Duration.ofMillis(200));
+            List<Measurement> streamed = new ArrayList<>();
+
+            assertThrows(DataAccessException.class, () -> measurementDao.streamMeasurements(1, DateRange.ALL, measurement -> {
+                streamed.add(measurement);
+                sleep(1000);
+            }));
+
+            assertEquals(1, streamed.size());
+        } finally {
+            pool.destroy();
+        }
+    }
+
+    private static MeasurementDao measurementDao(JdbcTemplate jdbcTemplate, Duration streamTimeout) {
+        return measurementDao(jdbcTemplate, new StagingTables(jdbcTemplate, false, 100), streamTimeout);
+    }
+
+    private static MeasurementDao measurementDao(JdbcTemplate jdbcTemplate, StagingTables stagingTables, Duration streamTimeout) {
+        ConceptCache conceptCache = new ConceptCache(jdbcTemplate, Routing.none(), 1000, List.of());
+        return new MeasurementDao(jdbcTemplate, conceptCache, new MessageInterner(256), new QueryMetrics(new SimpleMeterRegistry()),
+                stagingTables, 1, streamTimeout);
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        }
+    }
+}
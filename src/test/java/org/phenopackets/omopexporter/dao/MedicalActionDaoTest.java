@@ -0,0 +1,83 @@
+package org.phenopackets.omopexporter.dao;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.zonky.test.db.postgres.embedded.EmbeddedPostgres;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.phenopackets.schema.v2.core.DoseInterval;
+import org.phenopackets.schema.v2.core.MedicalAction;
+import org.phenopackets.schema.v2.core.TimeInterval;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.init.ResourceDatabasePopulator;
+
+import java.io.IOException;
+import java.time.LocalDate;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MedicalActionDaoTest {
+
+    private static final MessageInterner MESSAGE_INTERNER = new MessageInterner(256);
+
+    private static EmbeddedPostgres postgres;
+    private static JdbcTemplate jdbcTemplate;
+
+    @BeforeAll
+    static void start() throws IOException {
+        postgres = OmopDatabase.start();
+        new ResourceDatabasePopulator(new ClassPathResource("omop/example_rows.sql")).execute(postgres.getPostgresDatabase());
+        jdbcTemplate = new JdbcTemplate(postgres.getPostgresDatabase());
+        // within the 5 days supplied by person 2's exposure 3 of the same drug
+        jdbcTemplate.update("INSERT INTO drug_exposure (drug_exposure_id, person_id, drug_concept_id, drug_exposure_start_date, days_supply, route_concept_id) " +
+                "VALUES (4, 2, 1125315, '2021-06-12', NULL, NULL)");
+    }
+
+    @AfterAll
+    static void stop() throws IOException {
+        if (postgres != null) {
+            postgres.close();
+        }
+    }
+
+    @Test
+    void exposureWithoutDaysSupplyHasNoEnd() {
+        StagingTables stagingTables = new StagingTables(jdbcTemplate, true, 100);
+        MedicalActionDao medicalActionDao = medicalActionDao(stagingTables);
+        List<TimeInterval> omop = intervals(medicalActionDao.getMedicalActions(2, DateRange.ALL, false));
+        List<TimeInterval> consolidated = intervals(medicalActionDao.getMedicalActions(2, DateRange.ALL, true));
+        stagingTables.refresh(true);
+
+        assertEquals(List.of(interval("2021-06-10", "2021-06-15"), interval("2021-06-12", null)), omop);
+        // taken as lasting for the day it started, which is within the exposure before it
+        assertEquals(List.of(interval("2021-06-10", "2021-06-15")), consolidated);
+        assertEquals(omop, intervals(medicalActionDao.getMedicalActions(2, DateRange.ALL, false)));
+        assertEquals(consolidated, intervals(medicalActionDao.getMedicalActions(2, DateRange.ALL, true)));
+    }
+
+    private static MedicalActionDao medicalActionDao(StagingTables stagingTables) {
+        ConceptCache conceptCache = new ConceptCache(jdbcTemplate, Routing.none(), 1000, List.of());
+        return new MedicalActionDao(jdbcTemplate, conceptCache, MESSAGE_INTERNER, new QueryMetrics(new SimpleMeterRegistry()), stagingTables);
+    }
+
+    private static List<TimeInterval> intervals(List<MedicalAction> medicalActions) {
+        return medicalActions.stream()
+                .filter(MedicalAction::hasTreatment)
+                .map(MedicalAction::getTreatment)
+                .flatMap(treatment -> treatment.getDoseIntervalsList().stream())
+                .map(DoseInterval::getInterval)
+                .sorted((first, second) -> Long.compare(first.getStart().getSeconds(), second.getStart().getSeconds()))
+                .collect(Collectors.toList());
+    }
+
+    private static TimeInterval interval(String start, String end) {
+        TimeInterval.Builder interval = TimeInterval.newBuilder().setStart(MESSAGE_INTERNER.timestamp(LocalDate.parse(start)));
+        if (end != null) {
+            interval.setEnd(MESSAGE_INTERNER.timestamp(LocalDate.parse(end)));
+        }
+        return interval.build();
+    }
+}
@@ -0,0 +1,56 @@
+package org.phenopackets.omopexporter.dao;
+
+import org.junit.jupiter.api.Test;
+import org.phenopackets.phenotools.builder.builders.OntologyClassBuilder;
+import org.phenopackets.schema.v2.core.OntologyClass;
+
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MessageInternerTest {
+
+    private final MessageInterner instance = new MessageInterner(64);
+
+    @Test
+    void ontologyClassIsInterned() {
+        OntologyClass first = instance.ontologyClass("UCUM:/min", "per minute");
+        OntologyClass second = instance.ontologyClass("UCUM:/min", "per minute");
+
+        assertSame(first, second);
+        assertEquals(OntologyClassBuilder.ontologyClass("UCUM:/min", "per minute"), first);
+    }
+
+    @Test
+    void quantityValueIsInternedByUnitAndValue() {
+        OntologyClass unit = instance.ontologyClass("UCUM:/min", "per minute");
+
+        assertSame(instance.quantityValue(unit, 13.0), instance.quantityValue(unit, 13.0));
+        assertNotEquals(instance.quantityValue(unit, 13.0), instance.quantityValue(unit, 14.0));
+        assertEquals(14.0, instance.quantityValue(unit, 14.0).getQuantity().getValue());
+    }
+
+    @Test
+    void timestampMatchesSqlTimestampConversion() {
+        LocalDateTime dateTime = LocalDateTime.of(2012, 5, 24, 13, 45, 10, 500_000_000);
+        Instant expected = Timestamp.valueOf(dateTime).toInstant();
+
+        com.google.protobuf.Timestamp actual = instance.timestamp(dateTime);
+
+        assertEquals(expected.getEpochSecond(), actual.getSeconds());
+        assertEquals(expected.getNano(), actual.getNanos());
+        assertSame(actual, instance.timestamp(dateTime));
+    }
+
+    @Test
+    void dateIsStartOfDay() {
+        LocalDate date = LocalDate.of(1986, 10, 14);
+        Instant expected = Timestamp.valueOf(date.atStartOfDay()).toInstant();
+
+        assertEquals(expected.getEpochSecond(), instance.timeElement(date).getTimestamp().getSeconds());
+        assertSame(instance.timeElement(date), instance.timeElement(date));
+    }
+}
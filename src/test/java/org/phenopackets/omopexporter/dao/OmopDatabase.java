@@ -0,0 +1,39 @@
+package org.phenopackets.omopexporter.dao;
+
+import io.zonky.test.db.postgres.embedded.EmbeddedPostgres;
+import org.flywaydb.core.Flyway;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.jdbc.datasource.init.ResourceDatabasePopulator;
+
+import java.io.IOException;
+
+/**
+ * Starts an embedded Postgres with the empty CDM tables of {@code omop/cdm_tables.sql}, migrated with the performance
+ * indexes and the staging tables.
+ */
+final class OmopDatabase {
+
+    private OmopDatabase() {
+    }
+
+    static EmbeddedPostgres start() throws IOException {
+        EmbeddedPostgres postgres = EmbeddedPostgres.start();
+        new ResourceDatabasePopulator(new ClassPathResource("omop/cdm_tables.sql")).execute(postgres.getPostgresDatabase());
+        // as configured by the spring.flyway properties, followed by the staging migrations of StagingConfig
+        Flyway performance = Flyway.configure()
+                .dataSource(postgres.getPostgresDatabase())
+                .locations("classpath:db/performance")
+                .table("omop_exporter_schema_history")
+                .baselineOnMigrate(true)
+                .baselineVersion("0")
+                .load();
+        performance.migrate();
+        Flyway.configure()
+                .configuration(performance.getConfiguration())
+                .locations("classpath:db/staging")
+                .table("omop_exporter_staging_history")
+                .load()
+                .migrate();
+        return postgres;
+    }
+}
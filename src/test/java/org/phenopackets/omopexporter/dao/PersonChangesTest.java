@@ -0,0 +1,96 @@
+package org.phenopackets.omopexporter.dao;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.zonky.test.db.postgres.embedded.EmbeddedPostgres;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.roaringbitmap.RoaringBitmap;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.init.ResourceDatabasePopulator;
+
+import java.io.IOException;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PersonChangesTest {
+
+    private static EmbeddedPostgres postgres;
+    private static JdbcTemplate jdbcTemplate;
+
+    @BeforeAll
+    static void start() throws IOException {
+        postgres = OmopDatabase.start();
+        new ResourceDatabasePopulator(new ClassPathResource("omop/example_rows.sql")).execute(postgres.getPostgresDatabase());
+        jdbcTemplate = new JdbcTemplate(postgres.getPostgresDatabase());
+    }
+
+    @AfterAll
+    static void stop() throws IOException {
+        if (postgres != null) {
+            postgres.close();
+        }
+    }
+
+    @AfterEach
+    void deleteAddedRows() {
+        jdbcTemplate.update("DELETE FROM measurement WHERE measurement_id >= 100");
+        jdbcTemplate.update("DELETE FROM condition_occurrence WHERE condition_occurrence_id >= 100");
+        jdbcTemplate.update("DELETE FROM person WHERE person_id >= 100");
+    }
+
+    @Test
+    void watermarkHasTheGreatestKeyOfEachTable() {
+        Map<String, Long> watermark = personChanges(false).watermark();
+
+        assertEquals(Map.of("person", 3L, "visit_occurrence", 2L, "measurement", 6L, "drug_exposure", 3L, "procedure_occurrence", 2L,
+                "condition_occurrence", 3L), watermark);
+        assertTrue(personChanges(false).changedPersons(watermark, watermark).isEmpty());
+        // without a watermark every person with a row is changed
+        assertEquals(RoaringBitmap.bitmapOf(1, 2, 3), personChanges(false).changedPersons(Map.of(), watermark));
+    }
+
+    @Test
+    void personsWithAddedRowsAreChanged() {
+        PersonChanges personChanges = personChanges(false);
+        Map<String, Long> since = personChanges.watermark();
+        jdbcTemplate.update("INSERT INTO measurement (measurement_id, person_id, measurement_concept_id, measurement_date, measurement_datetime, value_as_number) " +
+                "VALUES (100, 2, 3016723, '2022-01-10', '2022-01-10 08:00:00', 1.1)");
+        jdbcTemplate.update("INSERT INTO person (person_id, gender_concept_id) VALUES (100, 8532)");
+        Map<String, Long> until = personChanges.watermark();
+        // rows added after the watermark was taken are left for the next one
+        jdbcTemplate.update("INSERT INTO condition_occurrence (condition_occurrence_id, person_id, condition_concept_id, condition_start_date) " +
+                "VALUES (100, 1, 201826, '2022-01-10')");
+
+        assertEquals(100L, until.get("measurement"));
+        assertEquals(RoaringBitmap.bitmapOf(2, 100), personChanges.changedPersons(since, until));
+        assertEquals(RoaringBitmap.bitmapOf(1), personChanges.changedPersons(until, personChanges.watermark()));
+    }
+
+    @Test
+    void watermarkStopsAtTheStagedRows() {
+        new StagingTables(jdbcTemplate, true, 100).refresh(true);
+        jdbcTemplate.update("INSERT INTO measurement (measurement_id, person_id, measurement_concept_id, measurement_date, measurement_datetime, value_as_number) " +
+                "VALUES (100, 2, 3016723, '2022-01-10', '2022-01-10 08:00:00', 1.1)");
+
+        assertEquals(100L, personChanges(false).watermark().get("measurement"));
+        assertEquals(6L, personChanges(true).watermark().get("measurement"));
+    }
+
+    @Test
+    void unknownTablesAreRejected() {
+        PersonChanges personChanges = personChanges(false);
+        assertThrows(IllegalArgumentException.class, () -> personChanges.changedPersons(Map.of("observation", 1L), personChanges.watermark()));
+    }
+
+    private static PersonChanges personChanges(boolean staged) {
+        StagingTables stagingTables = new StagingTables(jdbcTemplate, staged, 100);
+        if (staged) {
+            stagingTables.checkLoaded();
+        }
+        return new PersonChanges(jdbcTemplate, stagingTables, Routing.none(), new QueryMetrics(new SimpleMeterRegistry()));
+    }
+}
@@ -0,0 +1,128 @@
+package org.phenopackets.omopexporter.dao;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.zonky.test.db.postgres.embedded.EmbeddedPostgres;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.phenopackets.schema.v2.core.Individual;
+import org.phenopackets.schema.v2.core.VitalStatus;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.init.ResourceDatabasePopulator;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PersonRecordDaoTest {
+
+    private static final DateRange FIRST_HALF = DateRange.of(LocalDate.of(2021, 1, 1), LocalDate.of(2021, 6, 30));
+
+    private static final Duration TIMEOUT = Duration.ofSeconds(10);
+
+    private static EmbeddedPostgres postgres;
+    private static JdbcTemplate jdbcTemplate;
+
+    private IndividualDao individualDao;
+    private MeasurementDao measurementDao;
+    private MedicalActionDao medicalActionDao;
+    private DiseaseDao diseaseDao;
+    private PersonRecordDao personRecordDao;
+
+    /**
+     * Loads the example rows, with person 2 dead of their condition and person 3 dead at an unrecorded time.
+     */
+    @BeforeAll
+    static void start() throws IOException {
+        postgres = OmopDatabase.start();
+        new ResourceDatabasePopulator(new ClassPathResource("omop/example_rows.sql")).execute(postgres.getPostgresDatabase());
+        jdbcTemplate = new JdbcTemplate(postgres.getPostgresDatabase());
+        jdbcTemplate.update("INSERT INTO death (person_id, death_datetime, cause_concept_id) VALUES (2, '2021-09-01 06:00:00', 201826), (3, NULL, NULL)");
+    }
+
+    @AfterAll
+    static void stop() throws IOException {
+        if (postgres != null) {
+            postgres.close();
+        }
+    }
+
+    @BeforeEach
+    void createDaos() {
+        ConceptCache conceptCache = new ConceptCache(jdbcTemplate, Routing.none(), 1000, List.of());
+        MessageInterner messageInterner = new MessageInterner(256);
+        QueryMetrics queryMetrics = new QueryMetrics(new SimpleMeterRegistry());
+        StagingTables stagingTables = new StagingTables(jdbcTemplate, false, 100);
+        individualDao = new IndividualDao(jdbcTemplate, conceptCache, messageInterner, queryMetrics, Routing.none());
+        measurementDao = new MeasurementDao(jdbcTemplate, conceptCache, messageInterner, queryMetrics, stagingTables, 100, Duration.ofSeconds(30));
+        medicalActionDao = new MedicalActionDao(jdbcTemplate, conceptCache, messageInterner, queryMetrics, stagingTables);
+        diseaseDao = new DiseaseDao(jdbcTemplate, conceptCache, messageInterner, queryMetrics, stagingTables);
+        personRecordDao = new PersonRecordDao(jdbcTemplate, individualDao, measurementDao, medicalActionDao, diseaseDao, stagingTables, queryMetrics);
+    }
+
+    @Test
+    void recordMatchesTheSeparateQueries() {
+        for (int personId = 1; personId <= 3; personId++) {
+            assertRecordMatches(personId, DateRange.ALL);
+        }
+    }
+
+    @Test
+    void dateRangeRestrictsEverySection() {
+        assertTrue(measurementDao.getMeasurements(1, FIRST_HALF).size() < measurementDao.getMeasurements(1, DateRange.ALL).size());
+        for (int personId = 1; personId <= 3; personId++) {
+            assertRecordMatches(personId, FIRST_HALF);
+        }
+    }
+
+    @Test
+    void sectionsNotAskedForAreEmpty() {
+        PersonRecord personRecord = personRecordDao.getPersonRecord(1, Set.of(Section.DISEASES), DateRange.ALL, TIMEOUT).orElseThrow();
+
+        assertEquals("1", personRecord.getIndividual().getId());
+        assertTrue(personRecord.getMeasurements().isEmpty());
+        assertTrue(personRecord.getTreatments().isEmpty());
+        assertTrue(personRecord.getProcedures().isEmpty());
+        assertEquals(diseaseDao.getDiseases(1, DateRange.ALL), personRecord.getDiseases());
+    }
+
+    @Test
+    void unknownPersonIsEmpty() {
+        assertTrue(individualDao.getIndividual(4).isEmpty());
+        assertTrue(personRecordDao.getPersonRecord(4, EnumSet.allOf(Section.class), DateRange.ALL, TIMEOUT).isEmpty());
+        assertEquals(List.of(), individualDao.getIndividuals(List.of(4)).getRows());
+    }
+
+    @Test
+    void deathIsFoldedIntoTheIndividual() {
+        Individual living = individualDao.getIndividual(1).orElseThrow();
+        Individual dead = individualDao.getIndividual(2).orElseThrow();
+        Individual deadAtUnknownTime = individualDao.getIndividual(3).orElseThrow();
+
+        assertFalse(living.hasVitalStatus());
+        assertEquals(VitalStatus.Status.DECEASED, dead.getVitalStatus().getStatus());
+        assertTrue(dead.getVitalStatus().hasTimeOfDeath());
+        assertFalse(dead.getVitalStatus().getCauseOfDeath().getId().isEmpty());
+        assertEquals(VitalStatus.Status.DECEASED, deadAtUnknownTime.getVitalStatus().getStatus());
+        assertFalse(deadAtUnknownTime.getVitalStatus().hasTimeOfDeath());
+        assertFalse(deadAtUnknownTime.getVitalStatus().hasCauseOfDeath());
+        assertEquals(List.of(living, dead, deadAtUnknownTime), individualDao.getIndividuals(List.of(3, 1, 2)).getRows());
+    }
+
+    private void assertRecordMatches(int personId, DateRange dateRange) {
+        PersonRecord personRecord = personRecordDao.getPersonRecord(personId, EnumSet.allOf(Section.class), dateRange, TIMEOUT).orElseThrow();
+
+        assertEquals(individualDao.getIndividual(personId).orElseThrow(), personRecord.getIndividual());
+        assertEquals(measurementDao.getMeasurements(personId, dateRange), personRecord.getMeasurements());
+        assertEquals(medicalActionDao.getTreatments(personId, dateRange), personRecord.getTreatments());
+        assertEquals(medicalActionDao.getProcedures(personId, dateRange), personRecord.getProcedures());
+        assertEquals(diseaseDao.getDiseases(personId, dateRange), personRecord.getDiseases());
+    }
+}
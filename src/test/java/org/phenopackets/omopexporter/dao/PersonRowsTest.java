@@ -0,0 +1,77 @@
+package org.phenopackets.omopexporter.dao;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PersonRowsTest {
+
+    @Test
+    void rowsAreGroupedByPerson() {
+        PersonRows<String> rows = rows(1, "a", 1, "b", 3, "c");
+
+        assertEquals(2, rows.size());
+        assertEquals(List.of("a", "b"), rows.get(1));
+        assertEquals(List.of(), rows.get(2));
+        assertEquals(List.of("c"), rows.get(3));
+        assertEquals(List.of("a", "b", "c"), rows.getRows());
+    }
+
+    @Test
+    void cursorWalksPersonsInOrder() {
+        PersonRows.Cursor<String> cursor = rows(1, "a", 3, "b", 3, "c", 7, "d").cursor();
+
+        assertEquals(List.of("a"), cursor.next(1));
+        assertEquals(List.of(), cursor.next(2));
+        assertEquals(List.of("b", "c"), cursor.next(3));
+        assertEquals(List.of("b", "c"), cursor.next(3));
+        assertEquals(List.of(), cursor.next(5));
+        assertEquals(List.of("d"), cursor.next(7));
+        assertEquals(List.of(), cursor.next(8));
+    }
+
+    @Test
+    void unorderedRowsAreRejected() {
+        PersonRows.Builder<String> builder = new PersonRows.Builder<>();
+        builder.add(2, "a");
+
+        assertThrows(IllegalStateException.class, () -> builder.add(1, "b"));
+    }
+
+    @Test
+    void disjointPartsAreMergedInOrder() {
+        PersonRows<String> merged = PersonRows.merge(List.of(rows(4, "d", 9, "e"), rows(1, "a", 1, "b"), PersonRows.empty(), rows(5, "c")));
+
+        assertEquals(List.of("a", "b", "d", "c", "e"), merged.getRows());
+        assertEquals(List.of("a", "b"), merged.get(1));
+        assertEquals(List.of("c"), merged.get(5));
+    }
+
+    @Test
+    void manyPersonsOutgrowTheInitialCapacity() {
+        PersonRows.Builder<Integer> builder = new PersonRows.Builder<>();
+        for (int personId = 0; personId < 100; personId++) {
+            builder.add(personId, personId);
+            builder.add(personId, -personId);
+        }
+        PersonRows<Integer> rows = builder.build();
+
+        assertEquals(100, rows.size());
+        assertEquals(List.of(99, -99), rows.get(99));
+    }
+
+    @Test
+    void ascendingIsDistinctAndSorted() {
+        assertArrayEquals(new int[]{1, 2, 3}, PersonRows.ascending(List.of(3, 1, 2, 3)));
+    }
+
+    private static PersonRows<String> rows(Object... personIdsAndRows) {
+        PersonRows.Builder<String> builder = new PersonRows.Builder<>();
+        for (int i = 0; i < personIdsAndRows.length; i += 2) {
+            builder.add((Integer) personIdsAndRows[i], (String) personIdsAndRows[i + 1]);
+        }
+        return builder.build();
+    }
+}
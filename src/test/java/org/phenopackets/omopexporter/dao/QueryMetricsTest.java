@@ -0,0 +1,120 @@
+package org.phenopackets.omopexporter.dao;
+
+import com.zaxxer.hikari.HikariDataSource;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.zonky.test.db.postgres.embedded.EmbeddedPostgres;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.BadSqlGrammarException;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class QueryMetricsTest {
+
+    private static final long POOL_WAIT_MILLIS = 500;
+
+    private static EmbeddedPostgres postgres;
+
+    private HikariDataSource pool;
+    private JdbcTemplate jdbcTemplate;
+    private SimpleMeterRegistry meterRegistry;
+    private QueryMetrics.Query metrics;
+    private ConceptCache conceptCache;
+
+    @BeforeAll
+    static void start() throws IOException {
+        postgres = EmbeddedPostgres.start();
+    }
+
+    @AfterAll
+    static void stop() throws IOException {
+        if (postgres != null) {
+            postgres.close();
+        }
+    }
+
+    @BeforeEach
+    void createPool() {
+        pool = new HikariDataSource();
+        pool.setJdbcUrl(postgres.getJdbcUrl("postgres", "postgres"));
+        pool.setMaximumPoolSize(1);
+        jdbcTemplate = new JdbcTemplate(pool);
+        meterRegistry = new SimpleMeterRegistry();
+        metrics = new QueryMetrics(meterRegistry).query("test", false);
+        conceptCache = new ConceptCache(jdbcTemplate, Routing.none(), 10, List.of());
+    }
+
+    @AfterEach
+    void closePool() {
+        pool.close();
+    }
+
+    @Test
+    void waitForAConnectionIsNotTimed() throws SQLException {
+        CompletableFuture<List<Integer>> rows;
+        long start = System.nanoTime();
+        try (Connection ignored = pool.getConnection()) {
+            rows = CompletableFuture.supplyAsync(() -> query("SELECT 1"));
+            sleep(POOL_WAIT_MILLIS);
+        }
+
+        assertEquals(List.of(1), rows.join());
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(POOL_WAIT_MILLIS));
+        Timer queryTimer = queryTimer("success");
+        assertEquals(1, queryTimer.count());
+        assertTrue(queryTimer.totalTime(TimeUnit.MILLISECONDS) < POOL_WAIT_MILLIS, queryTimer.totalTime(TimeUnit.MILLISECONDS) + "ms");
+        assertEquals(1, meterRegistry.get("omop.dao.rows").summary().totalAmount());
+        assertEquals(0, queryTimer("failure").count());
+    }
+
+    @Test
+    void failedQueryIsRecordedWithTheFailureOutcome() {
+        assertThrows(BadSqlGrammarException.class, () -> query("SELECT 1 FROM no_such_table"));
+
+        assertEquals(1, queryTimer("failure").count());
+        assertEquals(0, queryTimer("success").count());
+        assertEquals(0, meterRegistry.get("omop.dao.mapping").timer().count());
+        assertEquals(0, meterRegistry.get("omop.dao.rows").summary().count());
+    }
+
+    @Test
+    void failureToMapTheRowsIsRecordedWithTheFailureOutcome() {
+        assertThrows(IllegalStateException.class, () -> PersonQueries.queryForList(jdbcTemplate, connection -> connection.prepareStatement("SELECT 1"),
+                metrics, conceptCache, (resultSet, concepts) -> row -> {
+                    throw new IllegalStateException("unmappable");
+                }));
+
+        assertEquals(1, queryTimer("failure").count());
+        assertEquals(0, queryTimer("success").count());
+    }
+
+    private List<Integer> query(String sql) {
+        return PersonQueries.queryForList(jdbcTemplate, connection -> QueryCancellation.prepareStatement(connection, sql), metrics, conceptCache,
+                (resultSet, concepts) -> row -> row.getInt(1));
+    }
+
+    private Timer queryTimer(String outcome) {
+        return meterRegistry.get("omop.dao.query").tag("outcome", outcome).timer();
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        }
+    }
+}
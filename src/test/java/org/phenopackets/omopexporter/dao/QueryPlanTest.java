@@ -0,0 +1,167 @@
+package org.phenopackets.omopexporter.dao;
+
+import io.zonky.test.db.postgres.embedded.EmbeddedPostgres;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.Arguments;
+import org.junit.jupiter.params.provider.MethodSource;
+
+import javax.sql.DataSource;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks that every DAO query, and every statement which refreshes the staging tables, has an index to use once the
+ * {@code db/performance} and {@code db/staging} migrations have been applied to an OMOP database with no other indexes.
+ * The tables are empty, so sequential scans are disabled to make the planner choose an index whenever there is one.
+ * Any sequential scan left in a plan is then on a table which the query has no index for, and every table the DAOs
+ * read is large in a real OMOP database.
+ */
+class QueryPlanTest {
+
+    private static final Pattern SEQ_SCAN = Pattern.compile("Seq Scan on (\\w+)");
+
+    private static final DateRange LAST_QUARTER = DateRange.of(LocalDate.of(2021, 10, 1), LocalDate.of(2021, 12, 31));
+
+    private static EmbeddedPostgres postgres;
+    private static DataSource dataSource;
+
+    @BeforeAll
+    static void migrate() throws IOException {
+        postgres = OmopDatabase.start();
+        dataSource = postgres.getPostgresDatabase();
+    }
+
+    @AfterAll
+    static void stop() throws IOException {
+        if (postgres != null) {
+            postgres.close();
+        }
+    }
+
+    static Stream<Arguments> queries() {
+        List<Arguments> queries = new ArrayList<>();
+        queries.add(query("person individual", IndividualDao.SELECT_PERSON_INDIVIDUAL, DateRange.ALL, false));
+        queries.add(query("batch individuals", IndividualDao.SELECT_BATCH_INDIVIDUALS, DateRange.ALL, true));
+        queries.add(Arguments.of("person ids", IndividualDao.SELECT_PERSON_IDS, (Binder) (connection, ps) -> {
+            ps.setInt(1, 0);
+            ps.setInt(2, 1000);
+            ps.setInt(3, 500);
+        }));
+        queries.add(Arguments.of("concepts by ids", ConceptCache.SELECT_CONCEPTS_BY_IDS, (Binder) (connection, ps) ->
+                ps.setArray(1, connection.createArrayOf("int4", new Integer[]{8532, 8507}))));
+        // the concept index is built by scanning whole tables, but descendants are looked up for each query
+        queries.add(Arguments.of("concept descendants", ConceptIndex.SELECT_DESCENDANTS, (Binder) (connection, ps) -> ps.setInt(1, 201820)));
+        queries.add(Arguments.of("person rows", PersonRowCounts.COUNT_PERSON_ROWS, (Binder) (connection, ps) -> {
+            for (int i = 1; i <= 4; i++) {
+                ps.setInt(i, 1);
+            }
+            ps.setInt(5, 20000);
+        }));
+        for (DateRange dateRange : List.of(DateRange.ALL, LAST_QUARTER)) {
+            String suffix = dateRange == DateRange.ALL ? "" : " in date range";
+            queries.add(query("person measurements" + suffix, MeasurementDao.selectPersonMeasurements(dateRange), dateRange, false));
+            queries.add(query("batch measurements" + suffix, MeasurementDao.selectBatchMeasurements(dateRange), dateRange, true));
+            queries.add(query("person measurement concepts" + suffix, MeasurementDao.selectPersonMeasurementConcepts(dateRange), dateRange, false));
+            queries.add(query("person treatments" + suffix, MedicalActionDao.selectPersonTreatments(dateRange), dateRange, false));
+            queries.add(query("batch treatments" + suffix, MedicalActionDao.selectBatchTreatments(dateRange), dateRange, true));
+            queries.add(query("person procedures" + suffix, MedicalActionDao.selectPersonProcedures(dateRange), dateRange, false));
+            queries.add(query("batch procedures" + suffix, MedicalActionDao.selectBatchProcedures(dateRange), dateRange, true));
+            queries.add(query("person diseases" + suffix, DiseaseDao.selectPersonDiseases(dateRange), dateRange, false));
+            queries.add(query("batch diseases" + suffix, DiseaseDao.selectBatchDiseases(dateRange), dateRange, true));
+            queries.add(query("staged person measurements" + suffix, MeasurementDao.selectStagedPersonMeasurements(dateRange), dateRange, false));
+            queries.add(query("staged batch measurements" + suffix, MeasurementDao.selectStagedBatchMeasurements(dateRange), dateRange, true));
+            queries.add(query("staged person treatments" + suffix, MedicalActionDao.selectStagedPersonTreatments(dateRange), dateRange, false));
+            queries.add(query("staged batch treatments" + suffix, MedicalActionDao.selectStagedBatchTreatments(dateRange), dateRange, true));
+            queries.add(query("staged person procedures" + suffix, MedicalActionDao.selectStagedPersonProcedures(dateRange), dateRange, false));
+            queries.add(query("staged batch procedures" + suffix, MedicalActionDao.selectStagedBatchProcedures(dateRange), dateRange, true));
+            queries.add(query("staged person diseases" + suffix, DiseaseDao.selectStagedPersonDiseases(dateRange), dateRange, false));
+            queries.add(query("staged batch diseases" + suffix, DiseaseDao.selectStagedBatchDiseases(dateRange), dateRange, true));
+        }
+        for (StagingTables.Source source : StagingTables.Source.values()) {
+            queries.add(Arguments.of("stage " + source.name().toLowerCase(), source.getStage(), (Binder) (connection, ps) -> {
+                ps.setLong(1, 1000);
+                ps.setLong(2, 2000);
+            }));
+            queries.add(Arguments.of("batch end of " + source.name().toLowerCase(), source.getSelectBatchEnd(), (Binder) (connection, ps) -> {
+                ps.setLong(1, 1000);
+                ps.setInt(2, 100);
+            }));
+        }
+        for (PersonChanges.Source source : PersonChanges.Source.values()) {
+            queries.add(Arguments.of("watermark of " + source.name().toLowerCase(), source.getSelectMaxId(), (Binder) (connection, ps) -> {
+            }));
+            queries.add(Arguments.of("changed persons of " + source.name().toLowerCase(), source.getSelectPersonIds(), (Binder) (connection, ps) -> {
+                ps.setLong(1, 1000);
+                ps.setLong(2, 2000);
+            }));
+        }
+        return queries.stream();
+    }
+
+    @ParameterizedTest(name = "{0}")
+    @MethodSource("queries")
+    void queryHasNoSequentialScan(String name, String query, Binder binder) throws SQLException {
+        String plan = explain(query, binder);
+
+        List<String> scannedTables = new ArrayList<>();
+        Matcher matcher = SEQ_SCAN.matcher(plan);
+        while (matcher.find()) {
+            scannedTables.add(matcher.group(1));
+        }
+        assertTrue(scannedTables.isEmpty(), () -> "Sequential scan of " + scannedTables + " in the plan:\n" + plan);
+    }
+
+    private static String explain(String query, Binder binder) throws SQLException {
+        try (Connection connection = dataSource.getConnection()) {
+            try (Statement statement = connection.createStatement()) {
+                statement.execute("SET enable_seqscan = off");
+            }
+            try (PreparedStatement ps = connection.prepareStatement("EXPLAIN " + query)) {
+                binder.bind(connection, ps);
+                StringBuilder plan = new StringBuilder();
+                try (ResultSet resultSet = ps.executeQuery()) {
+                    while (resultSet.next()) {
+                        plan.append(resultSet.getString(1)).append('\n');
+                    }
+                }
+                return plan.toString();
+            }
+        }
+    }
+
+    /**
+     * Returns the arguments for a query with a person_id, or an array of them for a batch, as its first parameter
+     * followed by those of the date range.
+     */
+    private static Arguments query(String name, String query, DateRange dateRange, boolean batch) {
+        Binder binder = (connection, ps) -> {
+            if (batch) {
+                ps.setArray(1, connection.createArrayOf("int4", new Integer[]{1, 2, 3}));
+            } else {
+                ps.setInt(1, 1);
+            }
+            dateRange.bind(ps, 2);
+        };
+        return Arguments.of(name, query, binder);
+    }
+
+    @FunctionalInterface
+    interface Binder {
+
+        void bind(Connection connection, PreparedStatement ps) throws SQLException;
+    }
+}
@@ -0,0 +1,77 @@
+package org.phenopackets.omopexporter.dao;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RoutingTest {
+
+    private final Routing routing = new Routing(Routing.Mode.SHARDS, Map.of("c", 2000, "a", Integer.MIN_VALUE, "b", 1000));
+
+    @Test
+    void shardsAreOrderedByFirstPersonId() {
+        assertEquals(List.of("a", "b", "c"), routing.getShards());
+        assertEquals("a", routing.shardOf(-5));
+        assertEquals("a", routing.shardOf(999));
+        assertEquals("b", routing.shardOf(1000));
+        assertEquals("b", routing.shardOf(1999));
+        assertEquals("c", routing.shardOf(Integer.MAX_VALUE));
+    }
+
+    @Test
+    void firstShardHoldsThePersonsBelowIt() {
+        Routing instance = new Routing(Routing.Mode.SHARDS, Map.of("a", 100, "b", 200));
+        assertEquals("a", instance.shardOf(1));
+    }
+
+    @Test
+    void shardsBetweenIsInclusive() {
+        assertEquals(List.of("a", "b"), routing.shardsBetween(1, 1000));
+        assertEquals(List.of("b"), routing.shardsBetween(1000, 1999));
+        assertEquals(List.of("a", "b", "c"), routing.shardsBetween(0, Integer.MAX_VALUE));
+        assertEquals(List.of(), routing.shardsBetween(10, 9));
+    }
+
+    @Test
+    void partitionKeepsTheOrderWithinEachShard() {
+        Map<String, List<Integer>> partitions = routing.partition(Arrays.asList(2500, 3, 1500, 1, 2001));
+        assertEquals(List.of("c", "a", "b"), List.copyOf(partitions.keySet()));
+        assertEquals(List.of(2500, 2001), partitions.get("c"));
+        assertEquals(List.of(3, 1), partitions.get("a"));
+        assertEquals(List.of(1500), partitions.get("b"));
+
+        Map<String, List<Integer>> unsharded = Routing.none().partition(List.of(1, 2));
+        assertEquals(List.of(1, 2), unsharded.get(null));
+        assertEquals(1, unsharded.size());
+    }
+
+    @Test
+    void bindRestoresThePreviousTarget() {
+        assertNull(Routing.current());
+        try (Routing.Scope outer = routing.bindPerson(1500)) {
+            assertEquals("b", Routing.current());
+            try (Routing.Scope inner = Routing.bind(Routing.PRIMARY)) {
+                assertEquals(Routing.PRIMARY, Routing.current());
+                try (Routing.Scope unchanged = Routing.bind(null)) {
+                    assertEquals(Routing.PRIMARY, Routing.current());
+                }
+            }
+            assertEquals("b", Routing.current());
+        }
+        assertNull(Routing.current());
+        try (Routing.Scope ignored = Routing.none().bindPerson(1500)) {
+            assertNull(Routing.current());
+        }
+    }
+
+    @Test
+    void invalidShardsAreRejected() {
+        assertThrows(IllegalArgumentException.class, () -> new Routing(Routing.Mode.SHARDS, Map.of("a", 1, "b", 1)));
+        assertThrows(IllegalArgumentException.class, () -> new Routing(Routing.Mode.SHARDS, Map.of()));
+        assertThrows(IllegalStateException.class, () -> Routing.none().shardOf(1));
+    }
+}
@@ -0,0 +1,28 @@
+package org.phenopackets.omopexporter.dao;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.EnumSet;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SectionTest {
+
+    @Test
+    void sectionsAreParsedByFieldName() {
+        assertEquals(EnumSet.of(Section.MEASUREMENTS, Section.DISEASES), Section.parse(List.of("measurements", " Diseases")));
+        assertEquals(EnumSet.of(Section.MEDICAL_ACTIONS), Section.parse(List.of("medicalActions")));
+    }
+
+    @Test
+    void noNamesIsEverySection() {
+        assertEquals(EnumSet.allOf(Section.class), Section.parse(null));
+        assertEquals(EnumSet.allOf(Section.class), Section.parse(List.of()));
+    }
+
+    @Test
+    void unknownNameIsRejected() {
+        assertThrows(IllegalArgumentException.class, () -> Section.parse(List.of("subject")));
+    }
+}
@@ -0,0 +1,228 @@
+package org.phenopackets.omopexporter.dao;
+
+import com.google.protobuf.Message;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.zonky.test.db.postgres.embedded.EmbeddedPostgres;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.phenopackets.schema.v2.core.Disease;
+import org.phenopackets.schema.v2.core.Measurement;
+import org.roaringbitmap.RoaringBitmap;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.init.ResourceDatabasePopulator;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class StagingTablesTest {
+
+    private static final List<Integer> PERSON_IDS = List.of(1, 2);
+
+    private static final DateRange FIRST_HALF = DateRange.of(LocalDate.of(2021, 1, 1), LocalDate.of(2021, 6, 30));
+
+    private static EmbeddedPostgres postgres;
+    private static JdbcTemplate jdbcTemplate;
+
+    private StagingTables stagingTables;
+    private MeasurementDao measurementDao;
+    private MedicalActionDao medicalActionDao;
+    private DiseaseDao diseaseDao;
+    private PersonRecordDao personRecordDao;
+
+    @BeforeAll
+    static void start() throws IOException {
+        postgres = OmopDatabase.start();
+        new ResourceDatabasePopulator(new ClassPathResource("omop/example_rows.sql")).execute(postgres.getPostgresDatabase());
+        jdbcTemplate = new JdbcTemplate(postgres.getPostgresDatabase());
+    }
+
+    @AfterAll
+    static void stop() throws IOException {
+        if (postgres != null) {
+            postgres.close();
+        }
+    }
+
+    @BeforeEach
+    void createDaos() {
+        // a small batch size, so that the sources are staged over several batches
+        stagingTables = new StagingTables(jdbcTemplate, true, 2);
+        ConceptCache conceptCache = new ConceptCache(jdbcTemplate, Routing.none(), 1000, List.of());
+        MessageInterner messageInterner = new MessageInterner(256);
+        QueryMetrics queryMetrics = new QueryMetrics(new SimpleMeterRegistry());
+        measurementDao = new MeasurementDao(jdbcTemplate, conceptCache, messageInterner, queryMetrics, stagingTables, 2, Duration.ofSeconds(30));
+        medicalActionDao = new MedicalActionDao(jdbcTemplate, conceptCache, messageInterner, queryMetrics, stagingTables);
+        diseaseDao = new DiseaseDao(jdbcTemplate, conceptCache, messageInterner, queryMetrics, stagingTables);
+        IndividualDao individualDao = new IndividualDao(jdbcTemplate, conceptCache, messageInterner, queryMetrics, Routing.none());
+        personRecordDao = new PersonRecordDao(jdbcTemplate, individualDao, measurementDao, medicalActionDao, diseaseDao, stagingTables, queryMetrics);
+    }
+
+    @Test
+    void stagedSectionsMatchTheOmopTables() throws IOException {
+        stagingTables.refresh(true);
+        Map<String, List<String>> staged = readSections();
+        // a new instance reads the OMOP tables until it has checked that the staging tables are loaded
+        createDaos();
+        assertFalse(stagingTables.isReadable());
+        Map<String, List<String>> omop = readSections();
+
+        assertFalse(omop.get("measurements").isEmpty());
+        assertEquals(omop, staged);
+        stagingTables.checkLoaded();
+        assertTrue(stagingTables.isReadable());
+    }
+
+    @Test
+    void refreshStagesOnlyNewRows() {
+        stagingTables.refresh(false);
+        jdbcTemplate.update("INSERT INTO measurement (measurement_id, person_id, measurement_concept_id, measurement_date, measurement_datetime, value_as_number, unit_concept_id) " +
+                "VALUES (100, 2, 3016723, '2021-06-11', '2021-06-11 07:00:00', 1.4, 8840)");
+
+        RoaringBitmap changedPersons = new RoaringBitmap();
+        Map<String, Integer> staged = stagingTables.refresh(false, changedPersons);
+
+        assertEquals(Map.of("measurement", 1, "drug_exposure", 0, "procedure_occurrence", 0, "condition_occurrence", 0), staged);
+        assertEquals(RoaringBitmap.bitmapOf(2), changedPersons);
+        assertTrue(measurementDao.getMeasurements(2, DateRange.ALL).stream()
+                .anyMatch(measurement -> measurement.getAssay().getId().equals("LOINC:2160-0")));
+    }
+
+    @Test
+    void fullRefreshRestagesRenamedConcepts() {
+        stagingTables.refresh(false);
+        jdbcTemplate.update("UPDATE concept SET concept_name = 'Blood pressure systolic' WHERE concept_id = 3004249");
+        try {
+            stagingTables.refresh(false);
+            assertEquals(List.of("Systolic blood pressure"), assayLabels(measurementDao.getMeasurements(2, DateRange.ALL), "LOINC:8480-6"));
+
+            stagingTables.refresh(true);
+            assertEquals(List.of("Blood pressure systolic"), assayLabels(measurementDao.getMeasurements(2, DateRange.ALL), "LOINC:8480-6"));
+        } finally {
+            jdbcTemplate.update("UPDATE concept SET concept_name = 'Systolic blood pressure' WHERE concept_id = 3004249");
+            stagingTables.refresh(true);
+        }
+    }
+
+    @Test
+    void fullRefreshSwapsInRebuiltTables() {
+        stagingTables.refresh(false);
+        List<String> indexes = stagingIndexes();
+
+        Map<String, Integer> staged = stagingTables.refresh(true);
+
+        assertTrue(stagingTables.isReadable());
+        assertEquals(jdbcTemplate.queryForObject("SELECT count(*) FROM measurement", Integer.class), staged.get("measurement"));
+        assertEquals(indexes, stagingIndexes());
+        assertTrue(indexes.contains("idx_omop_exporter_stage_measurement_person"));
+        assertEquals(0, jdbcTemplate.queryForObject("SELECT count(*) FROM pg_tables WHERE tablename LIKE '%\\_rebuild'", Integer.class));
+        assertEquals(jdbcTemplate.queryForObject("SELECT max(measurement_id) FROM measurement", Long.class), stagingTables.getWatermarks().get("measurement"));
+    }
+
+    @Test
+    void conditionWithTwoRelationshipsIsStagedOnce() {
+        assertEquals(2, jdbcTemplate.queryForObject("SELECT count(*) FROM concept_relationship cr " +
+                "JOIN condition_occurrence co ON co.condition_concept_id = cr.concept_id_1 WHERE co.condition_occurrence_id = 1", Integer.class));
+        List<Disease> omop = diseaseDao.getDiseases(1, DateRange.ALL);
+
+        Map<String, Integer> staged = stagingTables.refresh(true);
+
+        assertEquals(jdbcTemplate.queryForObject("SELECT count(*) FROM condition_occurrence", Integer.class), staged.get("condition_occurrence"));
+        assertEquals(1, omop.size());
+        assertEquals(omop, diseaseDao.getDiseases(1, DateRange.ALL));
+    }
+
+    @Test
+    void fullRefreshGivesUpRatherThanBlockReadersForLong() throws SQLException {
+        stagingTables.refresh(false);
+        List<Measurement> measurements = measurementDao.getMeasurements(1, DateRange.ALL);
+        try (Connection reader = postgres.getPostgresDatabase().getConnection()) {
+            reader.setAutoCommit(false);
+            // a long query holds its lock on the staging table until it completes
+            reader.createStatement().executeQuery("SELECT count(*) FROM omop_exporter_stage_measurement").close();
+
+            long start = System.nanoTime();
+            assertThrows(DataAccessException.class, () -> stagingTables.refresh(true));
+            assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(10));
+            reader.rollback();
+        }
+
+        assertTrue(stagingTables.isReadable());
+        assertEquals(measurements, measurementDao.getMeasurements(1, DateRange.ALL));
+        stagingTables.refresh(true);
+        assertEquals(measurements, measurementDao.getMeasurements(1, DateRange.ALL));
+    }
+
+    private static List<String> stagingIndexes() {
+        return jdbcTemplate.queryForList("SELECT indexname FROM pg_indexes WHERE tablename LIKE 'omop\\_exporter\\_stage\\_%' ORDER BY indexname", String.class);
+    }
+
+    /**
+     * Reads every section of both persons in each of the ways the DAOs can, with and without a date range, keeping
+     * the results in an order which does not depend on that of the rows.
+     */
+    private Map<String, List<String>> readSections() throws IOException {
+        Map<String, List<String>> sections = new LinkedHashMap<>();
+        for (DateRange dateRange : List.of(DateRange.ALL, FIRST_HALF)) {
+            String suffix = dateRange == DateRange.ALL ? "" : " in date range";
+            List<Message> measurements = new ArrayList<>();
+            List<Message> medicalActions = new ArrayList<>();
+            List<Message> diseases = new ArrayList<>();
+            List<Message> streamed = new ArrayList<>();
+            List<Message> records = new ArrayList<>();
+            for (int personId : PERSON_IDS) {
+                measurements.addAll(measurementDao.getMeasurements(personId, dateRange));
+                medicalActions.addAll(medicalActionDao.getMedicalActions(personId, dateRange, false));
+                medicalActions.addAll(medicalActionDao.getMedicalActions(personId, dateRange, true));
+                diseases.addAll(diseaseDao.getDiseases(personId, dateRange));
+                measurementDao.streamMeasurements(personId, dateRange, streamed::add);
+                personRecordDao.getPersonRecord(personId, EnumSet.allOf(Section.class), dateRange, Duration.ofSeconds(10)).ifPresent(record -> {
+                    records.addAll(record.getMeasurements());
+                    records.addAll(record.getTreatments());
+                    records.addAll(record.getProcedures());
+                    records.addAll(record.getDiseases());
+                });
+            }
+            sections.put("measurements" + suffix, sorted(measurements));
+            sections.put("medical actions" + suffix, sorted(medicalActions));
+            sections.put("diseases" + suffix, sorted(diseases));
+            sections.put("streamed measurements" + suffix, sorted(streamed));
+            sections.put("person records" + suffix, sorted(records));
+            sections.put("batch measurements" + suffix, sortedValues(measurementDao.getMeasurements(PERSON_IDS, dateRange)));
+            sections.put("batch medical actions" + suffix, sortedValues(medicalActionDao.getMedicalActions(PERSON_IDS, dateRange, true)));
+            sections.put("batch diseases" + suffix, sortedValues(diseaseDao.getDiseases(PERSON_IDS, dateRange)));
+        }
+        return sections;
+    }
+
+    private static List<String> assayLabels(List<Measurement> measurements, String assayId) {
+        return measurements.stream()
+                .filter(measurement -> measurement.getAssay().getId().equals(assayId))
+                .map(measurement -> measurement.getAssay().getLabel())
+                .collect(Collectors.toList());
+    }
+
+    private static List<String> sorted(Collection<? extends Message> messages) {
+        return messages.stream().map(Message::toString).sorted().collect(Collectors.toList());
+    }
+
+    private static List<String> sortedValues(PersonRows<? extends Message> messagesByPerson) {
+        return sorted(messagesByPerson.getRows());
+    }
+}
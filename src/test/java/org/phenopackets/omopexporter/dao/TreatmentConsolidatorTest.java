@@ -0,0 +1,81 @@
+package org.phenopackets.omopexporter.dao;
+
+import org.junit.jupiter.api.Test;
+import org.phenopackets.phenotools.builder.builders.OntologyClassBuilder;
+import org.phenopackets.schema.v2.core.DoseInterval;
+import org.phenopackets.schema.v2.core.OntologyClass;
+import org.phenopackets.schema.v2.core.Quantity;
+import org.phenopackets.schema.v2.core.TimeInterval;
+import org.phenopackets.schema.v2.core.Treatment;
+
+import java.time.LocalDate;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TreatmentConsolidatorTest {
+
+    private static final OntologyClass METFORMIN = OntologyClassBuilder.ontologyClass("RxNorm:861007", "metformin 500 MG Oral Tablet");
+    private static final OntologyClass INSULIN = OntologyClassBuilder.ontologyClass("RxNorm:311041", "insulin lispro 100 UNT/ML");
+    private static final OntologyClass ORAL = OntologyClassBuilder.ontologyClass("SNOMED:26643006", "Oral route");
+    private static final OntologyClass MG = OntologyClassBuilder.ontologyClass("UCUM:mg", "milligram");
+
+    private final MessageInterner messageInterner = new MessageInterner(64);
+
+    @Test
+    void mergesOverlappingAndContiguousFills() {
+        List<Treatment> consolidated = TreatmentConsolidator.consolidate(List.of(
+                treatment(METFORMIN, 500, "2020-01-01", "2020-01-31"),
+                treatment(METFORMIN, 500, "2020-01-31", "2020-03-01"),
+                treatment(METFORMIN, 500, "2020-02-15", "2020-03-15"),
+                treatment(METFORMIN, 500, "2020-06-01", "2020-07-01")));
+
+        assertEquals(1, consolidated.size());
+        Treatment treatment = consolidated.get(0);
+        assertEquals(METFORMIN, treatment.getAgent());
+        assertEquals(ORAL, treatment.getRouteOfAdministration());
+        assertEquals(List.of(interval("2020-01-01", "2020-03-15"), interval("2020-06-01", "2020-07-01")),
+                treatment.getDoseIntervalsList().stream().map(DoseInterval::getInterval).collect(Collectors.toList()));
+    }
+
+    @Test
+    void keepsDifferentQuantitiesAndAgentsApart() {
+        List<Treatment> consolidated = TreatmentConsolidator.consolidate(List.of(
+                treatment(INSULIN, 10, "2020-01-01", "2020-01-31"),
+                treatment(METFORMIN, 500, "2020-01-01", "2020-01-31"),
+                treatment(METFORMIN, 1000, "2020-01-15", "2020-02-15")));
+
+        assertEquals(2, consolidated.size());
+        assertEquals(INSULIN, consolidated.get(0).getAgent());
+        assertEquals(1, consolidated.get(0).getDoseIntervalsCount());
+        Treatment metformin = consolidated.get(1);
+        assertEquals(2, metformin.getDoseIntervalsCount());
+        assertEquals(500, metformin.getDoseIntervals(0).getQuantity().getValue());
+        assertEquals(1000, metformin.getDoseIntervals(1).getQuantity().getValue());
+    }
+
+    @Test
+    void unmergedTreatmentsAreUnchanged() {
+        Treatment first = treatment(METFORMIN, 500, "2020-01-01", "2020-01-31");
+        Treatment second = treatment(INSULIN, 10, "2020-01-01", "2020-01-31");
+
+        assertEquals(List.of(first, second), TreatmentConsolidator.consolidate(List.of(first, second)));
+    }
+
+    private Treatment treatment(OntologyClass agent, double dose, String start, String end) {
+        Quantity quantity = messageInterner.quantity(MG, dose);
+        return Treatment.newBuilder()
+                .setAgent(agent)
+                .setRouteOfAdministration(ORAL)
+                .addDoseIntervals(DoseInterval.newBuilder().setQuantity(quantity).setInterval(interval(start, end)))
+                .build();
+    }
+
+    private TimeInterval interval(String start, String end) {
+        return TimeInterval.newBuilder()
+                .setStart(messageInterner.timestamp(LocalDate.parse(start)))
+                .setEnd(messageInterner.timestamp(LocalDate.parse(end)))
+                .build();
+    }
+}
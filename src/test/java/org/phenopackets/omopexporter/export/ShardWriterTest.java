@@ -0,0 +1,81 @@
+package org.phenopackets.omopexporter.export;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.phenopackets.schema.v2.Phenopacket;
+import org.phenopackets.schema.v2.core.Individual;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ShardWriterTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void shardsAreCheckpointedAsTheyAreClosed() throws IOException {
+        try (ShardWriter shardWriter = new ShardWriter(directory, ExportFormat.DELIMITED_PROTOBUF, 1, ExportCheckpoint.START)) {
+            shardWriter.write(phenopacket(1));
+            shardWriter.write(phenopacket(2));
+            shardWriter.finish();
+        }
+
+        ExportCheckpoint checkpoint = ExportCheckpoint.read(directory).orElseThrow();
+        assertEquals(2, checkpoint.getLastPersonId());
+        assertEquals(2, checkpoint.getNextShard());
+        assertTrue(checkpoint.isComplete());
+        assertEquals(List.of(1), readShard("phenopackets-00000.pb"));
+        assertEquals(List.of(2), readShard("phenopackets-00001.pb"));
+    }
+
+    @Test
+    void resumingDiscardsShardsAfterTheCheckpoint() throws IOException {
+        try (ShardWriter shardWriter = new ShardWriter(directory, ExportFormat.DELIMITED_PROTOBUF, Long.MAX_VALUE, ExportCheckpoint.START)) {
+            shardWriter.write(phenopacket(1));
+            shardWriter.suspend();
+            shardWriter.write(phenopacket(2));
+            // closing without suspending leaves the shard as it would be after a crash
+        }
+        Files.createFile(directory.resolve("phenopackets-00001.pb"));
+
+        ExportCheckpoint checkpoint = ExportCheckpoint.read(directory).orElseThrow();
+        ShardWriter.discardUncheckpointedShards(directory, checkpoint);
+
+        assertEquals(1, checkpoint.getLastPersonId());
+        assertFalse(checkpoint.isComplete());
+        assertEquals(List.of("checkpoint.properties", "phenopackets-00000.pb"), listDirectory());
+    }
+
+    private static Phenopacket phenopacket(int personId) {
+        return Phenopacket.newBuilder()
+                .setId("N3C:" + personId)
+                .setSubject(Individual.newBuilder().setId(Integer.toString(personId)))
+                .build();
+    }
+
+    private List<Integer> readShard(String fileName) throws IOException {
+        List<Integer> personIds = new ArrayList<>();
+        try (InputStream inputStream = Files.newInputStream(directory.resolve(fileName))) {
+            Phenopacket phenopacket;
+            while ((phenopacket = Phenopacket.parseDelimitedFrom(inputStream)) != null) {
+                personIds.add(Integer.parseInt(phenopacket.getSubject().getId()));
+            }
+        }
+        return personIds;
+    }
+
+    private List<String> listDirectory() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.map(file -> file.getFileName().toString()).sorted().collect(Collectors.toList());
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package org.phenopackets.omopexporter.snapshot;
+
+import com.google.protobuf.util.JsonFormat;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.phenopackets.omopexporter.PhenopacketCache;
+import org.phenopackets.schema.v2.Phenopacket;
+import org.phenopackets.schema.v2.core.Individual;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SnapshotTest {
+
+    private static final JsonFormat.Printer JSON_PRINTER = JsonFormat.printer();
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void phenopacketsAreReadFromTheirSegments() throws IOException {
+        List<Integer> personIds = List.of(3, 7, 8, 20, 41);
+        // a segment size which only fits one phenopacket, so that each is in its own segment
+        try (SnapshotWriter writer = new SnapshotWriter(directory, 1)) {
+            for (int personId : personIds) {
+                Phenopacket phenopacket = phenopacket(personId);
+                writer.write(personId, phenopacket.toByteArray(), JSON_PRINTER.print(phenopacket).getBytes(StandardCharsets.UTF_8),
+                        PhenopacketCache.contentDigest(phenopacket));
+            }
+            writer.finish();
+        }
+
+        Snapshot snapshot = Snapshot.open(directory);
+
+        assertEquals(personIds.size(), snapshot.size());
+        assertTrue(Files.exists(Snapshot.segmentFile(directory, personIds.size() - 1)));
+        for (int personId : personIds) {
+            Phenopacket phenopacket = phenopacket(personId);
+            Snapshot.Entry protobuf = snapshot.get(personId, PhenopacketCache.Representation.PROTOBUF).orElseThrow();
+            Snapshot.Entry json = snapshot.get(personId, PhenopacketCache.Representation.JSON).orElseThrow();
+            assertEquals(phenopacket, Phenopacket.parseFrom(protobuf.getContent()));
+            assertEquals(JSON_PRINTER.print(phenopacket), new String(bytes(json.getContent()), StandardCharsets.UTF_8));
+            assertEquals(PhenopacketCache.etag(PhenopacketCache.contentDigest(phenopacket), PhenopacketCache.Representation.JSON), json.getETag());
+            assertNotEquals(json.getETag(), protobuf.getETag());
+            assertArrayEquals(bytes(protobuf.getContent()), readRange(protobuf));
+        }
+        for (int missing : List.of(0, 5, 21, 100)) {
+            assertTrue(snapshot.get(missing, PhenopacketCache.Representation.JSON).isEmpty());
+        }
+    }
+
+    @Test
+    void personsMustBeWrittenInOrder() throws IOException {
+        try (SnapshotWriter writer = new SnapshotWriter(directory, Integer.MAX_VALUE)) {
+            writer.write(2, new byte[1], new byte[1], new byte[PhenopacketCache.CONTENT_DIGEST_LENGTH]);
+
+            assertThrows(IllegalArgumentException.class,
+                    () -> writer.write(1, new byte[1], new byte[1], new byte[PhenopacketCache.CONTENT_DIGEST_LENGTH]));
+        }
+    }
+
+    @Test
+    void indexWhichCouldNotBeMappedIsNotWritten() throws IOException {
+        try (SnapshotWriter writer = new SnapshotWriter(directory, Integer.MAX_VALUE, 2)) {
+            writer.write(1, new byte[1], new byte[1], new byte[PhenopacketCache.CONTENT_DIGEST_LENGTH]);
+            writer.write(2, new byte[1], new byte[1], new byte[PhenopacketCache.CONTENT_DIGEST_LENGTH]);
+
+            assertThrows(IllegalStateException.class,
+                    () -> writer.write(3, new byte[1], new byte[1], new byte[PhenopacketCache.CONTENT_DIGEST_LENGTH]));
+            assertEquals(2, writer.getCount());
+        }
+        assertEquals((Integer.MAX_VALUE - Snapshot.INDEX_HEADER_BYTES) / Snapshot.INDEX_ENTRY_BYTES, Snapshot.MAX_ENTRIES);
+    }
+
+    @Test
+    void unfinishedSnapshotCannotBeOpened() throws IOException {
+        try (SnapshotWriter writer = new SnapshotWriter(directory, Integer.MAX_VALUE)) {
+            Phenopacket phenopacket = phenopacket(1);
+            writer.write(1, phenopacket.toByteArray(), new byte[0], PhenopacketCache.contentDigest(phenopacket));
+            // closing without finishing leaves the snapshot as it would be after a crash
+        }
+
+        assertThrows(IOException.class, () -> Snapshot.open(directory));
+    }
+
+    private static Phenopacket phenopacket(int personId) {
+        return Phenopacket.newBuilder()
+                .setId("N3C:" + personId)
+                .setSubject(Individual.newBuilder().setId(Integer.toString(personId)))
+                .build();
+    }
+
+    private static byte[] bytes(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Reads the entry's bytes from its segment file, as they would be sent with sendfile.
+     */
+    private static byte[] readRange(Snapshot.Entry entry) throws IOException {
+        byte[] segment = Files.readAllBytes(entry.getFile());
+        byte[] range = new byte[entry.getLength()];
+        System.arraycopy(segment, (int) entry.getOffset(), range, 0, entry.getLength());
+        return range;
+    }
+}
@@ -0,0 +1,97 @@
+-- The OMOP CDM 5.3 tables queried by the DAOs, with no indexes beyond the primary keys of their id columns, as in an
+-- OMOP load which has not had the CDM index DDL applied. Only the columns the DAOs use are defined.
+
+CREATE TABLE person (
+    person_id integer NOT NULL,
+    gender_concept_id integer NOT NULL,
+    birth_datetime timestamp NULL,
+    CONSTRAINT xpk_person PRIMARY KEY (person_id)
+);
+
+CREATE TABLE death (
+    person_id integer NOT NULL,
+    death_datetime timestamp NULL,
+    cause_concept_id integer NULL,
+    CONSTRAINT xpk_death PRIMARY KEY (person_id)
+);
+
+CREATE TABLE visit_occurrence (
+    visit_occurrence_id integer NOT NULL,
+    person_id integer NOT NULL,
+    visit_start_date date NOT NULL,
+    CONSTRAINT xpk_visit_occurrence PRIMARY KEY (visit_occurrence_id)
+);
+
+CREATE TABLE measurement (
+    measurement_id integer NOT NULL,
+    person_id integer NOT NULL,
+    measurement_concept_id integer NOT NULL,
+    measurement_date date NOT NULL,
+    measurement_datetime timestamp NULL,
+    value_as_number numeric NULL,
+    value_as_concept_id integer NULL,
+    unit_concept_id integer NULL,
+    range_low numeric NULL,
+    range_high numeric NULL,
+    visit_occurrence_id integer NULL,
+    unit_source_value varchar(50) NULL,
+    value_source_value varchar(50) NULL,
+    CONSTRAINT xpk_measurement PRIMARY KEY (measurement_id)
+);
+
+CREATE TABLE drug_exposure (
+    drug_exposure_id integer NOT NULL,
+    person_id integer NOT NULL,
+    drug_concept_id integer NOT NULL,
+    drug_exposure_start_date date NOT NULL,
+    days_supply integer NULL,
+    route_concept_id integer NULL,
+    CONSTRAINT xpk_drug_exposure PRIMARY KEY (drug_exposure_id)
+);
+
+CREATE TABLE procedure_occurrence (
+    procedure_occurrence_id integer NOT NULL,
+    person_id integer NOT NULL,
+    procedure_concept_id integer NOT NULL,
+    procedure_datetime timestamp NULL,
+    CONSTRAINT xpk_procedure_occurrence PRIMARY KEY (procedure_occurrence_id)
+);
+
+CREATE TABLE condition_occurrence (
+    condition_occurrence_id integer NOT NULL,
+    person_id integer NOT NULL,
+    condition_concept_id integer NOT NULL,
+    condition_start_date date NOT NULL,
+    condition_end_date date NULL,
+    condition_source_value varchar(50) NULL,
+    CONSTRAINT xpk_condition_occurrence PRIMARY KEY (condition_occurrence_id)
+);
+
+CREATE TABLE concept (
+    concept_id integer NOT NULL,
+    concept_name varchar(255) NOT NULL,
+    domain_id varchar(20) NOT NULL,
+    vocabulary_id varchar(20) NOT NULL,
+    concept_code varchar(50) NOT NULL,
+    CONSTRAINT xpk_concept PRIMARY KEY (concept_id)
+);
+
+CREATE TABLE concept_relationship (
+    concept_id_1 integer NOT NULL,
+    concept_id_2 integer NOT NULL,
+    relationship_id varchar(20) NOT NULL
+);
+
+CREATE TABLE concept_ancestor (
+    ancestor_concept_id integer NOT NULL,
+    descendant_concept_id integer NOT NULL,
+    min_levels_of_separation integer NOT NULL,
+    max_levels_of_separation integer NOT NULL
+);
+
+CREATE TABLE drug_strength (
+    drug_concept_id integer NOT NULL,
+    ingredient_concept_id integer NOT NULL,
+    amount_value numeric NULL,
+    amount_unit_concept_id integer NULL
+);
@@ -0,0 +1,82 @@
+-- A few rows for three persons, covering the joins which the staging tables resolve: measurements with and without
+-- value and unit concepts, an exposure with a drug_strength, a procedure with a site and a condition with two
+-- morphologies, which is still a single disease.
+
+INSERT INTO concept (concept_id, concept_name, domain_id, vocabulary_id, concept_code) VALUES
+    (0, 'No matching concept', 'Metadata', 'None', 'No matching concept'),
+    (8507, 'MALE', 'Gender', 'Gender', 'M'),
+    (8532, 'FEMALE', 'Gender', 'Gender', 'F'),
+    (3004249, 'Systolic blood pressure', 'Measurement', 'LOINC', '8480-6'),
+    (3016723, 'Creatinine [Mass/volume] in Serum or Plasma', 'Measurement', 'LOINC', '2160-0'),
+    (3003694, 'ABO and Rh group [Type] in Blood', 'Measurement', 'LOINC', '882-1'),
+    (8876, 'millimeter mercury column', 'Unit', 'UCUM', 'mm[Hg]'),
+    (8840, 'milligram per deciliter', 'Unit', 'UCUM', 'mg/dL'),
+    (8576, 'milligram', 'Unit', 'UCUM', 'mg'),
+    (9189, 'Negative', 'Meas Value', 'SNOMED', '260385009'),
+    (1125315, 'Acetaminophen 500 MG Oral Tablet', 'Drug', 'RxNorm', '198440'),
+    (4132161, 'Oral', 'Route', 'SNOMED', '26643006'),
+    (4230911, 'Appendectomy', 'Procedure', 'SNOMED', '80146002'),
+    (4185368, 'Appendix structure', 'Spec Anatomic Site', 'SNOMED', '66754008'),
+    (201820, 'Diabetes mellitus', 'Condition', 'SNOMED', '73211009'),
+    (201826, 'Type 2 diabetes mellitus', 'Condition', 'SNOMED', '44054006'),
+    (201254, 'Type 1 diabetes mellitus', 'Condition', 'SNOMED', '46635009'),
+    (4224621, 'Inflammation', 'Observation', 'SNOMED', '23583003'),
+    (4048384, 'Degenerative abnormality', 'Observation', 'SNOMED', '107669003');
+
+INSERT INTO concept_relationship (concept_id_1, concept_id_2, relationship_id) VALUES
+    (4230911, 4185368, 'Has proc site'),
+    (201826, 4224621, 'Has asso morph'),
+    (201826, 4048384, 'Has asso morph');
+
+-- as in the vocabulary, every concept is its own ancestor
+INSERT INTO concept_ancestor (ancestor_concept_id, descendant_concept_id, min_levels_of_separation, max_levels_of_separation) VALUES
+    (201820, 201820, 0, 0),
+    (201820, 201826, 1, 1),
+    (201820, 201254, 1, 1),
+    (201826, 201826, 0, 0),
+    (201254, 201254, 0, 0);
+
+INSERT INTO drug_strength (drug_concept_id, ingredient_concept_id, amount_value, amount_unit_concept_id) VALUES
+    (1125315, 1125315, 500, 8576);
+
+INSERT INTO person (person_id, gender_concept_id, birth_datetime) VALUES
+    (1, 8532, '1960-03-14 00:00:00'),
+    (2, 8507, '1975-11-02 00:00:00');
+
+INSERT INTO visit_occurrence (visit_occurrence_id, person_id, visit_start_date) VALUES
+    (1, 1, '2021-02-01'),
+    (2, 2, '2021-06-10');
+
+-- measurement 3 has a unit concept which is not in the vocabulary, so is mapped from its unit_source_value, and
+-- measurement 6 has only its date, as OMOP allows
+INSERT INTO measurement (measurement_id, person_id, measurement_concept_id, measurement_date, measurement_datetime, value_as_number,
+                         value_as_concept_id, unit_concept_id, range_low, range_high, visit_occurrence_id, unit_source_value,
+                         value_source_value) VALUES
+    (1, 1, 3004249, '2021-02-01', '2021-02-01 09:30:00', 128, NULL, 8876, 90, 140, 1, 'mmHg', '128'),
+    (2, 1, 3016723, '2021-02-01', '2021-02-01 09:45:00', 0.9, NULL, 8840, 0.6, 1.2, 1, 'mg/dL', '0.9'),
+    (3, 1, 3004249, '2021-08-15', '2021-08-15 10:00:00', 135, NULL, 99999, 90, 140, NULL, 'mm Hg', '135'),
+    (4, 2, 3003694, '2021-06-10', '2021-06-10 14:00:00', NULL, 9189, NULL, NULL, NULL, 2, NULL, 'Rh negative'),
+    (5, 2, 3004249, '2021-06-10', '2021-06-10 14:05:00', 142, NULL, 8876, 90, 140, 2, 'mmHg', '142'),
+    (6, 2, 3016723, '2021-03-02', NULL, 1.0, NULL, 8840, 0.6, 1.2, NULL, 'mg/dL', '1.0');
+
+INSERT INTO drug_exposure (drug_exposure_id, person_id, drug_concept_id, drug_exposure_start_date, days_supply, route_concept_id) VALUES
+    (1, 1, 1125315, '2021-02-01', 10, 4132161),
+    (2, 1, 1125315, '2021-02-08', 10, 4132161),
+    (3, 2, 1125315, '2021-06-10', 5, NULL);
+
+INSERT INTO procedure_occurrence (procedure_occurrence_id, person_id, procedure_concept_id, procedure_datetime) VALUES
+    (1, 1, 4230911, '2021-08-15 11:00:00'),
+    (2, 2, 99999, '2021-06-11 08:00:00');
+
+INSERT INTO condition_occurrence (condition_occurrence_id, person_id, condition_concept_id, condition_start_date, condition_end_date,
+                                  condition_source_value) VALUES
+    (1, 1, 201826, '2015-05-20', NULL, 'E11.9'),
+    (2, 2, 201826, '2021-06-10', '2021-09-01', 'E11.9');
+
+-- person 3 has a condition and nothing else, so is only found through the concept hierarchy
+INSERT INTO person (person_id, gender_concept_id, birth_datetime) VALUES
+    (3, 8532, '1990-07-21 00:00:00');
+
+INSERT INTO condition_occurrence (condition_occurrence_id, person_id, condition_concept_id, condition_start_date, condition_end_date,
+                                  condition_source_value) VALUES
+    (3, 3, 201254, '2005-01-12', NULL, 'E10.9');